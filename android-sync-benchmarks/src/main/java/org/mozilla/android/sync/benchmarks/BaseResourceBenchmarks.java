@@ -0,0 +1,131 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.test.helpers.BaseResourceDelegate;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.client.methods.HttpGet;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
+import ch.boye.httpclientandroidlib.params.HttpParams;
+import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
+import ch.boye.httpclientandroidlib.protocol.BasicHttpContext;
+
+/**
+ * A GET against a <code>MockServer</code> on localhost, with a new, freshly
+ * configured <code>DefaultHttpClient</code> per request, as
+ * <code>BaseResource</code> used to make them, and through
+ * <code>BaseResource</code>'s shared clients.
+ * <p>
+ * The server speaks plain HTTP, so this measures per-request client setup
+ * and connection reuse, not TLS handshakes, and the server's time dominates.
+ * Run with <code>-prof gc</code> to compare the client-side allocation. The
+ * server listens on the port given by the
+ * <code>android.sync.local.http.port</code> system property, 15125 by
+ * default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class BaseResourceBenchmarks {
+  private static final String CREDENTIALS = BenchmarkRecords.USERNAME + ":" + BenchmarkRecords.PASSWORD;
+
+  public static class CountingDelegate extends BaseResourceDelegate {
+    public int responses = 0;
+
+    @Override
+    public String getCredentials() {
+      return CREDENTIALS;
+    }
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      responses++;
+      BaseResource.consumeEntity(response);
+    }
+
+    @Override
+    public void handleHttpProtocolException(ClientProtocolException e) {
+      throw new IllegalStateException(e);
+    }
+
+    @Override
+    public void handleHttpIOException(IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    @Override
+    public void handleTransportException(GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  protected final HTTPServerTestHelper data = new HTTPServerTestHelper();
+  protected URI uri;
+  protected CountingDelegate delegate;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    data.startHTTPServer(new MockServer(200, "{}"));
+    BaseResource.rewriteLocalhost = false;
+    uri = new URI("http://localhost:" + data.port + "/foo/bar");
+    delegate = new CountingDelegate();
+  }
+
+  @TearDown
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  @Benchmark
+  public int freshClient() throws Exception {
+    final DefaultHttpClient client = new DefaultHttpClient(BaseResource.getConnectionManager());
+    final HttpParams params = client.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, 30000);
+    HttpConnectionParams.setSoTimeout(params, 5 * 60 * 1000);
+    HttpConnectionParams.setStaleCheckingEnabled(params, false);
+    HttpProtocolParams.setContentCharset(params, "utf-8");
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    final HttpGet get = new HttpGet(uri);
+    get.addHeader(BaseResource.getBasicAuthHeader(CREDENTIALS));
+    final HttpResponse response = client.execute(get, new BasicHttpContext());
+    final int status = response.getStatusLine().getStatusCode();
+    BaseResource.consumeEntity(response);
+    return status;
+  }
+
+  @Benchmark
+  public int sharedClient() {
+    final BaseResource resource = new BaseResource(uri, false);
+    resource.delegate = delegate;
+    resource.get();
+    return delegate.responses;
+  }
+}
@@ -0,0 +1,214 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.mozilla.android.sync.test.helpers.MockGlobalSession;
+import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.ClientRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecordFactory;
+import org.mozilla.gecko.sync.stage.FennecTabsServerSyncStage;
+import org.mozilla.gecko.sync.stage.FormHistoryServerSyncStage;
+import org.mozilla.gecko.sync.stage.PasswordsServerSyncStage;
+
+/**
+ * Records for the benchmarks, shaped like the ones desktop clients upload.
+ * <p>
+ * Everything is derived from the record's collection and index, so every
+ * run on every machine measures the same data. Only ciphertext differs from
+ * run to run, because each encryption draws a fresh IV; its length doesn't.
+ */
+public class BenchmarkRecords {
+  // Corresponds to rnewman+atest1@mozilla.com, local.
+  public static final String USERNAME = "n6ec3u5bee3tixzp2asys7bs6fve4jfw";
+  public static final String PASSWORD = "password";
+  public static final String SYNC_KEY = "eh7ppnb82iwr5kt3z3uyi5vr44";
+
+  public static final long BASE_TIMESTAMP = 1326254123000L;
+
+  public static final String BOOKMARKS = "bookmarks";
+  public static final String HISTORY   = "history";
+  public static final String CLIENTS   = "clients";
+  public static final String FORMS     = "forms";
+  public static final String PASSWORDS = "passwords";
+  public static final String TABS      = "tabs";
+
+  /**
+   * Stop logging, so that benchmarks measure the code and not the log.
+   */
+  public static void quietLogging() {
+    Logger.stopLoggingToAll();
+  }
+
+  public static KeyBundle getKeyBundle() throws Exception {
+    return new KeyBundle(USERNAME, SYNC_KEY);
+  }
+
+  public static String guid(int index) {
+    return String.format(Locale.US, "bench%07d", index);
+  }
+
+  protected static String url(Random random, int index) {
+    return "http://www" + random.nextInt(1000) + ".example.com/path/to/page/" + index + "?q=" + Long.toString(random.nextLong(), 36);
+  }
+
+  protected static String words(Random random, int count) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        b.append(' ');
+      }
+      b.append(Long.toString(Math.abs(random.nextLong()), 36));
+    }
+    return b.toString();
+  }
+
+  /**
+   * @return the cleartext payload of record <code>index</code> in
+   *         <code>collection</code>.
+   */
+  @SuppressWarnings("unchecked")
+  public static ExtendedJSONObject payload(String collection, int index) {
+    final Random random = new Random(collection.hashCode() * 31L + index);
+    final ExtendedJSONObject payload = new ExtendedJSONObject();
+    payload.put("id", guid(index));
+
+    if (BOOKMARKS.equals(collection)) {
+      final JSONArray tags = new JSONArray();
+      tags.add("tag" + random.nextInt(10));
+      tags.add("tag" + random.nextInt(10));
+      payload.put("type", "bookmark");
+      payload.put("title", words(random, 4));
+      payload.put("bmkUri", url(random, index));
+      payload.put("description", words(random, 8));
+      payload.put("keyword", null);
+      payload.put("tags", tags);
+      payload.put("parentid", "toolbar");
+      payload.put("parentName", "Bookmarks Toolbar");
+      payload.put("loadInSidebar", Boolean.FALSE);
+    } else if (HISTORY.equals(collection)) {
+      final JSONArray visits = new JSONArray();
+      long date = BASE_TIMESTAMP * 1000;
+      for (int i = 0; i < 10; i++) {
+        date -= random.nextInt(86400) * 1000000L;
+        final JSONObject visit = new JSONObject();
+        visit.put("date", Long.valueOf(date));
+        visit.put("type", Long.valueOf(1 + random.nextInt(6)));
+        visits.add(visit);
+      }
+      payload.put("histUri", url(random, index));
+      payload.put("title", words(random, 4));
+      payload.put("visits", visits);
+    } else if (CLIENTS.equals(collection)) {
+      payload.put("name", "Client " + index);
+      payload.put("type", (index % 2 == 0) ? "desktop" : "mobile");
+      payload.put("commands", new JSONArray());
+      payload.put("version", "16.0");
+      payload.put("protocols", new JSONArray());
+    } else if (FORMS.equals(collection)) {
+      payload.put("name", "field" + random.nextInt(20));
+      payload.put("value", words(random, 2));
+    } else if (PASSWORDS.equals(collection)) {
+      final String hostname = "https://www" + random.nextInt(1000) + ".example.com";
+      payload.put("hostname", hostname);
+      payload.put("formSubmitURL", hostname + "/login");
+      payload.put("httpRealm", null);
+      payload.put("username", "user" + index);
+      payload.put("password", Long.toString(random.nextLong(), 36));
+      payload.put("usernameField", "username");
+      payload.put("passwordField", "password");
+    } else if (TABS.equals(collection)) {
+      final JSONArray tabs = new JSONArray();
+      for (int i = 0; i < 5; i++) {
+        final JSONArray history = new JSONArray();
+        history.add(url(random, index));
+        final JSONObject tab = new JSONObject();
+        tab.put("title", words(random, 4));
+        tab.put("icon", "");
+        tab.put("urlHistory", history);
+        tab.put("lastUsed", Long.toString(BASE_TIMESTAMP / 1000 - random.nextInt(86400)));
+        tabs.add(tab);
+      }
+      payload.put("clientName", "Client " + index);
+      payload.put("tabs", tabs);
+    } else {
+      throw new IllegalArgumentException("Unknown collection " + collection + ".");
+    }
+    return payload;
+  }
+
+  /**
+   * @return an envelope around record <code>index</code>'s cleartext, as
+   *         <code>Crypto5MiddlewareRepositorySession</code> hands to a
+   *         <code>RecordFactory</code>.
+   */
+  public static CryptoRecord cleartextRecord(String collection, int index) {
+    final CryptoRecord record = new CryptoRecord(payload(collection, index));
+    record.guid = guid(index);
+    record.collection = collection;
+    record.lastModified = BASE_TIMESTAMP + index * 1000L;
+    return record;
+  }
+
+  /**
+   * @return record <code>index</code>, encrypted with <code>keys</code>.
+   */
+  public static CryptoRecord encryptedRecord(String collection, int index, KeyBundle keys) throws Exception {
+    final CryptoRecord record = cleartextRecord(collection, index);
+    record.keyBundle = keys;
+    return record.encrypt();
+  }
+
+  /**
+   * @return <code>record</code> as a whole WBO, as the server returns it.
+   */
+  public static String toWBO(CryptoRecord record) {
+    return "{\"id\":\"" + record.guid + "\"," +
+           "\"modified\":" + Utils.millisecondsToDecimalSecondsString(record.lastModified) + "," +
+           "\"sortindex\":0," +
+           "\"payload\":\"" + JSONValue.escape(record.payload.toJSONString()) + "\"}";
+  }
+
+  /**
+   * @return the factory that sync uses for <code>collection</code>.
+   */
+  public static RecordFactory getRecordFactory(String collection) throws Exception {
+    if (BOOKMARKS.equals(collection)) {
+      return new BookmarkRecordFactory();
+    }
+    if (HISTORY.equals(collection)) {
+      return new HistoryRecordFactory();
+    }
+    if (CLIENTS.equals(collection)) {
+      return new ClientRecordFactory();
+    }
+
+    // The rest are inner classes of their stages.
+    final GlobalSession session = new MockGlobalSession("http://localhost/", USERNAME, PASSWORD,
+        getKeyBundle(), new MockGlobalSessionCallback());
+    if (FORMS.equals(collection)) {
+      return new FormHistoryServerSyncStage(session).new FormHistoryRecordFactory();
+    }
+    if (PASSWORDS.equals(collection)) {
+      return new PasswordsServerSyncStage(session).new PasswordRecordFactory();
+    }
+    if (TABS.equals(collection)) {
+      return new FennecTabsServerSyncStage(session).new FennecTabsRecordFactory();
+    }
+    throw new IllegalArgumentException("Unknown collection " + collection + ".");
+  }
+}
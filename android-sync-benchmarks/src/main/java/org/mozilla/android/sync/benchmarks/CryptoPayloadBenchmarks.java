@@ -0,0 +1,89 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypting and decrypting payloads of about <code>payloadSize</code> bytes
+ * of cleartext, where the buffers <code>CryptoRecord</code> reuses matter
+ * more than they do for typical records. See
+ * <code>CryptoRecordBenchmarks</code> for those.
+ * <p>
+ * <code>legacyDecrypt</code> decrypts the way <code>CryptoRecord</code> used
+ * to: decoding each field into a fresh array before decrypting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class CryptoPayloadBenchmarks {
+  @Param({ "1024", "10240", "102400" })
+  public int payloadSize;
+
+  protected KeyBundle keys;
+  protected ExtendedJSONObject cleartext;
+  protected ExtendedJSONObject ciphertext;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    keys = BenchmarkRecords.getKeyBundle();
+
+    // Base64 makes the filler a third longer than the random bytes.
+    final byte[] filler = new byte[payloadSize * 3 / 4];
+    new Random(payloadSize).nextBytes(filler);
+    cleartext = new ExtendedJSONObject();
+    cleartext.put("id", BenchmarkRecords.guid(0));
+    cleartext.put("filler", Base64.encodeBase64String(filler));
+
+    final CryptoRecord record = new CryptoRecord(cleartext);
+    record.keyBundle = keys;
+    ciphertext = record.encrypt().payload;
+  }
+
+  @Benchmark
+  public CryptoRecord encrypt() throws Exception {
+    final CryptoRecord record = new CryptoRecord(cleartext);
+    record.keyBundle = keys;
+    return record.encrypt();
+  }
+
+  @Benchmark
+  public CryptoRecord decrypt() throws Exception {
+    final CryptoRecord record = new CryptoRecord(ciphertext);
+    record.keyBundle = keys;
+    return record.decrypt();
+  }
+
+  @Benchmark
+  public ExtendedJSONObject legacyDecrypt() throws Exception {
+    final byte[] ciphertextBytes = Base64.decodeBase64(((String) ciphertext.get("ciphertext")).getBytes("UTF-8"));
+    final byte[] iv              = Base64.decodeBase64(((String) ciphertext.get("IV")).getBytes("UTF-8"));
+    final byte[] hmac            = Utils.hex2Byte((String) ciphertext.get("hmac"));
+    final byte[] message = CryptoInfo.decrypt(ciphertextBytes, iv, hmac, keys).getMessage();
+    return ExtendedJSONObject.parseJSONObject(new String(message, "UTF-8"));
+  }
+}
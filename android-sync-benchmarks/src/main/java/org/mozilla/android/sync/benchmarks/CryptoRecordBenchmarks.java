@@ -0,0 +1,82 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a fetched WBO, and encrypting and decrypting its payload, for each
+ * kind of record. <code>CryptoPayloadBenchmarks</code> covers larger
+ * payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class CryptoRecordBenchmarks {
+  @Param({ "bookmarks", "history", "clients", "forms", "passwords", "tabs" })
+  public String collection;
+
+  protected KeyBundle keys;
+  protected ExtendedJSONObject cleartext;
+  protected ExtendedJSONObject ciphertext;
+  protected String wbo;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    keys = BenchmarkRecords.getKeyBundle();
+    cleartext = BenchmarkRecords.payload(collection, 0);
+    final CryptoRecord encrypted = BenchmarkRecords.encryptedRecord(collection, 0, keys);
+    ciphertext = encrypted.payload;
+    wbo = BenchmarkRecords.toWBO(encrypted);
+  }
+
+  @Benchmark
+  public CryptoRecord fromJSONRecord() throws Exception {
+    return CryptoRecord.fromJSONRecord(wbo);
+  }
+
+  @Benchmark
+  public CryptoRecord encrypt() throws Exception {
+    // Encrypting replaces the record's payload, not the object it started with.
+    final CryptoRecord record = new CryptoRecord(cleartext);
+    record.keyBundle = keys;
+    return record.encrypt();
+  }
+
+  @Benchmark
+  public CryptoRecord decrypt() throws Exception {
+    final CryptoRecord record = new CryptoRecord(ciphertext);
+    record.keyBundle = keys;
+    return record.decrypt();
+  }
+
+  /**
+   * What a fetch does to each record before handing it to a record factory.
+   */
+  @Benchmark
+  public CryptoRecord fromJSONRecordAndDecrypt() throws Exception {
+    final CryptoRecord record = CryptoRecord.fromJSONRecord(wbo);
+    record.keyBundle = keys;
+    return record.decrypt();
+  }
+}
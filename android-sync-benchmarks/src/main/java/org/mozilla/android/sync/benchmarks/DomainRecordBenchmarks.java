@@ -0,0 +1,80 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.boye.httpclientandroidlib.util.ByteArrayBuffer;
+
+/**
+ * Turning decrypted envelopes into domain records, and domain records back
+ * into envelopes and upload bytes, for each kind of record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class DomainRecordBenchmarks {
+  @Param({ "bookmarks", "history", "clients", "forms", "passwords", "tabs" })
+  public String collection;
+
+  protected RecordFactory factory;
+  protected CryptoRecord cleartext;
+  protected Record record;
+  protected CryptoRecord encrypted;
+  protected ByteArrayBuffer buffer;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    factory = BenchmarkRecords.getRecordFactory(collection);
+    cleartext = BenchmarkRecords.cleartextRecord(collection, 0);
+    record = factory.createRecord(cleartext);
+    encrypted = BenchmarkRecords.encryptedRecord(collection, 0, BenchmarkRecords.getKeyBundle());
+    buffer = new ByteArrayBuffer(4096);
+  }
+
+  @Benchmark
+  public Record createRecord() {
+    return factory.createRecord(cleartext);
+  }
+
+  @Benchmark
+  public CryptoRecord getEnvelope() {
+    return record.getEnvelope();
+  }
+
+  @Benchmark
+  public byte[] toJSONBytes() {
+    return encrypted.toJSONBytes();
+  }
+
+  /**
+   * How <code>Server11RepositorySession</code> serializes encrypted records
+   * for upload.
+   */
+  @Benchmark
+  public int appendJSONBytes() {
+    buffer.clear();
+    encrypted.appendJSONBytes(buffer);
+    return buffer.length();
+  }
+}
@@ -0,0 +1,64 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.log.writers.LevelFilteringLogWriter;
+import org.mozilla.gecko.sync.log.writers.StringLogWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.util.Log;
+
+/**
+ * A trace call with verbose logging off, as in a per-record loop, when the
+ * message is concatenated by the caller and when it's passed as a format and
+ * argument.
+ * <p>
+ * Run with <code>-prof gc</code> to compare bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class LoggerBenchmarks {
+  private static final String LOG_TAG = "LoggerBenchmarks";
+
+  protected String guid;
+
+  @Setup
+  public void setUp() {
+    guid = BenchmarkRecords.guid(0);
+    Logger.stopLoggingToAll();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.INFO, new StringLogWriter()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    Logger.stopLoggingToAll();
+  }
+
+  @Benchmark
+  public void concatenated() {
+    Logger.trace(LOG_TAG, "Storing record with guid " + guid + ".");
+  }
+
+  @Benchmark
+  public void parameterized() {
+    Logger.trace(LOG_TAG, "Storing record with guid {}.", guid);
+  }
+}
@@ -0,0 +1,73 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filling the old record string map -- a <code>HashMap</code> from boxed
+ * <code>String.hashCode</code> to GUID -- and a
+ * <code>RecordStringIndex</code> with <code>records</code> entries.
+ * <p>
+ * Run with <code>-prof gc</code> to compare bytes allocated per fill, which
+ * is close to what each retains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class RecordStringIndexBenchmarks {
+  @Param({ "10000", "100000" })
+  public int records;
+
+  protected String[] urls;
+  protected char[][] guids;
+
+  @Setup
+  public void setUp() {
+    BenchmarkRecords.quietLogging();
+    urls = new String[records];
+    guids = new char[records][];
+    for (int i = 0; i < records; i++) {
+      urls[i] = "http://example.com/some/path/" + i + "?query=" + (i * 31);
+      guids[i] = BenchmarkRecords.guid(i).toCharArray();
+    }
+  }
+
+  // GUIDs are copied as they'd arrive from a cursor: a fresh String per row.
+
+  @Benchmark
+  public HashMap<Integer, String> hashMap() {
+    final HashMap<Integer, String> map = new HashMap<Integer, String>();
+    for (int i = 0; i < records; i++) {
+      map.put(Integer.valueOf(urls[i].hashCode()), new String(guids[i]));
+    }
+    return map;
+  }
+
+  @Benchmark
+  public RecordStringIndex recordStringIndex() {
+    final RecordStringIndex index = new RecordStringIndex(0);
+    for (int i = 0; i < records; i++) {
+      index.put(RecordStringIndex.hash(urls[i]), new String(guids[i]));
+    }
+    return index;
+  }
+}
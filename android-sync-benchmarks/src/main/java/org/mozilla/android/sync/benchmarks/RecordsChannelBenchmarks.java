@@ -0,0 +1,145 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.android.sync.test.helpers.WBORepository;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flowing every record from one in-memory session to another through a
+ * <code>RecordsChannel</code>: the fetch, queue, and store machinery of a
+ * sync without network, crypto, or database.
+ * <p>
+ * Each operation is one whole flow of <code>records</code> records. Fresh
+ * sessions are set up outside the measurement for each flow; a flow takes
+ * milliseconds, so that doesn't skew the timing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class RecordsChannelBenchmarks {
+  private static final long FLOW_TIMEOUT_SECONDS = 60;
+
+  /**
+   * <code>WBORepositorySession</code> never shuts down its delegate
+   * executor, which would leak a thread per session over thousands of flows.
+   */
+  public static class InMemoryRepository extends WBORepository {
+    public class InMemorySession extends WBORepositorySession {
+      public InMemorySession() {
+        super(InMemoryRepository.this);
+      }
+
+      public void close() {
+        abort();
+        delegateExecutor.shutdown();
+      }
+    }
+  }
+
+  @Param({ "100", "1000" })
+  public int records;
+
+  // RecordsChannel.DEFAULT_QUEUE_CAPACITY and RecordsChannel.UNBOUNDED.
+  @Param({ "500", "2147483647" })
+  public int queueCapacity;
+
+  protected InMemoryRepository sourceRepository;
+  protected InMemoryRepository.InMemorySession source;
+  protected InMemoryRepository.InMemorySession sink;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    final RecordFactory factory = BenchmarkRecords.getRecordFactory(BenchmarkRecords.BOOKMARKS);
+    sourceRepository = new InMemoryRepository();
+    for (int i = 0; i < records; i++) {
+      final Record record = factory.createRecord(BenchmarkRecords.cleartextRecord(BenchmarkRecords.BOOKMARKS, i));
+      sourceRepository.wbos.put(record.guid, record);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpFlow() {
+    // Sessions copy the repository's records when they begin, and we never
+    // finish them, so the source keeps its records and the sink starts empty.
+    source = sourceRepository.new InMemorySession();
+    sink = new InMemoryRepository().new InMemorySession();
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownFlow() {
+    source.close();
+    sink.close();
+  }
+
+  @Benchmark
+  public int flow() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final RecordsChannelDelegate delegate = new RecordsChannelDelegate() {
+      @Override
+      public void onFlowCompleted(RecordsChannel recordsChannel, long fetchEnd, long storeEnd) {
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowBeginFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.compareAndSet(null, ex);
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowFetchFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.compareAndSet(null, ex);
+      }
+
+      @Override
+      public void onFlowStoreFailed(RecordsChannel recordsChannel, Exception ex, String recordGuid) {
+        failure.compareAndSet(null, ex);
+      }
+
+      @Override
+      public void onFlowFinishFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.compareAndSet(null, ex);
+      }
+    };
+
+    final RecordsChannel channel = new RecordsChannel(source, sink, delegate, queueCapacity);
+    channel.beginAndFlow();
+    if (!done.await(FLOW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Timed out waiting for flow.");
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    if (channel.getStoreCount() != records) {
+      throw new IllegalStateException("Stored " + channel.getStoreCount() + " of " + records + " records.");
+    }
+    return sink.wbos.size();
+  }
+}
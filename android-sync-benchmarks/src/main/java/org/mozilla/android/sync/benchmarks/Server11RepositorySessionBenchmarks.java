@@ -0,0 +1,267 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.CredentialsSource;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Fetching a collection from, and uploading it to, a <code>MockServer</code>
+ * on localhost with a <code>Server11RepositorySession</code>: requests,
+ * response parsing, and upload batching, without crypto.
+ * <p>
+ * Each operation is one whole fetch or upload of <code>records</code>
+ * encrypted bookmarks. The server answers from memory, but its time is
+ * included. The server listens on the port given by the
+ * <code>android.sync.local.http.port</code> system property, 15125 by
+ * default; pass <code>-jvmArgsAppend -Dandroid.sync.local.http.port=N</code>
+ * to change it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class Server11RepositorySessionBenchmarks implements CredentialsSource {
+  private static final long TIMEOUT_SECONDS = 60;
+  private static final long SERVER_TIMESTAMP = BenchmarkRecords.BASE_TIMESTAMP + 1000 * 1000;
+
+  /**
+   * Serves a fixed collection, and reports every record POSTed as stored.
+   */
+  public static class CollectionMockServer extends MockServer {
+    protected final String collection;
+
+    public CollectionMockServer(String collection) {
+      this.collection = collection;
+    }
+
+    /**
+     * @return the IDs of the records in a POST body, as a JSON array.
+     */
+    protected static String ids(String body) {
+      // IDs are the only unescaped "id" keys: payloads are strings.
+      final String key = "\"id\":\"";
+      final StringBuilder b = new StringBuilder("[");
+      int start = body.indexOf(key);
+      while (start >= 0) {
+        start += key.length();
+        final int end = body.indexOf('"', start);
+        if (b.length() > 1) {
+          b.append(',');
+        }
+        b.append('"').append(body, start, end).append('"');
+        start = body.indexOf(key, end);
+      }
+      return b.append(']').toString();
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      try {
+        if ("POST".equals(request.getMethod())) {
+          final String ids = ids(request.getContent());
+          final PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/json", SERVER_TIMESTAMP);
+          bodyStream.print("{\"modified\":" + Utils.millisecondsToDecimalSecondsString(SERVER_TIMESTAMP) + "," +
+                           "\"success\":" + ids + ",\"failed\":{}}");
+          bodyStream.close();
+          return;
+        }
+        final PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines", SERVER_TIMESTAMP);
+        bodyStream.print(collection);
+        bodyStream.close();
+      } catch (IOException e) {
+        this.handle(request, response, 500, "error");
+      }
+    }
+  }
+
+  @Param({ "100", "1000" })
+  public int records;
+
+  @Param({ "1", "4" })
+  public int maxConcurrentUploads;
+
+  protected final HTTPServerTestHelper data = new HTTPServerTestHelper();
+  protected Server11Repository repository;
+  protected CryptoRecord[] encrypted;
+  protected Server11RepositorySession session;
+
+  @Override
+  public String credentials() {
+    return BenchmarkRecords.USERNAME + ":" + BenchmarkRecords.PASSWORD;
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    final KeyBundle keys = BenchmarkRecords.getKeyBundle();
+    encrypted = new CryptoRecord[records];
+    final StringBuilder collection = new StringBuilder();
+    for (int i = 0; i < records; i++) {
+      encrypted[i] = BenchmarkRecords.encryptedRecord(BenchmarkRecords.BOOKMARKS, i, keys);
+      collection.append(BenchmarkRecords.toWBO(encrypted[i])).append('\n');
+    }
+
+    data.startHTTPServer(new CollectionMockServer(collection.toString()));
+    BaseResource.rewriteLocalhost = false;
+    repository = new Server11Repository("http://localhost:" + data.port + "/", BenchmarkRecords.USERNAME,
+                                        BenchmarkRecords.BOOKMARKS, this);
+    repository.maxConcurrentUploads = maxConcurrentUploads;
+  }
+
+  @TearDown
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpSession() throws Exception {
+    session = new Server11RepositorySession(repository);
+    final CountDownLatch begun = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    session.begin(new RepositorySessionBeginDelegate() {
+      @Override
+      public void onBeginSucceeded(RepositorySession session) {
+        begun.countDown();
+      }
+
+      @Override
+      public void onBeginFailed(Exception ex) {
+        failure.set(ex);
+        begun.countDown();
+      }
+
+      @Override
+      public RepositorySessionBeginDelegate deferredBeginDelegate(ExecutorService executor) {
+        return this;
+      }
+    });
+    await(begun, failure);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownSession() {
+    session.abort();
+  }
+
+  protected static void await(CountDownLatch latch, AtomicReference<Exception> failure) throws Exception {
+    if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Timed out.");
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /**
+   * Fetching ignores <code>maxConcurrentUploads</code>.
+   */
+  @Benchmark
+  public int fetch() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final AtomicInteger fetched = new AtomicInteger();
+    session.fetchSince(-1, new RepositorySessionFetchRecordsDelegate() {
+      @Override
+      public void onFetchedRecord(Record record) {
+        fetched.incrementAndGet();
+      }
+
+      @Override
+      public void onFetchFailed(Exception ex, Record record) {
+        failure.compareAndSet(null, ex);
+        done.countDown();
+      }
+
+      @Override
+      public void onFetchCompleted(long fetchEnd) {
+        done.countDown();
+      }
+
+      @Override
+      public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+        return this;
+      }
+    });
+    await(done, failure);
+    if (fetched.get() != records) {
+      throw new IllegalStateException("Fetched " + fetched.get() + " of " + records + " records.");
+    }
+    return fetched.get();
+  }
+
+  @Benchmark
+  public int upload() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final AtomicInteger stored = new AtomicInteger();
+    session.setStoreDelegate(new RepositorySessionStoreDelegate() {
+      @Override
+      public void onRecordStoreSucceeded(String guid) {
+        stored.incrementAndGet();
+      }
+
+      @Override
+      public void onRecordStoreFailed(Exception ex, String recordGuid) {
+        failure.compareAndSet(null, ex);
+      }
+
+      @Override
+      public void onStoreCompleted(long storeEnd) {
+        done.countDown();
+      }
+
+      @Override
+      public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+        return this;
+      }
+    });
+    for (CryptoRecord record : encrypted) {
+      session.store(record);
+    }
+    session.storeDone();
+    await(done, failure);
+    if (stored.get() != records) {
+      throw new IllegalStateException("Stored " + stored.get() + " of " + records + " records.");
+    }
+    return stored.get();
+  }
+}
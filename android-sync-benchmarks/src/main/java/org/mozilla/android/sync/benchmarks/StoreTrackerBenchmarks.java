@@ -0,0 +1,95 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.HashSetStoreTracker;
+import org.mozilla.gecko.sync.repositories.PackedGuidStoreTracker;
+import org.mozilla.gecko.sync.repositories.RecordFilter;
+import org.mozilla.gecko.sync.repositories.StoreTracker;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tracking <code>guids</code> stored GUIDs, and filtering twice as many
+ * fetched records against them, half of them tracked, with each kind of
+ * <code>StoreTracker</code>.
+ * <p>
+ * Run <code>track</code> with <code>-prof gc</code> to compare bytes
+ * allocated per GUID, which is close to what each tracker retains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class StoreTrackerBenchmarks {
+  @Param({ "10000", "100000" })
+  public int guids;
+
+  @Param({ "hashSet", "packed" })
+  public String tracker;
+
+  protected char[][] stored;
+  protected Record[] fetched;
+  protected RecordFilter filter;
+
+  protected StoreTracker createTracker() {
+    if ("packed".equals(tracker)) {
+      return new PackedGuidStoreTracker();
+    }
+    return new HashSetStoreTracker();
+  }
+
+  @Setup
+  public void setUp() {
+    BenchmarkRecords.quietLogging();
+    stored = new char[guids][];
+    fetched = new Record[2 * guids];
+    for (int i = 0; i < guids; i++) {
+      stored[i] = Utils.generateGuid().toCharArray();
+      fetched[2 * i] = new BookmarkRecord(new String(stored[i]));
+      fetched[2 * i + 1] = new BookmarkRecord(Utils.generateGuid());
+    }
+    filter = track().getFilter();
+  }
+
+  /**
+   * GUIDs are copied as they'd arrive from a store: a fresh String per
+   * record.
+   */
+  @Benchmark
+  public StoreTracker track() {
+    final StoreTracker t = createTracker();
+    for (char[] guid : stored) {
+      t.trackRecordForExclusion(new String(guid));
+    }
+    return t;
+  }
+
+  @Benchmark
+  public int filter() {
+    int excluded = 0;
+    for (Record record : fetched) {
+      if (filter.excludeRecord(record)) {
+        excluded++;
+      }
+    }
+    return excluded;
+  }
+}
@@ -0,0 +1,124 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.boye.httpclientandroidlib.util.ByteArrayBuffer;
+
+/**
+ * Serializing <code>records</code> encrypted records into upload batches of
+ * 100: the old way, buffering <code>toJSONBytes</code> per record and writing
+ * the arrays out one by one, and the current way, appending each record
+ * straight into a reused <code>ByteArrayBuffer</code>.
+ * <p>
+ * Run with <code>-prof gc</code> to compare bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class UploadSerializationBenchmarks {
+  private static final int BATCH_SIZE = 100;
+  private static final byte[] START     = new byte[] { '[' };
+  private static final byte[] SEPARATOR = new byte[] { ',' };
+  private static final byte[] END       = new byte[] { ']' };
+
+  @Param({ "1000" })
+  public int records;
+
+  @Param({ "512", "4096" })
+  public int payloadSize;
+
+  protected CryptoRecord[] encrypted;
+  protected ByteArrayOutputStream entity;
+  protected ByteArrayBuffer batch;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    final KeyBundle keys = BenchmarkRecords.getKeyBundle();
+    final StringBuilder filler = new StringBuilder();
+    for (int i = 0; i < payloadSize; i++) {
+      filler.append((char) ('a' + (i % 26)));
+    }
+    encrypted = new CryptoRecord[records];
+    for (int i = 0; i < records; i++) {
+      final ExtendedJSONObject cleartext = new ExtendedJSONObject();
+      cleartext.put("id", BenchmarkRecords.guid(i));
+      cleartext.put("filler", filler.toString());
+      final CryptoRecord record = new CryptoRecord(cleartext);
+      record.guid = BenchmarkRecords.guid(i);
+      record.keyBundle = keys;
+      encrypted[i] = record.encrypt();
+    }
+    entity = new ByteArrayOutputStream(256 * 1024);
+    batch = new ByteArrayBuffer(16 * 1024);
+  }
+
+  @Benchmark
+  public long byteArrays() throws Exception {
+    long size = 0;
+    ArrayList<byte[]> pending = new ArrayList<byte[]>();
+    for (int i = 0; i < encrypted.length; i++) {
+      pending.add(encrypted[i].toJSONBytes());
+      if (pending.size() == BATCH_SIZE || i == encrypted.length - 1) {
+        entity.reset();
+        entity.write(START);
+        entity.write(pending.get(0));
+        for (int j = 1; j < pending.size(); j++) {
+          entity.write(SEPARATOR);
+          entity.write(pending.get(j));
+        }
+        entity.write(END);
+        size += entity.size();
+        pending = new ArrayList<byte[]>();
+      }
+    }
+    return size;
+  }
+
+  @Benchmark
+  public long batchBuffer() {
+    long size = 0;
+    int count = 0;
+    batch.clear();
+    batch.append(START, 0, START.length);
+    for (int i = 0; i < encrypted.length; i++) {
+      if (count > 0) {
+        batch.append(SEPARATOR, 0, SEPARATOR.length);
+      }
+      encrypted[i].appendJSONBytes(batch);
+      if (++count == BATCH_SIZE || i == encrypted.length - 1) {
+        batch.append(END, 0, END.length);
+        entity.reset();
+        entity.write(batch.buffer(), 0, batch.length());
+        size += entity.size();
+        batch.clear();
+        batch.append(START, 0, START.length);
+        count = 0;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,65 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.mozilla.gecko.sync.repositories.android.VisitsCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a history record's visits as JSON text, as the
+ * history extension database used to store them, and in
+ * <code>VisitsCodec</code>'s compact form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class VisitsCodecBenchmarks {
+  protected JSONArray visits;
+  protected byte[] json;
+  protected byte[] compact;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    visits = (JSONArray) BenchmarkRecords.payload(BenchmarkRecords.HISTORY, 0).get("visits");
+    json = visits.toJSONString().getBytes("UTF-8");
+    compact = VisitsCodec.encode(visits);
+  }
+
+  @Benchmark
+  public byte[] encodeJSON() throws Exception {
+    return visits.toJSONString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public JSONArray decodeJSON() throws Exception {
+    return (JSONArray) new JSONParser().parse(new String(json, "UTF-8"));
+  }
+
+  @Benchmark
+  public byte[] encodeCompact() {
+    return VisitsCodec.encode(visits);
+  }
+
+  @Benchmark
+  public JSONArray decodeCompact() {
+    return VisitsCodec.decode(compact);
+  }
+}
@@ -0,0 +1,101 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.net.WBOStreamParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a collection fetch body line by line through
+ * <code>CryptoRecord.fromJSONRecord</code>, as fetches used to, and through
+ * <code>WBOStreamParser</code>.
+ * <p>
+ * Each operation parses a whole body of <code>records</code> records, each
+ * with <code>ciphertextSize</code> bytes of random ciphertext.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+UseSerialGC" })
+public class WBOStreamParserBenchmarks {
+  private static final int BUFFER_SIZE = WBOStreamParser.DEFAULT_BUFFER_SIZE;
+
+  @Param({ "1000", "10000" })
+  public int records;
+
+  @Param({ "512", "4096" })
+  public int ciphertextSize;
+
+  protected byte[] body;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkRecords.quietLogging();
+    final Random random = new Random(1234);
+    final byte[] ciphertext = new byte[ciphertextSize];
+    final byte[] iv = new byte[16];
+    final byte[] hmac = new byte[32];
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < records; i++) {
+      random.nextBytes(ciphertext);
+      random.nextBytes(iv);
+      random.nextBytes(hmac);
+      b.append("{\"id\":\"").append(BenchmarkRecords.guid(i));
+      b.append("\",\"modified\":1326254123.").append(10 + (i % 90));
+      b.append(",\"sortindex\":").append(i % 100);
+      b.append(",\"payload\":\"{\\\"ciphertext\\\":\\\"");
+      b.append(new String(Base64.encodeBase64(ciphertext), "UTF-8"));
+      b.append("\\\",\\\"IV\\\":\\\"");
+      b.append(new String(Base64.encodeBase64(iv), "UTF-8"));
+      b.append("\\\",\\\"hmac\\\":\\\"");
+      for (byte x : hmac) {
+        b.append(String.format("%02x", x & 0xFF));
+      }
+      b.append("\\\"}\"}\n");
+    }
+    body = b.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public long lineByLine() throws Exception {
+    final BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body)), BUFFER_SIZE);
+    long count = 0;
+    String line;
+    while (null != (line = br.readLine())) {
+      count += CryptoRecord.fromJSONRecord(line).guid.length();
+    }
+    return count;
+  }
+
+  @Benchmark
+  public long streaming() throws Exception {
+    final WBOStreamParser parser = new WBOStreamParser(new ByteArrayInputStream(body), BUFFER_SIZE);
+    long count = 0;
+    CryptoRecord record;
+    while (null != (record = parser.nextRecord())) {
+      count += record.guid.length();
+    }
+    return count;
+  }
+}
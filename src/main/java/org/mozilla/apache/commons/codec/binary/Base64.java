@@ -679,6 +679,134 @@ public class Base64 extends BaseNCodec {
         return new Base64().decode(base64Data);
     }
 
+    /**
+     * Returns an upper bound on the number of octets decoding <code>length</code> bytes of Base64 data produces.
+     * 
+     * @param length
+     *            number of Base64 bytes
+     * @return maximum number of decoded octets
+     */
+    public static int getDecodedLengthBound(int length) {
+        return (length / BYTES_PER_ENCODED_BLOCK + 1) * BYTES_PER_UNENCODED_BLOCK;
+    }
+
+    /**
+     * Returns the number of bytes unchunked, padded Base64 encoding of <code>length</code> octets produces.
+     * 
+     * @param length
+     *            number of octets
+     * @return number of Base64 bytes
+     */
+    public static int getEncodedLength(int length) {
+        return ((length + BYTES_PER_UNENCODED_BLOCK - 1) / BYTES_PER_UNENCODED_BLOCK) * BYTES_PER_ENCODED_BLOCK;
+    }
+
+    /**
+     * Decodes Base64 data into a caller-supplied buffer, without allocating. Like {@link #decodeBase64(byte[])},
+     * characters outside the Base64 alphabet are ignored and decoding stops at the first pad character.
+     * 
+     * @param in
+     *            Byte array containing Base64 data
+     * @param inPos
+     *            Position to start reading data from
+     * @param inAvail
+     *            Number of bytes of Base64 data to read
+     * @param out
+     *            Array to write decoded octets into. Must have room for
+     *            <code>getDecodedLengthBound(inAvail)</code> octets from <code>outPos</code>.
+     * @param outPos
+     *            Position to start writing decoded octets at
+     * @return Number of decoded octets written
+     */
+    public static int decodeBase64(byte[] in, int inPos, int inAvail, byte[] out, int outPos) {
+        final int start = outPos;
+        final int end = inPos + inAvail;
+        int work = 0;
+        int count = 0;
+        for (int i = inPos; i < end; i++) {
+            final byte b = in[i];
+            if (b == PAD_DEFAULT) {
+                break;
+            }
+            if (b < 0 || b >= DECODE_TABLE.length) {
+                continue;
+            }
+            final int result = DECODE_TABLE[b];
+            if (result < 0) {
+                continue;
+            }
+            work = (work << BITS_PER_ENCODED_BYTE) + result;
+            if (++count == BYTES_PER_ENCODED_BLOCK) {
+                out[outPos++] = (byte) ((work >> 16) & MASK_8BITS);
+                out[outPos++] = (byte) ((work >> 8) & MASK_8BITS);
+                out[outPos++] = (byte) (work & MASK_8BITS);
+                count = 0;
+                work = 0;
+            }
+        }
+        // Output all whole multiples of 8 bits and ignore the rest, as decode(byte[], int, int) does.
+        switch (count) {
+            case 2 : // 12 bits = 8 + 4
+                out[outPos++] = (byte) ((work >> 4) & MASK_8BITS);
+                break;
+            case 3 : // 18 bits = 8 + 8 + 2
+                work = work >> 2;
+                out[outPos++] = (byte) ((work >> 8) & MASK_8BITS);
+                out[outPos++] = (byte) (work & MASK_8BITS);
+                break;
+        }
+        return outPos - start;
+    }
+
+    /**
+     * Encodes octets into unchunked, padded, standard Base64 in a caller-supplied buffer, without allocating.
+     * 
+     * @param in
+     *            Byte array containing octets to encode
+     * @param inPos
+     *            Position to start reading octets from
+     * @param inAvail
+     *            Number of octets to encode
+     * @param out
+     *            Array to write Base64 data into. Must have room for <code>getEncodedLength(inAvail)</code> bytes
+     *            from <code>outPos</code>.
+     * @param outPos
+     *            Position to start writing Base64 data at
+     * @return Number of Base64 bytes written
+     */
+    public static int encodeBase64(byte[] in, int inPos, int inAvail, byte[] out, int outPos) {
+        final int start = outPos;
+        final byte[] table = STANDARD_ENCODE_TABLE;
+        final int wholeEnd = inPos + (inAvail / BYTES_PER_UNENCODED_BLOCK) * BYTES_PER_UNENCODED_BLOCK;
+        int i = inPos;
+        while (i < wholeEnd) {
+            final int work = ((in[i++] & MASK_8BITS) << 16) | ((in[i++] & MASK_8BITS) << 8) | (in[i++] & MASK_8BITS);
+            out[outPos++] = table[(work >> 18) & MASK_6BITS];
+            out[outPos++] = table[(work >> 12) & MASK_6BITS];
+            out[outPos++] = table[(work >> 6) & MASK_6BITS];
+            out[outPos++] = table[work & MASK_6BITS];
+        }
+        switch (inPos + inAvail - wholeEnd) {
+            case 1 : { // 8 bits = 6 + 2
+                final int work = in[i] & MASK_8BITS;
+                out[outPos++] = table[(work >> 2) & MASK_6BITS];
+                out[outPos++] = table[(work << 4) & MASK_6BITS];
+                out[outPos++] = PAD_DEFAULT;
+                out[outPos++] = PAD_DEFAULT;
+                break;
+            }
+            case 2 : { // 16 bits = 6 + 6 + 4
+                final int work = ((in[i] & MASK_8BITS) << 8) | (in[i + 1] & MASK_8BITS);
+                out[outPos++] = table[(work >> 10) & MASK_6BITS];
+                out[outPos++] = table[(work >> 4) & MASK_6BITS];
+                out[outPos++] = table[(work << 2) & MASK_6BITS];
+                out[outPos++] = PAD_DEFAULT;
+                break;
+            }
+        }
+        return outPos - start;
+    }
+
     // Implementation of the Encoder Interface
 
     // Implementation of integer encoding used for crypto
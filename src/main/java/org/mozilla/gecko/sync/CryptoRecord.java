@@ -10,14 +10,16 @@ import java.io.UnsupportedEncodingException;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.crypto.CryptoException;
-import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoContext.EncryptedPayload;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.crypto.MissingCryptoInputException;
 import org.mozilla.gecko.sync.crypto.NoKeyBundleException;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import ch.boye.httpclientandroidlib.util.ByteArrayBuffer;
+
 /**
  * A Sync crypto record has:
  *
@@ -33,7 +35,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  * Until there's some benefit to the abstraction, we're simply going to call
  * this <code>CryptoRecord</code>.
  *
- * <code>CryptoRecord</code> uses <code>CryptoInfo</code> to do the actual
+ * <code>CryptoRecord</code> uses <code>CryptoContext</code> to do the actual
  * encryption and decryption.
  */
 public class CryptoRecord extends Record {
@@ -49,22 +51,6 @@ public class CryptoRecord extends Record {
   private static final String KEY_HMAC       = "hmac";
   private static final String KEY_IV         = "IV";
 
-  /**
-   * Helper method for doing actual decryption.
-   *
-   * Input: JSONObject containing a valid payload (cipherText, IV, HMAC),
-   * KeyBundle with keys for decryption. Output: byte[] clearText
-   * @throws CryptoException
-   * @throws UnsupportedEncodingException
-   */
-  private static byte[] decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
-    byte[] ciphertext = Base64.decodeBase64(((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8"));
-    byte[] iv         = Base64.decodeBase64(((String) payload.get(KEY_IV)).getBytes("UTF-8"));
-    byte[] hmac       = Utils.hex2Byte((String) payload.get(KEY_HMAC));
-
-    return CryptoInfo.decrypt(ciphertext, iv, hmac, keybundle).getMessage();
-  }
-
   // The encrypted JSON body object.
   // The decrypted JSON body object. Fields are copied from `body`.
 
@@ -166,7 +152,12 @@ public class CryptoRecord extends Record {
 
   private static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in)
       throws UnsupportedEncodingException, ParseException, NonObjectJSONException {
-    Object obj = new JSONParser().parse(new String(in, "UTF-8"));
+    return parseUTF8AsJSONObject(in, in.length);
+  }
+
+  private static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in, int length)
+      throws UnsupportedEncodingException, ParseException, NonObjectJSONException {
+    Object obj = new JSONParser().parse(new String(in, 0, length, "UTF-8"));
     if (obj instanceof JSONObject) {
       return new ExtendedJSONObject((JSONObject) obj);
     } else {
@@ -189,8 +180,12 @@ public class CryptoRecord extends Record {
 
     // There's no difference between handling the crypto/keys object and
     // anything else; we just get this.keyBundle from a different source.
-    byte[] cleartext = decryptPayload(payload, keyBundle);
-    payload = CryptoRecord.parseUTF8AsJSONObject(cleartext);
+    // The cleartext lands in a per-thread buffer, so parse it straight away.
+    CryptoContext context = CryptoContext.forKeys(keyBundle);
+    int length = context.decryptPayload((String) payload.get(KEY_CIPHERTEXT),
+                                        (String) payload.get(KEY_IV),
+                                        (String) payload.get(KEY_HMAC));
+    payload = CryptoRecord.parseUTF8AsJSONObject(context.getOutputBuffer(), length);
     return this;
   }
 
@@ -200,14 +195,11 @@ public class CryptoRecord extends Record {
     }
     String cleartext = payload.toJSONString();
     byte[] cleartextBytes = cleartext.getBytes("UTF-8");
-    CryptoInfo info = CryptoInfo.encrypt(cleartextBytes, keyBundle);
-    String message = new String(Base64.encodeBase64(info.getMessage()));
-    String iv      = new String(Base64.encodeBase64(info.getIV()));
-    String hmac    = Utils.byte2hex(info.getHMAC());
+    EncryptedPayload encrypted = CryptoContext.forKeys(keyBundle).encryptPayload(cleartextBytes, 0, cleartextBytes.length);
     ExtendedJSONObject ciphertext = new ExtendedJSONObject();
-    ciphertext.put(KEY_CIPHERTEXT, message);
-    ciphertext.put(KEY_HMAC, hmac);
-    ciphertext.put(KEY_IV, iv);
+    ciphertext.put(KEY_CIPHERTEXT, encrypted.base64Ciphertext);
+    ciphertext.put(KEY_HMAC, encrypted.hexHMAC);
+    ciphertext.put(KEY_IV, encrypted.base64IV);
     this.payload = ciphertext;
     return this;
   }
@@ -247,4 +239,98 @@ public class CryptoRecord extends Record {
   public String toJSONString() {
     return toJSONObject().toJSONString();
   }
+
+  private static final byte[] JSON_START      = asciiBytes("{\"payload\":\"{\\\"ciphertext\\\":\\\"");
+  private static final byte[] JSON_IV         = asciiBytes("\\\",\\\"IV\\\":\\\"");
+  private static final byte[] JSON_HMAC       = asciiBytes("\\\",\\\"hmac\\\":\\\"");
+  private static final byte[] JSON_ID         = asciiBytes("\\\"}\",\"id\":\"");
+  private static final byte[] JSON_TTL        = asciiBytes("\",\"ttl\":");
+  private static final byte[] JSON_END_STRING = asciiBytes("\"}");
+  private static final byte[] JSON_END        = asciiBytes("}");
+
+  private static byte[] asciiBytes(String s) {
+    try {
+      return s.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      // Can't happen.
+      return null;
+    }
+  }
+
+  /**
+   * @return true if <code>s</code> can appear inside a JSON string -- even a
+   *         JSON string inside a JSON string -- without escaping.
+   */
+  private static boolean isPlainASCII(Object s) {
+    if (!(s instanceof String)) {
+      return false;
+    }
+    final String string = (String) s;
+    final int length = string.length();
+    for (int i = 0; i < length; i++) {
+      final char c = string.charAt(i);
+      if (c < 0x20 || c > 0x7E || c == '"' || c == '\\') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void appendASCII(ByteArrayBuffer out, String s) {
+    final int length = s.length();
+    out.ensureCapacity(length);
+    final byte[] buffer = out.buffer();
+    int position = out.length();
+    for (int i = 0; i < length; i++) {
+      buffer[position++] = (byte) s.charAt(i);
+    }
+    out.setLength(position);
+  }
+
+  /**
+   * Append the UTF-8 bytes of this record's JSON representation to
+   * <code>out</code>, without building the intermediate objects and strings
+   * that <code>toJSONBytes</code> does. The output is equivalent to, though
+   * not necessarily byte-for-byte identical with, <code>toJSONString</code>.
+   * <p>
+   * Only encrypted records whose fields need no escaping -- that is, every
+   * record we encrypted ourselves -- can be written this way.
+   *
+   * @param out
+   *          buffer to append to.
+   * @return true if the record was appended; false if <code>out</code> is
+   *         untouched and the caller should fall back to
+   *         <code>toJSONBytes</code>.
+   */
+  public boolean appendJSONBytes(ByteArrayBuffer out) {
+    if (payload == null || payload.size() != 3) {
+      return false;
+    }
+    final Object ciphertext = payload.get(KEY_CIPHERTEXT);
+    final Object iv         = payload.get(KEY_IV);
+    final Object hmac       = payload.get(KEY_HMAC);
+    if (!isPlainASCII(ciphertext) ||
+        !isPlainASCII(iv) ||
+        !isPlainASCII(hmac) ||
+        !isPlainASCII(this.guid)) {
+      return false;
+    }
+
+    out.append(JSON_START, 0, JSON_START.length);
+    appendASCII(out, (String) ciphertext);
+    out.append(JSON_IV, 0, JSON_IV.length);
+    appendASCII(out, (String) iv);
+    out.append(JSON_HMAC, 0, JSON_HMAC.length);
+    appendASCII(out, (String) hmac);
+    out.append(JSON_ID, 0, JSON_ID.length);
+    appendASCII(out, this.guid);
+    if (this.ttl > 0) {
+      out.append(JSON_TTL, 0, JSON_TTL.length);
+      appendASCII(out, Long.toString(this.ttl));
+      out.append(JSON_END, 0, JSON_END.length);
+    } else {
+      out.append(JSON_END_STRING, 0, JSON_END_STRING.length);
+    }
+    return true;
+  }
 }
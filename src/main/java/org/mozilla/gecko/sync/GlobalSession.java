@@ -28,6 +28,7 @@ import org.mozilla.gecko.sync.delegates.InfoCollectionsDelegate;
 import org.mozilla.gecko.sync.delegates.KeyUploadDelegate;
 import org.mozilla.gecko.sync.delegates.MetaGlobalDelegate;
 import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
 import org.mozilla.gecko.sync.net.SyncResponse;
@@ -78,6 +79,11 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
    */
   public final Map<String, EngineSettings> enginesToUpdate = new HashMap<String, EngineSettings>();
 
+  /**
+   * Per-stage counts and timings for this sync.
+   */
+  protected final SyncMetrics metrics = new SyncMetrics();
+
    /*
    * Key accessors.
    */
@@ -301,6 +307,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
       return;
     }
 
+    metrics.endStage();
     this.callback.handleStageCompleted(this.currentState, this);
     Stage next = nextStage(this.currentState);
     GlobalSyncStage nextStage;
@@ -311,6 +318,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
       return;
     }
     this.currentState = next;
+    metrics.beginStage(next.name());
     Logger.info(LOG_TAG, "Running next stage " + next + " (" + nextStage + ")...");
     try {
       nextStage.execute();
@@ -333,6 +341,10 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
     return this.context;
   }
 
+  public SyncMetrics getMetrics() {
+    return this.metrics;
+  }
+
   /**
    * Begin a sync.
    * <p>
@@ -371,6 +383,8 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
    */
   protected void cleanUp() {
     uninstallAsHttpResponseObserver();
+    metrics.end();
+    Logger.info(LOG_TAG, metrics.summary());
     this.stages = null;
   }
 
@@ -1097,6 +1111,14 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
     BaseResource.setHttpResponseObserver(null);
   }
 
+  /**
+   * Charge every HTTP request to the running stage.
+   */
+  @Override
+  public void observeHttpRequestTiming(HttpResponse response, long requestBytes, long elapsedNanos) {
+    metrics.getCurrentStage().recordRequest(requestBytes, elapsedNanos);
+  }
+
   /**
    * Observe all HTTP response for backoff requests on all status codes, not just errors.
    */
@@ -4,12 +4,14 @@
 
 package org.mozilla.gecko.sync;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
 import org.mozilla.gecko.sync.log.writers.AndroidLevelCachingLogWriter;
 import org.mozilla.gecko.sync.log.writers.AndroidLogWriter;
+import org.mozilla.gecko.sync.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.sync.log.writers.LogWriter;
 import org.mozilla.gecko.sync.log.writers.SimpleTagLogWriter;
 import org.mozilla.gecko.sync.log.writers.ThreadLocalTagLogWriter;
@@ -18,6 +20,20 @@ import android.util.Log;
 
 /**
  * Logging helper class. Serializes all log operations (by synchronizing).
+ * <p>
+ * Whether a message would be written at all is answered without taking the
+ * lock, from a per-thread cache of the lowest level each tag is logged at.
+ * The parameterized methods, such as
+ * <code>trace(tag, "Storing {}.", guid)</code>, consult it before formatting,
+ * so that a disabled call in a per-record loop allocates nothing. Primitive
+ * arguments are boxed by the caller, so guard those calls with
+ * <code>shouldLog</code>.
+ * <p>
+ * A <code>Throwable</code> passed as the only argument after the format
+ * binds to <code>(String, String, Throwable)</code>, not to the
+ * parameterized <code>(String, String, Object)</code>: it is logged as the
+ * message's exception, and "{}" is left unreplaced. Concatenate it into the
+ * message, or cast it to <code>Object</code>, to format it instead.
  */
 public class Logger {
   public static final String LOGGER_TAG = "Logger";
@@ -26,6 +42,10 @@ public class Logger {
   // For extra debugging.
   public static boolean LOG_PERSONAL_INFORMATION = false;
 
+  // Write to the Android log from a background thread; see AsyncLogWriter.
+  // Guarded by Logger.class; change it with setLogAsynchronously.
+  private static boolean LOG_ASYNCHRONOUSLY = false;
+
   /**
    * Allow each thread to use its own global log tag. This allows
    * independent services to log as different sources.
@@ -58,21 +78,33 @@ public class Logger {
    * this set statically.
    */
   protected final static Set<LogWriter> logWriters;
+
+  /**
+   * The default writers most recently added to <code>logWriters</code>, which
+   * might since have been removed.
+   */
+  private static Set<LogWriter> installedDefaultWriters;
   static {
-    final Set<LogWriter> defaultWriters = Logger.defaultLogWriters();
-    logWriters = new LinkedHashSet<LogWriter>(defaultWriters);
+    installedDefaultWriters = Logger.defaultLogWriters();
+    logWriters = new LinkedHashSet<LogWriter>(installedDefaultWriters);
   }
 
   /**
    * Default set of log writers to log to.
    */
-  public final static Set<LogWriter> defaultLogWriters() {
+  public final static synchronized Set<LogWriter> defaultLogWriters() {
     final String processedPackage = GlobalConstants.BROWSER_INTENT_PACKAGE.replace("org.mozilla.", "");
 
     final Set<LogWriter> defaultLogWriters = new LinkedHashSet<LogWriter>();
 
     final LogWriter log = new AndroidLogWriter();
-    final LogWriter cache = new AndroidLevelCachingLogWriter(log);
+    final LogWriter cache;
+    if (LOG_ASYNCHRONOUSLY) {
+      // Below the thread-local tag writer, which must run on the logging thread.
+      cache = new AsyncLogWriter(new AndroidLevelCachingLogWriter(log));
+    } else {
+      cache = new AndroidLevelCachingLogWriter(log);
+    }
 
     final LogWriter single = new SimpleTagLogWriter(processedPackage, new ThreadLocalTagLogWriter(Logger.logTag, cache));
 
@@ -80,12 +112,89 @@ public class Logger {
     return defaultLogWriters;
   }
 
+  // Returned for a tag no writer would log.
+  private static final Integer NEVER = Integer.valueOf(Integer.MAX_VALUE);
+
+  // Most threads log with a few dozen constant tags.
+  private static final int MAX_CACHED_TAGS = 256;
+
+  /**
+   * Bumped whenever the set of writers changes, which invalidates every
+   * thread's cached levels.
+   */
+  private static volatile int levelsGeneration = 0;
+
+  /**
+   * The lowest level each tag is logged at, for one thread. Levels are
+   * cached per thread because tag writers can answer differently for each
+   * thread's log tag.
+   */
+  private static class LevelCache {
+    public int generation = -1;
+    public String threadTag;
+    public final HashMap<String, Integer> levels = new HashMap<String, Integer>();
+  }
+
+  private static final ThreadLocal<LevelCache> levelCache = new ThreadLocal<LevelCache>() {
+    @Override
+    protected LevelCache initialValue() {
+      return new LevelCache();
+    }
+  };
+
+  /**
+   * Forget cached log levels. Call this after changing the level of a tag,
+   * for example with <code>setprop log.tag.*</code>; note that
+   * <code>AndroidLevelCachingLogWriter</code> keeps its own cache.
+   */
+  public static void refreshLogLevels() {
+    levelsGeneration++;
+  }
+
+  /**
+   * @return whether any writer would write a message at <code>level</code>,
+   *         one of the <code>android.util.Log</code> levels, for this tag.
+   *         Doesn't take the lock unless this thread hasn't asked about this
+   *         tag before.
+   */
+  public static boolean shouldLog(String tag, int level) {
+    final LevelCache cache = levelCache.get();
+    final int generation = levelsGeneration;
+    final String threadTag = logTag.get();
+    if (cache.generation != generation ||
+        cache.threadTag != threadTag ||
+        cache.levels.size() >= MAX_CACHED_TAGS) {
+      cache.levels.clear();
+      cache.generation = generation;
+      cache.threadTag = threadTag;
+    }
+    Integer minimum = cache.levels.get(tag);
+    if (minimum == null) {
+      minimum = minimumLevel(tag);
+      cache.levels.put(tag, minimum);
+    }
+    return level >= minimum.intValue();
+  }
+
+  private static synchronized Integer minimumLevel(String tag) {
+    for (int level = Log.VERBOSE; level <= Log.ERROR; level++) {
+      for (LogWriter logWriter : logWriters) {
+        if (logWriter.shouldLog(tag, level)) {
+          return Integer.valueOf(level);
+        }
+      }
+    }
+    return NEVER;
+  }
+
   public static synchronized void startLoggingTo(LogWriter logWriter) {
     logWriters.add(logWriter);
+    refreshLogLevels();
   }
 
   public static synchronized void startLoggingToWriters(Set<LogWriter> writers) {
     logWriters.addAll(writers);
+    refreshLogLevels();
   }
 
   public static synchronized void stopLoggingTo(LogWriter logWriter) {
@@ -95,6 +204,7 @@ public class Logger {
       Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
     }
     logWriters.remove(logWriter);
+    refreshLogLevels();
   }
 
   public static synchronized void stopLoggingToAll() {
@@ -106,6 +216,7 @@ public class Logger {
       }
     }
     logWriters.clear();
+    refreshLogLevels();
   }
 
   /**
@@ -113,17 +224,44 @@ public class Logger {
    */
   public static synchronized void resetLogging() {
     stopLoggingToAll();
-    logWriters.addAll(Logger.defaultLogWriters());
+    installedDefaultWriters = Logger.defaultLogWriters();
+    logWriters.addAll(installedDefaultWriters);
+    refreshLogLevels();
   }
 
-  // Synchronized version for other classes to use.
-  public static synchronized boolean shouldLogVerbose(String logTag) {
-    for (LogWriter logWriter : logWriters) {
-      if (logWriter.shouldLogVerbose(logTag)) {
-        return true;
+  /**
+   * Choose whether the default log writers write to the Android log from a
+   * background thread. If we're logging to the default writers, they're
+   * replaced, writing out anything already buffered; other writers are left
+   * alone.
+   */
+  public static synchronized void setLogAsynchronously(boolean asynchronously) {
+    if (LOG_ASYNCHRONOUSLY == asynchronously) {
+      return;
+    }
+    LOG_ASYNCHRONOUSLY = asynchronously;
+
+    boolean replaced = false;
+    for (LogWriter logWriter : installedDefaultWriters) {
+      if (!logWriters.remove(logWriter)) {
+        continue;
       }
+      replaced = true;
+      try {
+        logWriter.close();
+      } catch (Exception e) {
+        Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
+      }
+    }
+    if (replaced) {
+      installedDefaultWriters = Logger.defaultLogWriters();
+      logWriters.addAll(installedDefaultWriters);
     }
-    return false;
+    refreshLogLevels();
+  }
+
+  public static boolean shouldLogVerbose(String logTag) {
+    return shouldLog(logTag, Log.VERBOSE);
   }
 
   public static void error(String tag, String message) {
@@ -152,67 +290,143 @@ public class Logger {
     }
   }
 
-  public static synchronized void error(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.error(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void error(String tag, String message, Throwable error) {
+    if (shouldLog(tag, Log.ERROR)) {
+      write(Log.ERROR, tag, message, error);
     }
   }
 
-  public static synchronized void warn(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.warn(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void warn(String tag, String message, Throwable error) {
+    if (shouldLog(tag, Log.WARN)) {
+      write(Log.WARN, tag, message, error);
     }
   }
 
-  public static synchronized void info(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.info(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void info(String tag, String message, Throwable error) {
+    if (shouldLog(tag, Log.INFO)) {
+      write(Log.INFO, tag, message, error);
     }
   }
 
-  public static synchronized void debug(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.debug(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+  public static void debug(String tag, String message, Throwable error) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      write(Log.DEBUG, tag, message, error);
+    }
+  }
+
+  public static void trace(String tag, String message, Throwable error) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      write(Log.VERBOSE, tag, message, error);
+    }
+  }
+
+  /*
+   * Parameterized variants. Each "{}" in the format is replaced by the next
+   * argument. There's no varargs variant, because the array would be
+   * allocated before we could check the level.
+   */
+
+  public static void info(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.INFO)) {
+      write(Log.INFO, tag, format(format, 1, arg, null, null), null);
+    }
+  }
+
+  public static void info(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.INFO)) {
+      write(Log.INFO, tag, format(format, 2, arg1, arg2, null), null);
+    }
+  }
+
+  public static void info(String tag, String format, Object arg1, Object arg2, Object arg3) {
+    if (shouldLog(tag, Log.INFO)) {
+      write(Log.INFO, tag, format(format, 3, arg1, arg2, arg3), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      write(Log.DEBUG, tag, format(format, 1, arg, null, null), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      write(Log.DEBUG, tag, format(format, 2, arg1, arg2, null), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg1, Object arg2, Object arg3) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      write(Log.DEBUG, tag, format(format, 3, arg1, arg2, arg3), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      write(Log.VERBOSE, tag, format(format, 1, arg, null, null), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      write(Log.VERBOSE, tag, format(format, 2, arg1, arg2, null), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg1, Object arg2, Object arg3) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      write(Log.VERBOSE, tag, format(format, 3, arg1, arg2, arg3), null);
+    }
+  }
+
+  /**
+   * Replace the first <code>count</code> occurrences of "{}" in
+   * <code>format</code> with the given arguments. Surplus placeholders are
+   * left as they are.
+   */
+  protected static String format(String format, int count, Object arg1, Object arg2, Object arg3) {
+    final StringBuilder sb = new StringBuilder(format.length() + 16 * count);
+    int from = 0;
+    for (int i = 0; i < count; i++) {
+      final int at = format.indexOf("{}", from);
+      if (at < 0) {
+        break;
       }
+      sb.append(format, from, at);
+      sb.append((i == 0) ? arg1 : (i == 1) ? arg2 : arg3);
+      from = at + 2;
     }
+    sb.append(format, from, format.length());
+    return sb.toString();
   }
 
-  public static synchronized void trace(String tag, String message, Throwable error) {
+  private static synchronized void write(int level, String tag, String message, Throwable error) {
     Iterator<LogWriter> it = logWriters.iterator();
     while (it.hasNext()) {
       LogWriter writer = it.next();
       try {
-        writer.trace(tag, message, error);
+        switch (level) {
+        case Log.ERROR:
+          writer.error(tag, message, error);
+          break;
+        case Log.WARN:
+          writer.warn(tag, message, error);
+          break;
+        case Log.INFO:
+          writer.info(tag, message, error);
+          break;
+        case Log.DEBUG:
+          writer.debug(tag, message, error);
+          break;
+        default:
+          writer.trace(tag, message, error);
+          break;
+        }
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
         it.remove();
+        refreshLogLevels();
       }
     }
   }
@@ -0,0 +1,403 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+
+/**
+ * Initialized <code>Cipher</code> and <code>Mac</code> instances for one
+ * <code>KeyBundle</code>, reused across records.
+ * <p>
+ * Looking up a provider for every record and building a fresh key spec and
+ * HMAC key are a measurable share of per-record crypto cost. A
+ * <code>CryptoContext</code> does that work once per thread and key bundle.
+ * <p>
+ * Instances are not thread-safe: obtain one with {@link #forKeys(KeyBundle)}
+ * on the thread that will use it, and don't hand it to another thread.
+ */
+public class CryptoContext {
+  public static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  public static final String KEY_ALGORITHM_SPEC = "AES";
+
+  /**
+   * Length in bytes of an HMAC produced by {@link #hmac(byte[], int, int, byte[], int)}.
+   */
+  public static final int HMAC_LENGTH = 32;
+
+  /**
+   * Length in bytes of an AES-CBC IV.
+   */
+  public static final int IV_LENGTH = 16;
+
+  private static final ThreadLocal<CryptoContext> current = new ThreadLocal<CryptoContext>();
+
+  private final KeyBundle keys;
+  // The key arrays this context was built from. KeyBundle is mutable; if
+  // either key is replaced, this context is stale.
+  private final byte[] encryptionKey;
+  private final byte[] hmacKey;
+
+  private final SecretKeySpec keySpec;
+  private final Cipher cipher;
+  private final Mac mac;
+
+  // Scratch space reused across payloads. These only ever grow.
+  private byte[] asciiBuffer  = new byte[0];
+  private byte[] binaryBuffer = new byte[0];
+  private byte[] outputBuffer = new byte[0];
+  // Room for a padded, Base64-decoded IV.
+  private final byte[] ivBuffer       = new byte[2 * IV_LENGTH];
+  private final byte[] hmacBuffer     = new byte[HMAC_LENGTH];
+  private final byte[] expectedBuffer = new byte[HMAC_LENGTH];
+
+  protected CryptoContext(KeyBundle keys) throws CryptoException {
+    this.keys = keys;
+    this.encryptionKey = keys.getEncryptionKey();
+    this.hmacKey = keys.getHMACKey();
+    this.keySpec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+    try {
+      this.cipher = Cipher.getInstance(TRANSFORMATION);
+      this.mac = HKDF.makeHMACHasher(hmacKey);
+    } catch (NoSuchAlgorithmException e) {
+      throw new CryptoException(e);
+    } catch (NoSuchPaddingException e) {
+      throw new CryptoException(e);
+    } catch (InvalidKeyException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  protected boolean isFor(KeyBundle keys) {
+    return this.keys == keys &&
+           this.encryptionKey == keys.getEncryptionKey() &&
+           this.hmacKey == keys.getHMACKey();
+  }
+
+  /**
+   * Return this thread's context for <code>keys</code>, creating it if
+   * necessary. Each thread caches the context for the most recently used key
+   * bundle.
+   */
+  public static CryptoContext forKeys(KeyBundle keys) throws CryptoException {
+    if (keys == null) {
+      throw new IllegalArgumentException("keys must not be null.");
+    }
+    CryptoContext context = current.get();
+    if (context != null && context.isFor(keys)) {
+      return context;
+    }
+    context = new CryptoContext(keys);
+    current.set(context);
+    return context;
+  }
+
+  public KeyBundle getKeys() {
+    return keys;
+  }
+
+  /**
+   * Initialize and return the cached cipher for encryption. If
+   * <code>iv</code> is null or empty, the cipher chooses a random IV; fetch it
+   * with <code>getIV()</code>.
+   */
+  public Cipher encryptingCipher(byte[] iv) throws CryptoException {
+    try {
+      if (iv == null || iv.length == 0) {
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec);
+      } else {
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+      }
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    return cipher;
+  }
+
+  /**
+   * Initialize and return the cached cipher for decryption.
+   */
+  public Cipher decryptingCipher(byte[] iv) throws CryptoException {
+    return decryptingCipher(iv, 0, iv.length);
+  }
+
+  /**
+   * Initialize and return the cached cipher for decryption, using
+   * <code>length</code> bytes of <code>iv</code> from <code>offset</code>.
+   */
+  public Cipher decryptingCipher(byte[] iv, int offset, int length) throws CryptoException {
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv, offset, length));
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    return cipher;
+  }
+
+  /**
+   * Encrypt <code>length</code> bytes of <code>input</code> into
+   * <code>output</code>, which must have room for
+   * {@link #getEncryptedLength(int)} bytes from <code>outputOffset</code>.
+   *
+   * @param iv
+   *          the IV to use. Must not be null: callers writing into their own
+   *          buffers are expected to provide their own IVs.
+   * @return the number of bytes written.
+   */
+  public int encrypt(byte[] input, int offset, int length, byte[] iv,
+                     byte[] output, int outputOffset) throws CryptoException {
+    if (iv == null || iv.length == 0) {
+      throw new IllegalArgumentException("iv must be provided.");
+    }
+    try {
+      return encryptingCipher(iv).doFinal(input, offset, length, output, outputOffset);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * Decrypt <code>length</code> bytes of <code>input</code> into
+   * <code>output</code>, which must have room for <code>length</code> bytes
+   * from <code>outputOffset</code>.
+   *
+   * @return the number of bytes written.
+   */
+  public int decrypt(byte[] input, int offset, int length, byte[] iv,
+                     byte[] output, int outputOffset) throws CryptoException {
+    try {
+      return decryptingCipher(iv).doFinal(input, offset, length, output, outputOffset);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * @return the number of bytes encrypting <code>plaintextLength</code> bytes
+   *         produces.
+   */
+  public static int getEncryptedLength(int plaintextLength) {
+    // PKCS#5 always adds between 1 and 16 bytes of padding.
+    return (plaintextLength / 16 + 1) * 16;
+  }
+
+  /**
+   * Compute the HMAC of <code>length</code> bytes of <code>input</code> into
+   * <code>output</code>, which must have room for {@link #HMAC_LENGTH} bytes
+   * from <code>outputOffset</code>.
+   */
+  public void hmac(byte[] input, int offset, int length, byte[] output, int outputOffset) throws CryptoException {
+    mac.update(input, offset, length);
+    try {
+      mac.doFinal(output, outputOffset);
+    } catch (ShortBufferException e) {
+      mac.reset();
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * Compute the HMAC of <code>input</code> into a new array.
+   */
+  public byte[] hmac(byte[] input) {
+    return mac.doFinal(input);
+  }
+
+  /**
+   * Compare <code>length</code> bytes of two arrays in time independent of
+   * where they differ.
+   */
+  public static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int difference = 0;
+    for (int i = 0; i < length; i++) {
+      difference |= a[aOffset + i] ^ b[bOffset + i];
+    }
+    return difference == 0;
+  }
+
+  public static boolean constantTimeEquals(byte[] a, byte[] b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.length != b.length) {
+      return false;
+    }
+    return constantTimeEquals(a, 0, b, 0, a.length);
+  }
+
+  private static byte[] grow(byte[] buffer, int length) {
+    if (buffer.length >= length) {
+      return buffer;
+    }
+    return new byte[Math.max(length, buffer.length * 2)];
+  }
+
+  /**
+   * Copy an ASCII string into <code>asciiBuffer</code>.
+   *
+   * @return the number of bytes copied, or -1 if the string isn't ASCII.
+   */
+  private int copyASCII(String s) {
+    final int length = s.length();
+    asciiBuffer = grow(asciiBuffer, length);
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c > 0x7F) {
+        return -1;
+      }
+      asciiBuffer[i] = (byte) c;
+    }
+    return length;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
+  /**
+   * Decode a hex HMAC into <code>expectedBuffer</code>.
+   *
+   * @return false if <code>hex</code> isn't a well-formed HMAC.
+   */
+  private boolean decodeHexHMAC(String hex) {
+    if (hex.length() != 2 * HMAC_LENGTH) {
+      return false;
+    }
+    int invalid = 0;
+    for (int i = 0; i < HMAC_LENGTH; i++) {
+      final int hi = hexValue(hex.charAt(2 * i));
+      final int lo = hexValue(hex.charAt(2 * i + 1));
+      invalid |= (hi | lo) & 0x80000000;
+      expectedBuffer[i] = (byte) ((hi << 4) | (lo & 0x0F));
+    }
+    return invalid == 0;
+  }
+
+  /**
+   * Verify and decrypt an encrypted Sync payload, given its fields exactly as
+   * they appear in the payload JSON.
+   * <p>
+   * The HMAC is computed over the Base64 ciphertext as received, and compared
+   * in constant time. Decoding and decryption happen in buffers owned by this
+   * context, so the plaintext is only valid until this context is next used.
+   *
+   * @return the number of plaintext bytes, which start at index 0 of
+   *         {@link #getOutputBuffer()}.
+   * @throws HMACVerificationException
+   *           if the HMAC doesn't match.
+   */
+  public int decryptPayload(String base64Ciphertext, String base64IV, String hexHMAC) throws CryptoException {
+    int asciiLength = copyASCII(base64Ciphertext);
+    if (asciiLength < 0) {
+      // Not Base64, so it can't be what the HMAC was computed over.
+      throw new HMACVerificationException();
+    }
+
+    hmac(asciiBuffer, 0, asciiLength, hmacBuffer, 0);
+    final boolean wellFormed = decodeHexHMAC(hexHMAC);
+    if (!constantTimeEquals(hmacBuffer, 0, expectedBuffer, 0, HMAC_LENGTH) || !wellFormed) {
+      throw new HMACVerificationException();
+    }
+
+    binaryBuffer = grow(binaryBuffer, Base64.getDecodedLengthBound(asciiLength));
+    final int ciphertextLength = Base64.decodeBase64(asciiBuffer, 0, asciiLength, binaryBuffer, 0);
+
+    // The IV is tiny; decode it through asciiBuffer, which we're done with.
+    // A wrong-sized IV is rejected when the cipher is initialized.
+    asciiLength = copyASCII(base64IV);
+    if (asciiLength < 0 || Base64.getDecodedLengthBound(asciiLength) > ivBuffer.length) {
+      throw new CryptoException();
+    }
+    final int ivLength = Base64.decodeBase64(asciiBuffer, 0, asciiLength, ivBuffer, 0);
+
+    outputBuffer = grow(outputBuffer, ciphertextLength);
+    try {
+      return decryptingCipher(ivBuffer, 0, ivLength).doFinal(binaryBuffer, 0, ciphertextLength, outputBuffer, 0);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * The fields of an encrypted Sync payload, as they appear in the payload
+   * JSON.
+   */
+  public static class EncryptedPayload {
+    public final String base64Ciphertext;
+    public final String base64IV;
+    public final String hexHMAC;
+
+    public EncryptedPayload(String base64Ciphertext, String base64IV, String hexHMAC) {
+      this.base64Ciphertext = base64Ciphertext;
+      this.base64IV = base64IV;
+      this.hexHMAC = hexHMAC;
+    }
+  }
+
+  /**
+   * Encrypt <code>length</code> bytes of <code>plaintext</code> with a random
+   * IV, producing the fields of an encrypted Sync payload.
+   */
+  public EncryptedPayload encryptPayload(byte[] plaintext, int offset, int length) throws CryptoException {
+    final Cipher cipher = encryptingCipher(null);
+    binaryBuffer = grow(binaryBuffer, getEncryptedLength(length));
+    final int ciphertextLength;
+    try {
+      ciphertextLength = cipher.doFinal(plaintext, offset, length, binaryBuffer, 0);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    final byte[] iv = cipher.getIV();
+
+    asciiBuffer = grow(asciiBuffer, Base64.getEncodedLength(ciphertextLength));
+    final int asciiLength = Base64.encodeBase64(binaryBuffer, 0, ciphertextLength, asciiBuffer, 0);
+    hmac(asciiBuffer, 0, asciiLength, hmacBuffer, 0);
+
+    final char[] hex = new char[2 * HMAC_LENGTH];
+    for (int i = 0; i < HMAC_LENGTH; i++) {
+      hex[2 * i]     = HEX_DIGITS[(hmacBuffer[i] >> 4) & 0x0F];
+      hex[2 * i + 1] = HEX_DIGITS[hmacBuffer[i] & 0x0F];
+    }
+    return new EncryptedPayload(asciiString(asciiBuffer, asciiLength),
+                                Base64.encodeBase64String(iv),
+                                new String(hex));
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  @SuppressWarnings("deprecation")
+  private static String asciiString(byte[] ascii, int length) {
+    // The deprecated constructor is exactly right for ASCII, and skips
+    // charset lookup and decoding.
+    return new String(ascii, 0, 0, length);
+  }
+
+  /**
+   * @return the buffer holding the plaintext from the last call to
+   *         {@link #decryptPayload(String, String, String)}.
+   */
+  public byte[] getOutputBuffer() {
+    return outputBuffer;
+  }
+}
@@ -4,18 +4,12 @@
 
 package org.mozilla.gecko.sync.crypto;
 
-import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
 
@@ -23,9 +17,6 @@ import org.mozilla.apache.commons.codec.binary.Base64;
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
   private byte[] message;
   private byte[] iv;
   private byte[] hmac;
@@ -112,8 +103,17 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    CryptoContext context;
+    try {
+      context = CryptoContext.forKeys(keys);
+    } catch (CryptoException e) {
+      // Only Mac and Cipher lookup and initialization can fail here.
+      if (e.cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) e.cause;
+      }
+      throw new NoSuchAlgorithmException(e.cause == null ? null : e.cause.getMessage());
+    }
+    return context.hmac(Base64.encodeBase64(message));
   }
 
   /*
@@ -122,7 +122,7 @@ public class CryptoInfo {
   public boolean generatedHMACIsHMAC() throws NoSuchAlgorithmException, InvalidKeyException {
     byte[] generatedHMAC = generatedHMACFor(getMessage(), getKeys());
     byte[] expectedHMAC  = getHMAC();
-    return Arrays.equals(generatedHMAC, expectedHMAC);
+    return CryptoContext.constantTimeEquals(generatedHMAC, expectedHMAC);
   }
 
   /**
@@ -153,20 +153,8 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
-    try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-
-      // If no IV is provided, we allow the cipher to provide one.
-      if (getIV() == null || getIV().length == 0) {
-        cipher.init(Cipher.ENCRYPT_MODE, spec);
-      } else {
-        cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(getIV()));
-      }
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
-    }
+    // If no IV is provided, we allow the cipher to provide one.
+    Cipher cipher = CryptoContext.forKeys(getKeys()).encryptingCipher(getIV());
 
     // Encrypt.
     byte[] encryptedBytes = commonCrypto(cipher, getMessage());
@@ -206,14 +194,7 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
-    try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-      cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
-    }
+    Cipher cipher = CryptoContext.forKeys(getKeys()).decryptingCipher(getIV());
     byte[] decryptedBytes = commonCrypto(cipher, getMessage());
     byte[] iv = cipher.getIV();
 
@@ -222,19 +203,4 @@ public class CryptoInfo {
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException e) {
-      throw new CryptoException(e);
-    } catch (NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
@@ -4,8 +4,8 @@
 
 package org.mozilla.gecko.sync.log.writers;
 
-import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
@@ -20,23 +20,23 @@ public class AndroidLevelCachingLogWriter extends LogWriter {
   }
 
   // I can't believe we have to implement this ourselves.
-  // These aren't synchronized (and neither are the setters) because
-  // the logging calls themselves are synchronized.
-  private Map<String, Boolean> isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+  // These are concurrent because we can't rely on Logger's lock: an
+  // AsyncLogWriter calls us from its own thread.
+  private volatile Map<String, Boolean> isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile Map<String, Boolean> isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
 
   /**
    * Empty the caches of log levels.
    */
   public void refreshLogLevels() {
-    isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-    isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-    isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-    isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-    isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+    isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
   }
 
   private boolean shouldLogError(String logTag) {
@@ -90,6 +90,24 @@ public class AndroidLevelCachingLogWriter extends LogWriter {
     return out;
   }
 
+  @Override
+  public boolean shouldLog(String logTag, int level) {
+    switch (level) {
+    case Log.ERROR:
+      return shouldLogError(logTag);
+    case Log.WARN:
+      return shouldLogWarn(logTag);
+    case Log.INFO:
+      return shouldLogInfo(logTag);
+    case Log.DEBUG:
+      return shouldLogDebug(logTag);
+    case Log.VERBOSE:
+      return shouldLogVerbose(logTag);
+    default:
+      return Log.isLoggable(logTag, level);
+    }
+  }
+
   public void error(String tag, String message, Throwable error) {
     if (shouldLogError(tag)) {
       inner.error(tag, message, error);
@@ -0,0 +1,371 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.log.writers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * A log writer that copies each event into a preallocated ring buffer and
+ * returns, leaving a dedicated thread to pass events on to the inner writer.
+ * Logging threads never wait for the inner writer's I/O.
+ * <p>
+ * Adding to the buffer takes no lock, so any number of threads can log at
+ * once; events from each thread are written in the order it logged them.
+ * When the buffer is full, events are either dropped and counted, or the
+ * logging thread waits for room, according to the {@link OverflowPolicy}.
+ * <p>
+ * <code>close</code> writes out any buffered events before closing the inner
+ * writer, so <code>Logger.stopLoggingToAll</code> loses nothing.
+ * <p>
+ * The inner writer runs on the drain thread, so it mustn't depend on the
+ * logging thread: put a <code>ThreadLocalTagLogWriter</code> outside this
+ * writer, not inside it. It must also be safe to call while another thread
+ * asks it <code>shouldLog</code>.
+ */
+public class AsyncLogWriter extends LogWriter {
+  private static final String LOG_TAG = "AsyncLogWriter";
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  // How long the drain thread sleeps when there's nothing to write.
+  private static final long DRAIN_IDLE_NANOS = 50 * 1000 * 1000;
+
+  // How long a blocked logging thread sleeps before retrying.
+  private static final long BLOCK_WAIT_NANOS = 100 * 1000;
+
+  // How long close waits for buffered events to be written.
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+  public enum OverflowPolicy {
+    /**
+     * Drop the event and count it. Logging never waits.
+     */
+    DROP,
+
+    /**
+     * Wait until the drain thread makes room. Nothing is lost, but a slow
+     * inner writer slows logging threads.
+     */
+    BLOCK,
+  }
+
+  /**
+   * A slot in the ring. Slots are reused, never reallocated.
+   */
+  protected static class Event {
+    public int level;
+    public String tag;
+    public String message;
+    public Throwable error;
+  }
+
+  protected final LogWriter inner;
+  protected final OverflowPolicy policy;
+
+  protected final Event[] events;
+  protected final int mask;
+
+  // Slot i is free for the event at position p when sequences[i] == p, and
+  // holds it, ready to be written, when sequences[i] == p + 1.
+  protected final AtomicLongArray sequences;
+
+  // The next position to claim. Shared by logging threads.
+  protected final AtomicLong tail = new AtomicLong();
+
+  // The next position to write. Advanced only by the drain thread.
+  protected volatile long head = 0;
+
+  protected final AtomicLong dropped = new AtomicLong();
+  protected final AtomicLong written = new AtomicLong();
+  protected final AtomicLong failed = new AtomicLong();
+
+  // Dropped events the drain thread has already reported.
+  protected long droppedReported = 0;
+
+  protected volatile boolean closed = false;
+  protected volatile boolean draining = false;
+  protected final Thread drainer;
+
+  public AsyncLogWriter(LogWriter inner) {
+    this(inner, DEFAULT_CAPACITY, OverflowPolicy.DROP);
+  }
+
+  /**
+   * @param inner the writer to pass events to.
+   * @param capacity the number of events to buffer, rounded up to a power of two.
+   * @param policy what to do when the buffer is full.
+   */
+  public AsyncLogWriter(LogWriter inner, int capacity, OverflowPolicy policy) {
+    if (inner == null) {
+      throw new IllegalArgumentException("inner must not be null.");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive.");
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.inner = inner;
+    this.policy = (policy == null) ? OverflowPolicy.DROP : policy;
+    this.events = new Event[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      events[i] = new Event();
+      sequences.set(i, i);
+    }
+    this.mask = size - 1;
+
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, LOG_TAG);
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  public int getCapacity() {
+    return events.length;
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full or the
+   *         writer was closed.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of events passed to the inner writer.
+   */
+  public long getWrittenCount() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of events the inner writer threw on.
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * @return the number of events buffered but not yet written.
+   */
+  public int getPendingCount() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  /**
+   * Try to claim a slot and fill it.
+   *
+   * @return false if the buffer is full.
+   */
+  protected boolean offer(int level, String tag, String message, Throwable error) {
+    while (true) {
+      final long position = tail.get();
+      final int slot = (int) (position & mask);
+      final long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          final Event event = events[slot];
+          event.level = level;
+          event.tag = tag;
+          event.message = message;
+          event.error = error;
+          sequences.set(slot, position + 1);
+          return true;
+        }
+      } else if (sequence < position) {
+        // The slot still holds an event from the previous lap.
+        return false;
+      }
+      // Otherwise another thread claimed this position first. Retry.
+    }
+  }
+
+  protected void enqueue(int level, String tag, String message, Throwable error) {
+    if (closed) {
+      dropped.incrementAndGet();
+      return;
+    }
+    while (!offer(level, tag, message, error)) {
+      if (policy == OverflowPolicy.DROP || closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(drainer);
+      LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+    }
+    if (!draining) {
+      LockSupport.unpark(drainer);
+    }
+  }
+
+  /**
+   * Write one buffered event, if there is one. Called only on the drain
+   * thread.
+   *
+   * @return false if the buffer was empty.
+   */
+  protected boolean drainOne() {
+    final long position = head;
+    final int slot = (int) (position & mask);
+    if (sequences.get(slot) != position + 1) {
+      return false;
+    }
+    final Event event = events[slot];
+    final int level = event.level;
+    final String tag = event.tag;
+    final String message = event.message;
+    final Throwable error = event.error;
+    event.tag = null;
+    event.message = null;
+    event.error = null;
+    sequences.set(slot, position + events.length);
+    head = position + 1;
+
+    write(level, tag, message, error);
+    return true;
+  }
+
+  protected void write(int level, String tag, String message, Throwable error) {
+    try {
+      switch (level) {
+      case Log.ERROR:
+        inner.error(tag, message, error);
+        break;
+      case Log.WARN:
+        inner.warn(tag, message, error);
+        break;
+      case Log.INFO:
+        inner.info(tag, message, error);
+        break;
+      case Log.DEBUG:
+        inner.debug(tag, message, error);
+        break;
+      default:
+        inner.trace(tag, message, error);
+        break;
+      }
+      written.incrementAndGet();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      Log.e(LOG_TAG, "Got exception writing log event.", e);
+    }
+  }
+
+  protected void reportDropped() {
+    final long total = dropped.get();
+    if (total > droppedReported) {
+      droppedReported = total;
+      try {
+        inner.warn(LOG_TAG, "Dropped " + total + " log events so far; buffer full.", null);
+      } catch (Exception e) {
+        Log.e(LOG_TAG, "Got exception reporting dropped log events.", e);
+      }
+    }
+  }
+
+  protected void drain() {
+    while (true) {
+      draining = true;
+      while (drainOne()) {
+        // Keep going.
+      }
+      reportDropped();
+      if (closed && tail.get() == head) {
+        return;
+      }
+      draining = false;
+      // Check again: an event may have arrived after the last check but
+      // before we cleared the flag, and its thread won't have woken us.
+      if (sequences.get((int) (head & mask)) == head + 1) {
+        continue;
+      }
+      LockSupport.parkNanos(this, DRAIN_IDLE_NANOS);
+    }
+  }
+
+  /**
+   * Wait until every event buffered before this call has been written.
+   *
+   * @param timeoutMillis how long to wait.
+   * @return true if they were all written in time.
+   */
+  public boolean flush(long timeoutMillis) {
+    final long target = tail.get();
+    final long deadline = System.nanoTime() + timeoutMillis * 1000 * 1000;
+    while (head < target) {
+      if (!drainer.isAlive() || System.nanoTime() > deadline) {
+        return false;
+      }
+      LockSupport.unpark(drainer);
+      LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+    }
+    return true;
+  }
+
+  /**
+   * Write out buffered events, stop the drain thread, and close the inner
+   * writer. Events logged after this are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(drainer);
+    try {
+      drainer.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (drainer.isAlive()) {
+      Log.w(LOG_TAG, "Timed out writing buffered log events; " + getPendingCount() + " pending.");
+    }
+    inner.close();
+  }
+
+  @Override
+  public void error(String tag, String message, Throwable error) {
+    enqueue(Log.ERROR, tag, message, error);
+  }
+
+  @Override
+  public void warn(String tag, String message, Throwable error) {
+    enqueue(Log.WARN, tag, message, error);
+  }
+
+  @Override
+  public void info(String tag, String message, Throwable error) {
+    enqueue(Log.INFO, tag, message, error);
+  }
+
+  @Override
+  public void debug(String tag, String message, Throwable error) {
+    enqueue(Log.DEBUG, tag, message, error);
+  }
+
+  @Override
+  public void trace(String tag, String message, Throwable error) {
+    enqueue(Log.VERBOSE, tag, message, error);
+  }
+
+  @Override
+  public boolean shouldLogVerbose(String tag) {
+    return inner.shouldLogVerbose(tag);
+  }
+
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return inner.shouldLog(tag, level);
+  }
+}
@@ -63,4 +63,9 @@ public class LevelFilteringLogWriter extends LogWriter {
   public boolean shouldLogVerbose(String tag) {
     return logLevel <= Log.VERBOSE;
   }
+
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return logLevel <= level && inner.shouldLog(tag, level);
+  }
 }
@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.sync.log.writers;
 
+import android.util.Log;
+
 /**
  * An abstract object that logs information in some way.
  * <p>
@@ -26,4 +28,21 @@ public abstract class LogWriter {
   public abstract void close();
 
   public abstract boolean shouldLogVerbose(String tag);
+
+  /**
+   * Whether a message at <code>level</code>, one of the
+   * <code>android.util.Log</code> levels, might be written for this tag.
+   * <code>Logger</code> caches the answer and doesn't call a writer at
+   * levels it declines, so the answer mustn't change unless
+   * <code>Logger.refreshLogLevels</code> is called.
+   * <p>
+   * By default, verbose messages are written if
+   * <code>shouldLogVerbose</code> says so, and all others are.
+   */
+  public boolean shouldLog(String tag, int level) {
+    if (level <= Log.VERBOSE) {
+      return shouldLogVerbose(tag);
+    }
+    return true;
+  }
 }
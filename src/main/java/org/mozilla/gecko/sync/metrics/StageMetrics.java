@@ -0,0 +1,212 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times the work done by one stage of a sync: HTTP requests,
+ * records through each step of the pipeline, and time spent in each phase.
+ * <p>
+ * Instances are live and thread-safe: fetch, decrypt, store, and HTTP threads
+ * all record into the same instance at once. Phase times are summed across
+ * threads, so they can add up to more than the stage's wall-clock duration.
+ */
+public class StageMetrics {
+  public enum Count {
+    REQUESTS,
+    BYTES_SENT,
+    BYTES_RECEIVED,
+    RECORDS_FETCHED,
+    RECORDS_DECRYPTED,
+    RECORDS_RECONCILED,
+    RECORDS_INSERTED,
+    RECORDS_UPDATED,
+    RECORDS_DELETED,
+    RECORDS_SENT,
+    RECORDS_FAILED,
+  }
+
+  public enum Phase {
+    /**
+     * Waiting for response headers, and reading response bodies.
+     */
+    NETWORK,
+    DECRYPT,
+    RECONCILE,
+    DB_WRITE,
+
+    /**
+     * Fetching or storing stalled on a full queue between them.
+     */
+    QUEUE_WAIT,
+  }
+
+  private static final Count[] COUNTS = Count.values();
+  private static final Phase[] PHASES = Phase.values();
+
+  public final String name;
+
+  protected final AtomicLongArray counts = new AtomicLongArray(COUNTS.length);
+  protected final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+  protected final AtomicLong requestNanos = new AtomicLong();
+  protected final AtomicLong maxRequestNanos = new AtomicLong();
+
+  protected volatile long startMillis = -1;
+  protected volatile long endMillis = -1;
+
+  public StageMetrics(String name) {
+    this.name = name;
+  }
+
+  public void add(Count count, long value) {
+    counts.addAndGet(count.ordinal(), value);
+  }
+
+  public void increment(Count count) {
+    counts.incrementAndGet(count.ordinal());
+  }
+
+  public long get(Count count) {
+    return counts.get(count.ordinal());
+  }
+
+  /**
+   * Record time spent in a phase. Callers time with
+   * <code>System.nanoTime()</code>.
+   */
+  public void addNanos(Phase phase, long elapsed) {
+    nanos.addAndGet(phase.ordinal(), elapsed);
+  }
+
+  public long getMillis(Phase phase) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+  }
+
+  /**
+   * Record an HTTP request.
+   *
+   * @param requestBytes size of the request body, or 0 if there was none.
+   * @param elapsed nanoseconds from sending the request to receiving the
+   *        response headers.
+   */
+  public void recordRequest(long requestBytes, long elapsed) {
+    increment(Count.REQUESTS);
+    if (requestBytes > 0) {
+      add(Count.BYTES_SENT, requestBytes);
+    }
+    addNanos(Phase.NETWORK, elapsed);
+    requestNanos.addAndGet(elapsed);
+    long max;
+    while (elapsed > (max = maxRequestNanos.get())) {
+      if (maxRequestNanos.compareAndSet(max, elapsed)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return the mean time to response headers, in milliseconds.
+   */
+  public long getMeanRequestMillis() {
+    final long requests = get(Count.REQUESTS);
+    if (requests == 0) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(requestNanos.get() / requests);
+  }
+
+  /**
+   * @return the longest time to response headers, in milliseconds.
+   */
+  public long getMaxRequestMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxRequestNanos.get());
+  }
+
+  public void start() {
+    if (startMillis < 0) {
+      startMillis = System.currentTimeMillis();
+    }
+    endMillis = -1;
+  }
+
+  public void end() {
+    endMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * @return wall-clock duration of the stage so far, in milliseconds, or 0
+   *         if it hasn't started.
+   */
+  public long getDurationMillis() {
+    if (startMillis < 0) {
+      return 0;
+    }
+    final long end = (endMillis < 0) ? System.currentTimeMillis() : endMillis;
+    return end - startMillis;
+  }
+
+  /**
+   * @return true if nothing has been recorded.
+   */
+  public boolean isEmpty() {
+    for (int i = 0; i < COUNTS.length; i++) {
+      if (counts.get(i) != 0) {
+        return false;
+      }
+    }
+    for (int i = 0; i < PHASES.length; i++) {
+      if (nanos.get(i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A compact one-line summary, like
+   * <code>bookmarks: 1520ms; 12 req (mean 80ms, max 310ms), 2048 B out,
+   * 51200 B in; fetched 40, reconciled 3, inserted 37; network 1100ms,
+   * decrypt 45ms</code>. Zero counts and phases are left out.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder();
+    b.append(name).append(": ").append(getDurationMillis()).append("ms");
+
+    final long requests = get(Count.REQUESTS);
+    if (requests > 0) {
+      b.append("; ").append(requests).append(" req (mean ").append(getMeanRequestMillis())
+       .append("ms, max ").append(getMaxRequestMillis()).append("ms), ")
+       .append(get(Count.BYTES_SENT)).append(" B out, ")
+       .append(get(Count.BYTES_RECEIVED)).append(" B in");
+    }
+
+    String separator = "; ";
+    for (int i = Count.RECORDS_FETCHED.ordinal(); i < COUNTS.length; i++) {
+      final long value = counts.get(i);
+      if (value == 0) {
+        continue;
+      }
+      b.append(separator).append(COUNTS[i].name().substring("RECORDS_".length()).toLowerCase(Locale.US))
+       .append(' ').append(value);
+      separator = ", ";
+    }
+
+    separator = "; ";
+    for (int i = 0; i < PHASES.length; i++) {
+      final long millis = TimeUnit.NANOSECONDS.toMillis(nanos.get(i));
+      if (millis == 0) {
+        continue;
+      }
+      b.append(separator).append(PHASES[i].name().toLowerCase(Locale.US)).append(' ').append(millis).append("ms");
+      separator = ", ";
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,175 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.RouteStatistics;
+
+/**
+ * Metrics for one sync, kept per stage in the order the stages ran.
+ * <p>
+ * Stages run one at a time, so anything recorded while a stage is current is
+ * charged to it. Response bodies are counted per host by
+ * {@link RouteStatistics} rather than per request, so each stage is charged
+ * with the body bytes and read time those counters gained while it ran.
+ */
+public class SyncMetrics {
+  /**
+   * Charged with anything recorded outside a stage.
+   */
+  public static final String UNATTRIBUTED = "unattributed";
+
+  protected final long startMillis = System.currentTimeMillis();
+  protected long endMillis = -1;
+
+  // Guarded by this.
+  protected final LinkedHashMap<String, StageMetrics> stages = new LinkedHashMap<String, StageMetrics>();
+  protected final StageMetrics unattributed;
+  protected StageMetrics current;
+  protected long bodyBytesAtStageStart;
+  protected long bodyNanosAtStageStart;
+
+  public SyncMetrics() {
+    unattributed = getStage(UNATTRIBUTED);
+    current = unattributed;
+  }
+
+  /**
+   * @return the metrics for the named stage, created if need be.
+   */
+  public synchronized StageMetrics getStage(String name) {
+    StageMetrics stage = stages.get(name);
+    if (stage == null) {
+      stage = new StageMetrics(name);
+      stages.put(name, stage);
+    }
+    return stage;
+  }
+
+  /**
+   * @return the metrics for the running stage, or for
+   *         <code>UNATTRIBUTED</code> between stages. Never null.
+   */
+  public synchronized StageMetrics getCurrentStage() {
+    return current;
+  }
+
+  /**
+   * @return every stage's metrics, in the order the stages first ran.
+   */
+  public synchronized List<StageMetrics> getStages() {
+    return new ArrayList<StageMetrics>(stages.values());
+  }
+
+  /**
+   * End the running stage, if any, and charge what follows to
+   * <code>name</code>. A stage that runs twice, as after a restart,
+   * accumulates.
+   */
+  public synchronized StageMetrics beginStage(String name) {
+    endStage();
+    current = getStage(name);
+    current.start();
+    bodyBytesAtStageStart = 0;
+    bodyNanosAtStageStart = 0;
+    for (RouteStatistics route : BaseResource.getRouteStatistics().values()) {
+      bodyBytesAtStageStart += route.getBodyBytesReceived();
+      bodyNanosAtStageStart += route.getBodyReadNanos();
+    }
+    return current;
+  }
+
+  /**
+   * End the running stage, if any. Until the next stage begins, anything
+   * recorded is charged to <code>UNATTRIBUTED</code>.
+   */
+  public synchronized void endStage() {
+    if (current == unattributed) {
+      return;
+    }
+    long bodyBytes = 0;
+    long bodyNanos = 0;
+    for (RouteStatistics route : BaseResource.getRouteStatistics().values()) {
+      bodyBytes += route.getBodyBytesReceived();
+      bodyNanos += route.getBodyReadNanos();
+    }
+    // Statistics can be reset under us.
+    current.add(Count.BYTES_RECEIVED, Math.max(0, bodyBytes - bodyBytesAtStageStart));
+    current.addNanos(Phase.NETWORK, Math.max(0, bodyNanos - bodyNanosAtStageStart));
+    current.end();
+    current = unattributed;
+  }
+
+  /**
+   * End the running stage and the sync.
+   */
+  public synchronized void end() {
+    endStage();
+    endMillis = System.currentTimeMillis();
+  }
+
+  public synchronized long getDurationMillis() {
+    final long end = (endMillis < 0) ? System.currentTimeMillis() : endMillis;
+    return end - startMillis;
+  }
+
+  /**
+   * @return the sum of a count over every stage.
+   */
+  public long getTotal(Count count) {
+    long total = 0;
+    for (StageMetrics stage : getStages()) {
+      total += stage.get(count);
+    }
+    return total;
+  }
+
+  /**
+   * @return the sum of a phase's time over every stage, in milliseconds.
+   */
+  public long getTotalMillis(Phase phase) {
+    long total = 0;
+    for (StageMetrics stage : getStages()) {
+      total += stage.nanos.get(phase.ordinal());
+    }
+    return TimeUnit.NANOSECONDS.toMillis(total);
+  }
+
+  /**
+   * A compact summary: one line of totals, then one line for each stage that
+   * recorded anything.
+   */
+  public String summary() {
+    final StringBuilder b = new StringBuilder();
+    b.append("Sync took ").append(getDurationMillis()).append("ms; ")
+     .append(getTotal(Count.REQUESTS)).append(" requests, ")
+     .append(getTotal(Count.BYTES_SENT)).append(" B out, ")
+     .append(getTotal(Count.BYTES_RECEIVED)).append(" B in; network ")
+     .append(getTotalMillis(Phase.NETWORK)).append("ms, decrypt ")
+     .append(getTotalMillis(Phase.DECRYPT)).append("ms, reconcile ")
+     .append(getTotalMillis(Phase.RECONCILE)).append("ms, DB write ")
+     .append(getTotalMillis(Phase.DB_WRITE)).append("ms, queue wait ")
+     .append(getTotalMillis(Phase.QUEUE_WAIT)).append("ms.");
+    for (StageMetrics stage : getStages()) {
+      if (stage.isEmpty()) {
+        continue;
+      }
+      b.append("\n  ").append(stage);
+    }
+    return b.toString();
+  }
+
+  @Override
+  public String toString() {
+    return summary();
+  }
+}
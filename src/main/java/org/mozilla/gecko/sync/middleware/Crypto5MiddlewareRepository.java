@@ -25,6 +25,19 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
 
   public RecordFactory recordFactory = new IdentityRecordFactory();
 
+  /**
+   * Number of threads on which to decrypt and transform fetched records. If 0,
+   * records are decrypted on the thread that fetches them.
+   */
+  public int decryptThreads = 0;
+
+  /**
+   * If decrypting on multiple threads, whether fetched records must be passed
+   * on in the order in which they were fetched. Set to false only if consumers
+   * don't depend on server order.
+   */
+  public boolean decryptInOrder = true;
+
   public class Crypto5MiddlewareRepositorySessionCreationDelegate extends MiddlewareRepository.SessionCreationDelegate {
     private Crypto5MiddlewareRepository repository;
     private RepositorySessionCreationDelegate outerDelegate;
@@ -5,11 +5,21 @@
 package org.mozilla.gecko.sync.middleware;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
@@ -58,19 +68,51 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MiddlewareSession";
+
+  /**
+   * How many records each decrypt thread may have in flight before the fetching
+   * thread waits for them to be delivered.
+   */
+  public static final int RECORDS_IN_FLIGHT_PER_THREAD = 16;
+
+  /**
+   * How long idle decrypt threads linger before exiting.
+   */
+  private static final long DECRYPT_THREAD_KEEPALIVE_SECONDS = 5;
+
   private KeyBundle keyBundle;
   private RecordFactory recordFactory;
+  private int decryptThreads;
+  private boolean decryptInOrder;
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.decryptThreads = repository.decryptThreads;
+    this.decryptInOrder = repository.decryptInOrder;
+  }
+
+  /**
+   * The result of decrypting and transforming a single fetched record: either a
+   * record to pass on, or an exception to report together with the record that
+   * caused it.
+   */
+  protected static class DecryptOutcome {
+    public final Record record;
+    public final Exception failure;
+
+    public DecryptOutcome(Record record, Exception failure) {
+      this.record = record;
+      this.failure = failure;
+    }
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
-    private RepositorySessionFetchRecordsDelegate next;
-    private KeyBundle keyBundle;
-    private RecordFactory recordFactory;
+    protected RepositorySessionFetchRecordsDelegate next;
+    protected KeyBundle keyBundle;
+    protected RecordFactory recordFactory;
 
     DecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory) {
       this.next = next;
@@ -78,35 +120,52 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
       this.recordFactory = recordFactory;
     }
 
-    @Override
-    public void onFetchFailed(Exception ex, Record record) {
-      next.onFetchFailed(ex, record);
-    }
-
-    @Override
-    public void onFetchedRecord(Record record) {
+    /**
+     * Decrypt <code>record</code> and turn it into a local record. Does not
+     * touch <code>next</code>, so it is safe to call from any thread.
+     */
+    protected DecryptOutcome decryptAndTransform(Record record) {
       CryptoRecord r;
       try {
         r = (CryptoRecord) record;
       } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
-        return;
+        return new DecryptOutcome(record, e);
       }
       r.keyBundle = keyBundle;
+      final long start = System.nanoTime();
       try {
         r.decrypt();
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
-        return;
+        return new DecryptOutcome(r, e);
+      } finally {
+        metrics.addNanos(Phase.DECRYPT, System.nanoTime() - start);
       }
+      metrics.increment(Count.RECORDS_DECRYPTED);
       Record transformed;
       try {
         transformed = this.recordFactory.createRecord(r);
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        return new DecryptOutcome(r, e);
+      }
+      return new DecryptOutcome(transformed, null);
+    }
+
+    protected void deliver(DecryptOutcome outcome) {
+      if (outcome.failure != null) {
+        next.onFetchFailed(outcome.failure, outcome.record);
         return;
       }
-      next.onFetchedRecord(transformed);
+      next.onFetchedRecord(outcome.record);
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      next.onFetchFailed(ex, record);
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      deliver(decryptAndTransform(record));
     }
 
     @Override
@@ -122,10 +181,253 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
+  /**
+   * Sequencing and backpressure shared by a
+   * <code>ParallelDecryptingTransformingFetchDelegate</code> and every deferred
+   * delegate derived from it, so that one fetch is ordered as a whole no matter
+   * how many wrappers the inner session asks for.
+   */
+  protected static class DecryptPipeline {
+    private final boolean inOrder;
+    private final ThreadPoolExecutor decryptExecutor;
+    private final Semaphore inFlight;
+
+    // All of the following are guarded by this.
+    private long nextSequence = 0;
+    private long nextToDeliver = 0;
+    private final HashMap<Long, Delivery> ready = new HashMap<Long, Delivery>();
+    private ArrayList<Delivery> deliverable = new ArrayList<Delivery>();
+    private boolean delivering = false;
+    private int pending = 0;
+    private DecryptingTransformingFetchDelegate completionTarget = null;
+    private long fetchEnd = -1;
+    private boolean completionDelivered = false;
+
+    private static class Delivery {
+      public final DecryptingTransformingFetchDelegate via;
+      public final DecryptOutcome outcome;
+
+      public Delivery(DecryptingTransformingFetchDelegate via, DecryptOutcome outcome) {
+        this.via = via;
+        this.outcome = outcome;
+      }
+    }
+
+    public DecryptPipeline(int threads, boolean inOrder) {
+      this.inOrder = inOrder;
+      this.inFlight = new Semaphore(threads * RECORDS_IN_FLIGHT_PER_THREAD);
+      this.decryptExecutor = new ThreadPoolExecutor(threads, threads,
+                                                    DECRYPT_THREAD_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+                                                    new LinkedBlockingQueue<Runnable>());
+      // A fetch can end without onFetchCompleted, so don't rely on shutdown()
+      // to reclaim threads.
+      this.decryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private synchronized long nextSequenceNumber() {
+      pending++;
+      return nextSequence++;
+    }
+
+    /**
+     * Decrypt <code>record</code> on a worker thread, then pass it on through
+     * <code>via</code>. Blocks if too many records are already in flight.
+     */
+    public void submit(final DecryptingTransformingFetchDelegate via, final Record record) {
+      inFlight.acquireUninterruptibly();
+      final long sequence = nextSequenceNumber();
+      final Runnable work = new Runnable() {
+        @Override
+        public void run() {
+          DecryptOutcome outcome;
+          try {
+            outcome = via.decryptAndTransform(record);
+          } catch (Exception e) {
+            outcome = new DecryptOutcome(record, e);
+          }
+          complete(sequence, new Delivery(via, outcome));
+        }
+      };
+      try {
+        decryptExecutor.execute(work);
+      } catch (RejectedExecutionException e) {
+        Logger.warn(LOG_TAG, "Decrypt executor rejected record; decrypting inline.", e);
+        work.run();
+      }
+    }
+
+    /**
+     * Pass on a failure through <code>via</code>, in sequence with records.
+     */
+    public void fail(DecryptingTransformingFetchDelegate via, Exception ex, Record record) {
+      inFlight.acquireUninterruptibly();
+      complete(nextSequenceNumber(), new Delivery(via, new DecryptOutcome(record, ex)));
+    }
+
+    /**
+     * Pass on completion through <code>via</code> once everything submitted so
+     * far has been passed on.
+     */
+    public void finish(DecryptingTransformingFetchDelegate via, long fetchEnd) {
+      synchronized (this) {
+        this.completionTarget = via;
+        this.fetchEnd = fetchEnd;
+      }
+      maybeDeliverCompletion();
+    }
+
+    private void complete(long sequence, Delivery delivery) {
+      synchronized (this) {
+        if (!inOrder) {
+          deliverable.add(delivery);
+        } else {
+          ready.put(sequence, delivery);
+          Delivery head;
+          while ((head = ready.remove(nextToDeliver)) != null) {
+            nextToDeliver++;
+            deliverable.add(head);
+          }
+        }
+      }
+      drain();
+    }
+
+    /**
+     * Pass on everything deliverable, without holding this while calling
+     * <code>next</code>. Only one thread drains at a time, so <code>next</code>
+     * is never called concurrently or out of order; other threads leave their
+     * deliveries for it to pick up.
+     */
+    private void drain() {
+      synchronized (this) {
+        if (delivering) {
+          return;
+        }
+        delivering = true;
+      }
+      boolean drained = false;
+      try {
+        while (!drained) {
+          final ArrayList<Delivery> batch;
+          synchronized (this) {
+            if (deliverable.isEmpty()) {
+              // Whoever queues a delivery after this drains it.
+              delivering = false;
+              drained = true;
+              break;
+            }
+            batch = deliverable;
+            deliverable = new ArrayList<Delivery>();
+          }
+          for (Delivery delivery : batch) {
+            deliverAndRelease(delivery);
+          }
+        }
+      } finally {
+        if (!drained) {
+          synchronized (this) {
+            delivering = false;
+          }
+        }
+        maybeDeliverCompletion();
+      }
+    }
+
+    private void deliverAndRelease(Delivery delivery) {
+      try {
+        delivery.via.deliver(delivery.outcome);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Caught exception passing on fetched record.", e);
+        try {
+          delivery.via.next.onFetchFailed(e, delivery.outcome.record);
+        } catch (Exception ex) {
+          Logger.warn(LOG_TAG, "Caught exception passing on fetch failure.", ex);
+        }
+      } finally {
+        synchronized (this) {
+          pending--;
+        }
+        inFlight.release();
+      }
+    }
+
+    /**
+     * Pass on completion if the fetch is done and every earlier callback has
+     * returned.
+     */
+    private void maybeDeliverCompletion() {
+      final DecryptingTransformingFetchDelegate target;
+      final long end;
+      synchronized (this) {
+        if (completionTarget == null || pending > 0 || completionDelivered) {
+          return;
+        }
+        completionDelivered = true;
+        target = completionTarget;
+        end = fetchEnd;
+      }
+      decryptExecutor.shutdown();
+      target.next.onFetchCompleted(end);
+    }
+  }
+
+  /**
+   * Decrypts and transforms fetched records on a pool of worker threads, so
+   * that the fetching thread can go straight back to reading from the network.
+   * <p>
+   * Every callback from the inner session is given a sequence number. If the
+   * pipeline is in order, records and failures are passed to <code>next</code>
+   * in the order in which the inner session produced them; otherwise they are
+   * passed on as soon as they're ready. Either way, <code>next</code> is never
+   * called concurrently, and <code>onFetchCompleted</code> is passed on only
+   * after every earlier callback has returned. If <code>next</code> throws
+   * while being handed a record, the exception is passed on as a fetch
+   * failure for that record.
+   * <p>
+   * The fetching thread blocks once too many records are waiting to be
+   * decrypted or delivered, so a slow consumer throttles the fetch rather than
+   * letting records pile up in memory.
+   */
+  public class ParallelDecryptingTransformingFetchDelegate extends DecryptingTransformingFetchDelegate {
+    private final DecryptPipeline pipeline;
+
+    ParallelDecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory,
+                                                DecryptPipeline pipeline) {
+      super(next, bundle, recordFactory);
+      this.pipeline = pipeline;
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      pipeline.submit(this, record);
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      pipeline.fail(this, ex, record);
+    }
+
+    @Override
+    public void onFetchCompleted(final long fetchEnd) {
+      pipeline.finish(this, fetchEnd);
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      // Share the pipeline, so ordering holds across every deferred delegate.
+      RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
+      return new ParallelDecryptingTransformingFetchDelegate(deferredNext, keyBundle, recordFactory, pipeline);
+    }
+  }
+
   private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (this.decryptThreads > 0) {
+      DecryptPipeline pipeline = new DecryptPipeline(this.decryptThreads, this.decryptInOrder);
+      return new ParallelDecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory, pipeline);
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
@@ -146,6 +448,26 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     inner.fetchAll(makeUnwrappingDelegate(delegate));
   }
 
+  /**
+   * Counts of stored records only line up with what <code>inner</code>
+   * delivered if decryption preserves fetch order.
+   */
+  @Override
+  public boolean supportsResume() {
+    if (this.decryptThreads > 0 && !this.decryptInOrder) {
+      return false;
+    }
+    return inner.supportsResume();
+  }
+
+  @Override
+  public void fetchedRecordsStored(long count) {
+    if (!supportsResume()) {
+      return;
+    }
+    inner.fetchedRecordsStored(count);
+  }
+
   @Override
   public void setStoreDelegate(RepositorySessionStoreDelegate delegate) {
     // TODO: it remains to be seen how this will work.
@@ -7,6 +7,7 @@ package org.mozilla.gecko.sync.middleware;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -30,6 +31,12 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.wipe(delegate);
   }
 
+  @Override
+  public void setMetrics(StageMetrics metrics) {
+    super.setMetrics(metrics);
+    inner.setMetrics(metrics);
+  }
+
   public class MiddlewareRepositorySessionBeginDelegate implements RepositorySessionBeginDelegate {
 
     private MiddlewareRepositorySession outerSession;
@@ -157,6 +164,26 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.storeDone();
   }
 
+  @Override
+  public int getStoreBacklog() {
+    return inner.getStoreBacklog();
+  }
+
+  @Override
+  public void afterPendingStores(Runnable command) {
+    inner.afterPendingStores(command);
+  }
+
+  @Override
+  public boolean supportsResume() {
+    return inner.supportsResume();
+  }
+
+  @Override
+  public void fetchedRecordsStored(long count) {
+    inner.fetchedRecordsStored(count);
+  }
+
   @Override
   public void storeDone(long storeEnd) {
     inner.storeDone(storeEnd);
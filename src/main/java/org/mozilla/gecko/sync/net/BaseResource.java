@@ -7,19 +7,27 @@ package org.mozilla.gecko.sync.net;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.mozilla.gecko.sync.Logger;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpEntityEnclosingRequest;
+import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpVersion;
 import ch.boye.httpclientandroidlib.auth.Credentials;
@@ -33,14 +41,22 @@ import ch.boye.httpclientandroidlib.client.methods.HttpPut;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
+import ch.boye.httpclientandroidlib.client.utils.URIUtils;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionOperator;
+import ch.boye.httpclientandroidlib.conn.ConnectionKeepAliveStrategy;
+import ch.boye.httpclientandroidlib.conn.OperatedClientConnection;
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
 import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
 import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 import ch.boye.httpclientandroidlib.impl.auth.BasicScheme;
 import ch.boye.httpclientandroidlib.impl.client.BasicAuthCache;
+import ch.boye.httpclientandroidlib.impl.client.BasicCookieStore;
+import ch.boye.httpclientandroidlib.impl.client.DefaultConnectionKeepAliveStrategy;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.impl.conn.DefaultClientConnectionOperator;
 import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
@@ -59,7 +75,7 @@ public class BaseResource implements Resource {
   private static final String ANDROID_LOOPBACK_IP = "10.0.2.2";
 
   private static final int MAX_TOTAL_CONNECTIONS     = 20;
-  private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+  static final int MAX_CONNECTIONS_PER_ROUTE = 10;
 
   private boolean retryOnFailedRequest = true;
 
@@ -74,6 +90,12 @@ public class BaseResource implements Resource {
   protected HttpRequestBase request;
   public String charset = "utf-8";
 
+  /**
+   * If set, requests are made asynchronously on this dispatcher's threads.
+   * Otherwise they're made on the calling thread.
+   */
+  protected HttpDispatcher dispatcher;
+
   protected static WeakReference<HttpResponseObserver> httpResponseObserver = null;
 
   public BaseResource(String uri) throws URISyntaxException {
@@ -120,6 +142,22 @@ public class BaseResource implements Resource {
     return this.uri;
   }
 
+  /**
+   * Make requests asynchronously: <code>get</code>, <code>post</code>, etc.
+   * will return immediately, and the delegate will be invoked on one of the
+   * dispatcher's threads.
+   *
+   * @param dispatcher
+   *          the dispatcher to use, or null to make requests synchronously.
+   */
+  public void setDispatcher(HttpDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  public boolean isAsynchronous() {
+    return this.dispatcher != null;
+  }
+
   /**
    * This shuts up HttpClient, which will otherwise debug log about there
    * being no auth cache in the context.
@@ -156,9 +194,13 @@ public class BaseResource implements Resource {
   private void prepareClient() throws KeyManagementException, NoSuchAlgorithmException {
     context = new BasicHttpContext();
 
-    // We could reuse these client instances, except that we mess around
-    // with their parameters… so we'd need a pool of some kind.
-    client = new DefaultHttpClient(getConnectionManager());
+    // Clients are shared between requests with the same connection
+    // parameters. Anything specific to this request goes on the request or
+    // its context -- including cookies, which would otherwise be kept in the
+    // shared client's store and sent with every later request, whatever the
+    // account.
+    context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
+    client = getClient(delegate.connectionTimeout(), delegate.socketTimeout(), charset);
 
     // TODO: Eventually we should use Apache HttpAsyncClient. It's not out of alpha yet.
     // Until then, we synchronously make the request, then invoke our delegate's callback.
@@ -168,28 +210,195 @@ public class BaseResource implements Resource {
     }
 
     addAuthCacheToContext(request, context);
-
-    HttpParams params = client.getParams();
-    HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
-    HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
-    HttpConnectionParams.setStaleCheckingEnabled(params, false);
-    HttpProtocolParams.setContentCharset(params, charset);
-    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
     delegate.addHeaders(request, client);
   }
 
+  /**
+   * The parameters that distinguish one pooled client from another.
+   * Credentials aren't among them: they're applied to each request.
+   */
+  private static class ClientProfile {
+    public final int connectionTimeout;
+    public final int socketTimeout;
+    public final String charset;
+
+    public ClientProfile(int connectionTimeout, int socketTimeout, String charset) {
+      this.connectionTimeout = connectionTimeout;
+      this.socketTimeout = socketTimeout;
+      this.charset = charset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ClientProfile)) {
+        return false;
+      }
+      ClientProfile other = (ClientProfile) o;
+      return connectionTimeout == other.connectionTimeout &&
+             socketTimeout == other.socketTimeout &&
+             (charset == null ? other.charset == null : charset.equals(other.charset));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * connectionTimeout + socketTimeout) + (charset == null ? 0 : charset.hashCode());
+    }
+  }
+
+  /**
+   * How long to keep an idle connection open if the server doesn't tell us.
+   * A sync makes its requests in quick succession, then goes quiet for a long
+   * time; there's no point holding connections open across that gap, and we
+   * don't do stale connection checks.
+   */
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = 15 * 1000;
+  private static final long MAX_KEEP_ALIVE_MILLIS     = 60 * 1000;
+
+  private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new DefaultConnectionKeepAliveStrategy() {
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      long duration = super.getKeepAliveDuration(response, context);
+      if (duration <= 0) {
+        return DEFAULT_KEEP_ALIVE_MILLIS;
+      }
+      return Math.min(duration, MAX_KEEP_ALIVE_MILLIS);
+    }
+  };
+
   private static Object connManagerMonitor = new Object();
   private static ClientConnectionManager connManager;
 
+  // Guarded by connManagerMonitor. Cleared when the connection manager is shut down.
+  private static final HashMap<ClientProfile, DefaultHttpClient> clients = new HashMap<ClientProfile, DefaultHttpClient>();
+
+  // Guarded by itself.
+  private static final HashMap<HttpHost, RouteStatistics> routeStatistics = new HashMap<HttpHost, RouteStatistics>();
+
+  /**
+   * Retained across connection managers so that TLS sessions can be resumed.
+   * Guarded by connManagerMonitor.
+   */
+  private static SSLContext sslContext;
+
+  private static final int TLS_SESSION_CACHE_SIZE = 10;
+  private static final int TLS_SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+  /**
+   * Return a client configured with the given connection parameters, creating
+   * it if necessary. Clients are thread-safe and shared: callers must not
+   * change their parameters.
+   */
+  protected static DefaultHttpClient getClient(int connectionTimeout, int socketTimeout, String charset) throws KeyManagementException, NoSuchAlgorithmException {
+    final ClientProfile profile = new ClientProfile(connectionTimeout, socketTimeout, charset);
+    synchronized (connManagerMonitor) {
+      DefaultHttpClient client = clients.get(profile);
+      if (client != null) {
+        return client;
+      }
+
+      client = new DefaultHttpClient(getConnectionManager());
+      client.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+
+      HttpParams params = client.getParams();
+      HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+      HttpConnectionParams.setSoTimeout(params, socketTimeout);
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+      HttpProtocolParams.setContentCharset(params, charset);
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+      Logger.debug(LOG_TAG, "Created client for timeouts " + connectionTimeout + "/" + socketTimeout + ".");
+      clients.put(profile, client);
+      return client;
+    }
+  }
+
+  /**
+   * Normalize a target host so that requests and connections to it are
+   * counted together.
+   */
+  private static HttpHost routeKey(HttpHost target) {
+    final String scheme = target.getSchemeName().toLowerCase(Locale.US);
+    int port = target.getPort();
+    if (port < 0) {
+      port = "https".equals(scheme) ? 443 : 80;
+    }
+    return new HttpHost(target.getHostName().toLowerCase(Locale.US), port, scheme);
+  }
+
+  protected static RouteStatistics getRouteStatistics(HttpHost target) {
+    final HttpHost key = routeKey(target);
+    synchronized (routeStatistics) {
+      RouteStatistics stats = routeStatistics.get(key);
+      if (stats == null) {
+        stats = new RouteStatistics(key);
+        routeStatistics.put(key, stats);
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * @return live statistics for every host we've made requests to, keyed by
+   *         host.
+   */
+  public static Map<HttpHost, RouteStatistics> getRouteStatistics() {
+    synchronized (routeStatistics) {
+      return new HashMap<HttpHost, RouteStatistics>(routeStatistics);
+    }
+  }
+
+  public static void resetRouteStatistics() {
+    synchronized (routeStatistics) {
+      routeStatistics.clear();
+    }
+  }
+
+  /**
+   * @return the number of connections, idle or in use, currently pooled for
+   *         the given host.
+   */
+  public static int getConnectionsInPool(HttpHost target) {
+    final ClientConnectionManager connectionManager;
+    synchronized (connManagerMonitor) {
+      connectionManager = connManager;
+    }
+    if (!(connectionManager instanceof ThreadSafeClientConnManager)) {
+      return 0;
+    }
+    final HttpHost key = routeKey(target);
+    final boolean secure = "https".equals(key.getSchemeName());
+    return ((ThreadSafeClientConnManager) connectionManager).getConnectionsInPool(new HttpRoute(key, null, secure));
+  }
+
   // Call within a synchronized block on connManagerMonitor.
   private static ClientConnectionManager enableTLSConnectionManager() throws KeyManagementException, NoSuchAlgorithmException  {
-    SSLContext sslContext = SSLContext.getInstance("TLS");
-    sslContext.init(null, null, new SecureRandom());
+    if (sslContext == null) {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, null, new SecureRandom());
+      SSLSessionContext sessions = context.getClientSessionContext();
+      if (sessions != null) {
+        sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+      }
+      sslContext = context;
+    }
     SSLSocketFactory sf = new TLSSocketFactory(sslContext);
     SchemeRegistry schemeRegistry = new SchemeRegistry();
     schemeRegistry.register(new Scheme("https", 443, sf));
     schemeRegistry.register(new Scheme("http", 80, new PlainSocketFactory()));
-    ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
+    ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry) {
+      @Override
+      protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+        return new DefaultClientConnectionOperator(schemes) {
+          @Override
+          public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+                                     HttpContext context, HttpParams params) throws IOException {
+            getRouteStatistics(target).connectionsOpened.incrementAndGet();
+            super.openConnection(conn, target, local, context, params);
+          }
+        };
+      }
+    };
 
     cm.setMaxTotal(MAX_TOTAL_CONNECTIONS);
     cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
@@ -228,6 +437,7 @@ public class BaseResource implements Resource {
     synchronized (connManagerMonitor) {
       connectionManager = connManager;
       connManager = null;
+      clients.clear();
     }
     if (connectionManager == null) {
       return;
@@ -238,7 +448,12 @@ public class BaseResource implements Resource {
 
   private void execute() {
     HttpResponse response;
+    final RouteStatistics statistics;
+    final long start;
     try {
+      statistics = getRouteStatistics(URIUtils.extractHost(uri));
+      statistics.requests.incrementAndGet();
+      start = System.nanoTime();
       response = client.execute(request, context);
       Logger.debug(LOG_TAG, "Response: " + response.getStatusLine().toString());
     } catch (ClientProtocolException e) {
@@ -266,14 +481,34 @@ public class BaseResource implements Resource {
       return;
     }
 
+    // Every consumer of the body -- whole or line by line -- reads it through
+    // the entity, so decode it here.
+    response.setEntity(DecodingEntity.wrap(response.getEntity(), statistics));
+
     // Don't retry if the observer or delegate throws!
     HttpResponseObserver observer = getHttpResponseObserver();
     if (observer != null) {
+      observer.observeHttpRequestTiming(response, getRequestBodyLength(), System.nanoTime() - start);
       observer.observeHttpResponse(response);
     }
     delegate.handleHttpResponse(response);
   }
 
+  /**
+   * @return the size of the request body, or 0 if there is none or its size
+   *         isn't known.
+   */
+  protected long getRequestBodyLength() {
+    if (!(request instanceof HttpEntityEnclosingRequest)) {
+      return 0;
+    }
+    final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    if (entity == null) {
+      return 0;
+    }
+    return Math.max(0, entity.getContentLength());
+  }
+
   private void retryRequest() {
     // Only retry once.
     retryOnFailedRequest = false;
@@ -281,10 +516,32 @@ public class BaseResource implements Resource {
     this.execute();
   }
 
-  private void go(HttpRequestBase request) {
-   if (delegate == null) {
+  private void go(final HttpRequestBase request) {
+    if (delegate == null) {
       throw new IllegalArgumentException("No delegate provided.");
     }
+    final HttpDispatcher dispatcher = this.dispatcher;
+    if (dispatcher == null) {
+      goNow(request);
+      return;
+    }
+    try {
+      dispatcher.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          goNow(request);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Logger.warn(LOG_TAG, "Dispatcher is shut down. Failing request.");
+      // Bug 769671: IOException(Throwable cause) was added only in API level 9.
+      final IOException ex = new IOException("Dispatcher is shut down.");
+      ex.initCause(e);
+      delegate.handleHttpIOException(ex);
+    }
+  }
+
+  private void goNow(HttpRequestBase request) {
     this.request = request;
     try {
       this.prepareClient();
@@ -316,9 +573,11 @@ public class BaseResource implements Resource {
    * after callbacks have been invoked.
    */
   public void getBlocking() {
-    // Until we use the asynchronous Apache HttpClient, we can simply call
-    // through.
-    this.get();
+    Logger.debug(LOG_TAG, "HTTP GET " + this.uri.toASCIIString());
+    if (delegate == null) {
+      throw new IllegalArgumentException("No delegate provided.");
+    }
+    this.goNow(new HttpGet(this.uri));
   }
 
   @Override
@@ -0,0 +1,226 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * Wraps a response entity so that a gzip-encoded body is inflated as it's
+ * read, whether a line at a time or all at once, and so that the bytes
+ * received and read are counted in the host's {@link RouteStatistics}.
+ * <p>
+ * The content stream is created once: repeated calls to
+ * <code>getContent</code> return the same stream, so that consuming the
+ * entity after reading part of it closes the connection's stream rather than
+ * trying to inflate it afresh.
+ */
+public class DecodingEntity extends HttpEntityWrapper {
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  protected final RouteStatistics statistics;
+  protected final boolean gzipped;
+  protected BodyStream content;
+
+  protected DecodingEntity(HttpEntity wrapped, boolean gzipped, RouteStatistics statistics) {
+    super(wrapped);
+    this.gzipped = gzipped;
+    this.statistics = statistics;
+  }
+
+  /**
+   * @return a decoding entity wrapping <code>entity</code>, or
+   *         <code>entity</code> itself if it's null or has a content encoding
+   *         we don't understand.
+   */
+  public static HttpEntity wrap(HttpEntity entity, RouteStatistics statistics) {
+    if (entity == null) {
+      return null;
+    }
+    final Header header = entity.getContentEncoding();
+    final String encoding = (header == null || header.getValue() == null) ? "" : header.getValue().trim().toLowerCase(Locale.US);
+    if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+      return new DecodingEntity(entity, true, statistics);
+    }
+    if (encoding.equals("") || encoding.equals("identity")) {
+      return new DecodingEntity(entity, false, statistics);
+    }
+    return entity;
+  }
+
+  public boolean isGzipped() {
+    return gzipped;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    if (content == null) {
+      content = new BodyStream(wrappedEntity.getContent());
+    }
+    return content;
+  }
+
+  @Override
+  public long getContentLength() {
+    // The decoded length isn't known until the body has been read.
+    return gzipped ? -1 : super.getContentLength();
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return gzipped ? null : super.getContentEncoding();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    final InputStream in = getContent();
+    try {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void consumeContent() throws IOException {
+    if (content != null) {
+      content.close();
+      return;
+    }
+    super.consumeContent();
+  }
+
+  protected static class CountingInputStream extends FilterInputStream {
+    public long count = 0;
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Counts bytes on the wire and after decoding, and reports them, with the
+   * time taken to read the body, when the body ends or is closed.
+   * <p>
+   * The gzip stream is created on the first read, because creating it reads
+   * the gzip header.
+   */
+  protected class BodyStream extends InputStream {
+    protected final CountingInputStream wire;
+    protected CountingInputStream decoded;
+    protected final long started = System.nanoTime();
+    protected boolean reported = false;
+
+    public BodyStream(InputStream raw) {
+      wire = new CountingInputStream(raw);
+    }
+
+    protected InputStream decoded() throws IOException {
+      if (decoded == null) {
+        decoded = new CountingInputStream(gzipped ? new GZIPInputStream(wire, BUFFER_SIZE) : wire);
+      }
+      return decoded;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = decoded().read();
+      if (b < 0) {
+        report();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int n = decoded().read(buffer, offset, length);
+      if (n < 0) {
+        report();
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      return decoded().skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (decoded == null) ? 0 : decoded.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (decoded != null) {
+          decoded.close();
+        } else {
+          wire.close();
+        }
+      } finally {
+        report();
+      }
+    }
+
+    protected void report() {
+      if (reported) {
+        return;
+      }
+      reported = true;
+      if (statistics != null) {
+        statistics.recordBody(gzipped, wire.count, (decoded == null) ? 0 : decoded.count, System.nanoTime() - started);
+      }
+    }
+  }
+}
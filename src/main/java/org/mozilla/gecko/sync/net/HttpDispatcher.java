@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.gecko.sync.Logger;
+
+/**
+ * Runs requests for resources in asynchronous mode.
+ * <p>
+ * A resource with a dispatcher returns from <code>get</code>,
+ * <code>post</code>, etc. as soon as its request is queued; the request is
+ * made, and the resource's delegate invoked, on one of the dispatcher's
+ * threads. Callers therefore don't tie up a thread of their own for the
+ * duration of the round-trip.
+ * <p>
+ * Any number of requests can be queued. The number being made at once is
+ * bounded by the number of threads, which by default matches the number of
+ * connections the connection manager allows per host: a request can't make
+ * progress without a connection anyway.
+ * <p>
+ * A delegate that blocks -- on the network or otherwise -- holds a
+ * dispatcher thread while it does so. Delegates must never block waiting for
+ * another request on the same dispatcher.
+ */
+public class HttpDispatcher {
+  private static final String LOG_TAG = "HttpDispatcher";
+
+  public static final int DEFAULT_THREADS = BaseResource.MAX_CONNECTIONS_PER_ROUTE;
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+  protected final ThreadPoolExecutor executor;
+  protected final AtomicInteger inFlight = new AtomicInteger();
+
+  public HttpDispatcher(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive.");
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads,
+        IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, LOG_TAG + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  private static HttpDispatcher defaultDispatcher;
+
+  /**
+   * @return a dispatcher shared by every resource that doesn't need its own.
+   */
+  public static synchronized HttpDispatcher getDefault() {
+    if (defaultDispatcher == null) {
+      defaultDispatcher = new HttpDispatcher(DEFAULT_THREADS);
+    }
+    return defaultDispatcher;
+  }
+
+  /**
+   * Queue a request.
+   *
+   * @param request
+   *          makes the request and invokes its delegate.
+   * @throws RejectedExecutionException
+   *           if the dispatcher has been shut down.
+   */
+  public void dispatch(final Runnable request) throws RejectedExecutionException {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inFlight.incrementAndGet();
+        try {
+          request.run();
+        } catch (Exception e) {
+          Logger.error(LOG_TAG, "Uncaught exception making request.", e);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the number of requests currently being made, including their
+   *         callbacks.
+   */
+  public int getRequestsInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return the number of requests waiting for a thread.
+   */
+  public int getRequestsQueued() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Stop accepting requests. Requests already queued are still made.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -14,4 +14,18 @@ public interface HttpResponseObserver {
    *          The <code>HttpResponse</code> to observe.
    */
   public void observeHttpResponse(HttpResponse response);
+
+  /**
+   * Observe the cost of the request that produced an HTTP response. Called
+   * just before <code>observeHttpResponse</code>, once for each attempt.
+   *
+   * @param response
+   *          The <code>HttpResponse</code> received.
+   * @param requestBytes
+   *          The size of the request body, or 0 if there was none or its size
+   *          wasn't known.
+   * @param elapsedNanos
+   *          Time from sending the request to receiving the response headers.
+   */
+  public void observeHttpRequestTiming(HttpResponse response, long requestBytes, long elapsedNanos);
 }
@@ -0,0 +1,19 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import org.mozilla.gecko.sync.SyncException;
+
+/**
+ * A single fetched WBO couldn't be turned into a record. The rest of the
+ * response is unaffected.
+ */
+public class MalformedWBOException extends SyncException {
+  private static final long serialVersionUID = 2811473621063934027L;
+
+  public MalformedWBOException(Exception ex) {
+    super(ex);
+  }
+}
@@ -24,6 +24,13 @@ import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 public interface ResourceDelegate {
   // Request augmentation.
   String getCredentials();
+
+  /**
+   * Add headers, or per-request parameters, to the request.
+   * <p>
+   * <code>client</code> is shared with other requests: don't change its
+   * parameters or its logging. Use <code>request.getParams()</code> instead.
+   */
   void addHeaders(HttpRequestBase request, DefaultHttpClient client);
 
   // Response handling.
@@ -0,0 +1,131 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.boye.httpclientandroidlib.HttpHost;
+
+/**
+ * Counts requests made and connections opened to a single host, so that we
+ * can tell how well connections are being reused, and the response bytes
+ * received and read, so that we can tell what compression saves.
+ * <p>
+ * Instances are live and thread-safe; see
+ * {@link BaseResource#getRouteStatistics()}.
+ */
+public class RouteStatistics {
+  public final HttpHost target;
+
+  protected final AtomicLong requests = new AtomicLong();
+  protected final AtomicLong connectionsOpened = new AtomicLong();
+
+  protected final AtomicLong bodiesRead = new AtomicLong();
+  protected final AtomicLong gzippedBodiesRead = new AtomicLong();
+  protected final AtomicLong bodyBytesReceived = new AtomicLong();
+  protected final AtomicLong bodyBytesDecoded = new AtomicLong();
+  protected final AtomicLong bodyReadNanos = new AtomicLong();
+
+  public RouteStatistics(HttpHost target) {
+    this.target = target;
+  }
+
+  /**
+   * @return the number of requests executed against this host, including
+   *         retries.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @return the number of connections opened to this host. For HTTPS, each of
+   *         these is a TLS handshake, full or resumed.
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * @return the number of requests that didn't need a new connection.
+   */
+  public long getRequestsOnReusedConnections() {
+    return Math.max(0, getRequests() - getConnectionsOpened());
+  }
+
+  /**
+   * Record a response body that has been read, or closed unread.
+   *
+   * @param gzipped whether the body was gzip-encoded.
+   * @param received bytes read from the connection.
+   * @param decoded bytes returned to the reader after decoding.
+   * @param nanos time from opening the body to its end or closing.
+   */
+  public void recordBody(boolean gzipped, long received, long decoded, long nanos) {
+    bodiesRead.incrementAndGet();
+    if (gzipped) {
+      gzippedBodiesRead.incrementAndGet();
+    }
+    bodyBytesReceived.addAndGet(received);
+    bodyBytesDecoded.addAndGet(decoded);
+    bodyReadNanos.addAndGet(nanos);
+  }
+
+  /**
+   * @return the number of response bodies read from this host.
+   */
+  public long getBodiesRead() {
+    return bodiesRead.get();
+  }
+
+  /**
+   * @return the number of those bodies that were gzip-encoded.
+   */
+  public long getGzippedBodiesRead() {
+    return gzippedBodiesRead.get();
+  }
+
+  /**
+   * @return the number of body bytes received from this host, before
+   *         decoding.
+   */
+  public long getBodyBytesReceived() {
+    return bodyBytesReceived.get();
+  }
+
+  /**
+   * @return the number of body bytes read after decoding.
+   */
+  public long getBodyBytesDecoded() {
+    return bodyBytesDecoded.get();
+  }
+
+  /**
+   * @return the number of body bytes that compression kept off the wire.
+   */
+  public long getBodyBytesSaved() {
+    return Math.max(0, getBodyBytesDecoded() - getBodyBytesReceived());
+  }
+
+  /**
+   * @return the total time spent reading response bodies, in milliseconds.
+   *         This includes waiting for the network as well as decoding.
+   */
+  public long getBodyReadMillis() {
+    return bodyReadNanos.get() / 1000000;
+  }
+
+  public long getBodyReadNanos() {
+    return bodyReadNanos.get();
+  }
+
+  @Override
+  public String toString() {
+    return target.toURI() + ": " + getRequests() + " requests, " +
+           getConnectionsOpened() + " connections opened, " +
+           getBodyBytesReceived() + " body bytes received (" +
+           getBodyBytesDecoded() + " decoded) in " + getBodyReadMillis() + "ms";
+  }
+}
@@ -18,6 +18,9 @@ public abstract class SyncResourceDelegate implements ResourceDelegate {
   public static int connectionTimeoutInMillis = 1000 * 30;     // Wait 30s for a connection to open.
   public static int socketTimeoutInMillis     = 1000 * 5 * 60; // Wait 5 minutes for data.
 
+  // Responses are decoded by BaseResource, whoever asked for them.
+  public static boolean acceptGzip = true;
+
   protected Resource resource;
   public SyncResourceDelegate(Resource resource) {
     this.resource = resource;
@@ -40,5 +43,8 @@ public abstract class SyncResourceDelegate implements ResourceDelegate {
 
   @Override
   public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
+    if (acceptGzip) {
+      request.setHeader("Accept-Encoding", "gzip");
+    }
   }
 }
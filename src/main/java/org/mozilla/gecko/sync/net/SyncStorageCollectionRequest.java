@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
 
+import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.Logger;
 
 import ch.boye.httpclientandroidlib.Header;
@@ -59,7 +60,7 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       SyncStorageResourceDelegate {
 
     private static final String CONTENT_TYPE_INCREMENTAL = "application/newlines";
-    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16K chars.
+    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16K chars or bytes.
 
     SyncCollectionResourceDelegate(SyncStorageCollectionRequest request) {
       super(request);
@@ -97,8 +98,32 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // will allow it to seamlessly correct timestamps on the records
       // it processes. Bug 721887.
 
-      // Line-by-line processing, then invoke success.
+      // Incremental processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
+      final boolean completed;
+      if (delegate instanceof WBOCollectionRequestDelegate) {
+        completed = processRecords(entity, (WBOCollectionRequestDelegate) delegate);
+      } else {
+        completed = processLines(entity, delegate);
+      }
+      if (!completed) {
+        return;
+      }
+
+      // We're done processing the entity. Don't let fetching the body succeed!
+      BaseResource.consumeEntity(entity);
+      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
+
+    /**
+     * Hand each line of the response body to the delegate as a
+     * <code>String</code>.
+     *
+     * @return true if the body was completely processed; false if the request
+     *         was aborted or failed, in which case the entity has been consumed
+     *         and the delegate notified as appropriate.
+     */
+    protected boolean processLines(HttpEntity entity, SyncStorageCollectionRequestDelegate delegate) {
       InputStream content = null;
       BufferedReader br = null;
       try {
@@ -114,19 +139,17 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
           } catch (Exception ex) {
             delegate.handleRequestError(new HandleProgressException(ex));
             BaseResource.consumeEntity(entity);
-            return;
+            return false;
           }
         }
-        if (aborting) {
-          // So we don't hit the success case below.
-          return;
-        }
+        // If we aborted, don't hit the success case.
+        return !aborting;
       } catch (IOException ex) {
         if (!aborting) {
           delegate.handleRequestError(ex);
         }
         BaseResource.consumeEntity(entity);
-        return;
+        return false;
       } finally {
         // Attempt to close the stream and reader.
         if (br != null) {
@@ -137,9 +160,69 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
           }
         }
       }
-      // We're done processing the entity. Don't let fetching the body succeed!
-      BaseResource.consumeEntity(entity);
-      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
+
+    /**
+     * Parse WBOs straight from the response body, without building a
+     * <code>String</code> per line, and hand them to the delegate.
+     * <p>
+     * Malformed records are reported to the delegate and skipped, just as
+     * <code>WBOCollectionRequestDelegate.handleRequestProgress</code> does for
+     * lines.
+     *
+     * @return true if the body was completely processed; false if the request
+     *         was aborted or failed, in which case the entity has been consumed
+     *         and the delegate notified as appropriate.
+     */
+    protected boolean processRecords(HttpEntity entity, WBOCollectionRequestDelegate delegate) {
+      InputStream content = null;
+      try {
+        content = entity.getContent();
+        WBOStreamParser parser = new WBOStreamParser(content, FETCH_BUFFER_SIZE);
+
+        // This relies on connection timeouts at the HTTP layer.
+        while (!aborting) {
+          CryptoRecord record;
+          try {
+            record = parser.nextRecord();
+          } catch (IOException e) {
+            // The stream failed: there's nothing more to read.
+            throw e;
+          } catch (Exception e) {
+            // This record is bad, but the parser has moved past it.
+            delegate.handleRequestError(e);
+            continue;
+          }
+          if (record == null) {
+            break;
+          }
+          try {
+            delegate.handleRecordProgress(record);
+          } catch (Exception ex) {
+            delegate.handleRequestError(new HandleProgressException(ex));
+            BaseResource.consumeEntity(entity);
+            return false;
+          }
+        }
+        Logger.trace(LOG_TAG, "Parsed " + parser.getRecordCount() + " records; " +
+                              parser.getFallbackCount() + " needed the slow path.");
+        // If we aborted, don't hit the success case.
+        return !aborting;
+      } catch (IOException ex) {
+        if (!aborting) {
+          delegate.handleRequestError(ex);
+        }
+        BaseResource.consumeEntity(entity);
+        return false;
+      } finally {
+        if (content != null) {
+          try {
+            content.close();
+          } catch (IOException e) {
+            // We don't care if this fails.
+          }
+        }
+      }
     }
   }
 }
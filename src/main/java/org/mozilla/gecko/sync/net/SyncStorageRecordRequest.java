@@ -11,7 +11,6 @@ import java.net.URISyntaxException;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.sync.CryptoRecord;
-import org.mozilla.gecko.sync.ThreadPool;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
@@ -119,20 +118,16 @@ public class SyncStorageRecordRequest extends SyncStorageRequest {
   }
 
   public void deferGet() {
-    final SyncStorageRecordRequest self = this;
-    ThreadPool.run(new Runnable() {
-      @Override
-      public void run() {
-        self.get();
-      }});
+    if (!isAsynchronous()) {
+      setDispatcher(HttpDispatcher.getDefault());
+    }
+    this.get();
   }
 
   public void deferPut(final JSONObject body) {
-    final SyncStorageRecordRequest self = this;
-    ThreadPool.run(new Runnable() {
-      @Override
-      public void run() {
-        self.put(body);
-      }});
+    if (!isAsynchronous()) {
+      setDispatcher(HttpDispatcher.getDefault());
+    }
+    this.put(body);
   }
 }
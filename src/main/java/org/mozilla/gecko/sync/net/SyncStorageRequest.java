@@ -131,7 +131,10 @@ public class SyncStorageRequest implements Resource {
 
     @Override
     public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
-      client.getParams().setParameter(CoreProtocolPNames.USER_AGENT, SyncConstants.SYNC_USER_AGENT);
+      super.addHeaders(request, client);
+
+      // The client is shared, so set this on the request.
+      request.getParams().setParameter(CoreProtocolPNames.USER_AGENT, SyncConstants.SYNC_USER_AGENT);
 
       // Clients can use their delegate interface to specify X-If-Unmodified-Since.
       String ifUnmodifiedSince = this.request.delegate.ifUnmodifiedSince();
@@ -158,6 +161,17 @@ public class SyncStorageRequest implements Resource {
     return new SyncStorageResourceDelegate(request);
   }
 
+  /**
+   * Make this request asynchronously. See {@link BaseResource#setDispatcher(HttpDispatcher)}.
+   */
+  public void setDispatcher(HttpDispatcher dispatcher) {
+    this.resource.setDispatcher(dispatcher);
+  }
+
+  public boolean isAsynchronous() {
+    return this.resource.isAsynchronous();
+  }
+
   public void get() {
     this.resource.get();
   }
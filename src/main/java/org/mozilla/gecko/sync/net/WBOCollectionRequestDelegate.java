@@ -25,11 +25,27 @@ implements KeyBundleProvider {
   public void handleRequestProgress(String progress) {
     try {
       CryptoRecord record = CryptoRecord.fromJSONRecord(progress);
+      this.handleRecordProgress(record);
+    } catch (Exception e) {
+      this.handleRequestError(e);
+      // TODO: abort?! Allow exception to propagate to fail?
+    }
+  }
+
+  /**
+   * Handle a record that has already been parsed from the response stream.
+   * <code>SyncStorageCollectionRequest</code> calls this directly, skipping the
+   * line-by-line <code>String</code> path.
+   *
+   * @param record
+   *          the parsed, still-encrypted, record.
+   */
+  public void handleRecordProgress(CryptoRecord record) {
+    try {
       record.keyBundle = this.keyBundle();
       this.handleWBO(record);
     } catch (Exception e) {
       this.handleRequestError(e);
-      // TODO: abort?! Allow exception to propagate to fail?
     }
   }
 }
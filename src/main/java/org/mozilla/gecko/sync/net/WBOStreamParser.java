@@ -0,0 +1,734 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+
+/**
+ * Parse a stream of newline-separated WBOs, as returned by a collection fetch
+ * with <code>Accept: application/newlines</code>, directly into
+ * <code>CryptoRecord</code> instances.
+ * <p>
+ * Each line is scanned in place in a reusable byte buffer. The envelope fields
+ * (id, collection, modified, sortindex, ttl) are read straight from the bytes,
+ * and the escaped payload string is unescaped into a second reusable buffer and
+ * scanned as a flat JSON object. No <code>String</code> is ever built for a
+ * line or for a payload.
+ * <p>
+ * Anything this parser doesn't handle itself -- nested payload values, numbers
+ * it can't convert exactly, escaped keys -- falls back to
+ * {@link CryptoRecord#fromJSONRecord(String)} for that line, so the output is
+ * always identical to the line-by-line path.
+ * <p>
+ * Not thread-safe.
+ */
+public class WBOStreamParser {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;    // 16K bytes.
+
+  private static final byte[] KEY_ID         = asciiBytes("id");
+  private static final byte[] KEY_COLLECTION = asciiBytes("collection");
+  private static final byte[] KEY_PAYLOAD    = asciiBytes("payload");
+  private static final byte[] KEY_MODIFIED   = asciiBytes("modified");
+  private static final byte[] KEY_SORTINDEX  = asciiBytes("sortindex");
+  private static final byte[] KEY_TTL        = asciiBytes("ttl");
+
+  // Doubles can exactly represent integers up to 2^53 and powers of ten up to
+  // 10^22, so a quotient of the two is correctly rounded, just like
+  // Double.parseDouble.
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    double p = 1.0;
+    for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = p;
+      p *= 10.0;
+    }
+  }
+
+  private static byte[] asciiBytes(String s) {
+    byte[] out = new byte[s.length()];
+    for (int i = 0; i < out.length; i++) {
+      out[i] = (byte) s.charAt(i);
+    }
+    return out;
+  }
+
+  /**
+   * Thrown internally when a line needs the slow path. Preallocated and
+   * stackless: it's control flow, not an error.
+   */
+  private static class FallbackException extends Exception {
+    private static final long serialVersionUID = 4530918012497417063L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+  private static final FallbackException FALLBACK = new FallbackException();
+
+  private final InputStream in;
+
+  // Raw input. Unconsumed bytes are in [start, end).
+  private byte[] buffer;
+  private int start = 0;
+  private int end = 0;
+  private boolean eof = false;
+  // Set when a line ended with '\r', so that a following '\n' is swallowed.
+  private boolean skipLF = false;
+
+  // Unescaped payload bytes.
+  private byte[] payloadBuffer;
+  // Scratch space for decoding string values.
+  private char[] chars = new char[64];
+
+  // The region currently being scanned: either a line in buffer, or the
+  // payload in payloadBuffer.
+  private byte[] scan;
+  private int pos;
+  private int limit;
+
+  // Results of the most recent call to readNumber.
+  private long numberLong;
+  private double numberDouble;
+  private boolean numberIsDouble;
+
+  private long recordCount = 0;
+  private long fallbackCount = 0;
+
+  public WBOStreamParser(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public WBOStreamParser(InputStream in, int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive.");
+    }
+    this.in = in;
+    this.buffer = new byte[bufferSize];
+    this.payloadBuffer = new byte[bufferSize];
+  }
+
+  /**
+   * @return the number of lines parsed so far, including those that needed the
+   *         slow path.
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * @return the number of lines that were handed to
+   *         <code>CryptoRecord.fromJSONRecord</code>.
+   */
+  public long getFallbackCount() {
+    return fallbackCount;
+  }
+
+  /**
+   * Read and parse the next line of the stream.
+   * <p>
+   * If the line is malformed, a parse exception or
+   * <code>MalformedWBOException</code> is thrown and the parser is left
+   * positioned at the start of the following line, so the caller can report
+   * the error and keep going.
+   *
+   * @return the next record, or <code>null</code> at the end of the stream.
+   * @throws IOException
+   *           if the underlying stream fails. Never thrown for a bad line.
+   * @throws ParseException
+   * @throws NonObjectJSONException
+   * @throws MalformedWBOException
+   *           if the line is JSON, but not a valid WBO.
+   */
+  public CryptoRecord nextRecord() throws IOException, ParseException, NonObjectJSONException, MalformedWBOException {
+    if (skipLF) {
+      if (start == end && !fill()) {
+        skipLF = false;
+        return null;
+      }
+      if (buffer[start] == '\n') {
+        start++;
+      }
+      skipLF = false;
+    }
+
+    final int lineEnd = findLineEnd();
+    if (lineEnd < 0) {
+      return null;
+    }
+    final int lineStart = start;
+    if (lineEnd < end) {
+      skipLF = buffer[lineEnd] == '\r';
+      start = lineEnd + 1;
+    } else {
+      start = end;
+    }
+
+    recordCount++;
+    try {
+      return parseEnvelope(lineStart, lineEnd);
+    } catch (FallbackException e) {
+      fallbackCount++;
+      return parseLine(lineStart, lineEnd);
+    }
+  }
+
+  /**
+   * Parse a line with <code>CryptoRecord.fromJSONRecord</code>, which throws
+   * all sorts of exceptions for a line that isn't a WBO: missing payloads,
+   * fields of the wrong type.
+   */
+  private CryptoRecord parseLine(int lineStart, int lineEnd) throws ParseException, NonObjectJSONException, MalformedWBOException {
+    try {
+      final String line = new String(buffer, lineStart, lineEnd - lineStart, "UTF-8");
+      return CryptoRecord.fromJSONRecord(line);
+    } catch (ParseException e) {
+      throw e;
+    } catch (NonObjectJSONException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new MalformedWBOException(e);
+    }
+  }
+
+  /**
+   * Find the next line terminator, reading more input as necessary.
+   *
+   * @return the index in <code>buffer</code> of the terminator, or
+   *         <code>end</code> if the stream ends without one, or -1 if there
+   *         is no more input.
+   */
+  private int findLineEnd() throws IOException {
+    int i = start;
+    while (true) {
+      for (; i < end; i++) {
+        final byte b = buffer[i];
+        if (b == '\n' || b == '\r') {
+          return i;
+        }
+      }
+      final int scanned = i - start;
+      if (!fill()) {
+        return (end > start) ? end : -1;
+      }
+      i = start + scanned;
+    }
+  }
+
+  /**
+   * Read more input, compacting or growing the buffer as needed.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, end - start);
+      end -= start;
+      start = 0;
+    }
+    if (end == buffer.length) {
+      final byte[] grown = new byte[buffer.length * 2];
+      System.arraycopy(buffer, 0, grown, 0, end);
+      buffer = grown;
+    }
+    int read;
+    do {
+      read = in.read(buffer, end, buffer.length - end);
+    } while (read == 0);
+    if (read < 0) {
+      eof = true;
+      return false;
+    }
+    end += read;
+    return true;
+  }
+
+  private CryptoRecord parseEnvelope(int lineStart, int lineEnd) throws FallbackException {
+    scan  = buffer;
+    pos   = lineStart;
+    limit = lineEnd;
+
+    String id = null;
+    String collection = null;
+    ExtendedJSONObject payload = null;
+    boolean hasModified = false;
+    long modified = 0;
+    boolean hasSortIndex = false;
+    long sortIndex = 0;
+    boolean hasTTL = false;
+    long ttl = 0;
+
+    skipWhitespace();
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+    } else {
+      while (true) {
+        expect('"');
+        final int keyStart = pos;
+        final int keyEnd = skipKey();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+
+        if (keyEquals(keyStart, keyEnd, KEY_ID)) {
+          expect('"');
+          id = readString();
+        } else if (keyEquals(keyStart, keyEnd, KEY_COLLECTION)) {
+          expect('"');
+          collection = readString();
+        } else if (keyEquals(keyStart, keyEnd, KEY_PAYLOAD)) {
+          expect('"');
+          payload = readPayload();
+        } else if (keyEquals(keyStart, keyEnd, KEY_MODIFIED)) {
+          readNumber();
+          modified = numberIsDouble ? (long) (numberDouble * 1000) : numberLong * 1000;
+          hasModified = true;
+        } else if (keyEquals(keyStart, keyEnd, KEY_SORTINDEX)) {
+          sortIndex = readIntegral();
+          hasSortIndex = true;
+        } else if (keyEquals(keyStart, keyEnd, KEY_TTL)) {
+          ttl = readIntegral();
+          hasTTL = true;
+        } else {
+          skipScalar();
+        }
+
+        skipWhitespace();
+        final byte b = next();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw FALLBACK;
+        }
+        skipWhitespace();
+      }
+    }
+    skipWhitespace();
+    if (pos != limit || payload == null) {
+      throw FALLBACK;
+    }
+
+    CryptoRecord record = new CryptoRecord(payload);
+    record.guid       = id;
+    record.collection = collection;
+    if (hasModified) {
+      record.lastModified = modified;
+    }
+    if (hasSortIndex) {
+      record.sortIndex = sortIndex;
+    }
+    if (hasTTL) {
+      record.ttl = ttl;
+    }
+    return record;
+  }
+
+  /**
+   * Unescape the payload string into <code>payloadBuffer</code> and parse it
+   * as a flat JSON object. On return, scanning resumes in the line.
+   */
+  private ExtendedJSONObject readPayload() throws FallbackException {
+    final int length = unescapeToPayloadBuffer();
+
+    final byte[] savedScan = scan;
+    final int savedPos = pos;
+    final int savedLimit = limit;
+    scan  = payloadBuffer;
+    pos   = 0;
+    limit = length;
+
+    final JSONObject object = new JSONObject();
+    @SuppressWarnings("unchecked")
+    final Map<Object, Object> map = object;
+
+    skipWhitespace();
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+    } else {
+      while (true) {
+        expect('"');
+        final String key = readString();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        map.put(key, readPayloadValue());
+        skipWhitespace();
+        final byte b = next();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw FALLBACK;
+        }
+        skipWhitespace();
+      }
+    }
+    skipWhitespace();
+    if (pos != limit) {
+      throw FALLBACK;
+    }
+
+    scan  = savedScan;
+    pos   = savedPos;
+    limit = savedLimit;
+    return new ExtendedJSONObject(object);
+  }
+
+  /**
+   * @return a value of the same type that json-simple would produce.
+   */
+  private Object readPayloadValue() throws FallbackException {
+    final byte b = peek();
+    switch (b) {
+    case '"':
+      pos++;
+      return readString();
+    case 't':
+      expectLiteral("true");
+      return Boolean.TRUE;
+    case 'f':
+      expectLiteral("false");
+      return Boolean.FALSE;
+    case 'n':
+      expectLiteral("null");
+      return null;
+    default:
+      readNumber();
+      if (numberIsDouble) {
+        return Double.valueOf(numberDouble);
+      }
+      return Long.valueOf(numberLong);
+    }
+  }
+
+  private byte peek() throws FallbackException {
+    if (pos >= limit) {
+      throw FALLBACK;
+    }
+    return scan[pos];
+  }
+
+  private byte next() throws FallbackException {
+    if (pos >= limit) {
+      throw FALLBACK;
+    }
+    return scan[pos++];
+  }
+
+  private void expect(char c) throws FallbackException {
+    if (next() != c) {
+      throw FALLBACK;
+    }
+  }
+
+  private void expectLiteral(String literal) throws FallbackException {
+    for (int i = 0; i < literal.length(); i++) {
+      expect(literal.charAt(i));
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < limit) {
+      final byte b = scan[pos];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  /**
+   * Skip an unescaped key, positioned just after its opening quote.
+   *
+   * @return the index of the closing quote.
+   */
+  private int skipKey() throws FallbackException {
+    while (pos < limit) {
+      final byte b = scan[pos];
+      if (b == '"') {
+        return pos++;
+      }
+      if (b == '\\') {
+        throw FALLBACK;
+      }
+      pos++;
+    }
+    throw FALLBACK;
+  }
+
+  private boolean keyEquals(int keyStart, int keyEnd, byte[] key) {
+    if (keyEnd - keyStart != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (scan[keyStart + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Skip a string, number, or literal value. Nested values need the slow path.
+   */
+  private void skipScalar() throws FallbackException {
+    final byte b = peek();
+    if (b == '{' || b == '[') {
+      throw FALLBACK;
+    }
+    if (b == '"') {
+      pos++;
+      while (true) {
+        final byte c = next();
+        if (c == '"') {
+          return;
+        }
+        if (c == '\\') {
+          next();
+        }
+      }
+    }
+    while (pos < limit) {
+      final byte c = scan[pos];
+      if (c == ',' || c == '}' || c == ' ' || c == '\t') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private void ensureChars(int length) {
+    if (length > chars.length) {
+      final char[] grown = new char[Math.max(length, chars.length * 2)];
+      System.arraycopy(chars, 0, grown, 0, chars.length);
+      chars = grown;
+    }
+  }
+
+  private void ensurePayloadBuffer(int length) {
+    if (length > payloadBuffer.length) {
+      final byte[] grown = new byte[Math.max(length, payloadBuffer.length * 2)];
+      System.arraycopy(payloadBuffer, 0, grown, 0, payloadBuffer.length);
+      payloadBuffer = grown;
+    }
+  }
+
+  private int hexDigit(byte b) throws FallbackException {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    if (b >= 'A' && b <= 'F') {
+      return b - 'A' + 10;
+    }
+    throw FALLBACK;
+  }
+
+  private char readUnicodeEscape() throws FallbackException {
+    if (pos + 4 > limit) {
+      throw FALLBACK;
+    }
+    final int c = (hexDigit(scan[pos])     << 12) |
+                  (hexDigit(scan[pos + 1]) << 8)  |
+                  (hexDigit(scan[pos + 2]) << 4)  |
+                   hexDigit(scan[pos + 3]);
+    pos += 4;
+    return (char) c;
+  }
+
+  private char unescape(byte b) throws FallbackException {
+    switch (b) {
+    case '"':
+    case '\\':
+    case '/':
+      return (char) b;
+    case 'b':
+      return '\b';
+    case 'f':
+      return '\f';
+    case 'n':
+      return '\n';
+    case 'r':
+      return '\r';
+    case 't':
+      return '\t';
+    case 'u':
+      return readUnicodeEscape();
+    default:
+      throw FALLBACK;
+    }
+  }
+
+  private int continuation() throws FallbackException {
+    final byte b = next();
+    if ((b & 0xC0) != 0x80) {
+      throw FALLBACK;
+    }
+    return b & 0x3F;
+  }
+
+  /**
+   * Decode a string value, positioned just after its opening quote, from
+   * escaped UTF-8.
+   */
+  private String readString() throws FallbackException {
+    int n = 0;
+    while (true) {
+      ensureChars(n + 2);
+      final byte b = next();
+      if (b == '"') {
+        return new String(chars, 0, n);
+      }
+      if (b == '\\') {
+        chars[n++] = unescape(next());
+      } else if (b >= 0) {
+        chars[n++] = (char) b;
+      } else if ((b & 0xE0) == 0xC0) {
+        chars[n++] = (char) (((b & 0x1F) << 6) | continuation());
+      } else if ((b & 0xF0) == 0xE0) {
+        final int c1 = continuation();
+        chars[n++] = (char) (((b & 0x0F) << 12) | (c1 << 6) | continuation());
+      } else if ((b & 0xF8) == 0xF0) {
+        final int c1 = continuation();
+        final int c2 = continuation();
+        final int codePoint = ((b & 0x07) << 18) | (c1 << 12) | (c2 << 6) | continuation();
+        n += Character.toChars(codePoint, chars, n);
+      } else {
+        throw FALLBACK;
+      }
+    }
+  }
+
+  /**
+   * Unescape a string value, positioned just after its opening quote, into
+   * UTF-8 bytes in <code>payloadBuffer</code>.
+   *
+   * @return the number of bytes written.
+   */
+  private int unescapeToPayloadBuffer() throws FallbackException {
+    int n = 0;
+    while (true) {
+      ensurePayloadBuffer(n + 4);
+      final byte b = next();
+      if (b == '"') {
+        return n;
+      }
+      if (b != '\\') {
+        payloadBuffer[n++] = b;
+        continue;
+      }
+      final byte e = next();
+      if (e != 'u') {
+        payloadBuffer[n++] = (byte) unescape(e);
+        continue;
+      }
+      int c = readUnicodeEscape();
+      if (Character.isHighSurrogate((char) c)) {
+        if (next() != '\\' || next() != 'u') {
+          throw FALLBACK;
+        }
+        final char low = readUnicodeEscape();
+        if (!Character.isLowSurrogate(low)) {
+          throw FALLBACK;
+        }
+        c = Character.toCodePoint((char) c, low);
+      } else if (Character.isLowSurrogate((char) c)) {
+        throw FALLBACK;
+      }
+      if (c < 0x80) {
+        payloadBuffer[n++] = (byte) c;
+      } else if (c < 0x800) {
+        payloadBuffer[n++] = (byte) (0xC0 | (c >> 6));
+        payloadBuffer[n++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c < 0x10000) {
+        payloadBuffer[n++] = (byte) (0xE0 | (c >> 12));
+        payloadBuffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        payloadBuffer[n++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        payloadBuffer[n++] = (byte) (0xF0 | (c >> 18));
+        payloadBuffer[n++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+        payloadBuffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        payloadBuffer[n++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private long readIntegral() throws FallbackException {
+    readNumber();
+    if (numberIsDouble) {
+      // json-simple would hand back a Double, which the slow path rejects.
+      throw FALLBACK;
+    }
+    return numberLong;
+  }
+
+  /**
+   * Parse a JSON number into <code>numberLong</code> or
+   * <code>numberDouble</code>, as json-simple would produce a Long or a Double.
+   */
+  private void readNumber() throws FallbackException {
+    boolean negative = false;
+    if (peek() == '-') {
+      negative = true;
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = 0;
+    boolean fraction = false;
+    while (pos < limit) {
+      final byte b = scan[pos];
+      if (b >= '0' && b <= '9') {
+        if (++digits > 18) {
+          throw FALLBACK;
+        }
+        mantissa = mantissa * 10 + (b - '0');
+        if (fraction) {
+          fractionDigits++;
+        }
+      } else if (b == '.' && !fraction) {
+        fraction = true;
+      } else if (b == 'e' || b == 'E') {
+        throw FALLBACK;
+      } else {
+        break;
+      }
+      pos++;
+    }
+    if (digits == 0 || (fraction && fractionDigits == 0)) {
+      throw FALLBACK;
+    }
+    if (!fraction) {
+      numberIsDouble = false;
+      numberLong = negative ? -mantissa : mantissa;
+      return;
+    }
+    if (mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+      throw FALLBACK;
+    }
+    final double value = mantissa / POWERS_OF_TEN[fractionDigits];
+    numberIsDouble = true;
+    numberDouble = negative ? -value : value;
+  }
+}
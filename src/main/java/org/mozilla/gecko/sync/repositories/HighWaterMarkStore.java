@@ -0,0 +1,30 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+/**
+ * Remembers how far a paged fetch got, so that an interrupted fetch can resume
+ * where it left off rather than starting again from the beginning.
+ * <p>
+ * A high-water mark is only meaningful to a fetch starting from the same
+ * timestamp as the fetch that recorded it.
+ */
+public interface HighWaterMarkStore {
+  /**
+   * @param since
+   *          the timestamp from which a fetch is starting.
+   * @return the high-water mark recorded by an earlier fetch starting from
+   *         <code>since</code>, or -1 if there is none.
+   */
+  public long getHighWaterMark(long since);
+
+  /**
+   * Record that every record modified after <code>since</code> and no later
+   * than <code>highWaterMark</code> has been fetched and stored.
+   */
+  public void setHighWaterMark(long since, long highWaterMark);
+
+  public void clearHighWaterMark();
+}
@@ -0,0 +1,325 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * A <code>StoreTracker</code> that packs each standard Sync GUID -- twelve
+ * base64url characters, or 72 bits -- into a <code>long</code> and an
+ * <code>int</code> in an open-addressed table, rather than keeping a
+ * <code>String</code> and a hash set entry per GUID.
+ * <p>
+ * Any other GUID is tracked by a <code>HashSetStoreTracker</code>.
+ * <p>
+ * Writes are synchronized. Lookups of standard GUIDs, which a fetch makes for
+ * every record, take no lock: they read a version number before and after
+ * probing, and retry under the lock only if a write intervened.
+ */
+public class PackedGuidStoreTracker implements StoreTracker {
+  public static final int GUID_LENGTH = 12;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Tail values. A stored tail is the packed last two characters plus one.
+  private static final int EMPTY = 0;
+  private static final int TOMBSTONE = -1;
+
+  private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  // Maps characters to their 6-bit value, or -1.
+  private static final byte[] VALUES = new byte[128];
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length(); i++) {
+      VALUES[ALPHABET.charAt(i)] = (byte) i;
+    }
+  }
+
+  /**
+   * One generation of the table. Writers publish a new one to grow or to
+   * drop tombstones, and never modify a table after replacing it.
+   */
+  protected static class Table {
+    // The first ten characters, six bits each.
+    public final AtomicLongArray heads;
+    // The last two characters, plus one; or EMPTY or TOMBSTONE.
+    public final AtomicIntegerArray tails;
+    public final int mask;
+
+    public Table(int capacity) {
+      heads = new AtomicLongArray(capacity);
+      tails = new AtomicIntegerArray(capacity);
+      mask = capacity - 1;
+    }
+
+    public int capacity() {
+      return mask + 1;
+    }
+
+    /**
+     * @return the slot holding the GUID, or -1.
+     */
+    public int find(long head, int tail) {
+      int slot = slotFor(head, tail, mask);
+      // Bounded, so that a reader racing a writer can't spin forever.
+      for (int i = 0; i <= mask; i++) {
+        final int t = tails.get(slot);
+        if (t == EMPTY) {
+          return -1;
+        }
+        if (t == tail && heads.get(slot) == head) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Put a GUID known not to be present in the first free slot.
+     *
+     * @return true if a tombstone was reused.
+     */
+    public boolean insert(long head, int tail) {
+      int slot = slotFor(head, tail, mask);
+      while (true) {
+        final int t = tails.get(slot);
+        if (t == EMPTY || t == TOMBSTONE) {
+          heads.set(slot, head);
+          tails.set(slot, tail);
+          return t == TOMBSTONE;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+  }
+
+  protected static int slotFor(long head, int tail, int mask) {
+    long h = (head ^ tail) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * @return the first ten characters of a standard GUID packed into a long,
+   *         or -1 if the GUID isn't standard.
+   */
+  protected static long packHead(String guid) {
+    if (guid.length() != GUID_LENGTH) {
+      return -1;
+    }
+    long head = 0;
+    for (int i = 0; i < GUID_LENGTH - 2; i++) {
+      final int value = valueOf(guid.charAt(i));
+      if (value < 0) {
+        return -1;
+      }
+      head = (head << 6) | value;
+    }
+    return head;
+  }
+
+  protected static int valueOf(char c) {
+    return (c < VALUES.length) ? VALUES[c] : -1;
+  }
+
+  /**
+   * @return the last two characters of a standard GUID, packed and offset
+   *         so as never to be EMPTY, or -1 if the GUID isn't standard.
+   */
+  protected static int packTail(String guid) {
+    final int a = valueOf(guid.charAt(GUID_LENGTH - 2));
+    final int b = valueOf(guid.charAt(GUID_LENGTH - 1));
+    if (a < 0 || b < 0) {
+      return -1;
+    }
+    return ((a << 6) | b) + 1;
+  }
+
+  protected static String unpack(long head, int tail) {
+    final char[] chars = new char[GUID_LENGTH];
+    for (int i = GUID_LENGTH - 3; i >= 0; i--) {
+      chars[i] = ALPHABET.charAt((int) (head & 0x3F));
+      head >>>= 6;
+    }
+    tail -= 1;
+    chars[GUID_LENGTH - 2] = ALPHABET.charAt((tail >>> 6) & 0x3F);
+    chars[GUID_LENGTH - 1] = ALPHABET.charAt(tail & 0x3F);
+    return new String(chars);
+  }
+
+  // Odd while a write is in progress. Written only while holding `this`.
+  private volatile int version = 0;
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+
+  // Guarded by `this`.
+  private int size = 0;
+  private int tombstones = 0;
+
+  private final HashSetStoreTracker others = new HashSetStoreTracker();
+  private volatile int otherCount = 0;
+
+  @Override
+  public String toString() {
+    return "#<Tracker: " + (size + otherCount) + " guids tracked.>";
+  }
+
+  protected void beginWrite() {
+    version++;
+  }
+
+  protected void endWrite() {
+    version++;
+  }
+
+  @Override
+  public boolean trackRecordForExclusion(String guid) {
+    if (guid == null) {
+      return false;
+    }
+    final long head = packHead(guid);
+    final int tail = (head < 0) ? -1 : packTail(guid);
+    synchronized (this) {
+      if (tail < 0) {
+        final boolean added = others.trackRecordForExclusion(guid);
+        if (added) {
+          otherCount++;
+        }
+        return added;
+      }
+      if (table.find(head, tail) >= 0) {
+        return false;
+      }
+      beginWrite();
+      try {
+        if ((size + tombstones + 1) * 4 > table.capacity() * 3) {
+          // Grow only if live entries fill half the table; otherwise just
+          // drop tombstones.
+          final int capacity = ((size + 1) * 2 > table.capacity()) ? table.capacity() * 2 : table.capacity();
+          table = rebuild(capacity);
+          tombstones = 0;
+        }
+        if (table.insert(head, tail)) {
+          tombstones--;
+        }
+        size++;
+      } finally {
+        endWrite();
+      }
+      return true;
+    }
+  }
+
+  // Must be called with `this` held.
+  protected Table rebuild(int capacity) {
+    final Table old = table;
+    final Table rebuilt = new Table(capacity);
+    for (int i = 0; i < old.capacity(); i++) {
+      final int tail = old.tails.get(i);
+      if (tail != EMPTY && tail != TOMBSTONE) {
+        rebuilt.insert(old.heads.get(i), tail);
+      }
+    }
+    return rebuilt;
+  }
+
+  @Override
+  public boolean isTrackedForExclusion(String guid) {
+    if (guid == null) {
+      return false;
+    }
+    final long head = packHead(guid);
+    final int tail = (head < 0) ? -1 : packTail(guid);
+    if (tail < 0) {
+      return (otherCount > 0) && others.isTrackedForExclusion(guid);
+    }
+
+    final int before = version;
+    if ((before & 1) == 0) {
+      final boolean found = table.find(head, tail) >= 0;
+      if (version == before) {
+        return found;
+      }
+    }
+    synchronized (this) {
+      return table.find(head, tail) >= 0;
+    }
+  }
+
+  @Override
+  public boolean untrackStoredForExclusion(String guid) {
+    if (guid == null) {
+      return false;
+    }
+    final long head = packHead(guid);
+    final int tail = (head < 0) ? -1 : packTail(guid);
+    synchronized (this) {
+      if (tail < 0) {
+        final boolean removed = others.untrackStoredForExclusion(guid);
+        if (removed) {
+          otherCount--;
+        }
+        return removed;
+      }
+      final int slot = table.find(head, tail);
+      if (slot < 0) {
+        return false;
+      }
+      beginWrite();
+      try {
+        table.tails.set(slot, TOMBSTONE);
+        size--;
+        tombstones++;
+      } finally {
+        endWrite();
+      }
+      return true;
+    }
+  }
+
+  public synchronized int size() {
+    return size + otherCount;
+  }
+
+  @Override
+  public RecordFilter getFilter() {
+    if (size() == 0) {
+      return null;
+    }
+    return new RecordFilter() {
+      @Override
+      public boolean excludeRecord(Record r) {
+        return isTrackedForExclusion(r.guid);
+      }
+    };
+  }
+
+  /**
+   * @return an iterator over a snapshot of the tracked GUIDs.
+   */
+  @Override
+  public synchronized Iterator<String> recordsTrackedForExclusion() {
+    final ArrayList<String> guids = new ArrayList<String>(size + otherCount);
+    final Table current = table;
+    for (int i = 0; i < current.capacity(); i++) {
+      final int tail = current.tails.get(i);
+      if (tail != EMPTY && tail != TOMBSTONE) {
+        guids.add(unpack(current.heads.get(i), tail));
+      }
+    }
+    final Iterator<String> it = others.recordsTrackedForExclusion();
+    while (it.hasNext()) {
+      guids.add(it.next());
+    }
+    return guids.iterator();
+  }
+}
@@ -0,0 +1,72 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.net.URISyntaxException;
+
+import org.mozilla.gecko.sync.CredentialsSource;
+
+/**
+ * A kind of Server11Repository that fetches in fixed-size pages, and can
+ * persist how far it got so that an interrupted fetch resumes rather than
+ * starting over.
+ * <p>
+ * Alternatively, it can fetch pages in a given sort order, such as "index",
+ * by offset. Offsets don't survive changes to the collection, so such
+ * fetches can't resume.
+ *
+ * @see Server11RepositorySession.PagedFetch
+ */
+public class PagedServer11Repository extends Server11Repository {
+
+  private long pageSize;
+  private HighWaterMarkStore highWaterMarkStore;
+  private String sort;
+
+  /**
+   * @param pageSize
+   *          maximum number of records to fetch in each request.
+   * @param highWaterMarkStore
+   *          where to persist fetch progress; may be null.
+   */
+  public PagedServer11Repository(String serverURI, String username, String collection, CredentialsSource credentialsSource, long pageSize, HighWaterMarkStore highWaterMarkStore) throws URISyntaxException {
+    super(serverURI, username, collection, credentialsSource);
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive.");
+    }
+
+    this.pageSize           = pageSize;
+    this.highWaterMarkStore = highWaterMarkStore;
+  }
+
+  /**
+   * @param pageSize
+   *          maximum number of records to fetch in each request.
+   * @param sort
+   *          the order in which to fetch pages, by offset.
+   */
+  public PagedServer11Repository(String serverURI, String username, String collection, CredentialsSource credentialsSource, long pageSize, String sort) throws URISyntaxException {
+    this(serverURI, username, collection, credentialsSource, pageSize, (HighWaterMarkStore) null);
+    if (sort == null) {
+      throw new IllegalArgumentException("sort must not be null.");
+    }
+    this.sort = sort;
+  }
+
+  @Override
+  protected String getDefaultSort() {
+    return sort;
+  }
+
+  @Override
+  protected long getDefaultPageSize() {
+    return pageSize;
+  }
+
+  @Override
+  protected HighWaterMarkStore getHighWaterMarkStore() {
+    return highWaterMarkStore;
+  }
+}
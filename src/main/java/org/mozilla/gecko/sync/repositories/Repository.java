@@ -15,4 +15,19 @@ public abstract class Repository {
   public void clean(boolean success, RepositorySessionCleanDelegate delegate, Context context) {
     delegate.onCleaned(this);
   }
+
+  /**
+   * Whether a session's <code>fetchSince(timestamp)</code> might return any
+   * records, checked without beginning a session. Used to skip syncing engines
+   * with nothing to upload, so implementations must answer true when unsure.
+   * <p>
+   * Blocks; don't call on the main thread.
+   *
+   * @param timestamp
+   *          the timestamp a fetch would start from.
+   * @return false only if nothing has changed since <code>timestamp</code>.
+   */
+  public boolean hasChangesSince(long timestamp, Context context) {
+    return true;
+  }
 }
\ No newline at end of file
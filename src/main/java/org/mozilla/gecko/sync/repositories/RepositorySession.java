@@ -9,8 +9,13 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -67,11 +72,18 @@ public abstract class RepositorySession {
    * This includes actual store work, and also the consequences of storeDone.
    * This provides strict ordering.
    */
-  protected ExecutorService storeWorkQueue = Executors.newSingleThreadExecutor();
+  protected ExecutorService storeWorkQueue = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                                    new LinkedBlockingQueue<Runnable>());
 
   // The time that the last sync on this collection completed, in milliseconds since epoch.
   public long lastSyncTimestamp;
 
+  /**
+   * Where to count and time the work this session does. Sessions used outside
+   * a sync record into a private instance that nobody reads.
+   */
+  protected StageMetrics metrics = new StageMetrics(null);
+
   public static long now() {
     return System.currentTimeMillis();
   }
@@ -115,6 +127,72 @@ public abstract class RepositorySession {
   }
   public abstract void store(Record record) throws NoStoreDelegateException;
 
+  /**
+   * Get the number of store jobs queued but not yet started. Callers feeding
+   * records into <code>store</code> faster than they can be applied can use
+   * this to throttle themselves.
+   *
+   * @return number of pending store jobs, or 0 if unknown.
+   */
+  public int getStoreBacklog() {
+    if (storeWorkQueue instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) storeWorkQueue).getQueue().size();
+    }
+    return 0;
+  }
+
+  /**
+   * Run <code>command</code> once every record passed to <code>store</code>
+   * so far has been applied.
+   * <p>
+   * If this session is no longer accepting store work, <code>command</code>
+   * is never run.
+   */
+  public void afterPendingStores(Runnable command) {
+    try {
+      storeWorkQueue.execute(command);
+    } catch (RejectedExecutionException e) {
+      Logger.debug(LOG_TAG, "Store work queue is shut down; dropping afterPendingStores command.");
+    }
+  }
+
+  /**
+   * Whether this session can resume an interrupted fetch, and so wants to hear
+   * about stored records through <code>fetchedRecordsStored</code>. By
+   * default, no: reporting progress costs the consumer a wait for its pending
+   * stores.
+   */
+  public boolean supportsResume() {
+    return false;
+  }
+
+  /**
+   * Called by the consumer of this session's fetched records once the first
+   * <code>count</code> records this session delivered have been stored.
+   * Sessions that can resume an interrupted fetch use this to record their
+   * progress; by default, do nothing.
+   *
+   * @param count
+   *          number of fetched records, in the order they were delivered, that
+   *          have been stored.
+   */
+  public void fetchedRecordsStored(long count) {
+  }
+
+  public StageMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Record this session's work in <code>metrics</code>. Call before beginning.
+   */
+  public void setMetrics(StageMetrics metrics) {
+    if (metrics == null) {
+      throw new IllegalArgumentException("metrics must not be null.");
+    }
+    this.metrics = metrics;
+  }
+
   public void storeDone() {
     // Our default behavior will be to assume that the Runnable is
     // executed as soon as all the stores synchronously finish, so
@@ -30,6 +30,26 @@ public class Server11Repository extends Repository {
   public CredentialsSource credentialsSource;
   public static final String VERSION_PATH_FRAGMENT = "1.1/";
 
+  public static final int  DEFAULT_UPLOAD_ITEM_THRESHOLD = 50;
+  public static final long DEFAULT_UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
+
+  /**
+   * Maximum number of records to upload in a single POST. The server rejects
+   * POSTs of more than 100 records.
+   */
+  public int uploadItemThreshold = DEFAULT_UPLOAD_ITEM_THRESHOLD;
+
+  /**
+   * Maximum size in bytes of the body of a single POST.
+   */
+  public long uploadByteThreshold = DEFAULT_UPLOAD_BYTE_THRESHOLD;
+
+  /**
+   * Number of POSTs a session may have in flight at once. If 1, batches are
+   * uploaded one after another on the session's store work queue.
+   */
+  public int maxConcurrentUploads = 1;
+
   /**
    *
    * @param serverURI
@@ -61,6 +81,14 @@ public class Server11Repository extends Repository {
   }
 
   public URI collectionURI(boolean full, long newer, long limit, String sort, String ids) throws URISyntaxException {
+    return collectionURI(full, newer, -1, limit, sort, ids);
+  }
+
+  public URI collectionURI(boolean full, long newer, long older, long limit, String sort, String ids) throws URISyntaxException {
+    return collectionURI(full, newer, older, limit, -1, sort, ids);
+  }
+
+  public URI collectionURI(boolean full, long newer, long older, long limit, long offset, String sort, String ids) throws URISyntaxException {
     ArrayList<String> params = new ArrayList<String>();
     if (full) {
       params.add("full=1");
@@ -70,9 +98,16 @@ public class Server11Repository extends Repository {
       String newerString = Utils.millisecondsToDecimalSecondsString(newer);
       params.add("newer=" + newerString);
     }
+    if (older >= 0) {
+      String olderString = Utils.millisecondsToDecimalSecondsString(older);
+      params.add("older=" + olderString);
+    }
     if (limit > 0) {
       params.add("limit=" + limit);
     }
+    if (offset > 0) {
+      params.add("offset=" + offset);
+    }
     if (sort != null) {
       params.add("sort=" + sort);       // We trust these values.
     }
@@ -106,4 +141,20 @@ public class Server11Repository extends Repository {
   protected String getDefaultSort() {
     return null;
   }
+
+  /**
+   * If positive, <code>fetchSince</code> walks the collection in pages of
+   * this many records, rather than issuing a single request: oldest first,
+   * or, if there's a default sort, in that order by offset.
+   */
+  protected long getDefaultPageSize() {
+    return -1;
+  }
+
+  /**
+   * Where a paged fetch persists its progress, or null to not persist it.
+   */
+  protected HighWaterMarkStore getHighWaterMarkStore() {
+    return null;
+  }
 }
@@ -12,7 +12,14 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -24,7 +31,9 @@ import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.Server11PreviousPostFailedException;
 import org.mozilla.gecko.sync.Server11RecordPostFailedException;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.HttpDispatcher;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
@@ -32,6 +41,7 @@ import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
@@ -39,6 +49,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import ch.boye.httpclientandroidlib.entity.ContentProducer;
 import ch.boye.httpclientandroidlib.entity.EntityTemplate;
+import ch.boye.httpclientandroidlib.util.ByteArrayBuffer;
 
 public class Server11RepositorySession extends RepositorySession {
   private static byte[] recordsStart;
@@ -57,8 +68,6 @@ public class Server11RepositorySession extends RepositorySession {
 
   public static final String LOG_TAG = "Server11Session";
 
-  private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
-  private static final int UPLOAD_ITEM_THRESHOLD = 50;
   private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
   // {}, newlines, but we get to skip one record overhead.
   private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
@@ -103,6 +112,17 @@ public class Server11RepositorySession extends RepositorySession {
       request.abort();
     }
     pending.clear();
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+    }
+  }
+
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    super.finish(delegate);
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdown();
+    }
   }
 
   /**
@@ -114,7 +134,7 @@ public class Server11RepositorySession extends RepositorySession {
    */
   public class RequestFetchDelegateAdapter extends WBOCollectionRequestDelegate {
     RepositorySessionFetchRecordsDelegate delegate;
-    private DelayedWorkTracker workTracker = new DelayedWorkTracker();
+    protected DelayedWorkTracker workTracker = new DelayedWorkTracker();
 
     // So that we can clean up.
     private SyncStorageCollectionRequest request;
@@ -122,7 +142,7 @@ public class Server11RepositorySession extends RepositorySession {
     public void setRequest(SyncStorageCollectionRequest request) {
       this.request = request;
     }
-    private void removeRequestFromPending() {
+    protected void removeRequestFromPending() {
       if (this.request == null) {
         return;
       }
@@ -223,6 +243,19 @@ public class Server11RepositorySession extends RepositorySession {
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+    if (serverRepository != null) {
+      uploadItemThreshold = serverRepository.uploadItemThreshold;
+      uploadByteThreshold = serverRepository.uploadByteThreshold;
+      maxConcurrentUploads = Math.max(1, serverRepository.maxConcurrentUploads);
+    }
+    if (maxConcurrentUploads > 1) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads,
+                                                           UPLOAD_THREAD_KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                                                           new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+      uploadExecutor = executor;
+      uploadPermits = new Semaphore(maxConcurrentUploads);
+    }
   }
 
   private String flattenIDs(String[] guids) {
@@ -258,8 +291,21 @@ public class Server11RepositorySession extends RepositorySession {
                                          throws URISyntaxException {
 
     URI collectionURI = serverRepository.collectionURI(full, newer, limit, sort, ids);
+    fetchURI(collectionURI, delegate);
+  }
+
+  protected void fetchURI(URI collectionURI, RequestFetchDelegateAdapter delegate) {
+    fetchURI(collectionURI, delegate, null);
+  }
+
+  /**
+   * @param dispatcher
+   *          if non-null, make the request asynchronously on this dispatcher.
+   */
+  protected void fetchURI(URI collectionURI, RequestFetchDelegateAdapter delegate, HttpDispatcher dispatcher) {
     SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(collectionURI);
     request.delegate = delegate;
+    request.setDispatcher(dispatcher);
 
     // So it can clean up.
     delegate.setRequest(request);
@@ -278,6 +324,13 @@ public class Server11RepositorySession extends RepositorySession {
   @Override
   public void fetchSince(long timestamp,
                          RepositorySessionFetchRecordsDelegate delegate) {
+    long pageSize = serverRepository.getDefaultPageSize();
+    if (pageSize > 0) {
+      PagedFetch fetch = new PagedFetch(timestamp, pageSize, serverRepository.getDefaultSort(), serverRepository.getHighWaterMarkStore(), delegate);
+      pagedFetch = fetch;
+      fetch.start();
+      return;
+    }
     try {
       long limit = serverRepository.getDefaultFetchLimit();
       String sort = serverRepository.getDefaultSort();
@@ -292,6 +345,253 @@ public class Server11RepositorySession extends RepositorySession {
     this.fetchSince(-1, delegate);
   }
 
+  /**
+   * The paged fetch in progress, if any.
+   */
+  protected volatile PagedFetch pagedFetch;
+
+  /**
+   * Only paged fetches in timestamp order with somewhere to persist their
+   * progress can resume.
+   */
+  @Override
+  public boolean supportsResume() {
+    return serverRepository.getDefaultPageSize() > 0 &&
+           serverRepository.getDefaultSort() == null &&
+           serverRepository.getHighWaterMarkStore() != null;
+  }
+
+  @Override
+  public void fetchedRecordsStored(long count) {
+    final PagedFetch fetch = pagedFetch;
+    if (fetch != null) {
+      fetch.recordsStored(count);
+    }
+  }
+
+  /**
+   * Walk a collection oldest first in pages of at most <code>pageSize</code>
+   * records, handing each page's records to the delegate as it arrives, and
+   * calling <code>onFetchCompleted</code> after the first short page.
+   * <p>
+   * A page ending at timestamp T might not include every record modified at
+   * T, so the next page asks for records newer than just before T, skipping
+   * those at T that were already delivered. If more than a page's worth of
+   * records share a timestamp, they are fetched in a single request.
+   * <p>
+   * Every record modified no later than the end of a page has been delivered
+   * once the page is done. When the consumer reports that those records have
+   * been stored, we persist the page's high-water mark, and a later fetch from
+   * the same timestamp resumes from there.
+   * <p>
+   * Given a <code>sort</code>, pages are instead fetched in that order by
+   * offset, with no high-water mark. Pages after the first are made with
+   * X-If-Unmodified-Since set to the time of the first, so that if the
+   * collection changes, shifting records between pages, the fetch fails
+   * rather than skipping records.
+   */
+  public class PagedFetch {
+    protected final long since;
+    protected final long pageSize;
+    protected final String sort;
+    protected final HighWaterMarkStore highWaterMarkStore;
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+
+    // Pages are fetched one after another, so these are only touched by the
+    // thread fetching the current page.
+    protected long newer;
+    protected long boundary = -1;            // Modified time of the last delivered record.
+    protected final Set<String> boundaryGuids = new HashSet<String>();
+    protected long delivered = 0;
+    protected int pages = 0;
+    protected long firstPageTimestamp = -1;  // Only for fetches by offset.
+
+    // {records delivered through the end of a page, that page's high-water mark}.
+    // Access should be synchronized on this list.
+    protected final LinkedList<long[]> checkpoints = new LinkedList<long[]>();
+
+    public PagedFetch(long since, long pageSize, HighWaterMarkStore highWaterMarkStore, RepositorySessionFetchRecordsDelegate delegate) {
+      this(since, pageSize, null, highWaterMarkStore, delegate);
+    }
+
+    /**
+     * @param sort
+     *          if non-null, fetch pages in this order by offset, without a
+     *          high-water mark.
+     */
+    public PagedFetch(long since, long pageSize, String sort, HighWaterMarkStore highWaterMarkStore, RepositorySessionFetchRecordsDelegate delegate) {
+      this.since = since;
+      this.pageSize = pageSize;
+      this.sort = sort;
+      this.highWaterMarkStore = (sort == null) ? highWaterMarkStore : null;
+      this.delegate = delegate;
+      this.newer = since;
+    }
+
+    public void start() {
+      if (highWaterMarkStore != null) {
+        final long mark = highWaterMarkStore.getHighWaterMark(since);
+        if (mark > since) {
+          Logger.info(LOG_TAG, "Resuming paged fetch since " + since + " from high-water mark " + mark + ".");
+          newer = mark;
+        }
+      }
+      fetchPage(false, null);
+    }
+
+    /**
+     * @param cluster
+     *          if true, fetch every record modified at <code>boundary</code>;
+     *          otherwise, fetch the next page.
+     * @param dispatcher
+     *          if non-null, fetch asynchronously on this dispatcher.
+     */
+    protected void fetchPage(boolean cluster, HttpDispatcher dispatcher) {
+      if (!isActive()) {
+        delegate.onFetchFailed(new InactiveSessionException(null), null);
+        return;
+      }
+      final URI uri;
+      try {
+        if (sort != null) {
+          uri = serverRepository.collectionURI(true, since, -1, pageSize, delivered, sort, null);
+        } else if (cluster) {
+          uri = serverRepository.collectionURI(true, boundary - 1, boundary + 1, -1, "oldest", null);
+        } else {
+          uri = serverRepository.collectionURI(true, newer, -1, pageSize, "oldest", null);
+        }
+      } catch (URISyntaxException e) {
+        delegate.onFetchFailed(e, null);
+        return;
+      }
+      fetchURI(uri, new PageFetchDelegateAdapter(cluster), dispatcher);
+    }
+
+    /**
+     * Called from the previous page's callbacks, so don't make the request on
+     * this thread.
+     */
+    protected void fetchNextPage(final boolean cluster) {
+      fetchPage(cluster, HttpDispatcher.getDefault());
+    }
+
+    protected void pageFetched(boolean cluster, int received, int fresh, long normalizedTimestamp) {
+      pages++;
+      if (sort != null) {
+        if (firstPageTimestamp < 0) {
+          firstPageTimestamp = normalizedTimestamp;
+        }
+        if (received < pageSize) {
+          Logger.debug(LOG_TAG, "Paged fetch by " + sort + " done after " + pages + " pages and " + delivered + " records.");
+          // Nothing has changed since the first page.
+          delegate.onFetchCompleted(firstPageTimestamp);
+          return;
+        }
+        fetchNextPage(false);
+        return;
+      }
+
+      if (!cluster && received < pageSize) {
+        Logger.debug(LOG_TAG, "Paged fetch done after " + pages + " pages and " + delivered + " records.");
+        delegate.onFetchCompleted(normalizedTimestamp);
+        return;
+      }
+
+      if (cluster) {
+        // Everything at the boundary has now been delivered.
+        newer = boundary;
+      } else if (fresh == 0) {
+        // A whole page of records we've already seen, all sharing a timestamp.
+        Logger.debug(LOG_TAG, "More than " + pageSize + " records modified at " + boundary + ". Fetching them together.");
+        fetchNextPage(true);
+        return;
+      } else {
+        newer = boundary - 1;
+      }
+
+      synchronized (checkpoints) {
+        checkpoints.add(new long[] { delivered, newer });
+      }
+      fetchNextPage(false);
+    }
+
+    /**
+     * The first <code>count</code> delivered records have been stored: persist
+     * the high-water mark of the last page they cover.
+     */
+    public void recordsStored(long count) {
+      if (highWaterMarkStore == null) {
+        return;
+      }
+      long mark = -1;
+      synchronized (checkpoints) {
+        while (!checkpoints.isEmpty() && checkpoints.getFirst()[0] <= count) {
+          mark = checkpoints.removeFirst()[1];
+        }
+      }
+      if (mark > since) {
+        highWaterMarkStore.setHighWaterMark(since, mark);
+      }
+    }
+
+    public class PageFetchDelegateAdapter extends RequestFetchDelegateAdapter {
+      protected final boolean cluster;
+      protected int received = 0;
+      protected int fresh = 0;
+
+      public PageFetchDelegateAdapter(boolean cluster) {
+        super(PagedFetch.this.delegate);
+        this.cluster = cluster;
+      }
+
+      @Override
+      public String ifUnmodifiedSince() {
+        if (firstPageTimestamp < 0) {
+          return null;
+        }
+        return Utils.millisecondsToDecimalSecondsString(firstPageTimestamp);
+      }
+
+      @Override
+      public void handleWBO(CryptoRecord record) {
+        received++;
+        if (sort != null) {
+          fresh++;
+          delivered++;
+          super.handleWBO(record);
+          return;
+        }
+        if (record.lastModified == boundary) {
+          if (!boundaryGuids.add(record.guid)) {
+            // Already delivered by the previous page.
+            return;
+          }
+        } else {
+          boundary = record.lastModified;
+          boundaryGuids.clear();
+          boundaryGuids.add(record.guid);
+        }
+        fresh++;
+        delivered++;
+        super.handleWBO(record);
+      }
+
+      @Override
+      public void handleRequestSuccess(SyncStorageResponse response) {
+        removeRequestFromPending();
+        final long normalizedTimestamp = getNormalizedTimestamp(response);
+        Logger.debug(LOG_TAG, "Fetched page of " + received + " records (" + fresh + " new). Timestamp is " + normalizedTimestamp);
+
+        workTracker.delayWorkItem(new Runnable() {
+          @Override
+          public void run() {
+            pageFetched(cluster, received, fresh, normalizedTimestamp);
+          }
+        });
+      }
+    }
+  }
+
   @Override
   public void fetch(String[] guids,
                     RepositorySessionFetchRecordsDelegate delegate) {
@@ -316,14 +616,16 @@ public class Server11RepositorySession extends RepositorySession {
   protected Object recordsBufferMonitor = new Object();
 
   /**
-   * Data of outbound records.
+   * Body of the next outbound POST: the opening of a JSON array followed by
+   * the serialized records so far, separated by commas. Null if there are no
+   * records buffered.
    * <p>
    * We buffer the data (rather than the <code>Record</code>) so that we can
    * flush the buffer based on outgoing transmission size.
    * <p>
    * Access should be synchronized on <code>recordsBufferMonitor</code>.
    */
-  protected ArrayList<byte[]> recordsBuffer = new ArrayList<byte[]>();
+  protected ByteArrayBuffer recordsBuffer;
 
   /**
    * GUIDs of outbound records.
@@ -333,8 +635,59 @@ public class Server11RepositorySession extends RepositorySession {
    * Access should be synchronized on <code>recordsBufferMonitor</code>.
    */
   protected ArrayList<String> recordGuidsBuffer = new ArrayList<String>();
+
+  /**
+   * Exact size of the POST body we'd send if we flushed now.
+   */
   protected int byteCount = PER_BATCH_OVERHEAD;
 
+  private static final int RECORDS_BUFFER_INITIAL_CAPACITY = 16 * 1024;
+
+  /**
+   * Buffers from finished uploads, ready for reuse. We keep at most one more
+   * than we can have uploads in flight.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferPool</code>.
+   */
+  protected final LinkedList<ByteArrayBuffer> recordsBufferPool = new LinkedList<ByteArrayBuffer>();
+
+  protected ByteArrayBuffer obtainRecordsBuffer() {
+    synchronized (recordsBufferPool) {
+      if (!recordsBufferPool.isEmpty()) {
+        return recordsBufferPool.removeFirst();
+      }
+    }
+    return new ByteArrayBuffer(RECORDS_BUFFER_INITIAL_CAPACITY);
+  }
+
+  protected void recycleRecordsBuffer(ByteArrayBuffer buffer) {
+    if (buffer.capacity() > uploadByteThreshold + RECORDS_BUFFER_INITIAL_CAPACITY) {
+      // A single oversized record blew this one up. Don't hang on to it.
+      return;
+    }
+    buffer.clear();
+    synchronized (recordsBufferPool) {
+      if (recordsBufferPool.size() <= maxConcurrentUploads) {
+        recordsBufferPool.add(buffer);
+      }
+    }
+  }
+
+  protected int  uploadItemThreshold = Server11Repository.DEFAULT_UPLOAD_ITEM_THRESHOLD;
+  protected long uploadByteThreshold = Server11Repository.DEFAULT_UPLOAD_BYTE_THRESHOLD;
+  protected int  maxConcurrentUploads = 1;
+
+  private static final long UPLOAD_THREAD_KEEPALIVE_MILLIS = 5000;
+
+  /**
+   * If we upload several batches at once, they run here rather than on
+   * <code>storeWorkQueue</code>, and each holds one of
+   * <code>uploadPermits</code> until it finishes. Both are null if we upload
+   * serially.
+   */
+  protected ExecutorService uploadExecutor;
+  protected Semaphore uploadPermits;
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -344,40 +697,143 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   /**
-   * Batch incoming records until some reasonable threshold (e.g., 50),
-   * some size limit is hit (probably way less than 3MB!), or storeDone
-   * is received.
+   * Batch incoming records until the repository's item threshold (e.g., 50)
+   * or byte threshold (probably way less than 3MB!) is hit, or storeDone is
+   * received.
+   * <p>
+   * Encrypted records are serialized straight into the body of the next
+   * POST; anything else goes through <code>toJSONBytes</code>.
    * @param record
    */
   protected void enqueue(Record record) {
-    // JSONify and store the bytes, rather than the record.
-    byte[] json = record.toJSONBytes();
-    int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if (recordGuidsBuffer.size() >= uploadItemThreshold) {
+        flush();
+      }
 
-        // POST the existing contents, then enqueue.
+      final boolean first = (recordsBuffer == null);
+      if (first) {
+        recordsBuffer = obtainRecordsBuffer();
+        recordsBuffer.append(recordsStart, 0, recordsStart.length);
+      }
+      final int mark = recordsBuffer.length();
+      if (!first) {
+        recordsBuffer.append(recordSeparator, 0, recordSeparator.length);
+      }
+      final int recordStart = recordsBuffer.length();
+      if (!(record instanceof CryptoRecord) ||
+          !((CryptoRecord) record).appendJSONBytes(recordsBuffer)) {
+        // JSONify and store the bytes, rather than the record.
+        byte[] json = record.toJSONBytes();
+        recordsBuffer.append(json, 0, json.length);
+      }
+      final int delta = recordsBuffer.length() - recordStart;
+
+      if (!first && (delta + byteCount > uploadByteThreshold)) {
+        // POST the existing contents, then start the next batch with this
+        // record.
+        ByteArrayBuffer next = obtainRecordsBuffer();
+        next.append(recordsStart, 0, recordsStart.length);
+        next.append(recordsBuffer.buffer(), recordStart, delta);
+        recordsBuffer.setLength(mark);
         flush();
+        recordsBuffer = next;
       }
-      recordsBuffer.add(json);
       recordGuidsBuffer.add(record.guid);
       byteCount += PER_RECORD_OVERHEAD + delta;
     }
   }
 
+  /**
+   * Close off the records buffered so far as the body of a POST.
+   * <p>
+   * Must be locked!
+   *
+   * @return an upload of every buffered record, or null if there are none.
+   */
+  protected RecordUploadRunnable takeBufferedRecords() {
+    if (recordsBuffer == null) {
+      return null;
+    }
+    recordsBuffer.append(recordsEnd, 0, recordsEnd.length);
+    if (recordsBuffer.length() != byteCount) {
+      Logger.warn(LOG_TAG, "Upload byte count " + byteCount + " doesn't match body length " + recordsBuffer.length() + ".");
+    }
+    RecordUploadRunnable upload = new RecordUploadRunnable(this.delegate, recordsBuffer, recordGuidsBuffer);
+
+    recordsBuffer = null;
+    recordGuidsBuffer = new ArrayList<String>();
+    byteCount = PER_BATCH_OVERHEAD;
+    return upload;
+  }
+
   // Asynchronously upload records.
   // Must be locked!
   protected void flush() {
-    if (recordsBuffer.size() > 0) {
-      final ArrayList<byte[]> outgoing = recordsBuffer;
-      final ArrayList<String> outgoingGuids = recordGuidsBuffer;
-      RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+    final RecordUploadRunnable upload = takeBufferedRecords();
+    if (upload == null) {
+      return;
+    }
+    if (uploadExecutor == null) {
+      storeWorkQueue.execute(upload);
+    } else {
+      submitUpload(upload);
+    }
+  }
+
+  /**
+   * Start <code>upload</code> on the upload executor, first waiting for one
+   * of the uploads already in flight to finish if we're at our limit. This
+   * stalls whoever is storing records until there's room.
+   */
+  protected void submitUpload(final RecordUploadRunnable upload) {
+    uploadPermits.acquireUninterruptibly();
+    try {
+      uploadExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            upload.run();
+          } finally {
+            uploadPermits.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      uploadPermits.release();
+      Logger.warn(LOG_TAG, "Upload executor is shut down. Failing upload.", e);
+      upload.handleRequestError(e);
+      upload.recycle();
+    }
+  }
 
-      recordsBuffer = new ArrayList<byte[]>();
-      recordGuidsBuffer = new ArrayList<String>();
-      byteCount = PER_BATCH_OVERHEAD;
+  /**
+   * Block until every upload in flight has finished. Does nothing if we
+   * upload serially: <code>storeWorkQueue</code> orders uploads for us.
+   */
+  protected void awaitUploads() {
+    if (uploadPermits == null) {
+      return;
+    }
+    uploadPermits.acquireUninterruptibly(maxConcurrentUploads);
+    uploadPermits.release(maxConcurrentUploads);
+  }
+
+  /**
+   * Buffered records haven't been applied until they're uploaded, so flush
+   * them first.
+   */
+  @Override
+  public void afterPendingStores(final Runnable command) {
+    synchronized (recordsBufferMonitor) {
+      flush();
+      super.afterPendingStores(new Runnable() {
+        @Override
+        public void run() {
+          awaitUploads();
+          command.run();
+        }
+      });
     }
   }
 
@@ -390,6 +846,7 @@ public class Server11RepositorySession extends RepositorySession {
       final Runnable r = new Runnable() {
         @Override
         public void run() {
+          awaitUploads();
           synchronized (recordsBufferMonitor) {
             final long end = uploadTimestamp.get();
             Logger.debug(LOG_TAG, "Calling storeDone with " + end);
@@ -405,8 +862,10 @@ public class Server11RepositorySession extends RepositorySession {
    * <code>true</code> if a record upload has failed this session.
    * <p>
    * This is only set in begin and possibly by <code>RecordUploadRunnable</code>.
-   * Since those are executed serially, we can use an unsynchronized
-   * volatile boolean here.
+   * It only ever goes from false to true during uploads, so we can use an
+   * unsynchronized volatile boolean here. Uploads already in flight when one
+   * fails run to completion; uploads that start afterwards fail without
+   * being sent.
    */
   protected volatile boolean recordUploadFailed;
 
@@ -425,20 +884,36 @@ public class Server11RepositorySession extends RepositorySession {
   protected class RecordUploadRunnable implements Runnable, SyncStorageRequestDelegate {
 
     public final String LOG_TAG = "RecordUploadRunnable";
-    private ArrayList<byte[]> outgoing;
+    private ByteArrayBuffer outgoing;
     private ArrayList<String> outgoingGuids;
-    private long byteCount;
-
+    private final int recordCount;
+
+    /**
+     * @param outgoing
+     *          the complete body of the POST: a JSON array of records.
+     * @param outgoingGuids
+     *          the GUIDs of those records.
+     */
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
-                                ArrayList<byte[]> outgoing,
-                                ArrayList<String> outgoingGuids,
-                                long byteCount) {
+                                ByteArrayBuffer outgoing,
+                                ArrayList<String> outgoingGuids) {
       Logger.debug(LOG_TAG, "Preparing record upload for " +
-                  outgoing.size() + " records (" +
-                  byteCount + " bytes).");
+                  outgoingGuids.size() + " records (" +
+                  outgoing.length() + " bytes).");
       this.outgoing = outgoing;
       this.outgoingGuids = outgoingGuids;
-      this.byteCount = byteCount;
+      this.recordCount = outgoingGuids.size();
+    }
+
+    /**
+     * Hand our buffer back for reuse. Call once the POST is done with it.
+     */
+    protected void recycle() {
+      final ByteArrayBuffer buffer = outgoing;
+      outgoing = null;
+      if (buffer != null) {
+        recycleRecordsBuffer(buffer);
+      }
     }
 
     @Override
@@ -453,7 +928,7 @@ public class Server11RepositorySession extends RepositorySession {
 
     @Override
     public void handleRequestSuccess(SyncStorageResponse response) {
-      Logger.trace(LOG_TAG, "POST of " + outgoing.size() + " records done.");
+      Logger.trace(LOG_TAG, "POST of " + recordCount + " records done.");
 
       ExtendedJSONObject body;
       try {
@@ -511,7 +986,7 @@ public class Server11RepositorySession extends RepositorySession {
         // TODO
         return;
       }
-      Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records handled.");
+      Logger.debug(LOG_TAG, "POST of " + recordCount + " records handled.");
     }
 
     @Override
@@ -533,31 +1008,24 @@ public class Server11RepositorySession extends RepositorySession {
       return;
     }
 
-    public class ByteArraysContentProducer implements ContentProducer {
+    public class ByteArrayBufferContentProducer implements ContentProducer {
 
-      ArrayList<byte[]> outgoing;
-      public ByteArraysContentProducer(ArrayList<byte[]> arrays) {
-        outgoing = arrays;
+      ByteArrayBuffer outgoing;
+      public ByteArrayBufferContentProducer(ByteArrayBuffer buffer) {
+        outgoing = buffer;
       }
 
       @Override
       public void writeTo(OutputStream outstream) throws IOException {
-        int count = outgoing.size();
-        outstream.write(recordsStart);
-        outstream.write(outgoing.get(0));
-        for (int i = 1; i < count; ++i) {
-          outstream.write(recordSeparator);
-          outstream.write(outgoing.get(i));
-        }
-        outstream.write(recordsEnd);
+        outstream.write(outgoing.buffer(), 0, outgoing.length());
       }
     }
 
-    public class ByteArraysEntity extends EntityTemplate {
+    public class ByteArrayBufferEntity extends EntityTemplate {
       private long count;
-      public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes) {
-        super(new ByteArraysContentProducer(arrays));
-        this.count = totalBytes;
+      public ByteArrayBufferEntity(ByteArrayBuffer buffer) {
+        super(new ByteArrayBufferContentProducer(buffer));
+        this.count = buffer.length();
         this.setContentType("application/json");
         // charset is set in BaseResource.
       }
@@ -573,13 +1041,21 @@ public class Server11RepositorySession extends RepositorySession {
       }
     }
 
-    public ByteArraysEntity getBodyEntity() {
-      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount);
+    public ByteArrayBufferEntity getBodyEntity() {
+      ByteArrayBufferEntity body = new ByteArrayBufferEntity(outgoing);
       return body;
     }
 
     @Override
     public void run() {
+      try {
+        upload();
+      } finally {
+        recycle();
+      }
+    }
+
+    protected void upload() {
       if (recordUploadFailed) {
         Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
         Exception ex = new Server11PreviousPostFailedException();
@@ -590,7 +1066,7 @@ public class Server11RepositorySession extends RepositorySession {
       }
 
       if (outgoing == null ||
-          outgoing.size() == 0) {
+          recordCount == 0) {
         Logger.debug(LOG_TAG, "No items: RecordUploadRunnable returning immediately.");
         return;
       }
@@ -600,10 +1076,11 @@ public class Server11RepositorySession extends RepositorySession {
 
       request.delegate = this;
 
-      // We don't want the task queue to proceed until this request completes.
-      // Fortunately, BaseResource is currently synchronous.
-      // If that ever changes, you'll need to block here.
-      ByteArraysEntity body = getBodyEntity();
+      // We don't want the task queue (or, uploading in parallel, our upload
+      // permit) to be released until this request completes. Fortunately,
+      // BaseResource is currently synchronous. If that ever changes, you'll
+      // need to block here.
+      ByteArrayBufferEntity body = getBodyEntity();
       request.post(body);
     }
   }
@@ -0,0 +1,53 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.sync.Logger;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Persist a paged fetch's high-water mark in <code>SharedPreferences</code>,
+ * typically a stage's configuration branch.
+ */
+public class SharedPreferencesHighWaterMarkStore implements HighWaterMarkStore {
+  private static final String LOG_TAG = "HighWaterMarkStore";
+
+  public static final String PREF_SINCE           = "highWaterMark.since";
+  public static final String PREF_HIGH_WATER_MARK = "highWaterMark.mark";
+
+  protected final SharedPreferences prefs;
+
+  public SharedPreferencesHighWaterMarkStore(SharedPreferences prefs) {
+    this.prefs = prefs;
+  }
+
+  @Override
+  public synchronized long getHighWaterMark(long since) {
+    if (!prefs.contains(PREF_HIGH_WATER_MARK) ||
+        prefs.getLong(PREF_SINCE, -1) != since) {
+      return -1;
+    }
+    return prefs.getLong(PREF_HIGH_WATER_MARK, -1);
+  }
+
+  @Override
+  public synchronized void setHighWaterMark(long since, long highWaterMark) {
+    Logger.debug(LOG_TAG, "Setting high-water mark to " + highWaterMark + " for fetch since " + since + ".");
+    Editor editor = prefs.edit();
+    editor.putLong(PREF_SINCE, since);
+    editor.putLong(PREF_HIGH_WATER_MARK, highWaterMark);
+    editor.commit();
+  }
+
+  @Override
+  public synchronized void clearHighWaterMark() {
+    Editor editor = prefs.edit();
+    editor.remove(PREF_SINCE);
+    editor.remove(PREF_HIGH_WATER_MARK);
+    editor.commit();
+  }
+}
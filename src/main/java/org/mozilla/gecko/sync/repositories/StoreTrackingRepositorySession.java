@@ -17,7 +17,7 @@ public abstract class StoreTrackingRepositorySession extends RepositorySession {
   protected StoreTracker storeTracker;
 
   protected static StoreTracker createStoreTracker() {
-    return new HashSetStoreTracker();
+    return new PackedGuidStoreTracker();
   }
 
   public StoreTrackingRepositorySession(Repository repository) {
@@ -16,6 +16,7 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -138,6 +139,27 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
     return context.getContentResolver().update(getUri(), values, where, selectionArgs);
   }
 
+  /**
+   * Queue bumping the modified time of a record by ID, as
+   * <code>bumpModified(long, long)</code> does, to be applied with the rest
+   * of <code>batch</code>.
+   */
+  public void bumpModified(final long id, final long modified, ContentProviderBatch batch) {
+    ContentValues values = new ContentValues();
+    values.put(BrowserContract.Bookmarks.DATE_MODIFIED, modified);
+    final ContentProviderOperation op = ContentProviderOperation.newUpdate(getUri())
+                                                                .withSelection(BrowserContract.Bookmarks._ID + " = ?",
+                                                                               new String[] { String.valueOf(id) })
+                                                                .withValues(values)
+                                                                .build();
+    batch.add(null, op, 1, new ContentProviderBatch.Fallback() {
+      @Override
+      public int apply() {
+        return bumpModified(id, modified);
+      }
+    });
+  }
+
   protected void updateParentAndPosition(String guid, long newParentId, long position) {
     ContentValues cv = new ContentValues();
     cv.put(BrowserContract.Bookmarks.PARENT, newParentId);
@@ -313,6 +335,16 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
     return queryHelper.safeQuery(".getChildren", getAllColumns(), where, args, order);
   }
 
+  /**
+   * Returns a cursor over every record except 'places', including deleted
+   * records, with the columns needed to build a {@link BookmarkTreeSnapshot}.
+   */
+  public Cursor getTree() throws NullCursorException {
+    final String where = BrowserContract.SyncColumns.GUID + " <> ?";
+    final String[] args = new String[] { "places" };
+    return queryHelper.safeQuery(".getTree", BookmarkTreeSnapshot.COLUMNS, where, args, BookmarkTreeSnapshot.ORDER);
+  }
+
   
   @Override
   protected String[] getAllColumns() {
@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -17,9 +18,11 @@ import org.mozilla.gecko.R;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.ParentNotFoundException;
 import org.mozilla.gecko.sync.repositories.Repository;
@@ -34,6 +37,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepositorySession
   implements BookmarksInsertionManager.BookmarkInserter {
@@ -106,6 +110,18 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
 
   private AndroidBrowserBookmarksDataAccessor dataAccessor;
 
+  /**
+   * Folder names by GUID, while building the record string index.
+   */
+  private HashMap<String, String> parentNameCache;
+
+  /**
+   * The shape of the local tree, loaded when a fetch begins so that child
+   * arrays and parent names needn't be queried per record. Discarded as soon
+   * as anything is stored, and rebuilt by the next fetch.
+   */
+  private volatile BookmarkTreeSnapshot treeSnapshot;
+
   protected BookmarksDeletionManager deletionManager;
   protected BookmarksInsertionManager insertionManager;
 
@@ -272,6 +288,16 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     if (SPECIAL_GUIDS_MAP.containsKey(parentGUID)) {
       return SPECIAL_GUIDS_MAP.get(parentGUID);
     }
+    if (parentNameCache != null && parentNameCache.containsKey(parentGUID)) {
+      return parentNameCache.get(parentGUID);
+    }
+    final BookmarkTreeSnapshot snapshot = treeSnapshot;
+    if (snapshot != null) {
+      final BookmarkTreeSnapshot.Node parent = snapshot.get(parentGUID);
+      if (parent != null) {
+        return (parent.title == null) ? "" : parent.title;
+      }
+    }
 
     // Get parent name from database.
     String parentName = "";
@@ -288,9 +314,26 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     } finally {
       name.close();
     }
+    if (parentNameCache != null) {
+      parentNameCache.put(parentGUID, parentName);
+    }
     return parentName;
   }
 
+  /**
+   * Every row needs its parent's name to build its record string, so look
+   * each folder's name up only once while indexing.
+   */
+  @Override
+  protected void indexRecordStrings(RecordStringIndex index, long since) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    parentNameCache = new HashMap<String, String>();
+    try {
+      super.indexRecordStrings(index, since);
+    } finally {
+      parentNameCache = null;
+    }
+  }
+
   /**
    * Retrieve the child array for a record, repositioning and updating the database as necessary.
    *
@@ -307,7 +350,14 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
    */
   @SuppressWarnings("unchecked")
   private boolean getChildrenArray(long folderID, boolean persist, JSONArray childArray) throws NullCursorException {
-    trace("Calling getChildren for androidID " + folderID);
+    final BookmarkTreeSnapshot snapshot = treeSnapshot;
+    if (snapshot != null) {
+      return getChildrenArrayFromSnapshot(snapshot, folderID, persist, childArray);
+    }
+
+    if (Logger.shouldLogVerbose(LOG_TAG)) {
+      Logger.trace(LOG_TAG, "Calling getChildren for androidID {}.", folderID);
+    }
     Cursor children = dataAccessor.getChildren(folderID);
     try {
       if (!children.moveToFirst()) {
@@ -316,7 +366,9 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
       }
       final int positionIndex = children.getColumnIndex(BrowserContract.Bookmarks.POSITION);
       final int count = children.getCount();
-      Logger.debug(LOG_TAG, "Expecting " + count + " children.");
+      if (Logger.shouldLog(LOG_TAG, Log.DEBUG)) {
+        Logger.debug(LOG_TAG, "Expecting {} children.", count);
+      }
 
       // Sorted by requested position.
       TreeMap<Long, ArrayList<String>> guids = new TreeMap<Long, ArrayList<String>>();
@@ -324,8 +376,10 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
       while (!children.isAfterLast()) {
         final String childGuid   = getGUID(children);
         final long childPosition = getPosition(children, positionIndex);
-        trace("  Child GUID: " + childGuid);
-        trace("  Child position: " + childPosition);
+        if (Logger.shouldLogVerbose(LOG_TAG)) {
+          // Don't box the position unless we're logging.
+          Logger.trace(LOG_TAG, "  Child GUID: {}, position {}.", childGuid, childPosition);
+        }
         Utils.addToIndexBucketMap(guids, Math.abs(childPosition), childGuid);
         children.moveToNext();
       }
@@ -371,18 +425,77 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         return false;
       }
 
-      Logger.debug(LOG_TAG, "Generating child array required moving records. Updating DB.");
-      final long time = now();
-      if (0 < dataAccessor.updatePositions(childArray)) {
-        Logger.debug(LOG_TAG, "Bumping parent time to " + time + ".");
-        dataAccessor.bumpModified(folderID, time);
-      }
+      persistChildArray(folderID, childArray);
       return true;
     } finally {
       children.close();
     }
   }
 
+  /**
+   * As <code>getChildrenArray</code>, but reading children from the tree
+   * snapshot rather than the database.
+   * <p>
+   * The snapshot's children are already in child array order, so the array is
+   * unchanged exactly when the children's positions are 0, 1, 2, ...
+   */
+  @SuppressWarnings("unchecked")
+  private boolean getChildrenArrayFromSnapshot(BookmarkTreeSnapshot snapshot, long folderID, boolean persist, JSONArray childArray) {
+    final List<BookmarkTreeSnapshot.Node> children = snapshot.getChildren(folderID);
+    final int count = children.size();
+    if (count == 0) {
+      trace("No children in snapshot.");
+      return true;
+    }
+    if (Logger.shouldLog(LOG_TAG, Log.DEBUG)) {
+      Logger.debug(LOG_TAG, "Expecting {} children.", count);
+    }
+
+    boolean changed = false;
+    for (int i = 0; i < count; i++) {
+      final BookmarkTreeSnapshot.Node child = children.get(i);
+      if (Math.abs(child.getPosition()) != i) {
+        changed = true;
+      }
+      if (!forbiddenGUID(child.guid)) {
+        childArray.add(child.guid);
+      }
+    }
+
+    if (!changed) {
+      Logger.debug(LOG_TAG, "Nothing moved! Database reflects child array.");
+      return true;
+    }
+
+    if (!persist) {
+      Logger.debug(LOG_TAG, "Returned array does not match database, and not persisting.");
+      return false;
+    }
+
+    persistChildArray(folderID, childArray);
+    return true;
+  }
+
+  /**
+   * Write positions matching <code>childArray</code> to the database, keeping
+   * any tree snapshot in step, and bump the folder's modified time if
+   * anything moved.
+   */
+  @SuppressWarnings("unchecked")
+  private void persistChildArray(long folderID, JSONArray childArray) {
+    Logger.debug(LOG_TAG, "Generating child array required moving records. Updating DB.");
+    final long time = now();
+    final int updated = dataAccessor.updatePositions(childArray);
+    final BookmarkTreeSnapshot snapshot = treeSnapshot;
+    if (snapshot != null) {
+      snapshot.updatePositions(childArray);
+    }
+    if (0 < updated) {
+      Logger.debug(LOG_TAG, "Bumping parent time to " + time + ".");
+      dataAccessor.bumpModified(folderID, time);
+    }
+  }
+
   protected static boolean isDeleted(Cursor cur) {
     return RepoUtils.getLongFromCursor(cur, BrowserContract.SyncColumns.IS_DELETED) != 0;
   }
@@ -484,6 +597,10 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
    */
   private void relocateBookmark(BookmarkRecord bookmark) {
     dataAccessor.updateParentAndPosition(bookmark.guid, bookmark.androidParentID, bookmark.androidPosition);
+    final BookmarkTreeSnapshot snapshot = treeSnapshot;
+    if (snapshot != null) {
+      snapshot.move(bookmark.guid, bookmark.androidParentID, bookmark.androidPosition);
+    }
   }
 
   protected JSONArray getChildrenArrayForRecordCursor(Cursor cur, String recordGUID, boolean persist) throws NullCursorException {
@@ -528,6 +645,32 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     return true;
   }
 
+  /**
+   * Load the tree snapshot with one scan, so that the fetch can build child
+   * arrays and find parent names without querying per record.
+   */
+  @Override
+  protected void prepareForFetch() throws NullCursorException {
+    if (treeSnapshot != null) {
+      return;
+    }
+    final long start = System.currentTimeMillis();
+    Cursor cur = dataAccessor.getTree();
+    try {
+      treeSnapshot = BookmarkTreeSnapshot.fromCursor(cur);
+    } finally {
+      cur.close();
+    }
+    Logger.debug(LOG_TAG, "Loaded tree snapshot in " + (System.currentTimeMillis() - start) + "ms.");
+  }
+
+  @Override
+  public void store(Record record) throws NoStoreDelegateException {
+    // Storing writes to the tree in ways the snapshot doesn't track.
+    treeSnapshot = null;
+    super.store(record);
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     // Check for the existence of special folders
@@ -657,6 +800,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     // Allow these to be GCed.
     deletionManager = null;
     insertionManager = null;
+    treeSnapshot = null;
 
     // Override finish to do this check; make sure all records
     // needing re-parenting have been re-parented.
@@ -863,6 +1007,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
 
   protected void flushQueues() {
     long now = now();
+    final long start = System.nanoTime();
     Logger.debug(LOG_TAG, "Applying remaining insertions.");
     try {
       insertionManager.finishUp();
@@ -878,13 +1023,17 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     } catch (Exception e) {
       Logger.error(LOG_TAG, "Unable to apply deletions.", e);
     }
+    metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
   }
 
   @SuppressWarnings("unchecked")
   private void finishUp() {
+    treeSnapshot = null;
     try {
       flushQueues();
       Logger.debug(LOG_TAG, "Have " + parentToChildArray.size() + " folders whose children might need repositioning.");
+      // Folder modified times are bumped together once every folder is done.
+      final ContentProviderBatch bumps = dataAccessor.createBatch();
       for (Entry<String, JSONArray> entry : parentToChildArray.entrySet()) {
         String guid = entry.getKey();
         JSONArray onServer = entry.getValue();
@@ -907,7 +1056,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
             }
             Logger.debug(LOG_TAG, "Added " + added + " items locally.");
             Logger.debug(LOG_TAG, "Untracking and bumping " + guid + "(" + folderID + ")");
-            dataAccessor.bumpModified(folderID, now());
+            dataAccessor.bumpModified(folderID, now(), bumps);
             untrackGUID(guid);
           }
 
@@ -920,6 +1069,16 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
           Logger.warn(LOG_TAG, "Error repositioning children for " + guid, e);
         }
       }
+      bumps.apply(new ContentProviderBatch.Delegate() {
+        @Override
+        public void onApplied(String guid, int count) {
+        }
+
+        @Override
+        public void onFailed(Exception e, String guid) {
+          Logger.warn(LOG_TAG, "Error bumping modified time of folder.", e);
+        }
+      });
     } finally {
       super.storeDone();
     }
@@ -939,6 +1098,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         // Clear our queued deletions.
         deletionManager.clear();
         insertionManager.clear();
+        treeSnapshot = null;
         super.run();
       } catch (Exception ex) {
         delegate.onWipeFailed(ex);
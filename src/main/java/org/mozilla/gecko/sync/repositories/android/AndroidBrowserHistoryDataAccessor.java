@@ -18,6 +18,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 
 public class AndroidBrowserHistoryDataAccessor extends
@@ -72,9 +73,9 @@ public class AndroidBrowserHistoryDataAccessor extends
   @Override
   public Uri insert(Record record) {
     HistoryRecord rec = (HistoryRecord) record;
-    Logger.debug(LOG_TAG, "Storing visits for " + record.guid);
+    Logger.debug(LOG_TAG, "Storing visits for {}.", record.guid);
     dataExtender.store(record.guid, rec.visits);
-    Logger.debug(LOG_TAG, "Storing record " + record.guid);
+    Logger.debug(LOG_TAG, "Storing record {}.", record.guid);
     return super.insert(record);
   }
 
@@ -82,25 +83,68 @@ public class AndroidBrowserHistoryDataAccessor extends
   public void update(String oldGUID, Record newRecord) {
     HistoryRecord rec = (HistoryRecord) newRecord;
     String newGUID = newRecord.guid;
-    Logger.debug(LOG_TAG, "Storing visits for " + newGUID + ", replacing " + oldGUID);
+    Logger.debug(LOG_TAG, "Storing visits for {}, replacing {}.", newGUID, oldGUID);
     dataExtender.delete(oldGUID);
     dataExtender.store(newGUID, rec.visits);
     super.update(oldGUID, newRecord);
   }
 
+  /**
+   * Visits are written to the extension database straight away; only the
+   * history row is batched.
+   */
+  @Override
+  public void update(String oldGUID, Record newRecord, ContentProviderBatch batch) {
+    HistoryRecord rec = (HistoryRecord) newRecord;
+    String newGUID = newRecord.guid;
+    Logger.debug(LOG_TAG, "Storing visits for {}, replacing {}.", newGUID, oldGUID);
+    dataExtender.delete(oldGUID);
+    dataExtender.store(newGUID, rec.visits);
+    super.update(oldGUID, newRecord, batch);
+  }
+
   @Override
   public int purgeGuid(String guid) {
-    Logger.debug(LOG_TAG, "Purging record with " + guid);
+    Logger.debug(LOG_TAG, "Purging record with {}.", guid);
     dataExtender.delete(guid);
     return super.purgeGuid(guid);
   }
 
+  @Override
+  public void purgeGuid(String guid, ContentProviderBatch batch) {
+    Logger.debug(LOG_TAG, "Purging record with {}.", guid);
+    dataExtender.delete(guid);
+    super.purgeGuid(guid, batch);
+  }
+
   public void closeExtender() {
     dataExtender.close();
   }
 
   public static String[] GUID_AND_ID = new String[] { BrowserContract.History.GUID, BrowserContract.History._ID };
 
+  public static String[] RECORD_STRING_COLUMNS = new String[] {
+    BrowserContract.History.GUID,
+    BrowserContract.History.URL,
+    BrowserContract.History.VISITS,
+    BrowserContract.History.DATE_MODIFIED
+  };
+
+  /**
+   * Fetch only the columns needed to index records by URL, for records
+   * modified since the provided timestamp.
+   * <p>
+   * The caller is responsible for closing the cursor.
+   *
+   * @param timestamp A timestamp in milliseconds, or -1 to fetch all records.
+   * @return A cursor. You <b>must</b> close this when you're done with it.
+   * @throws NullCursorException
+   */
+  public Cursor fetchRecordStringColumnsSince(long timestamp) throws NullCursorException {
+    final String where = (timestamp < 0) ? null : dateModifiedWhere(timestamp);
+    return queryHelper.safeQuery(".fetchRecordStringColumnsSince", RECORD_STRING_COLUMNS, where, null, null);
+  }
+
   /**
    * Insert records.
    * <p>
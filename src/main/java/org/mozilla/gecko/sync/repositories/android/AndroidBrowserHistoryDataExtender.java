@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.sync.Logger;
@@ -23,7 +24,10 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
+
+  // Version 1 stored visits as JSON text; version 2 uses VisitsCodec.
+  protected static final int SCHEMA_VERSION_JSON_VISITS = 1;
 
   // History Table.
   public static final String   TBL_HISTORY_EXT = "HistoryExtension";
@@ -43,20 +47,69 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   public void onCreate(SQLiteDatabase db) {
     String createTableSql = "CREATE TABLE " + TBL_HISTORY_EXT + " ("
         + COL_GUID + " TEXT PRIMARY KEY, "
-        + COL_VISITS + " TEXT)";
+        + COL_VISITS + " BLOB)";
     db.execSQL(createTableSql);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // For now we'll just drop and recreate the tables.
+    if (oldVersion == SCHEMA_VERSION_JSON_VISITS && newVersion == SCHEMA_VERSION) {
+      migrateJSONVisits(db);
+      return;
+    }
+    // Otherwise we'll just drop and recreate the tables.
+    recreate(db);
+  }
+
+  protected void recreate(SQLiteDatabase db) {
     db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
     onCreate(db);
   }
 
+  /**
+   * Re-encode every row's visits from JSON text with <code>VisitsCodec</code>.
+   * <p>
+   * Runs within the upgrade transaction. Rows whose visits can't be parsed are
+   * dropped; their visits are fetched again on the next sync.
+   */
+  protected void migrateJSONVisits(SQLiteDatabase db) {
+    final String oldTable = TBL_HISTORY_EXT + "_json";
+    db.execSQL("DROP TABLE IF EXISTS " + oldTable);
+    db.execSQL("ALTER TABLE " + TBL_HISTORY_EXT + " RENAME TO " + oldTable);
+    onCreate(db);
+
+    int migrated = 0;
+    int dropped = 0;
+    Cursor cur = db.query(oldTable, TBL_COLUMNS, null, null, null, null, null);
+    try {
+      if (cur.moveToFirst()) {
+        final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+        final int visitsIndex = cur.getColumnIndexOrThrow(COL_VISITS);
+        while (!cur.isAfterLast()) {
+          final String json = cur.getString(visitsIndex);
+          final JSONArray visits = (json == null) ? null : VisitsCodec.decodeJSON(json);
+          if (json != null && visits == null) {
+            dropped += 1;
+          } else {
+            final ContentValues cv = new ContentValues();
+            cv.put(COL_GUID, cur.getString(guidIndex));
+            cv.put(COL_VISITS, VisitsCodec.encode(visits));
+            db.insert(TBL_HISTORY_EXT, null, cv);
+            migrated += 1;
+          }
+          cur.moveToNext();
+        }
+      }
+    } finally {
+      cur.close();
+    }
+    db.execSQL("DROP TABLE " + oldTable);
+    Logger.info(LOG_TAG, "Migrated visits for " + migrated + " records; dropped " + dropped + " unparseable.");
+  }
+
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
+    recreate(db);
   }
 
   /**
@@ -72,11 +125,7 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   protected void store(SQLiteDatabase db, String guid, JSONArray visits) {
     ContentValues cv = new ContentValues();
     cv.put(COL_GUID, guid);
-    if (visits == null) {
-      cv.put(COL_VISITS, "[]");
-    } else {
-      cv.put(COL_VISITS, visits.toJSONString());
-    }
+    cv.put(COL_VISITS, VisitsCodec.encode(visits));
 
     String[] args = new String[] { guid };
     int rowsUpdated = db.update(TBL_HISTORY_EXT, cv, GUID_IS, args);
@@ -151,13 +200,49 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
         // Cursor is empty.
         return new JSONArray();
       } else {
-        return RepoUtils.getJSONArrayFromCursor(visits, COL_VISITS);
+        return VisitsCodec.decode(visits.getBlob(visits.getColumnIndexOrThrow(COL_VISITS)));
       }
     } finally {
       visits.close();
     }
   }
 
+  /**
+   * Fetch visit data for many GUIDs with a single query.
+   *
+   * @param guids
+   *          the GUIDs to fetch visits for; must not contain null. Keep this
+   *          well below SQLite's limit of 999 query parameters.
+   * @return a map from GUID to visits, with an entry for each GUID that has
+   *         stored visit data.
+   * @throws NullCursorException
+   */
+  public HashMap<String, JSONArray> visitsForGUIDs(String[] guids) throws NullCursorException {
+    final HashMap<String, JSONArray> visits = new HashMap<String, JSONArray>(guids.length * 2);
+    if (guids.length == 0) {
+      return visits;
+    }
+
+    Logger.debug(LOG_TAG, "Fetching visits for " + guids.length + " GUIDs.");
+    SQLiteDatabase db = this.getCachedReadableDatabase();
+    Cursor cur = queryHelper.safeQuery(db, ".visitsForGUIDs",
+        TBL_HISTORY_EXT, TBL_COLUMNS, RepoUtils.computeSQLInClause(guids.length, COL_GUID), guids);
+    try {
+      if (!cur.moveToFirst()) {
+        return visits;
+      }
+      final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+      final int visitsIndex = cur.getColumnIndexOrThrow(COL_VISITS);
+      while (!cur.isAfterLast()) {
+        visits.put(cur.getString(guidIndex), VisitsCodec.decode(cur.getBlob(visitsIndex)));
+        cur.moveToNext();
+      }
+    } finally {
+      cur.close();
+    }
+    return visits;
+  }
+
   /**
    * Delete a row.
    *
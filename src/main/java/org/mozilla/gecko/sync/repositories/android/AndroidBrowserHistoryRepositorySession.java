@@ -4,12 +4,15 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
@@ -36,9 +39,30 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   public static int INSERT_RECORD_THRESHOLD = 50;
 
+  /**
+   * The number of incoming records whose GUIDs are looked up with a single
+   * query. Keep this well below SQLite's limit of 999 query parameters.
+   */
+  public static int STORE_BATCH_SIZE = 100;
+
+  /**
+   * The number of fetched records whose visits are loaded with a single
+   * query. Keep this well below SQLite's limit of 999 query parameters.
+   */
+  public static int FETCH_BATCH_SIZE = 100;
+
+  /**
+   * The name of the file, in the application's private files directory, in
+   * which the record string index is kept between sessions.
+   */
+  public static final String RECORD_STRING_INDEX_FILENAME = "history-record-strings.idx";
+
+  protected final File recordStringIndexFile;
+
   public AndroidBrowserHistoryRepositorySession(Repository repository, Context context) {
     super(repository);
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
+    recordStringIndexFile = context.getFileStreamPath(RECORD_STRING_INDEX_FILENAME);
   }
 
   @Override
@@ -53,6 +77,11 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     super.begin(delegate);
   }
 
+  @Override
+  protected int getStoreBatchSize() {
+    return STORE_BATCH_SIZE;
+  }
+
   @Override
   protected Record retrieveDuringStore(Cursor cur) {
     return RepoUtils.historyFromMirrorCursor(cur);
@@ -69,6 +98,43 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return hist.histURI;
   }
 
+  @Override
+  protected File getRecordStringIndexFile() {
+    return recordStringIndexFile;
+  }
+
+  /**
+   * Index records by URL without building a record for each row.
+   */
+  @Override
+  protected void indexRecordStrings(RecordStringIndex index, long since) throws NullCursorException {
+    final Cursor cur = ((AndroidBrowserHistoryDataAccessor) dbHelper).fetchRecordStringColumnsSince(since);
+    try {
+      if (!cur.moveToFirst()) {
+        return;
+      }
+      final int guidIndex     = cur.getColumnIndexOrThrow(BrowserContract.History.GUID);
+      final int urlIndex      = cur.getColumnIndexOrThrow(BrowserContract.History.URL);
+      final int visitsIndex   = cur.getColumnIndexOrThrow(BrowserContract.History.VISITS);
+      final int modifiedIndex = cur.getColumnIndexOrThrow(BrowserContract.History.DATE_MODIFIED);
+      while (!cur.isAfterLast()) {
+        final String guid = cur.getString(guidIndex);
+        final String url  = cur.getString(urlIndex);
+
+        // Skip the same rows as RepoUtils.historyFromMirrorCursor.
+        if (guid != null &&
+            RepoUtils.isValidHistoryURI(url) &&
+            cur.getLong(visitsIndex) > 0) {
+          index.put(RecordStringIndex.hash(url), guid);
+        }
+        index.noteModified(cur.getLong(modifiedIndex));
+        cur.moveToNext();
+      }
+    } finally {
+      cur.close();
+    }
+  }
+
   @Override
   public boolean shouldIgnore(Record record) {
     if (super.shouldIgnore(record)) {
@@ -86,6 +152,34 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return addVisitsToRecord(record);
   }
 
+  @Override
+  protected int getFetchBatchSize() {
+    return FETCH_BATCH_SIZE;
+  }
+
+  /**
+   * Load the visits for a batch of records with a single query.
+   */
+  @Override
+  protected ArrayList<Record> transformRecords(ArrayList<Record> records) throws NullCursorException {
+    final String[] guids = new String[records.size()];
+    int i = 0;
+    for (Record record : records) {
+      guids[i++] = record.guid;
+    }
+    final HashMap<String, JSONArray> visits = getDataExtender().visitsForGUIDs(guids);
+
+    final ArrayList<Record> transformed = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      JSONArray visitsArray = visits.get(record.guid);
+      if (visitsArray == null) {
+        visitsArray = new JSONArray();
+      }
+      transformed.add(addVisitsToRecord(record, visitsArray));
+    }
+    return transformed;
+  }
+
   @SuppressWarnings("unchecked")
   private void addVisit(JSONArray visits, long date, long visitType) {
     JSONObject visit = new JSONObject();
@@ -103,9 +197,12 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
   }
 
   private Record addVisitsToRecord(Record record) throws NullCursorException {
+    return addVisitsToRecord(record, getDataExtender().visitsForGUID(record.guid));
+  }
+
+  private Record addVisitsToRecord(Record record, JSONArray visitsArray) {
     Logger.debug(LOG_TAG, "Adding visits for GUID " + record.guid);
     HistoryRecord hist = (HistoryRecord) record;
-    JSONArray visitsArray = getDataExtender().visitsForGUID(hist.guid);
     long missingRecords = hist.fennecVisitCount - visitsArray.size();
 
     // Note that Fennec visit times are milliseconds, and we are working
@@ -208,7 +305,9 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     recordsBuffer = new ArrayList<HistoryRecord>();
     Logger.debug(LOG_TAG, "Flushing " + outgoing.size() + " records to database.");
     // TODO: move bulkInsert to AndroidBrowserDataAccessor?
+    final long start = System.nanoTime();
     int inserted = ((AndroidBrowserHistoryDataAccessor) dbHelper).bulkInsert(outgoing);
+    metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
     if (inserted != outgoing.size()) {
       // Something failed; most pessimistic action is to declare that all insertions failed.
       // TODO: perform the bulkInsert in a transaction and rollback unless all insertions succeed?
@@ -237,18 +336,25 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     }
   }
 
+  @Override
+  protected void flushPendingStores() {
+    // Storing a batch can queue records for insertion.
+    super.flushPendingStores();
+    synchronized (recordsBufferMonitor) {
+      try {
+        flushNewRecords();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Error flushing records to database.", e);
+      }
+    }
+  }
+
   @Override
   public void storeDone() {
     storeWorkQueue.execute(new Runnable() {
       @Override
       public void run() {
-        synchronized (recordsBufferMonitor) {
-          try {
-            flushNewRecords();
-          } catch (Exception e) {
-            Logger.warn(LOG_TAG, "Error flushing records to database.", e);
-          }
-        }
+        flushPendingStores();
         storeDone(System.currentTimeMillis());
       }
     });
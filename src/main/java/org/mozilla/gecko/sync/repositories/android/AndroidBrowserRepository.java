@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCleanDelegate;
@@ -12,6 +13,7 @@ import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDe
 import android.content.Context;
 
 public abstract class AndroidBrowserRepository extends Repository {
+  private static final String LOG_TAG = "BrowserRepository";
 
   @Override
   public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
@@ -52,6 +54,16 @@ public abstract class AndroidBrowserRepository extends Repository {
     }
   }
 
+  @Override
+  public boolean hasChangesSince(long timestamp, Context context) {
+    try {
+      return getDataAccessor(context).hasChangesSince(timestamp);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Couldn't check for local changes; assuming some.", e);
+      return true;
+    }
+  }
+
   protected abstract AndroidBrowserRepositoryDataAccessor getDataAccessor(Context context);
   protected abstract void sessionCreator(RepositorySessionCreationDelegate delegate, Context context);
 
@@ -11,6 +11,7 @@ import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -19,6 +20,7 @@ import android.net.Uri;
 public abstract class AndroidBrowserRepositoryDataAccessor {
 
   private static final String[] GUID_COLUMNS = new String[] { BrowserContract.SyncColumns.GUID };
+  protected static final String GUID_IS = BrowserContract.SyncColumns.GUID + " = ?";
   protected Context context;
   protected static String LOG_TAG = "BrowserDataAccessor";
   protected final RepoUtils.QueryHelper queryHelper;
@@ -96,14 +98,44 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
     return deleted;
   }
 
+  /**
+   * Queue the removal of a record, as <code>purgeGuid(String)</code> does,
+   * to be applied with the rest of <code>batch</code>.
+   */
+  public void purgeGuid(final String guid, ContentProviderBatch batch) {
+    final ContentProviderOperation op = ContentProviderOperation.newDelete(getUri())
+                                                                .withSelection(GUID_IS, new String[] { guid })
+                                                                .build();
+    batch.add(guid, op, 1, new ContentProviderBatch.Fallback() {
+      @Override
+      public int apply() {
+        return purgeGuid(guid);
+      }
+    });
+  }
+
   public void update(String guid, Record newRecord) {
-    String where  = BrowserContract.SyncColumns.GUID + " = ?";
-    String[] args = new String[] { guid };
-    ContentValues cv = getContentValues(newRecord);
-    int updated = context.getContentResolver().update(getUri(), cv, where, args);
-    if (updated != 1) {
-      Logger.warn(LOG_TAG, "Unexpectedly updated " + updated + " rows for guid " + guid);
-    }
+    updateByGuid(guid, getContentValues(newRecord));
+  }
+
+  /**
+   * Queue an update, as <code>update(String, Record)</code> does, to be
+   * applied with the rest of <code>batch</code>. The outcome is reported
+   * against the GUID of <code>newRecord</code>.
+   */
+  public void update(final String guid, Record newRecord, ContentProviderBatch batch) {
+    final ContentValues cv = getContentValues(newRecord);
+    final ContentProviderOperation op = ContentProviderOperation.newUpdate(getUri())
+                                                                .withSelection(GUID_IS, new String[] { guid })
+                                                                .withValues(cv)
+                                                                .build();
+    batch.add(newRecord.guid, op, 1, new ContentProviderBatch.Fallback() {
+      @Override
+      public int apply() {
+        return updateByGuid(guid, cv);
+      }
+    });
+    batch.touch(guid);
   }
 
   public Uri insert(Record record) {
@@ -139,6 +171,14 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
                                  null, null);
   }
 
+  /**
+   * @return true if any record has been modified since the provided
+   *         timestamp, as <code>fetchSince</code> would return it.
+   */
+  public boolean hasChangesSince(long timestamp) throws NullCursorException {
+    return queryHelper.hasResults(".hasChangesSince", GUID_COLUMNS, dateModifiedWhere(timestamp), null);
+  }
+
   /**
    * Fetch records modified since the provided timestamp.
    * <p>
@@ -169,15 +209,22 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
     return queryHelper.safeQuery(".fetch", getAllColumns(), where, guids, null);
   }
 
-  public void updateByGuid(String guid, ContentValues cv) {
-    String where  = BrowserContract.SyncColumns.GUID + " = ?";
+  public int updateByGuid(String guid, ContentValues cv) {
     String[] args = new String[] { guid };
 
-    int updated = context.getContentResolver().update(getUri(), cv, where, args);
+    int updated = context.getContentResolver().update(getUri(), cv, GUID_IS, args);
     if (updated == 1) {
-      return;
+      return updated;
     }
     Logger.warn(LOG_TAG, "Unexpectedly updated " + updated + " rows for guid " + guid);
+    return updated;
+  }
+
+  /**
+   * Create an empty batch of operations on this accessor's content provider.
+   */
+  public ContentProviderBatch createBatch() {
+    return new ContentProviderBatch(context.getContentResolver(), getUri().getAuthority());
   }
 
   /**
@@ -4,10 +4,15 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidRequestException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
@@ -30,6 +35,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -68,10 +74,32 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
    * <code>buildRecordString</code>.
    * <p>
    * Since we hash each "record string", this map may produce a false positive.
-   * In this case, we search the database for a matching record explicitly using
+   * We check each match against the stored record, and if the index was built
+   * this session, search the database for a matching record explicitly using
    * <code>findByRecordString</code>.
+   * <p>
+   * An index loaded from a previous session can also map to records that have
+   * since changed or been deleted; such entries are dropped when found.
+   */
+  protected RecordStringIndex recordStringIndex;
+
+  /**
+   * True if <code>recordStringIndex</code> was loaded from disk, and so may
+   * contain stale entries.
    */
-  protected HashMap<Integer, String> recordToGuid;
+  protected boolean recordStringIndexLoaded;
+
+  /**
+   * True if <code>recordStringIndex</code> has changed since it was loaded or
+   * built.
+   */
+  protected boolean recordStringIndexChanged;
+
+  /**
+   * A persisted index older than this is rebuilt from scratch, so that
+   * entries missed by incremental updates don't linger.
+   */
+  public static final long RECORD_STRING_INDEX_MAX_AGE_MSEC = 24 * 60 * 60 * 1000;
 
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
@@ -138,6 +166,44 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     return record;
   }
 
+  /**
+   * Override this to transform fetched records in batches.
+   *
+   * @return the number of fetched records to pass to
+   *         <code>transformRecords</code> at once.
+   */
+  protected int getFetchBatchSize() {
+    return 1;
+  }
+
+  /**
+   * Transform a batch of fetched records, as <code>transformRecord</code> does
+   * for one. Override this to share work between records.
+   *
+   * @param records
+   *        The records to transform, in the order fetched.
+   * @return The transformed records, in the same order.
+   * @throws NullCursorException
+   */
+  protected ArrayList<Record> transformRecords(ArrayList<Record> records) throws NullCursorException {
+    final ArrayList<Record> transformed = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      transformed.add(transformRecord(record));
+    }
+    return transformed;
+  }
+
+  /**
+   * Override this to load state, once per fetch, that
+   * <code>retrieveDuringFetch</code> can use instead of querying the database
+   * for each record. Called on the delegate queue before the fetch's cursor
+   * is read.
+   *
+   * @throws NullCursorException
+   */
+  protected void prepareForFetch() throws NullCursorException {
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
@@ -165,11 +231,22 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   @Override
   public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    persistRecordStringIndex();
     dbHelper = null;
-    recordToGuid = null;
+    recordStringIndex = null;
     super.finish(delegate);
   }
 
+  /**
+   * Override this to keep the record string index between sessions.
+   *
+   * @return the file in which to persist the index, or null to rebuild it in
+   *         every session.
+   */
+  protected File getRecordStringIndexFile() {
+    return null;
+  }
+
   /**
    * Produce a "record string" (record identifying unique key).
    *
@@ -264,22 +341,29 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       Logger.debug(LOG_TAG, "Fetch from cursor:");
       try {
         try {
+          prepareForFetch();
           if (!cursor.moveToFirst()) {
             delegate.onFetchCompleted(end);
             return;
           }
+          final int batchSize = getFetchBatchSize();
+          final ArrayList<Record> batch = new ArrayList<Record>(batchSize);
           while (!cursor.isAfterLast()) {
             Record r = retrieveDuringFetch(cursor);
             if (r != null) {
               if (filter == null || !filter.excludeRecord(r)) {
-                Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                delegate.onFetchedRecord(transformRecord(r));
+                Logger.trace(LOG_TAG, "Processing record {}", r.guid);
+                batch.add(r);
+                if (batch.size() >= batchSize) {
+                  processBatch(batch);
+                }
               } else {
-                Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
+                Logger.debug(LOG_TAG, "Skipping filtered record {}", r.guid);
               }
             }
             cursor.moveToNext();
           }
+          processBatch(batch);
           delegate.onFetchCompleted(end);
         } catch (NoGuidForIdException e) {
           Logger.warn(LOG_TAG, "No GUID for ID.", e);
@@ -294,6 +378,16 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         cursor.close();
       }
     }
+
+    protected void processBatch(ArrayList<Record> batch) throws NullCursorException {
+      if (batch.isEmpty()) {
+        return;
+      }
+      for (Record transformed : transformRecords(batch)) {
+        delegate.onFetchedRecord(transformed);
+      }
+      batch.clear();
+    }
   }
 
   public class FetchRunnable extends FetchingRunnable {
@@ -384,6 +478,58 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   protected int storeCount = 0;
 
+  /**
+   * Incoming records waiting to be stored as a batch. Only accessed on the
+   * store work queue.
+   */
+  protected ArrayList<Record> storeBatch = new ArrayList<Record>();
+
+  /**
+   * While a batch is being stored, the GUIDs looked up for it that haven't
+   * yet been consumed by <code>retrieveByGUIDDuringStore</code>, the records
+   * found for them, and those that matched more than one row. A GUID in
+   * <code>prefetchedGuids</code> without an entry in
+   * <code>prefetchedRecords</code> is known not to exist locally.
+   * <p>
+   * Only accessed on the store work queue.
+   */
+  protected HashSet<String> prefetchedGuids;
+  protected HashMap<String, Record> prefetchedRecords;
+  protected HashSet<String> prefetchedDuplicateGuids;
+
+  /**
+   * Updates and deletions made while storing a batch, applied together when
+   * the batch is done or when a later store needs to read a row they touch.
+   * Outcomes are reported to the store delegate as they're applied.
+   * <p>
+   * Null unless storing in batches. Only accessed on the store work queue.
+   */
+  protected ContentProviderBatch pendingWrites;
+
+  /**
+   * Override this to store records in batches.
+   * <p>
+   * Rather than querying for each incoming record's GUID as it's stored, a
+   * batching session gathers this many records and looks up all their GUIDs
+   * with a single query, then reconciles and stores each as usual. Each
+   * looked-up row is used at most once, so a later record in the same batch
+   * that touches the same GUID queries again.
+   * <p>
+   * Only sessions whose stores write nothing but the rows of the records
+   * being stored can batch: a prefetched row that some other store modified
+   * would be stale.
+   * <p>
+   * Batching sessions also queue the updates and deletions made by
+   * <code>replace</code> and <code>storeRecordDeletion</code>, and apply them
+   * with one <code>applyBatch</code> call per batch.
+   *
+   * @return the number of records to store at once. 1 or fewer means look up
+   *         each record as it's stored.
+   */
+  protected int getStoreBatchSize() {
+    return 1;
+  }
+
   @Override
   public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -395,158 +541,350 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
 
     storeCount += 1;
-    Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
+    if (Logger.shouldLog(LOG_TAG, Log.DEBUG)) {
+      // Don't box the count unless we're logging.
+      Logger.debug(LOG_TAG, "Storing record with GUID {} (stored {} records this session).", record.guid, storeCount);
+    }
+
+    final int batchSize = getStoreBatchSize();
 
     // Store Runnables *must* complete synchronously. It's OK, they
     // run on a background thread.
     Runnable command = new Runnable() {
-
       @Override
       public void run() {
-        if (!isActive()) {
-          Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
-          delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+        if (batchSize <= 1) {
+          storeRecord(record);
           return;
         }
-
-        // Check that the record is a valid type.
-        // Fennec only supports bookmarks and folders. All other types of records,
-        // including livemarks and queries, are simply ignored.
-        // See Bug 708149. This might be resolved by Fennec changing its database
-        // schema, or by Sync storing non-applied records in its own private database.
-        if (shouldIgnore(record)) {
-          Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
-
-          // Don't throw: we don't want to abort the entire sync when we get a livemark!
-          // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
-          return;
+        storeBatch.add(record);
+        if (storeBatch.size() >= batchSize) {
+          flushStoreBatch();
         }
+      }
+    };
+    storeWorkQueue.execute(command);
+  }
 
+  /**
+   * Store every record in the current batch, having first looked up all of
+   * their GUIDs at once.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void flushStoreBatch() {
+    if (storeBatch.isEmpty()) {
+      return;
+    }
+    final ArrayList<Record> batch = storeBatch;
+    storeBatch = new ArrayList<Record>();
 
-        // TODO: lift these into the session.
-        // Temporary: this matches prior syncing semantics, in which only
-        // the relationship between the local and remote record is considered.
-        // In the future we'll track these two timestamps and use them to
-        // determine which records have changed, and thus process incoming
-        // records more efficiently.
-        long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
-        long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
-        boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
-
-        Record existingRecord;
-        try {
-          // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = retrieveByGUIDDuringStore(record.guid);
-          if (record.deleted) {
-            if (existingRecord == null) {
-              // We're done. Don't bother with a callback. That can change later
-              // if we want it to.
-              trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
-              return;
-            }
+    if (isActive()) {
+      try {
+        prefetchByGUID(batch);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Couldn't look up batch of " + batch.size() + " records. Looking up individually.", e);
+        clearPrefetched();
+      }
+    }
+    try {
+      for (Record record : batch) {
+        storeRecord(record);
+      }
+    } finally {
+      clearPrefetched();
+      applyPendingWrites();
+    }
+  }
 
-            if (existingRecord.deleted) {
-              trace("Local record already deleted. Bye!");
-              return;
-            }
+  /**
+   * @return the batch to queue store writes in, or null if they should be
+   *         made directly.
+   */
+  protected ContentProviderBatch getPendingWrites() {
+    if (pendingWrites == null && getStoreBatchSize() > 1) {
+      pendingWrites = dbHelper.createBatch();
+    }
+    return pendingWrites;
+  }
 
-            // Which one wins?
-            if (!remotelyModified) {
-              trace("Ignoring deleted record from the past.");
-              return;
-            }
+  /**
+   * Apply queued store writes, reporting each outcome to the store delegate.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void applyPendingWrites() {
+    if (pendingWrites == null || pendingWrites.isEmpty()) {
+      return;
+    }
+    final long start = System.nanoTime();
+    pendingWrites.apply(new ContentProviderBatch.Delegate() {
+      @Override
+      public void onApplied(String guid, int count) {
+        delegate.onRecordStoreSucceeded(guid);
+      }
 
-            boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
-            if (!locallyModified) {
-              trace("Remote modified, local not. Deleting.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+      @Override
+      public void onFailed(Exception e, String guid) {
+        delegate.onRecordStoreFailed(e, guid);
+      }
+    });
+    metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
+  }
 
-            trace("Both local and remote records have been modified.");
-            if (record.lastModified > existingRecord.lastModified) {
-              trace("Remote is newer, and deleted. Deleting local.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+  /**
+   * Count a write made while storing, and charge the time since
+   * <code>start</code> to writing. Writes that are queued rather than made
+   * directly are charged when they're applied.
+   */
+  protected void recordWrite(Count count, long start) {
+    metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
+    metrics.increment(count);
+  }
 
-            trace("Remote is older, local is not deleted. Ignoring.");
-            if (!locallyModified) {
-              Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
-              // Ensure that this is tracked for upload.
-            }
-            return;
-          }
-          // End deletion logic.
+  protected void clearPrefetched() {
+    prefetchedGuids = null;
+    prefetchedRecords = null;
+    prefetchedDuplicateGuids = null;
+  }
 
-          // Now we're processing a non-deleted incoming record.
-          // Apply any changes we need in order to correctly find existing records.
-          fixupRecord(record);
+  /**
+   * Look up the local records for the given incoming records with one query,
+   * for use by <code>retrieveByGUIDDuringStore</code>.
+   *
+   * @throws NoGuidForIdException
+   * @throws NullCursorException
+   * @throws ParentNotFoundException
+   */
+  protected void prefetchByGUID(ArrayList<Record> records) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final HashSet<String> guids = new HashSet<String>();
+    for (Record record : records) {
+      if (record.guid != null) {
+        guids.add(record.guid);
+      }
+    }
+    if (guids.isEmpty()) {
+      return;
+    }
 
-          if (existingRecord == null) {
-            trace("Looking up match for record " + record.guid);
-            existingRecord = findExistingRecord(record);
+    final HashMap<String, Record> found = new HashMap<String, Record>();
+    final HashSet<String> duplicates = new HashSet<String>();
+    Cursor cursor = dbHelper.fetch(guids.toArray(new String[guids.size()]));
+    try {
+      if (cursor.moveToFirst()) {
+        while (!cursor.isAfterLast()) {
+          final String guid = RepoUtils.getStringFromCursor(cursor, "guid");
+          if (found.containsKey(guid)) {
+            duplicates.add(guid);
+          } else {
+            found.put(guid, retrieveDuringStore(cursor));
           }
+          cursor.moveToNext();
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    Logger.debug(LOG_TAG, "Looked up " + guids.size() + " GUIDs for batch; " + found.size() + " found locally.");
+    prefetchedRecords = found;
+    prefetchedDuplicateGuids = duplicates;
+    prefetchedGuids = guids;
+  }
 
-          if (existingRecord == null) {
-            // The record is new.
-            trace("No match. Inserting.");
-            insert(record);
-            return;
-          }
+  /**
+   * Reconcile an incoming record with any local version and write the result.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void storeRecord(final Record record) {
+    if (!isActive()) {
+      Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
+      delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+      return;
+    }
 
-          // We found a local dupe.
-          trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+    // Check that the record is a valid type.
+    // Fennec only supports bookmarks and folders. All other types of records,
+    // including livemarks and queries, are simply ignored.
+    // See Bug 708149. This might be resolved by Fennec changing its database
+    // schema, or by Sync storing non-applied records in its own private database.
+    if (shouldIgnore(record)) {
+      Logger.debug(LOG_TAG, "Ignoring record {}", record.guid);
 
-          // Populate more expensive fields prior to reconciling.
-          existingRecord = transformRecord(existingRecord);
-          Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+      // Don't throw: we don't want to abort the entire sync when we get a livemark!
+      // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
+      return;
+    }
 
-          if (toStore == null) {
-            Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
-            return;
-          }
 
-          // TODO: pass in timestamps?
-
-          // This section of code will only run if the incoming record is not
-          // marked as deleted, so we never want to just drop ours from the database:
-          // we need to upload it later.
-          // Allowing deleted items to propagate through `replace` allows normal
-          // logging and side-effects to occur, and is no more expensive than simply
-          // bumping the modified time.
-          Logger.debug(LOG_TAG, "Replacing existing " + existingRecord.guid +
-                       (toStore.deleted ? " with deleted record " : " with record ") +
-                       toStore.guid);
-          Record replaced = replace(toStore, existingRecord);
-
-          // Note that we don't track records here; deciding that is the job
-          // of reconcileRecords.
-          Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
-                                "(" + replaced.androidID + ")");
-          delegate.onRecordStoreSucceeded(replaced.guid);
+    // TODO: lift these into the session.
+    // Temporary: this matches prior syncing semantics, in which only
+    // the relationship between the local and remote record is considered.
+    // In the future we'll track these two timestamps and use them to
+    // determine which records have changed, and thus process incoming
+    // records more efficiently.
+    long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
+    long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
+    boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
+
+    Record existingRecord;
+    try {
+      // GUID matching only: deleted records don't have a payload with which to search.
+      existingRecord = retrieveByGUIDDuringStore(record.guid);
+      if (record.deleted) {
+        if (existingRecord == null) {
+          // We're done. Don't bother with a callback. That can change later
+          // if we want it to.
+          trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
           return;
+        }
 
-        } catch (MultipleRecordsForGuidException e) {
-          Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
-          delegate.onRecordStoreFailed(e, record.guid);
+        if (existingRecord.deleted) {
+          trace("Local record already deleted. Bye!");
           return;
-        } catch (NoGuidForIdException e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        // Which one wins?
+        if (!remotelyModified) {
+          trace("Ignoring deleted record from the past.");
           return;
-        } catch (NullCursorException e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
+        if (!locallyModified) {
+          trace("Remote modified, local not. Deleting.");
+          final long start = System.nanoTime();
+          storeRecordDeletion(record, existingRecord);
+          recordWrite(Count.RECORDS_DELETED, start);
           return;
-        } catch (Exception e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        trace("Both local and remote records have been modified.");
+        if (record.lastModified > existingRecord.lastModified) {
+          trace("Remote is newer, and deleted. Deleting local.");
+          final long start = System.nanoTime();
+          storeRecordDeletion(record, existingRecord);
+          recordWrite(Count.RECORDS_DELETED, start);
           return;
         }
+
+        trace("Remote is older, local is not deleted. Ignoring.");
+        if (!locallyModified) {
+          Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
+          // Ensure that this is tracked for upload.
+        }
+        return;
       }
-    };
-    storeWorkQueue.execute(command);
+      // End deletion logic.
+
+      // Now we're processing a non-deleted incoming record.
+      // Apply any changes we need in order to correctly find existing records.
+      fixupRecord(record);
+
+      if (existingRecord == null) {
+        trace("Looking up match for record " + record.guid);
+        existingRecord = findExistingRecord(record);
+      }
+
+      if (existingRecord == null) {
+        // The record is new.
+        trace("No match. Inserting.");
+        final long start = System.nanoTime();
+        insert(record);
+        recordWrite(Count.RECORDS_INSERTED, start);
+        return;
+      }
+
+      // We found a local dupe.
+      trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+
+      // Populate more expensive fields prior to reconciling.
+      final long reconcileStart = System.nanoTime();
+      existingRecord = transformRecord(existingRecord);
+      Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+      metrics.addNanos(Phase.RECONCILE, System.nanoTime() - reconcileStart);
+      metrics.increment(Count.RECORDS_RECONCILED);
+
+      if (toStore == null) {
+        Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
+        return;
+      }
+
+      // TODO: pass in timestamps?
+
+      // This section of code will only run if the incoming record is not
+      // marked as deleted, so we never want to just drop ours from the database:
+      // we need to upload it later.
+      // Allowing deleted items to propagate through `replace` allows normal
+      // logging and side-effects to occur, and is no more expensive than simply
+      // bumping the modified time.
+      Logger.debug(LOG_TAG, "Replacing existing {} with {} {}.", existingRecord.guid,
+                   toStore.deleted ? "deleted record" : "record", toStore.guid);
+      final long start = System.nanoTime();
+      Record replaced = replace(toStore, existingRecord);
+      recordWrite(Count.RECORDS_UPDATED, start);
+
+      // Note that we don't track records here; deciding that is the job
+      // of reconcileRecords.
+      if (pendingWrites != null && pendingWrites.touches(replaced.guid)) {
+        Logger.debug(LOG_TAG, "Queued replacement of {}; reporting when applied.", replaced.guid);
+        return;
+      }
+      if (Logger.shouldLog(LOG_TAG, Log.DEBUG)) {
+        Logger.debug(LOG_TAG, "Calling delegate callback with guid {} ({}).", replaced.guid, replaced.androidID);
+      }
+      delegate.onRecordStoreSucceeded(replaced.guid);
+      return;
+
+    } catch (MultipleRecordsForGuidException e) {
+      Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (NoGuidForIdException e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (NullCursorException e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    }
+  }
+
+  /**
+   * Write out any records that have been handed to <code>store</code> but are
+   * still waiting in a buffer.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void flushPendingStores() {
+    flushStoreBatch();
+  }
+
+  @Override
+  public void storeDone() {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushPendingStores();
+      }
+    });
+    super.storeDone();
+  }
+
+  @Override
+  public void afterPendingStores(final Runnable command) {
+    super.afterPendingStores(new Runnable() {
+      @Override
+      public void run() {
+        flushPendingStores();
+        command.run();
+      }
+    });
   }
 
   /**
@@ -559,6 +897,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected void storeRecordDeletion(final Record record, final Record existingRecord) {
     // TODO: we ought to mark the record as deleted rather than purging it,
     // in order to support syncing to multiple destinations. Bug 722607.
+    final ContentProviderBatch batch = getPendingWrites();
+    if (batch != null) {
+      // Reported when the batch is applied.
+      dbHelper.purgeGuid(record.guid, batch);
+      return;
+    }
     dbHelper.purgeGuid(record.guid);
     delegate.onRecordStoreSucceeded(record.guid);
   }
@@ -575,16 +919,23 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     trackRecord(toStore);
     delegate.onRecordStoreSucceeded(toStore.guid);
 
-    Logger.debug(LOG_TAG, "Inserted record with guid " + toStore.guid + " as androidID " + toStore.androidID);
+    if (Logger.shouldLog(LOG_TAG, Log.DEBUG)) {
+      Logger.debug(LOG_TAG, "Inserted record with guid {} as androidID {}.", toStore.guid, toStore.androidID);
+    }
   }
 
   protected Record replace(Record newRecord, Record existingRecord) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Record toStore = prepareRecord(newRecord);
 
     // newRecord should already have suitable androidID and guid.
-    dbHelper.update(existingRecord.guid, toStore);
+    final ContentProviderBatch batch = getPendingWrites();
+    if (batch != null) {
+      dbHelper.update(existingRecord.guid, toStore, batch);
+    } else {
+      dbHelper.update(existingRecord.guid, toStore);
+    }
     updateBookkeeping(toStore);
-    Logger.debug(LOG_TAG, "replace() returning record " + toStore.guid);
+    Logger.debug(LOG_TAG, "replace() returning record {}.", toStore.guid);
     return toStore;
   }
 
@@ -602,6 +953,18 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
                                              NullCursorException,
                                              ParentNotFoundException,
                                              MultipleRecordsForGuidException {
+    if (prefetchedGuids != null && prefetchedGuids.remove(guid)) {
+      if (prefetchedDuplicateGuids.contains(guid)) {
+        throw (new MultipleRecordsForGuidException(null));
+      }
+      return prefetchedRecords.get(guid);
+    }
+
+    if (pendingWrites != null && pendingWrites.touches(guid)) {
+      // Let the database catch up before we read from it.
+      applyPendingWrites();
+    }
+
     Cursor cursor = dbHelper.fetch(new String[] { guid });
     try {
       if (!cursor.moveToFirst()) {
@@ -639,10 +1002,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
     NoGuidForIdException, NullCursorException, ParentNotFoundException {
 
-    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID " + record.guid);
+    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID {}", record.guid);
     String recordString = buildRecordString(record);
     if (recordString == null) {
-      Logger.debug(LOG_TAG, "No record string for incoming record " + record.guid);
+      Logger.debug(LOG_TAG, "No record string for incoming record {}", record.guid);
       return null;
     }
 
@@ -653,7 +1016,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
     String guid = getGuidForString(recordString);
     if (guid == null) {
-      Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
+      Logger.debug(LOG_TAG, "Failed to find existing record for {}", record.guid);
       return null;
     }
 
@@ -662,11 +1025,19 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     // verify our positive.
     Logger.debug(LOG_TAG, "Found one. Checking stored record.");
     Record stored = retrieveByGUIDDuringStore(guid);
-    String storedRecordString = buildRecordString(record);
-    if (recordString.equals(storedRecordString)) {
+    if (stored != null && recordString.equals(buildRecordString(stored))) {
       Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
       return stored;
     }
+    recordStringIndex.remove(RecordStringIndex.hash(recordString));
+    recordStringIndexChanged = true;
+
+    if (recordStringIndexLoaded) {
+      // A stale entry from a previous session. Every record modified since
+      // then has been indexed, so there's no match to find.
+      Logger.debug(LOG_TAG, "Existing record no longer matches incoming record.  Dropped stale index entry.");
+      return null;
+    }
 
     // Oh no, we got a false positive! (This should be *very* rare --
     // essentially, we got a hash collision.) Search the DB for this record
@@ -676,20 +1047,62 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   }
 
   protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
+    if (recordStringIndex == null) {
+      createRecordStringIndex();
     }
-    return recordToGuid.get(new Integer(recordString.hashCode()));
+    return recordStringIndex.get(RecordStringIndex.hash(recordString));
   }
 
-  protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-    recordToGuid = new HashMap<Integer, String>();
+  /**
+   * Load the record string index persisted by a previous session and bring it
+   * up to date, or build it from scratch.
+   */
+  protected void createRecordStringIndex() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final long now = System.currentTimeMillis();
+    final File file = getRecordStringIndexFile();
+    if (file != null) {
+      RecordStringIndex loaded = null;
+      try {
+        loaded = RecordStringIndex.readFrom(file);
+      } catch (IOException e) {
+        Logger.warn(LOG_TAG, "Couldn't read record string index. Rebuilding.", e);
+      }
+      if (loaded != null &&
+          loaded.getCreated() <= now &&
+          now - loaded.getCreated() < RECORD_STRING_INDEX_MAX_AGE_MSEC) {
+        Logger.info(LOG_TAG, "BEGIN: updating record string index of " + loaded.size() +
+                             " records modified up to " + loaded.getLastModified() + ".");
+        indexRecordStrings(loaded, loaded.getLastModified());
+        recordStringIndex = loaded;
+        recordStringIndexLoaded = true;
+        recordStringIndexChanged = true;
+        Logger.info(LOG_TAG, "END: updating record string index; now " + loaded.size() + " records.");
+        return;
+      }
+    }
 
-    // TODO: we should be able to do this entire thing with string concatenations within SQL.
-    // Also consider whether it's better to fetch and process every record in the DB into
-    // memory, or run a query per record to do the same thing.
-    Cursor cur = dbHelper.fetchAll();
+    Logger.info(LOG_TAG, "BEGIN: creating record string index.");
+    final RecordStringIndex index = new RecordStringIndex(now);
+    indexRecordStrings(index, -1);
+    recordStringIndex = index;
+    recordStringIndexLoaded = false;
+    recordStringIndexChanged = true;
+    Logger.info(LOG_TAG, "END: creating record string index of " + index.size() + " records.");
+  }
+
+  /**
+   * Add the record string of every local record modified at or after
+   * <code>since</code> to <code>index</code>, noting each record's
+   * modification time.
+   * <p>
+   * This implementation retrieves each record in full. Override it to index
+   * from a narrower query.
+   *
+   * @param since
+   *          a timestamp in milliseconds, or -1 to index every record.
+   */
+  protected void indexRecordStrings(RecordStringIndex index, long since) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    Cursor cur = (since < 0) ? dbHelper.fetchAll() : dbHelper.fetchSince(since);
     try {
       if (!cur.moveToFirst()) {
         return;
@@ -699,15 +1112,45 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         if (record != null) {
           final String recordString = buildRecordString(record);
           if (recordString != null) {
-            recordToGuid.put(new Integer(recordString.hashCode()), record.guid);
+            index.put(RecordStringIndex.hash(recordString), record.guid);
           }
+          index.noteModified(record.lastModified);
         }
         cur.moveToNext();
       }
     } finally {
       cur.close();
     }
-    Logger.info(LOG_TAG, "END: creating record -> GUID map.");
+  }
+
+  /**
+   * Write the record string index to disk, if it's persistent and has changed.
+   */
+  protected void persistRecordStringIndex() {
+    final File file = getRecordStringIndexFile();
+    if (file == null || recordStringIndex == null || !recordStringIndexChanged) {
+      return;
+    }
+    try {
+      recordStringIndex.writeTo(file);
+      recordStringIndexChanged = false;
+      Logger.debug(LOG_TAG, "Persisted record string index of " + recordStringIndex.size() + " records.");
+    } catch (IOException e) {
+      Logger.warn(LOG_TAG, "Couldn't persist record string index. Discarding.", e);
+      file.delete();
+    }
+  }
+
+  /**
+   * Forget the record string index, including any persisted copy.
+   */
+  protected void discardRecordStringIndex() {
+    recordStringIndex = null;
+    recordStringIndexChanged = false;
+    final File file = getRecordStringIndexFile();
+    if (file != null) {
+      file.delete();
+    }
   }
 
   /**
@@ -728,6 +1171,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
    * @throws NoGuidForIdException
    */
   protected Record findByRecordString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    applyPendingWrites();
     Cursor cur = dbHelper.fetchAll();
     try {
       if (!cur.moveToFirst()) {
@@ -754,10 +1198,11 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       return;
     }
 
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
+    if (recordStringIndex == null) {
+      createRecordStringIndex();
     }
-    recordToGuid.put(new Integer(recordString.hashCode()), guid);
+    recordStringIndex.put(RecordStringIndex.hash(recordString), guid);
+    recordStringIndexChanged = true;
   }
 
   protected abstract Record prepareRecord(Record record);
@@ -792,6 +1237,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         return;
       }
       dbHelper.wipe();
+      discardRecordStringIndex();
       delegate.onWipeSucceeded();
     }
   }
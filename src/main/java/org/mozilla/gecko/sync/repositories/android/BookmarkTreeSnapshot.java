@@ -0,0 +1,222 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.sync.Logger;
+
+import android.database.Cursor;
+
+/**
+ * An in-memory copy of the shape of the local bookmark tree: for every row,
+ * its ID, GUID, parent, position and title.
+ * <p>
+ * Built from a single scan of the bookmarks table, this answers the questions
+ * a bookmarks fetch would otherwise ask the database once per record: "what
+ * are this folder's children, in order?" and "what is this folder called?".
+ * <p>
+ * The snapshot does not watch the database. Callers that write positions or
+ * parents must tell the snapshot via <code>updatePositions</code> and
+ * <code>move</code>, and must discard it after any other write.
+ * <p>
+ * Not thread-safe.
+ */
+public class BookmarkTreeSnapshot {
+  private static final String LOG_TAG = "BookmarkTreeSnapshot";
+
+  public static final String[] COLUMNS = new String[] {
+    BrowserContract.Bookmarks._ID,
+    BrowserContract.SyncColumns.GUID,
+    BrowserContract.Bookmarks.PARENT,
+    BrowserContract.Bookmarks.POSITION,
+    BrowserContract.SyncColumns.DATE_CREATED,
+    BrowserContract.SyncColumns.IS_DELETED,
+    BrowserContract.Bookmarks.TITLE,
+  };
+
+  /**
+   * The order in which the database returns a scan.
+   */
+  public static final String ORDER = BrowserContract.Bookmarks.PARENT + ", " +
+                                     BrowserContract.Bookmarks.POSITION + ", " +
+                                     BrowserContract.SyncColumns.DATE_CREATED + ", " +
+                                     BrowserContract.Bookmarks._ID;
+
+  public static class Node {
+    public final long id;
+    public final String guid;
+    public final long created;
+    public final boolean deleted;
+    public final String title;
+    protected long parentID;
+    protected long position;
+
+    public Node(long id, String guid, long parentID, long position, long created, boolean deleted, String title) {
+      this.id = id;
+      this.guid = guid;
+      this.parentID = parentID;
+      this.position = position;
+      this.created = created;
+      this.deleted = deleted;
+      this.title = title;
+    }
+
+    public long getParentID() {
+      return parentID;
+    }
+
+    public long getPosition() {
+      return position;
+    }
+  }
+
+  /**
+   * Orders children as <code>getChildren</code> in
+   * <code>AndroidBrowserBookmarksDataAccessor</code> does -- by position,
+   * then creation time, then ID -- except that positions are compared by
+   * absolute value first, as the session does when building child arrays.
+   */
+  protected static final Comparator<Node> CHILD_ORDER = new Comparator<Node>() {
+    private int compare(long a, long b) {
+      return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    @Override
+    public int compare(Node a, Node b) {
+      int c = compare(Math.abs(a.position), Math.abs(b.position));
+      if (c != 0) {
+        return c;
+      }
+      c = compare(a.position, b.position);
+      if (c != 0) {
+        return c;
+      }
+      c = compare(a.created, b.created);
+      if (c != 0) {
+        return c;
+      }
+      return compare(a.id, b.id);
+    }
+  };
+
+  protected final HashMap<String, Node> nodesByGUID = new HashMap<String, Node>();
+
+  // Non-deleted children only, sorted on demand.
+  protected final HashMap<Long, ArrayList<Node>> childrenByParent = new HashMap<Long, ArrayList<Node>>();
+
+  /**
+   * Build a snapshot from a cursor over <code>COLUMNS</code>. Does not close
+   * the cursor.
+   */
+  public static BookmarkTreeSnapshot fromCursor(Cursor cur) {
+    final BookmarkTreeSnapshot snapshot = new BookmarkTreeSnapshot();
+    if (!cur.moveToFirst()) {
+      return snapshot;
+    }
+    final int idIndex       = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks._ID);
+    final int guidIndex     = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.GUID);
+    final int parentIndex   = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.PARENT);
+    final int positionIndex = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.POSITION);
+    final int createdIndex  = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.DATE_CREATED);
+    final int deletedIndex  = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.IS_DELETED);
+    final int titleIndex    = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.TITLE);
+    while (!cur.isAfterLast()) {
+      snapshot.add(new Node(cur.getLong(idIndex),
+                            cur.getString(guidIndex),
+                            cur.getLong(parentIndex),
+                            cur.getLong(positionIndex),
+                            cur.getLong(createdIndex),
+                            cur.getLong(deletedIndex) != 0,
+                            cur.getString(titleIndex)));
+      cur.moveToNext();
+    }
+    Logger.debug(LOG_TAG, "Snapshot has " + snapshot.size() + " records.");
+    return snapshot;
+  }
+
+  public void add(Node node) {
+    nodesByGUID.put(node.guid, node);
+    if (!node.deleted) {
+      childrenOf(node.parentID).add(node);
+    }
+  }
+
+  protected ArrayList<Node> childrenOf(long parentID) {
+    ArrayList<Node> children = childrenByParent.get(parentID);
+    if (children == null) {
+      children = new ArrayList<Node>();
+      childrenByParent.put(parentID, children);
+    }
+    return children;
+  }
+
+  public int size() {
+    return nodesByGUID.size();
+  }
+
+  /**
+   * @return the record with the given GUID, deleted or not, or null.
+   */
+  public Node get(String guid) {
+    return nodesByGUID.get(guid);
+  }
+
+  /**
+   * @return the non-deleted children of a folder in child array order. The
+   *         list must not be modified.
+   */
+  public List<Node> getChildren(long parentID) {
+    final ArrayList<Node> children = childrenByParent.get(parentID);
+    if (children == null) {
+      return Collections.emptyList();
+    }
+    Collections.sort(children, CHILD_ORDER);
+    return children;
+  }
+
+  /**
+   * Record that the named records have been given positions matching their
+   * index in <code>guids</code>, as
+   * <code>AndroidBrowserBookmarksDataAccessor.updatePositions</code> does.
+   */
+  public void updatePositions(List<String> guids) {
+    final int size = guids.size();
+    for (int i = 0; i < size; i++) {
+      final Node node = nodesByGUID.get(guids.get(i));
+      if (node != null) {
+        node.position = i;
+      }
+    }
+  }
+
+  /**
+   * Record that a record has been moved to a new parent, as
+   * <code>AndroidBrowserBookmarksDataAccessor.updateParentAndPosition</code>
+   * does. A negative position leaves the position unchanged.
+   */
+  public void move(String guid, long newParentID, long position) {
+    final Node node = nodesByGUID.get(guid);
+    if (node == null) {
+      return;
+    }
+    if (!node.deleted) {
+      final ArrayList<Node> oldSiblings = childrenByParent.get(node.parentID);
+      if (oldSiblings != null) {
+        oldSiblings.remove(node);
+      }
+      childrenOf(newParentID).add(node);
+    }
+    node.parentID = newParentID;
+    if (position >= 0) {
+      node.position = position;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.mozilla.gecko.sync.Logger;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+
+/**
+ * Collects updates and deletions for a content provider and applies them
+ * with <code>applyBatch</code>, a bounded number at a time, rather than with
+ * one <code>ContentResolver</code> or <code>ContentProviderClient</code> call
+ * each.
+ * <p>
+ * Every operation carries the GUID of the record it writes, for reporting,
+ * and a fallback that performs the same write directly. If a chunk can't be
+ * applied as a batch, each of its operations is retried through its fallback,
+ * so that one bad record can't fail its neighbours. A chunk that fails part
+ * way may already have been partly applied, so operations must be safe to
+ * repeat.
+ * <p>
+ * Not thread-safe.
+ */
+public class ContentProviderBatch {
+  private static final String LOG_TAG = "ContentProviderBatch";
+
+  /**
+   * The most operations applied by a single <code>applyBatch</code> call.
+   */
+  public static final int DEFAULT_MAX_OPERATIONS = 100;
+
+  /**
+   * Performs one operation directly, without batching.
+   */
+  public interface Fallback {
+    /**
+     * @return the number of rows affected.
+     */
+    public int apply() throws Exception;
+  }
+
+  /**
+   * Told the outcome of each operation, in the order they were added.
+   */
+  public interface Delegate {
+    /**
+     * @param guid
+     *          the GUID the operation was added with; may be null.
+     * @param count
+     *          the number of rows affected.
+     */
+    public void onApplied(String guid, int count);
+    public void onFailed(Exception e, String guid);
+  }
+
+  protected static class PendingOperation {
+    public final String guid;
+    public final ContentProviderOperation operation;
+    public final int expectedCount;
+    public final Fallback fallback;
+
+    public PendingOperation(String guid, ContentProviderOperation operation, int expectedCount, Fallback fallback) {
+      this.guid = guid;
+      this.operation = operation;
+      this.expectedCount = expectedCount;
+      this.fallback = fallback;
+    }
+  }
+
+  // Exactly one of resolver and client is non-null.
+  protected final ContentResolver resolver;
+  protected final String authority;
+  protected final ContentProviderClient client;
+  protected final int maxOperations;
+
+  protected ArrayList<PendingOperation> pending = new ArrayList<PendingOperation>();
+  protected HashSet<String> touchedGuids = new HashSet<String>();
+
+  public ContentProviderBatch(ContentResolver resolver, String authority, int maxOperations) {
+    if (maxOperations < 1) {
+      throw new IllegalArgumentException("maxOperations must be positive.");
+    }
+    this.resolver = resolver;
+    this.authority = authority;
+    this.client = null;
+    this.maxOperations = maxOperations;
+  }
+
+  public ContentProviderBatch(ContentResolver resolver, String authority) {
+    this(resolver, authority, DEFAULT_MAX_OPERATIONS);
+  }
+
+  /**
+   * Apply operations through an already acquired provider client. The caller
+   * remains responsible for releasing the client.
+   */
+  public ContentProviderBatch(ContentProviderClient client, int maxOperations) {
+    if (maxOperations < 1) {
+      throw new IllegalArgumentException("maxOperations must be positive.");
+    }
+    this.resolver = null;
+    this.authority = null;
+    this.client = client;
+    this.maxOperations = maxOperations;
+  }
+
+  public ContentProviderBatch(ContentProviderClient client) {
+    this(client, DEFAULT_MAX_OPERATIONS);
+  }
+
+  /**
+   * Queue an operation.
+   *
+   * @param guid
+   *          the GUID to report the outcome against; may be null.
+   * @param operation
+   *          the operation to batch.
+   * @param expectedCount
+   *          the number of rows the operation should affect, or -1 if any
+   *          number is fine. Other counts are logged, not treated as failure.
+   * @param fallback
+   *          performs the same write directly.
+   */
+  public void add(String guid, ContentProviderOperation operation, int expectedCount, Fallback fallback) {
+    pending.add(new PendingOperation(guid, operation, expectedCount, fallback));
+    touch(guid);
+  }
+
+  /**
+   * Note that a queued operation writes to a record with this GUID, as well as
+   * to the one it was added with. Use this when an operation changes a GUID.
+   */
+  public void touch(String guid) {
+    if (guid != null) {
+      touchedGuids.add(guid);
+    }
+  }
+
+  /**
+   * @return true if a queued operation writes to a record with this GUID, so
+   *         that the database doesn't yet reflect it.
+   */
+  public boolean touches(String guid) {
+    return guid != null && touchedGuids.contains(guid);
+  }
+
+  public int size() {
+    return pending.size();
+  }
+
+  public boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  public void clear() {
+    pending = new ArrayList<PendingOperation>();
+    touchedGuids = new HashSet<String>();
+  }
+
+  /**
+   * Apply every queued operation and empty the batch.
+   */
+  public void apply(Delegate delegate) {
+    final ArrayList<PendingOperation> operations = pending;
+    clear();
+
+    final int size = operations.size();
+    if (size == 0) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Applying " + size + " operations.");
+    for (int start = 0; start < size; start += maxOperations) {
+      final int end = Math.min(size, start + maxOperations);
+      applyChunk(operations.subList(start, end), delegate);
+    }
+  }
+
+  protected void applyChunk(List<PendingOperation> chunk, Delegate delegate) {
+    final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(chunk.size());
+    for (PendingOperation op : chunk) {
+      operations.add(op.operation);
+    }
+
+    ContentProviderResult[] results = null;
+    try {
+      results = applyBatch(operations);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Couldn't apply batch of " + chunk.size() + " operations. Applying individually.", e);
+    }
+
+    if (results == null) {
+      for (PendingOperation op : chunk) {
+        final int count;
+        try {
+          count = op.fallback.apply();
+        } catch (Exception e) {
+          Logger.warn(LOG_TAG, "Couldn't apply operation for " + op.guid + ".", e);
+          delegate.onFailed(e, op.guid);
+          continue;
+        }
+        // Fallbacks do their own logging.
+        delegate.onApplied(op.guid, count);
+      }
+      return;
+    }
+
+    for (int i = 0; i < chunk.size(); i++) {
+      final Integer count = (i < results.length) ? results[i].count : null;
+      applied(chunk.get(i), (count == null) ? 0 : count.intValue(), delegate);
+    }
+  }
+
+  protected ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws Exception {
+    if (client != null) {
+      return client.applyBatch(operations);
+    }
+    return resolver.applyBatch(authority, operations);
+  }
+
+  protected static void applied(PendingOperation op, int count, Delegate delegate) {
+    if (op.expectedCount >= 0 && count != op.expectedCount) {
+      Logger.warn(LOG_TAG, "Unexpectedly affected " + count + " rows for guid " + op.guid);
+    }
+    delegate.onApplied(op.guid, count);
+  }
+}
@@ -32,6 +32,8 @@ import android.net.Uri;
 import android.os.RemoteException;
 
 public class FennecTabsRepository extends Repository {
+  private static final String LOG_TAG = "FennecTabsRepository";
+
   protected final String localClientName;
   protected final String localClientGuid;
 
@@ -40,6 +42,26 @@ public class FennecTabsRepository extends Repository {
     this.localClientGuid = localClientGuid;
   }
 
+  private static final String[] LAST_USED_COLUMNS = new String[] { BrowserContract.Tabs.LAST_USED };
+
+  /**
+   * The local tabs record is fetched if any local tab has been used since
+   * <code>timestamp</code>: its modified time is that of the most recently
+   * used tab.
+   */
+  @Override
+  public boolean hasChangesSince(long timestamp, Context context) {
+    final String where = BrowserContract.Tabs.CLIENT_GUID + " IS NULL AND " +
+                         BrowserContract.Tabs.LAST_USED + " >= " + Long.toString(timestamp);
+    try {
+      return new RepoUtils.QueryHelper(context, BrowserContract.Tabs.CONTENT_URI, LOG_TAG)
+               .hasResults(".hasChangesSince", LAST_USED_COLUMNS, where, null);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Couldn't check for local changes; assuming some.", e);
+      return true;
+    }
+  }
+
   /**
    * Note that — unlike most repositories — this will only fetch Fennec's tabs,
    * and only store tabs from other clients.
@@ -5,6 +5,10 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -27,6 +31,7 @@ import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -42,6 +47,13 @@ public class FormHistoryRepositorySession extends
    */
   public static final int INSERT_ITEM_THRESHOLD = 200;
 
+  /**
+   * Number of incoming records to reconcile in one batch. Each record can
+   * contribute two arguments to a payload query, and SQLite allows at most
+   * 999.
+   */
+  public static final int STORE_BATCH_SIZE = 100;
+
   private static Uri FORM_HISTORY_CONTENT_URI = BrowserContractHelpers.FORM_HISTORY_CONTENT_URI;
   private static Uri DELETED_FORM_HISTORY_CONTENT_URI = BrowserContractHelpers.DELETED_FORM_HISTORY_CONTENT_URI;
 
@@ -57,6 +69,21 @@ public class FormHistoryRepositorySession extends
         delegate.onSessionCreateFailed(e);
       }
     }
+
+    @Override
+    public boolean hasChangesSince(long timestamp, Context context) {
+      // As fetchSince, bounded by now.
+      final long end = System.currentTimeMillis();
+      try {
+        return new RepoUtils.QueryHelper(context, FORM_HISTORY_CONTENT_URI, LOG_TAG)
+                 .hasResults(".hasChangesSince(regular)", GUID_COLUMNS, regularBetween(timestamp, end), null) ||
+               new RepoUtils.QueryHelper(context, DELETED_FORM_HISTORY_CONTENT_URI, LOG_TAG)
+                 .hasResults(".hasChangesSince(deleted)", GUID_COLUMNS, deletedBetween(timestamp, end), null);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Couldn't check for local changes; assuming some.", e);
+        return true;
+      }
+    }
   }
 
   protected final ContentProviderClient formsProvider;
@@ -358,6 +385,10 @@ public class FormHistoryRepositorySession extends
 
   protected Record findExistingRecordByGuid(String guid)
       throws RemoteException, NullCursorException {
+    if (prefetchedGuids != null && prefetchedGuids.contains(guid)) {
+      return prefetchedByGuid.get(guid);
+    }
+
     Cursor cursor = null;
     try {
       cursor = regularHelper.safeQuery(formsProvider, ".findExistingRecordByGuid(regular)",
@@ -390,6 +421,11 @@ public class FormHistoryRepositorySession extends
       throws RemoteException, NullCursorException {
     if (!rawRecord.deleted) {
       FormHistoryRecord record = (FormHistoryRecord) rawRecord;
+      if (prefetchedByPayload != null && record.fieldName != null && record.fieldValue != null) {
+        final ArrayList<FormHistoryRecord> matches = prefetchedByPayload.get(payloadKey(record));
+        return (matches == null) ? null : matches.get(0);
+      }
+
       Cursor cursor = null;
       try {
         String where = FormHistory.FIELD_NAME + " = ? AND " + FormHistory.VALUE + " = ?";
@@ -413,17 +449,42 @@ public class FormHistoryRepositorySession extends
    * the server.
    * <p>
    * We purge the record's GUID from the regular and deleted tables.
+   * <p>
+   * While reconciling a batch, the deletion is queued rather than made.
    *
    * @param existingRecord
    *          The local <code>Record</code> to replace.
+   * @param storedGuid
+   *          The GUID of the incoming record to report as stored once the
+   *          deletion has been made, or null.
    * @throws RemoteException
    */
-  protected void deleteExistingRecord(Record existingRecord) throws RemoteException {
-    if (existingRecord.deleted) {
-      formsProvider.delete(DELETED_FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+  protected void deleteExistingRecord(Record existingRecord, String storedGuid) throws RemoteException {
+    final Uri uri = existingRecord.deleted ? DELETED_FORM_HISTORY_CONTENT_URI : FORM_HISTORY_CONTENT_URI;
+    final String[] args = new String[] { existingRecord.guid };
+
+    if (pendingWrites == null) {
+      formsProvider.delete(uri, GUID_IS, args);
+      if (storedGuid != null) {
+        delegate.onRecordStoreSucceeded(storedGuid);
+      }
       return;
     }
-    formsProvider.delete(FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+
+    forgetPrefetched(existingRecord);
+    final ContentProviderOperation op = ContentProviderOperation.newDelete(uri)
+        .withSelection(GUID_IS, args)
+        .build();
+    pendingWrites.add(storedGuid, op, -1, new ContentProviderBatch.Fallback() {
+      @Override
+      public int apply() throws RemoteException {
+        return formsProvider.delete(uri, GUID_IS, args);
+      }
+    });
+  }
+
+  protected void deleteExistingRecord(Record existingRecord) throws RemoteException {
+    deleteExistingRecord(existingRecord, null);
   }
 
   protected static ContentValues contentValuesForRegularRecord(Record rawRecord) {
@@ -484,6 +545,7 @@ public class FormHistoryRepositorySession extends
     Runnable command = new Runnable() {
       @Override
       public void run() {
+        flushStoreBatch();
         Logger.debug(LOG_TAG, "Checking for residual form history items to insert.");
         try {
           synchronized (recordsBufferMonitor) {
@@ -499,6 +561,31 @@ public class FormHistoryRepositorySession extends
     storeWorkQueue.execute(command);
   }
 
+  /**
+   * Records waiting in <code>storeBatch</code> or <code>recordsBuffer</code>
+   * aren't stored yet, so write them before running <code>command</code>. If
+   * they can't be written, <code>command</code> is never run.
+   */
+  @Override
+  public void afterPendingStores(final Runnable command) {
+    super.afterPendingStores(new Runnable() {
+      @Override
+      public void run() {
+        flushStoreBatch();
+        try {
+          synchronized (recordsBufferMonitor) {
+            flushInsertQueue();
+          }
+        } catch (Exception e) {
+          Logger.warn(LOG_TAG, "Couldn't insert buffered form history items; not running command.", e);
+          delegate.onRecordStoreFailed(e, null);
+          return;
+        }
+        command.run();
+      }
+    });
+  }
+
   /**
    * Called when a regular record with locally unknown GUID has been fetched
    * from the server.
@@ -518,7 +605,11 @@ public class FormHistoryRepositorySession extends
    * should replace an existing record.
    * <p>
    * We delete the existing record entirely, and then insert the new record into
-   * the regular table.
+   * the regular table. The new record is reported as stored once the database
+   * has been written.
+   * <p>
+   * While reconciling a batch, the deletion or update is queued rather than
+   * made.
    *
    * @param toStore
    *          The regular <code>Record</code> from the server.
@@ -530,16 +621,286 @@ public class FormHistoryRepositorySession extends
       throws RemoteException {
     if (existingRecord.deleted) {
       // Need two database operations -- purge from deleted table, insert into regular table.
-      deleteExistingRecord(existingRecord);
+      deleteExistingRecord(existingRecord, toStore.guid);
       insertNewRegularRecord(toStore);
       return;
     }
 
     final ContentValues cv = contentValuesForRegularRecord(toStore);
-    int updated = formsProvider.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { existingRecord.guid });
+    final String existingGuid = existingRecord.guid;
+    if (pendingWrites == null) {
+      updateRegularRecord(existingGuid, cv);
+      delegate.onRecordStoreSucceeded(toStore.guid);
+      return;
+    }
+
+    // Later records in the batch must see the row as it will be.
+    final FormHistoryRecord updated = new FormHistoryRecord(toStore.guid, toStore.collection, toStore.lastModified, false);
+    updated.fieldName = ((FormHistoryRecord) toStore).fieldName;
+    updated.fieldValue = ((FormHistoryRecord) toStore).fieldValue;
+    updated.androidID = existingRecord.androidID;
+    forgetPrefetched(existingRecord);
+    rememberPrefetched(updated);
+
+    final ContentProviderOperation op = ContentProviderOperation.newUpdate(FORM_HISTORY_CONTENT_URI)
+        .withSelection(GUID_IS, new String[] { existingGuid })
+        .withValues(cv)
+        .build();
+    pendingWrites.add(toStore.guid, op, 1, new ContentProviderBatch.Fallback() {
+      @Override
+      public int apply() throws RemoteException {
+        return updateRegularRecord(existingGuid, cv);
+      }
+    });
+  }
+
+  protected int updateRegularRecord(String guid, ContentValues cv) throws RemoteException {
+    int updated = formsProvider.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { guid });
     if (updated != 1) {
-      Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + existingRecord.guid + " but updated " + updated + " records.");
+      Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + guid + " but updated " + updated + " records.");
+    }
+    return updated;
+  }
+
+  /**
+   * Incoming records waiting to be reconciled as a batch. Only accessed on
+   * the store work queue.
+   */
+  protected ArrayList<FormHistoryRecord> storeBatch = new ArrayList<FormHistoryRecord>();
+
+  /**
+   * While a batch is being reconciled, the GUIDs looked up for it, and the
+   * local records found by GUID and by field name and value. These are kept
+   * current as the batch's writes are queued, so that later records in the
+   * batch see the effects of earlier ones. A GUID in
+   * <code>prefetchedGuids</code> without an entry in
+   * <code>prefetchedByGuid</code> is known not to exist locally.
+   * <p>
+   * Null otherwise. Only accessed on the store work queue.
+   */
+  protected HashSet<String> prefetchedGuids;
+  protected HashMap<String, Record> prefetchedByGuid;
+  protected HashMap<List<String>, ArrayList<FormHistoryRecord>> prefetchedByPayload;
+
+  /**
+   * Deletions and updates queued while reconciling a batch, applied together
+   * when the batch is done. Outcomes are reported to the store delegate as
+   * they're applied.
+   * <p>
+   * Null otherwise. Only accessed on the store work queue.
+   */
+  protected ContentProviderBatch pendingWrites;
+
+  /**
+   * Override this to change how many incoming records are reconciled at once.
+   * <p>
+   * Rather than querying for each incoming record's GUID and then its field
+   * name and value as it's stored, a batch is looked up with one query per
+   * table and one for all of its payloads, and its deletions and updates are
+   * made with <code>applyBatch</code>.
+   *
+   * @return the number of records to reconcile at once. 1 or fewer means look
+   *         up and write each record as it's stored.
+   */
+  protected int getStoreBatchSize() {
+    return STORE_BATCH_SIZE;
+  }
+
+  /**
+   * Reconcile and store every record in the current batch.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void flushStoreBatch() {
+    if (storeBatch.isEmpty()) {
+      return;
+    }
+    final ArrayList<FormHistoryRecord> batch = storeBatch;
+    storeBatch = new ArrayList<FormHistoryRecord>();
+
+    if (isActive()) {
+      try {
+        prefetch(batch);
+        // Only queue writes if lookups won't go to the database, which
+        // wouldn't yet reflect them.
+        pendingWrites = new ContentProviderBatch(formsProvider);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Couldn't look up batch of " + batch.size() + " records. Looking up individually.", e);
+        clearPrefetched();
+      }
+    }
+    try {
+      for (FormHistoryRecord record : batch) {
+        storeRecord(record);
+      }
+    } finally {
+      clearPrefetched();
+      applyPendingWrites();
+    }
+  }
+
+  protected static List<String> payloadKey(FormHistoryRecord record) {
+    return Arrays.asList(record.fieldName, record.fieldValue);
+  }
+
+  protected static String payloadsWhere(int count) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(" OR ");
+      }
+      builder.append("(" + FormHistory.FIELD_NAME + " = ? AND " + FormHistory.VALUE + " = ?)");
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Look up the local records matching a batch of incoming records, by GUID
+   * in both tables and by field name and value in the regular table, with
+   * three queries.
+   */
+  protected void prefetch(List<FormHistoryRecord> batch) throws RemoteException, NullCursorException {
+    final HashSet<String> guids = new HashSet<String>();
+    final HashSet<List<String>> payloads = new HashSet<List<String>>();
+    final ArrayList<String> payloadArgs = new ArrayList<String>();
+    for (FormHistoryRecord record : batch) {
+      guids.add(record.guid);
+      // Null arguments can't be bound; such records are looked up individually.
+      if (!record.deleted && record.fieldName != null && record.fieldValue != null &&
+          payloads.add(payloadKey(record))) {
+        payloadArgs.add(record.fieldName);
+        payloadArgs.add(record.fieldValue);
+      }
+    }
+
+    prefetchedGuids = guids;
+    prefetchedByGuid = new HashMap<String, Record>();
+    prefetchedByPayload = new HashMap<List<String>, ArrayList<FormHistoryRecord>>();
+
+    final String[] guidArgs = guids.toArray(new String[guids.size()]);
+    final String guidsIn = RepoUtils.computeSQLInClause(guidArgs.length, FormHistory.GUID);
+
+    // Regular records take precedence, as in findExistingRecordByGuid.
+    Cursor cursor = deletedHelper.safeQuery(formsProvider, ".prefetch(deleted)", null, guidsIn, guidArgs, null);
+    try {
+      cursor.moveToFirst();
+      while (!cursor.isAfterLast()) {
+        final FormHistoryRecord record = deletedFormHistoryRecordFromCursor(cursor);
+        prefetchedByGuid.put(record.guid, record);
+        cursor.moveToNext();
+      }
+    } finally {
+      cursor.close();
+    }
+
+    cursor = regularHelper.safeQuery(formsProvider, ".prefetch(regular)", null, guidsIn, guidArgs, null);
+    try {
+      cursor.moveToFirst();
+      while (!cursor.isAfterLast()) {
+        rememberPrefetched(formHistoryRecordFromCursor(cursor));
+        cursor.moveToNext();
+      }
+    } finally {
+      cursor.close();
+    }
+
+    if (payloadArgs.isEmpty()) {
+      return;
+    }
+    final String[] args = payloadArgs.toArray(new String[payloadArgs.size()]);
+    cursor = regularHelper.safeQuery(formsProvider, ".prefetch(payload)", null, payloadsWhere(args.length / 2), args, null);
+    try {
+      cursor.moveToFirst();
+      while (!cursor.isAfterLast()) {
+        final FormHistoryRecord record = formHistoryRecordFromCursor(cursor);
+        final Record known = prefetchedByGuid.get(record.guid);
+        if (known == null || known.deleted) {
+          rememberPrefetched(record);
+        }
+        cursor.moveToNext();
+      }
+    } finally {
+      cursor.close();
+    }
+    Logger.debug(LOG_TAG, "Prefetched " + prefetchedByGuid.size() + " local records for batch of " + batch.size() + ".");
+  }
+
+  /**
+   * Record that a regular record exists locally, for the rest of the batch.
+   */
+  protected void rememberPrefetched(FormHistoryRecord record) {
+    prefetchedByGuid.put(record.guid, record);
+    final List<String> key = payloadKey(record);
+    ArrayList<FormHistoryRecord> matches = prefetchedByPayload.get(key);
+    if (matches == null) {
+      matches = new ArrayList<FormHistoryRecord>(1);
+      prefetchedByPayload.put(key, matches);
     }
+    matches.add(record);
+  }
+
+  /**
+   * Record that a prefetched record no longer exists locally, for the rest of
+   * the batch.
+   */
+  protected void forgetPrefetched(Record existingRecord) {
+    if (prefetchedByGuid == null) {
+      return;
+    }
+    prefetchedByGuid.remove(existingRecord.guid);
+    if (existingRecord.deleted) {
+      return;
+    }
+    final List<String> key = payloadKey((FormHistoryRecord) existingRecord);
+    final ArrayList<FormHistoryRecord> matches = prefetchedByPayload.get(key);
+    if (matches == null) {
+      return;
+    }
+    // Records compare equal by payload, so remove by identity.
+    final Iterator<FormHistoryRecord> it = matches.iterator();
+    while (it.hasNext()) {
+      if (it.next() == existingRecord) {
+        it.remove();
+      }
+    }
+    if (matches.isEmpty()) {
+      prefetchedByPayload.remove(key);
+    }
+  }
+
+  protected void clearPrefetched() {
+    prefetchedGuids = null;
+    prefetchedByGuid = null;
+    prefetchedByPayload = null;
+  }
+
+  /**
+   * Apply queued deletions and updates, reporting each outcome to the store
+   * delegate.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void applyPendingWrites() {
+    if (pendingWrites == null) {
+      return;
+    }
+    final ContentProviderBatch writes = pendingWrites;
+    pendingWrites = null;
+    writes.apply(new ContentProviderBatch.Delegate() {
+      @Override
+      public void onApplied(String guid, int count) {
+        if (guid != null) {
+          delegate.onRecordStoreSucceeded(guid);
+        }
+      }
+
+      @Override
+      public void onFailed(Exception e, String guid) {
+        if (guid != null) {
+          delegate.onRecordStoreFailed(e, guid);
+        }
+      }
+    });
   }
 
   @Override
@@ -557,137 +918,149 @@ public class FormHistoryRepositorySession extends
       throw new IllegalArgumentException("Non-FormHistoryRecord passed to FormHistoryRepositorySession.store().");
     }
     final FormHistoryRecord record = (FormHistoryRecord) rawRecord;
+    final int batchSize = getStoreBatchSize();
 
     Runnable command = new Runnable() {
       @Override
       public void run() {
-        if (!isActive()) {
-          Logger.warn(LOG_TAG, "FormHistoryRepositorySession is inactive. Store failing.");
-          delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+        if (batchSize <= 1) {
+          storeRecord(record);
           return;
         }
+        storeBatch.add(record);
+        if (storeBatch.size() >= batchSize) {
+          flushStoreBatch();
+        }
+      }
+    };
 
-        // TODO: lift these into the session.
-        // Temporary: this matches prior syncing semantics, in which only
-        // the relationship between the local and remote record is considered.
-        // In the future we'll track these two timestamps and use them to
-        // determine which records have changed, and thus process incoming
-        // records more efficiently.
-        long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
-        long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
-        boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
-
-        Record existingRecord;
-        try {
-          // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = findExistingRecordByGuid(record.guid);
-          if (record.deleted) {
-            if (existingRecord == null) {
-              // We're done. Don't bother with a callback. That can change later
-              // if we want it to.
-              Logger.trace(LOG_TAG, "Incoming record " + record.guid + " is deleted, and no local version. Bye!");
-              return;
-            }
-
-            if (existingRecord.deleted) {
-              Logger.trace(LOG_TAG, "Local record already deleted. Purging local.");
-              deleteExistingRecord(existingRecord);
-              return;
-            }
-
-            // Which one wins?
-            if (!remotelyModified) {
-              Logger.trace(LOG_TAG, "Ignoring deleted record from the past.");
-              return;
-            }
-
-            boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
-            if (!locallyModified) {
-              Logger.trace(LOG_TAG, "Remote modified, local not. Deleting.");
-              deleteExistingRecord(existingRecord);
-              trackRecord(record);
-              delegate.onRecordStoreSucceeded(record.guid);
-              return;
-            }
-
-            Logger.trace(LOG_TAG, "Both local and remote records have been modified.");
-            if (record.lastModified > existingRecord.lastModified) {
-              Logger.trace(LOG_TAG, "Remote is newer, and deleted. Purging local.");
-              deleteExistingRecord(existingRecord);
-              trackRecord(record);
-              delegate.onRecordStoreSucceeded(record.guid);
-              return;
-            }
-
-            Logger.trace(LOG_TAG, "Remote is older, local is not deleted. Ignoring.");
-            if (!locallyModified) {
-              Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
-              // Ensure that this is tracked for upload.
-            }
-            return;
-          }
-          // End deletion logic.
-
-          // Now we're processing a non-deleted incoming record.
-          if (existingRecord == null) {
-            Logger.trace(LOG_TAG, "Looking up match for record " + record.guid);
-            existingRecord = findExistingRecordByPayload(record);
-          }
-
-          if (existingRecord == null) {
-            // The record is new.
-            Logger.trace(LOG_TAG, "No match. Inserting.");
-            insertNewRegularRecord(record);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
-            return;
-          }
+    storeWorkQueue.execute(command);
+  }
 
-          // We found a local duplicate.
-          Logger.trace(LOG_TAG, "Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+  /**
+   * Reconcile an incoming record with local records and store it.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void storeRecord(final FormHistoryRecord record) {
+    if (!isActive()) {
+      Logger.warn(LOG_TAG, "FormHistoryRepositorySession is inactive. Store failing.");
+      delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+      return;
+    }
 
-          if (!RepoUtils.stringsEqual(record.guid, existingRecord.guid)) {
-            // We found a local record that does NOT have the same GUID -- keep the server's version.
-            Logger.trace(LOG_TAG, "Remote guid different from local guid. Storing to keep remote guid.");
-            replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
-            return;
-          }
+    // TODO: lift these into the session.
+    // Temporary: this matches prior syncing semantics, in which only
+    // the relationship between the local and remote record is considered.
+    // In the future we'll track these two timestamps and use them to
+    // determine which records have changed, and thus process incoming
+    // records more efficiently.
+    long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
+    long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
+    boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
+
+    Record existingRecord;
+    try {
+      // GUID matching only: deleted records don't have a payload with which to search.
+      existingRecord = findExistingRecordByGuid(record.guid);
+      if (record.deleted) {
+        if (existingRecord == null) {
+          // We're done. Don't bother with a callback. That can change later
+          // if we want it to.
+          Logger.trace(LOG_TAG, "Incoming record " + record.guid + " is deleted, and no local version. Bye!");
+          return;
+        }
 
-          // We found a local record that does have the same GUID -- check modification times.
-          boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
-          if (!locallyModified) {
-            Logger.trace(LOG_TAG, "Remote modified, local not. Storing.");
-            replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
-            return;
-          }
+        if (existingRecord.deleted) {
+          Logger.trace(LOG_TAG, "Local record already deleted. Purging local.");
+          deleteExistingRecord(existingRecord);
+          return;
+        }
 
-          Logger.trace(LOG_TAG, "Both local and remote records have been modified.");
-          if (record.lastModified > existingRecord.lastModified) {
-            Logger.trace(LOG_TAG, "Remote is newer, and not deleted. Storing.");
-            replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record.guid);
-            return;
-          }
+        // Which one wins?
+        if (!remotelyModified) {
+          Logger.trace(LOG_TAG, "Ignoring deleted record from the past.");
+          return;
+        }
 
-          Logger.trace(LOG_TAG, "Remote is older, local is not deleted. Ignoring.");
-          if (!locallyModified) {
-            Logger.warn(LOG_TAG, "Inconsistency: old remote record is not deleted, but local record not modified!");
-          }
+        boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
+        if (!locallyModified) {
+          Logger.trace(LOG_TAG, "Remote modified, local not. Deleting.");
+          trackRecord(record);
+          deleteExistingRecord(existingRecord, record.guid);
           return;
-        } catch (Exception e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        Logger.trace(LOG_TAG, "Both local and remote records have been modified.");
+        if (record.lastModified > existingRecord.lastModified) {
+          Logger.trace(LOG_TAG, "Remote is newer, and deleted. Purging local.");
+          trackRecord(record);
+          deleteExistingRecord(existingRecord, record.guid);
           return;
         }
+
+        Logger.trace(LOG_TAG, "Remote is older, local is not deleted. Ignoring.");
+        if (!locallyModified) {
+          Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
+          // Ensure that this is tracked for upload.
+        }
+        return;
       }
-    };
+      // End deletion logic.
 
-    storeWorkQueue.execute(command);
+      // Now we're processing a non-deleted incoming record.
+      if (existingRecord == null) {
+        Logger.trace(LOG_TAG, "Looking up match for record " + record.guid);
+        existingRecord = findExistingRecordByPayload(record);
+      }
+
+      if (existingRecord == null) {
+        // The record is new.
+        Logger.trace(LOG_TAG, "No match. Inserting.");
+        insertNewRegularRecord(record);
+        trackRecord(record);
+        delegate.onRecordStoreSucceeded(record.guid);
+        return;
+      }
+
+      // We found a local duplicate.
+      Logger.trace(LOG_TAG, "Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+
+      if (!RepoUtils.stringsEqual(record.guid, existingRecord.guid)) {
+        // We found a local record that does NOT have the same GUID -- keep the server's version.
+        Logger.trace(LOG_TAG, "Remote guid different from local guid. Storing to keep remote guid.");
+        trackRecord(record);
+        replaceExistingRecordWithRegularRecord(record, existingRecord);
+        return;
+      }
+
+      // We found a local record that does have the same GUID -- check modification times.
+      boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
+      if (!locallyModified) {
+        Logger.trace(LOG_TAG, "Remote modified, local not. Storing.");
+        trackRecord(record);
+        replaceExistingRecordWithRegularRecord(record, existingRecord);
+        return;
+      }
+
+      Logger.trace(LOG_TAG, "Both local and remote records have been modified.");
+      if (record.lastModified > existingRecord.lastModified) {
+        Logger.trace(LOG_TAG, "Remote is newer, and not deleted. Storing.");
+        trackRecord(record);
+        replaceExistingRecordWithRegularRecord(record, existingRecord);
+        return;
+      }
+
+      Logger.trace(LOG_TAG, "Remote is older, local is not deleted. Ignoring.");
+      if (!locallyModified) {
+        Logger.warn(LOG_TAG, "Inconsistency: old remote record is not deleted, but local record not modified!");
+      }
+      return;
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    }
   }
 
   /**
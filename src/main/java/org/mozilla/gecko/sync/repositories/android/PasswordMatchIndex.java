@@ -0,0 +1,116 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+
+/**
+ * Maps the fields that identify a login -- hostname, HTTP realm, form submit
+ * URL, username and password field names, and encrypted username -- to the
+ * GUIDs of local records with those fields.
+ * <p>
+ * Usernames are stored encrypted, so the database can't be asked for a
+ * matching login directly. Rather than querying on the other fields for every
+ * incoming record and comparing usernames by hand, a passwords session scans
+ * the table once into this index and keeps it current as it stores.
+ * <p>
+ * As with the SQL equality test this replaces, a record with a null
+ * hostname, realm, form submit URL or field name matches nothing.
+ * <p>
+ * Not thread-safe.
+ */
+public class PasswordMatchIndex {
+  // Key -> GUIDs, and GUID -> key so that entries can be removed by GUID.
+  protected final HashMap<List<String>, ArrayList<String>> guidsByKey = new HashMap<List<String>, ArrayList<String>>();
+  protected final HashMap<String, List<String>> keysByGUID = new HashMap<String, List<String>>();
+
+  /**
+   * @return the composite key for these fields, or null if they can't match
+   *         anything.
+   */
+  protected static List<String> keyFor(String hostname, String httpRealm, String formSubmitURL,
+                                       String usernameField, String passwordField, String encryptedUsername) {
+    if (hostname == null || httpRealm == null || formSubmitURL == null ||
+        usernameField == null || passwordField == null) {
+      return null;
+    }
+    return Arrays.asList(hostname, httpRealm, formSubmitURL, usernameField, passwordField, encryptedUsername);
+  }
+
+  protected static List<String> keyFor(PasswordRecord record) {
+    return keyFor(record.hostname, record.httpRealm, record.formSubmitURL,
+                  record.usernameField, record.passwordField, record.encryptedUsername);
+  }
+
+  /**
+   * @return true if the two records identify the same login.
+   */
+  public static boolean matches(PasswordRecord a, PasswordRecord b) {
+    final List<String> key = keyFor(a);
+    return key != null && key.equals(keyFor(b));
+  }
+
+  public void add(String guid, String hostname, String httpRealm, String formSubmitURL,
+                  String usernameField, String passwordField, String encryptedUsername) {
+    if (guid == null) {
+      return;
+    }
+    remove(guid);
+    final List<String> key = keyFor(hostname, httpRealm, formSubmitURL, usernameField, passwordField, encryptedUsername);
+    if (key == null) {
+      return;
+    }
+    ArrayList<String> guids = guidsByKey.get(key);
+    if (guids == null) {
+      guids = new ArrayList<String>(1);
+      guidsByKey.put(key, guids);
+    }
+    guids.add(guid);
+    keysByGUID.put(guid, key);
+  }
+
+  public void add(PasswordRecord record) {
+    add(record.guid, record.hostname, record.httpRealm, record.formSubmitURL,
+        record.usernameField, record.passwordField, record.encryptedUsername);
+  }
+
+  public void remove(String guid) {
+    final List<String> key = keysByGUID.remove(guid);
+    if (key == null) {
+      return;
+    }
+    final ArrayList<String> guids = guidsByKey.get(key);
+    guids.remove(guid);
+    if (guids.isEmpty()) {
+      guidsByKey.remove(key);
+    }
+  }
+
+  /**
+   * @return the GUIDs of records that match <code>record</code>, in the order
+   *         they were added. Never null.
+   */
+  public List<String> candidates(PasswordRecord record) {
+    final List<String> key = keyFor(record);
+    if (key == null) {
+      return Collections.emptyList();
+    }
+    final ArrayList<String> guids = guidsByKey.get(key);
+    if (guids == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<String>(guids);
+  }
+
+  public int size() {
+    return keysByGUID.size();
+  }
+}
@@ -12,6 +12,8 @@ import org.mozilla.gecko.db.BrowserContract.DeletedColumns;
 import org.mozilla.gecko.db.BrowserContract.DeletedPasswords;
 import org.mozilla.gecko.db.BrowserContract.Passwords;
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
@@ -46,6 +48,19 @@ public class PasswordsRepositorySession extends
       final RepositorySessionCreationDelegate deferredCreationDelegate = delegate.deferredCreationDelegate();
       deferredCreationDelegate.onSessionCreated(session);
     }
+
+    @Override
+    public boolean hasChangesSince(long timestamp, Context context) {
+      try {
+        return new QueryHelper(context, BrowserContractHelpers.PASSWORDS_CONTENT_URI, LOG_TAG)
+                 .hasResults(".hasChangesSince", GUID_COLS, dateModifiedWhere(timestamp), null) ||
+               new QueryHelper(context, BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, LOG_TAG)
+                 .hasResults(".hasChangesSince", DELETED_GUID_COLS, dateModifiedWhereDeleted(timestamp), null);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Couldn't check for local changes; assuming some.", e);
+        return true;
+      }
+    }
   }
 
   private static final String LOG_TAG = "PasswordsRepoSession";
@@ -57,6 +72,13 @@ public class PasswordsRepositorySession extends
 
   private final Context context;
 
+  /**
+   * Local logins by identifying fields, loaded on first use while storing
+   * and kept current as records are stored. Only accessed on the store work
+   * queue.
+   */
+  private PasswordMatchIndex matchIndex;
+
   public PasswordsRepositorySession(Repository repository, Context context) {
     super(repository);
     this.context = context;
@@ -346,6 +368,7 @@ public class PasswordsRepositorySession extends
           trace("No match. Inserting.");
           Logger.debug(LOG_TAG, "Didn't find matching record. Inserting.");
           Record inserted = null;
+          final long start = System.nanoTime();
           try {
             inserted = insert(remoteRecord);
           } catch (RemoteException e) {
@@ -353,6 +376,8 @@ public class PasswordsRepositorySession extends
             delegate.onRecordStoreFailed(e, record.guid);
             return;
           }
+          metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
+          metrics.increment(Count.RECORDS_INSERTED);
           trackRecord(inserted);
           delegate.onRecordStoreSucceeded(inserted.guid);
           return;
@@ -361,7 +386,10 @@ public class PasswordsRepositorySession extends
         // We found a local dupe.
         trace("Incoming record " + remoteRecord.guid + " dupes to local record " + existingRecord.guid);
         Logger.debug(LOG_TAG, "remote " + remoteRecord.guid + " dupes to " + existingRecord.guid);
+        final long reconcileStart = System.nanoTime();
         Record toStore = reconcileRecords(remoteRecord, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+        metrics.addNanos(Phase.RECONCILE, System.nanoTime() - reconcileStart);
+        metrics.increment(Count.RECORDS_RECONCILED);
 
         if (toStore == null) {
           Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
@@ -371,6 +399,7 @@ public class PasswordsRepositorySession extends
         // TODO: pass in timestamps?
         Logger.debug(LOG_TAG, "Replacing " + existingRecord.guid + " with record " + toStore.guid);
         Record replaced = null;
+        final long start = System.nanoTime();
         try {
           replaced = replace(existingRecord, toStore);
         } catch (RemoteException e) {
@@ -378,6 +407,8 @@ public class PasswordsRepositorySession extends
           delegate.onRecordStoreFailed(e, record.guid);
           return;
         }
+        metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
+        metrics.increment(Count.RECORDS_UPDATED);
 
         // Note that we don't track records here; deciding that is the job
         // of reconcileRecords.
@@ -403,6 +434,7 @@ public class PasswordsRepositorySession extends
         }
 
         // Wipe both data and deleted.
+        matchIndex = null;
         try {
           context.getContentResolver().delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null);
           context.getContentResolver().delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, null, null);
@@ -418,12 +450,14 @@ public class PasswordsRepositorySession extends
 
   @Override
   public void abort() {
+    matchIndex = null;
     passwordsProvider.release();
     super.abort();
   }
 
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    matchIndex = null;
     passwordsProvider.release();
     super.finish(delegate);
   }
@@ -433,6 +467,9 @@ public class PasswordsRepositorySession extends
 
     int deleted = passwordsProvider.delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, WHERE_GUID_IS, args) +
                   passwordsProvider.delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, WHERE_DELETED_GUID_IS, args);
+    if (matchIndex != null) {
+      matchIndex.remove(guid);
+    }
     if (deleted == 1) {
       return;
     }
@@ -457,6 +494,9 @@ public class PasswordsRepositorySession extends
       throw new RemoteException(); // Not much to be done here, save throw.
     }
     record.androidID = ContentUris.parseId(insertedUri);
+    if (matchIndex != null) {
+      matchIndex.add(record);
+    }
     return record;
   }
 
@@ -472,6 +512,10 @@ public class PasswordsRepositorySession extends
     if (updated != 1) {
       Logger.warn(LOG_TAG, "Unexpectedly updated " + updated + " rows for guid " + origPasswordRecord.guid);
     }
+    if (matchIndex != null) {
+      matchIndex.remove(origRecord.guid);
+      matchIndex.add(newPasswordRecord);
+    }
     return newRecord;
   }
 
@@ -581,45 +625,70 @@ public class PasswordsRepositorySession extends
     return null;
   }
 
-  private static final String WHERE_RECORD_DATA =
-    Passwords.HOSTNAME        + " = ? AND " +
-    Passwords.HTTP_REALM      + " = ? AND " +
-    Passwords.FORM_SUBMIT_URL + " = ? AND " +
-    Passwords.USERNAME_FIELD  + " = ? AND " +
-    Passwords.PASSWORD_FIELD  + " = ?";
-
-  private PasswordRecord findExistingRecord(PasswordRecord record) throws NullCursorException, RemoteException {
-    PasswordRecord foundRecord = null;
-    Cursor cursor = null;
-    // Only check the data table.
-    // We can't encrypt username directly for query, so run a more general query and then filter.
-    final String[] whereArgs = new String[] {
-      record.hostname,
-      record.httpRealm,
-      record.formSubmitURL,
-      record.usernameField,
-      record.passwordField
-    };
+  private static final String[] MATCH_INDEX_COLS = new String[] {
+    Passwords.GUID,
+    Passwords.HOSTNAME,
+    Passwords.HTTP_REALM,
+    Passwords.FORM_SUBMIT_URL,
+    Passwords.USERNAME_FIELD,
+    Passwords.PASSWORD_FIELD,
+    Passwords.ENCRYPTED_USERNAME
+  };
 
+  /**
+   * Build the match index with a single scan of the data table.
+   */
+  private PasswordMatchIndex loadMatchIndex() throws NullCursorException, RemoteException {
+    final PasswordMatchIndex index = new PasswordMatchIndex();
+    final Cursor cursor = passwordsHelper.safeQuery(passwordsProvider, ".loadMatchIndex", MATCH_INDEX_COLS, null, null, null);
     try {
-      cursor = passwordsHelper.safeQuery(passwordsProvider, ".findRecord", getAllColumns(), WHERE_RECORD_DATA, whereArgs, null);
-      while (cursor.moveToNext()) {
-        foundRecord = passwordRecordFromCursor(cursor);
-
-        // We don't directly query for username because the
-        // username/password values are encrypted in the db.
-        // We don't have the keys for encrypting our query,
-        // so we run a more general query and then filter
-        // the returned records for a matching username.
-        Logger.pii(LOG_TAG, "Checking incoming [" + record.encryptedUsername + "] to [" + foundRecord.encryptedUsername + "]");
-        if (record.encryptedUsername.equals(foundRecord.encryptedUsername)) {
-          Logger.trace(LOG_TAG, "Found matching record: " + foundRecord.guid);
-          return foundRecord;
-        }
+      if (!cursor.moveToFirst()) {
+        return index;
+      }
+      final int guidIndex          = cursor.getColumnIndexOrThrow(Passwords.GUID);
+      final int hostnameIndex      = cursor.getColumnIndexOrThrow(Passwords.HOSTNAME);
+      final int httpRealmIndex     = cursor.getColumnIndexOrThrow(Passwords.HTTP_REALM);
+      final int formSubmitURLIndex = cursor.getColumnIndexOrThrow(Passwords.FORM_SUBMIT_URL);
+      final int usernameFieldIndex = cursor.getColumnIndexOrThrow(Passwords.USERNAME_FIELD);
+      final int passwordFieldIndex = cursor.getColumnIndexOrThrow(Passwords.PASSWORD_FIELD);
+      final int usernameIndex      = cursor.getColumnIndexOrThrow(Passwords.ENCRYPTED_USERNAME);
+      while (!cursor.isAfterLast()) {
+        index.add(cursor.getString(guidIndex),
+                  cursor.getString(hostnameIndex),
+                  cursor.getString(httpRealmIndex),
+                  cursor.getString(formSubmitURLIndex),
+                  cursor.getString(usernameFieldIndex),
+                  cursor.getString(passwordFieldIndex),
+                  cursor.getString(usernameIndex));
+        cursor.moveToNext();
       }
     } finally {
-      if (cursor != null) {
-        cursor.close();
+      cursor.close();
+    }
+    Logger.debug(LOG_TAG, "Loaded match index of " + index.size() + " records.");
+    return index;
+  }
+
+  private PasswordRecord findExistingRecord(PasswordRecord record) throws NullCursorException, RemoteException {
+    // Only check the data table.
+    // We don't directly query for username because the username/password
+    // values are encrypted in the db, and we don't have the keys for
+    // encrypting our query. Instead we look candidates up in an index built
+    // from one scan of the table, and check each against the database.
+    if (matchIndex == null) {
+      matchIndex = loadMatchIndex();
+    }
+    for (String guid : matchIndex.candidates(record)) {
+      final PasswordRecord foundRecord = retrieveByGUID(guid);
+      if (foundRecord != null && !foundRecord.deleted && PasswordMatchIndex.matches(record, foundRecord)) {
+        Logger.trace(LOG_TAG, "Found matching record: " + foundRecord.guid);
+        return foundRecord;
+      }
+      // Changed underneath us.
+      Logger.debug(LOG_TAG, "Dropping stale match index entry for " + guid + ".");
+      matchIndex.remove(guid);
+      if (foundRecord != null && !foundRecord.deleted) {
+        matchIndex.add(foundRecord);
       }
     }
     Logger.debug(LOG_TAG, "No matching records, returning null.");
@@ -627,6 +696,7 @@ public class PasswordsRepositorySession extends
   }
 
   private void storeRecordDeletion(Record record) {
+    final long start = System.nanoTime();
     try {
       deleteGUID(record.guid);
     } catch (RemoteException e) {
@@ -634,6 +704,8 @@ public class PasswordsRepositorySession extends
       delegate.onRecordStoreFailed(e, record.guid);
       return;
     }
+    metrics.addNanos(Phase.DB_WRITE, System.nanoTime() - start);
+    metrics.increment(Count.RECORDS_DELETED);
     delegate.onRecordStoreSucceeded(record.guid);
   }
 
@@ -0,0 +1,316 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A compact map from the hash of a "record string" to the GUID of the local
+ * record that produced it. See
+ * <code>AndroidBrowserRepositorySession.buildRecordString</code>.
+ * <p>
+ * Keys are 64-bit hashes, so that collisions between distinct record strings
+ * are negligible even for very large profiles. Entries live in flat arrays
+ * with open addressing: the usual twelve-character ASCII GUID takes twelve
+ * bytes and no objects, and any other GUID is kept in a small side map.
+ * <p>
+ * An index can be written to and read from a file, along with the latest
+ * modification time of the rows it was built from, so that a later session
+ * need only index rows modified since.
+ * <p>
+ * Not thread-safe.
+ */
+public class RecordStringIndex {
+  public static final int VERSION = 1;
+
+  /**
+   * The length of a regular GUID.
+   */
+  public static final int GUID_LENGTH = 12;
+
+  private static final int MINIMUM_CAPACITY = 16;
+
+  // Slot markers, stored as the first GUID byte. GUIDs never contain these.
+  private static final byte EMPTY     = 0;
+  private static final byte IRREGULAR = 1;
+
+  protected long[] hashes;
+  protected byte[] guids;
+  protected final HashMap<Long, String> irregularGuids = new HashMap<Long, String>();
+  protected int size;
+
+  protected final long created;
+  protected long lastModified = -1;
+
+  public RecordStringIndex(long created) {
+    this(created, MINIMUM_CAPACITY);
+  }
+
+  public RecordStringIndex(long created, int expectedSize) {
+    this.created = created;
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity * 3 < expectedSize * 4) {
+      capacity <<= 1;
+    }
+    hashes = new long[capacity];
+    guids  = new byte[capacity * GUID_LENGTH];
+  }
+
+  /**
+   * 64-bit FNV-1a over the characters of a record string.
+   */
+  public static long hash(String recordString) {
+    long h = 0xcbf29ce484222325L;
+    final int length = recordString.length();
+    for (int i = 0; i < length; i++) {
+      h ^= recordString.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * @return the time at which this index was first built.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return the latest modification time of any row indexed, or -1 if none
+   *         have been.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Record that a row modified at <code>modified</code> has been indexed.
+   */
+  public void noteModified(long modified) {
+    if (modified > lastModified) {
+      lastModified = modified;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  protected int slotFor(long hash) {
+    int h = (int) (hash ^ (hash >>> 32));
+    h ^= (h >>> 16);
+    return h & (hashes.length - 1);
+  }
+
+  protected boolean occupied(int slot) {
+    return guids[slot * GUID_LENGTH] != EMPTY;
+  }
+
+  protected int find(long hash) {
+    final int mask = hashes.length - 1;
+    int slot = slotFor(hash);
+    while (occupied(slot)) {
+      if (hashes[slot] == hash) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -slot - 1;
+  }
+
+  protected static boolean isRegular(String guid) {
+    if (guid.length() != GUID_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      final char c = guid.charAt(i);
+      if (c <= IRREGULAR || c > 0x7F) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected void setSlot(int slot, long hash, String guid) {
+    hashes[slot] = hash;
+    final int offset = slot * GUID_LENGTH;
+    if (isRegular(guid)) {
+      for (int i = 0; i < GUID_LENGTH; i++) {
+        guids[offset + i] = (byte) guid.charAt(i);
+      }
+      irregularGuids.remove(hash);
+    } else {
+      guids[offset] = IRREGULAR;
+      irregularGuids.put(hash, guid);
+    }
+  }
+
+  /**
+   * Map a record string hash to a GUID, replacing any existing mapping.
+   */
+  public void put(long hash, String guid) {
+    if (guid == null) {
+      throw new IllegalArgumentException("Null GUID.");
+    }
+    int slot = find(hash);
+    if (slot < 0) {
+      if ((size + 1) * 4 > hashes.length * 3) {
+        resize(hashes.length << 1);
+        slot = find(hash);
+      }
+      slot = -slot - 1;
+      size += 1;
+    }
+    setSlot(slot, hash, guid);
+  }
+
+  /**
+   * @return the GUID mapped to the given record string hash, or null if there
+   *         is none.
+   */
+  public String get(long hash) {
+    final int slot = find(hash);
+    if (slot < 0) {
+      return null;
+    }
+    final int offset = slot * GUID_LENGTH;
+    if (guids[offset] == IRREGULAR) {
+      return irregularGuids.get(hash);
+    }
+    final char[] chars = new char[GUID_LENGTH];
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      chars[i] = (char) guids[offset + i];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Remove any mapping for the given record string hash.
+   */
+  public void remove(long hash) {
+    int hole = find(hash);
+    if (hole < 0) {
+      return;
+    }
+    if (guids[hole * GUID_LENGTH] == IRREGULAR) {
+      irregularGuids.remove(hash);
+    }
+
+    // Shift later entries in the same run back, so that lookups don't stop
+    // early at the hole.
+    final int mask = hashes.length - 1;
+    int slot = hole;
+    while (true) {
+      slot = (slot + 1) & mask;
+      if (!occupied(slot)) {
+        break;
+      }
+      final int home = slotFor(hashes[slot]);
+      final boolean canMove = (hole <= slot) ? (home <= hole || home > slot)
+                                             : (home <= hole && home > slot);
+      if (canMove) {
+        hashes[hole] = hashes[slot];
+        System.arraycopy(guids, slot * GUID_LENGTH, guids, hole * GUID_LENGTH, GUID_LENGTH);
+        hole = slot;
+      }
+    }
+    guids[hole * GUID_LENGTH] = EMPTY;
+    size -= 1;
+  }
+
+  protected void resize(int capacity) {
+    final long[] oldHashes = hashes;
+    final byte[] oldGuids = guids;
+    hashes = new long[capacity];
+    guids  = new byte[capacity * GUID_LENGTH];
+    for (int old = 0; old < oldHashes.length; old++) {
+      if (oldGuids[old * GUID_LENGTH] == EMPTY) {
+        continue;
+      }
+      final int slot = -find(oldHashes[old]) - 1;
+      hashes[slot] = oldHashes[old];
+      System.arraycopy(oldGuids, old * GUID_LENGTH, guids, slot * GUID_LENGTH, GUID_LENGTH);
+    }
+  }
+
+  /**
+   * Write this index to a file, replacing it atomically.
+   *
+   * @throws IOException
+   */
+  public void writeTo(File file) throws IOException {
+    final File temp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(created);
+      out.writeLong(lastModified);
+      out.writeInt(size);
+      for (int slot = 0; slot < hashes.length; slot++) {
+        if (!occupied(slot)) {
+          continue;
+        }
+        final int offset = slot * GUID_LENGTH;
+        out.writeLong(hashes[slot]);
+        if (guids[offset] == IRREGULAR) {
+          out.writeUTF(irregularGuids.get(hashes[slot]));
+        } else {
+          out.writeShort(GUID_LENGTH);
+          out.write(guids, offset, GUID_LENGTH);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Couldn't rename " + temp + " to " + file + ".");
+    }
+  }
+
+  /**
+   * Read an index written by <code>writeTo</code>.
+   *
+   * @return the index, or null if <code>file</code> doesn't exist.
+   * @throws IOException
+   *           if the file can't be read or isn't a valid index.
+   */
+  public static RecordStringIndex readFrom(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unknown record string index version " + version + ".");
+      }
+      final long created = in.readLong();
+      final long lastModified = in.readLong();
+      final int size = in.readInt();
+      if (size < 0) {
+        throw new IOException("Invalid record string index size " + size + ".");
+      }
+      final RecordStringIndex index = new RecordStringIndex(created, size);
+      index.lastModified = lastModified;
+      for (int i = 0; i < size; i++) {
+        final long hash = in.readLong();
+        index.put(hash, in.readUTF());
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+}
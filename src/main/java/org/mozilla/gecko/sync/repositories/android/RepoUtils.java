@@ -54,6 +54,20 @@ public class RepoUtils {
       return this.safeQuery(null, projection, selection, selectionArgs, sortOrder);
     }
 
+    /**
+     * @return true if the selection matches any row. Project a single narrow
+     *         column: the result is only checked for emptiness.
+     */
+    public boolean hasResults(String label, String[] projection,
+                              String selection, String[] selectionArgs) throws NullCursorException {
+      final Cursor c = safeQuery(label, projection, selection, selectionArgs, null);
+      try {
+        return c.moveToFirst();
+      } finally {
+        c.close();
+      }
+    }
+
     // For ContentProviderClient queries.
     public Cursor safeQuery(ContentProviderClient client, String label, String[] projection,
                             String selection, String[] selectionArgs, String sortOrder) throws NullCursorException, RemoteException {
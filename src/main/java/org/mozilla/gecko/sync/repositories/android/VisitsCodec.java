@@ -0,0 +1,207 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.sync.Logger;
+
+/**
+ * Encodes a history record's visits for the history extension database.
+ * <p>
+ * Visits of the usual form -- <code>{"date": microseconds, "type": n}</code>
+ * with a type between 0 and 255 -- are written compactly:
+ * <ul>
+ * <li>a format byte, <code>FORMAT_COMPACT</code>;</li>
+ * <li>the number of visits, as an unsigned varint;</li>
+ * <li>for each visit, the difference between its date and the previous
+ * visit's (or zero's), zig-zag encoded as a varint, followed by its type as
+ * a single byte.</li>
+ * </ul>
+ * Visits are usually listed most recent first and close together, so most
+ * dates take two to four bytes rather than a sixteen-digit decimal string.
+ * <p>
+ * Anything else is written as UTF-8 JSON text, which is also how visits were
+ * stored before this encoding existed. JSON text always starts with
+ * <code>[</code>, so can't be mistaken for the compact form.
+ * <p>
+ * Decoding builds visit objects directly, without parsing JSON text.
+ */
+public class VisitsCodec {
+  private static final String LOG_TAG = "VisitsCodec";
+
+  public static final byte FORMAT_COMPACT = 1;
+
+  public static final String KEY_DATE = "date";
+  public static final String KEY_TYPE = "type";
+
+  private static final byte[] EMPTY = new byte[] { FORMAT_COMPACT, 0 };
+
+  /**
+   * @return true if every visit is a <code>{date, type}</code> object that
+   *         the compact form can represent.
+   */
+  protected static boolean isCompactable(JSONArray visits) {
+    for (Object o : visits) {
+      if (!(o instanceof JSONObject)) {
+        return false;
+      }
+      final JSONObject visit = (JSONObject) o;
+      if (visit.size() != 2) {
+        return false;
+      }
+      final Object date = visit.get(KEY_DATE);
+      final Object type = visit.get(KEY_TYPE);
+      if (!(date instanceof Long) || !(type instanceof Long)) {
+        return false;
+      }
+      final long typeValue = ((Long) type).longValue();
+      if (typeValue < 0 || typeValue > 0xFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encode visits for storage.
+   *
+   * @param visits
+   *          the visits to encode; may be null, which is treated as empty.
+   * @return the encoded bytes.
+   */
+  public static byte[] encode(JSONArray visits) {
+    if (visits == null || visits.isEmpty()) {
+      return EMPTY.clone();
+    }
+    if (!isCompactable(visits)) {
+      try {
+        return visits.toJSONString().getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        // Can't happen.
+        throw new IllegalStateException(e);
+      }
+    }
+
+    // At most ten bytes per varint, plus a type byte per visit.
+    final int count = visits.size();
+    final byte[] buffer = new byte[1 + 5 + count * 11];
+    int position = 0;
+    buffer[position++] = FORMAT_COMPACT;
+    position = writeVarint(buffer, position, count);
+    long previous = 0;
+    for (Object o : visits) {
+      final JSONObject visit = (JSONObject) o;
+      final long date = ((Long) visit.get(KEY_DATE)).longValue();
+      final long delta = date - previous;
+      position = writeVarint(buffer, position, (delta << 1) ^ (delta >> 63));
+      buffer[position++] = (byte) ((Long) visit.get(KEY_TYPE)).longValue();
+      previous = date;
+    }
+    final byte[] out = new byte[position];
+    System.arraycopy(buffer, 0, out, 0, position);
+    return out;
+  }
+
+  /**
+   * Decode visits written by <code>encode</code>, or stored as JSON text.
+   *
+   * @param encoded
+   *          the stored bytes; may be null, which is treated as empty.
+   * @return the visits, or null if <code>encoded</code> is malformed.
+   */
+  @SuppressWarnings("unchecked")
+  public static JSONArray decode(byte[] encoded) {
+    if (encoded == null || encoded.length == 0) {
+      return new JSONArray();
+    }
+    if (encoded[0] != FORMAT_COMPACT) {
+      return decodeJSON(encoded);
+    }
+
+    try {
+      final int[] position = new int[] { 1 };
+      final long count = readVarint(encoded, position);
+      if (count < 0 || count > encoded.length) {
+        Logger.error(LOG_TAG, "Invalid visit count " + count + ".");
+        return null;
+      }
+      final JSONArray visits = new JSONArray();
+      long date = 0;
+      for (int i = 0; i < count; i++) {
+        final long zigzag = readVarint(encoded, position);
+        date += (zigzag >>> 1) ^ -(zigzag & 1);
+        final long type = encoded[position[0]++] & 0xFF;
+        final JSONObject visit = new JSONObject();
+        visit.put(KEY_DATE, Long.valueOf(date));
+        visit.put(KEY_TYPE, Long.valueOf(type));
+        visits.add(visit);
+      }
+      if (position[0] != encoded.length) {
+        Logger.error(LOG_TAG, "Trailing bytes after visits.");
+        return null;
+      }
+      return visits;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      Logger.error(LOG_TAG, "Truncated visits.", e);
+      return null;
+    }
+  }
+
+  protected static JSONArray decodeJSON(byte[] encoded) {
+    try {
+      return decodeJSON(new String(encoded, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // Can't happen.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Decode visits stored as JSON text.
+   *
+   * @return the visits, or null if <code>json</code> isn't a JSON array.
+   */
+  public static JSONArray decodeJSON(String json) {
+    try {
+      return (JSONArray) new JSONParser().parse(json);
+    } catch (ParseException e) {
+      Logger.error(LOG_TAG, "JSON parsing error for visits.", e);
+      return null;
+    } catch (ClassCastException e) {
+      Logger.error(LOG_TAG, "Visits are not a JSON array.", e);
+      return null;
+    }
+  }
+
+  protected static int writeVarint(byte[] buffer, int position, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+    return position;
+  }
+
+  protected static long readVarint(byte[] buffer, int[] position) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      final byte b = buffer[position[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+      if (shift > 63) {
+        throw new ArrayIndexOutOfBoundsException("Varint too long.");
+      }
+    }
+  }
+}
@@ -9,7 +9,7 @@ import java.net.URISyntaxException;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.MetaGlobalException;
-import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
+import org.mozilla.gecko.sync.repositories.PagedServer11Repository;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserBookmarksRepository;
@@ -22,8 +22,8 @@ public class AndroidBrowserBookmarksServerSyncStage extends ServerSyncStage {
 
   // Eventually this kind of sync stage will be data-driven,
   // and all this hard-coding can go away.
-  private static final String BOOKMARKS_SORT          = "index";
-  private static final long   BOOKMARKS_REQUEST_LIMIT = 5000;         // Sanity limit.
+  private static final String BOOKMARKS_SORT      = "index";
+  private static final long   BOOKMARKS_PAGE_SIZE = 1000;
 
   public AndroidBrowserBookmarksServerSyncStage(GlobalSession session) {
     super(session);
@@ -44,14 +44,16 @@ public class AndroidBrowserBookmarksServerSyncStage extends ServerSyncStage {
     return VersionConstants.BOOKMARKS_ENGINE_VERSION;
   }
 
+  // Paged by offset in "index" order, which delivers folders before their
+  // children, rather than oldest first.
   @Override
   protected Repository getRemoteRepository() throws URISyntaxException {
-    return new ConstrainedServer11Repository(session.config.getClusterURLString(),
-                                             session.config.username,
-                                             getCollection(),
-                                             session,
-                                             BOOKMARKS_REQUEST_LIMIT,
-                                             BOOKMARKS_SORT);
+    return new PagedServer11Repository(session.config.getClusterURLString(),
+                                       session.config.username,
+                                       getCollection(),
+                                       session,
+                                       BOOKMARKS_PAGE_SIZE,
+                                       BOOKMARKS_SORT);
   }
 
   @Override
@@ -24,6 +24,7 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   // and all this hard-coding can go away.
   private static final String HISTORY_SORT          = "index";
   private static final long   HISTORY_REQUEST_LIMIT = 250;
+  private static final int    HISTORY_UPLOAD_ITEM_THRESHOLD = 100;   // Server maximum.
 
   public AndroidBrowserHistoryServerSyncStage(GlobalSession session) {
     super(session);
@@ -59,11 +60,23 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
                                              HISTORY_SORT);
   }
 
+  @Override
+  protected int getUploadItemThreshold() {
+    // History records are small, and there are lots of them.
+    return HISTORY_UPLOAD_ITEM_THRESHOLD;
+  }
+
   @Override
   protected RecordFactory getRecordFactory() {
     return new HistoryRecordFactory();
   }
 
+  @Override
+  protected boolean shouldDecryptInOrder() {
+    // History records are independent of one another.
+    return false;
+  }
+
   @Override
   protected boolean isEnabled() throws MetaGlobalException {
     if (session == null || session.getContext() == null) {
@@ -8,7 +8,7 @@ import java.net.URISyntaxException;
 
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.GlobalSession;
-import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
+import org.mozilla.gecko.sync.repositories.PagedServer11Repository;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.FormHistoryRepositorySession;
@@ -20,8 +20,8 @@ public class FormHistoryServerSyncStage extends ServerSyncStage {
 
   // Eventually this kind of sync stage will be data-driven,
   // and all this hard-coding can go away.
-  private static final String FORM_HISTORY_SORT          = "index";
-  private static final long   FORM_HISTORY_REQUEST_LIMIT = 5000;         // Sanity limit.
+  private static final long FORM_HISTORY_PAGE_SIZE = 1000;
+  private static final int  FORM_HISTORY_UPLOAD_ITEM_THRESHOLD = 100;   // Server maximum.
 
   public FormHistoryServerSyncStage(GlobalSession session) {
     super(session);
@@ -49,12 +49,18 @@ public class FormHistoryServerSyncStage extends ServerSyncStage {
 
   @Override
   protected Repository getRemoteRepository() throws URISyntaxException {
-    return new ConstrainedServer11Repository(session.config.getClusterURLString(),
-                                             session.config.username,
-                                             getCollection(),
-                                             session,
-                                             FORM_HISTORY_REQUEST_LIMIT,
-                                             FORM_HISTORY_SORT);
+    return new PagedServer11Repository(session.config.getClusterURLString(),
+                                       session.config.username,
+                                       getCollection(),
+                                       session,
+                                       FORM_HISTORY_PAGE_SIZE,
+                                       getHighWaterMarkStore());
+  }
+
+  @Override
+  protected int getUploadItemThreshold() {
+    // Form history records are tiny.
+    return FORM_HISTORY_UPLOAD_ITEM_THRESHOLD;
   }
 
   @Override
@@ -14,6 +14,7 @@ import org.mozilla.gecko.sync.CredentialsSource;
 import org.mozilla.gecko.sync.EngineSettings;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.MetaGlobalException;
 import org.mozilla.gecko.sync.NoCollectionKeysSetException;
@@ -27,6 +28,7 @@ import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.repositories.HighWaterMarkStore;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
@@ -34,6 +36,7 @@ import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.SharedPreferencesHighWaterMarkStore;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -58,6 +61,9 @@ public abstract class ServerSyncStage implements
 
   protected static final String LOG_TAG = "ServerSyncStage";
 
+  protected static final int MAX_DECRYPT_THREADS = 4;
+  protected static final int MAX_CONCURRENT_UPLOADS = 2;
+
   protected final GlobalSession session;
 
   protected long stageStartTimestamp = -1;
@@ -154,6 +160,49 @@ public abstract class ServerSyncStage implements
   protected abstract Repository getLocalRepository();
   protected abstract RecordFactory getRecordFactory();
 
+  /**
+   * Number of threads on which to decrypt incoming records, or 0 to decrypt
+   * them on the thread that fetches them. Override this in subclasses.
+   */
+  protected int getDecryptThreadCount() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    if (processors <= 1) {
+      return 0;
+    }
+    return Math.min(processors, MAX_DECRYPT_THREADS);
+  }
+
+  /**
+   * Whether incoming records must reach the local repository in the order in
+   * which the server returned them. Override this in subclasses that don't
+   * care.
+   */
+  protected boolean shouldDecryptInOrder() {
+    return true;
+  }
+
+  /**
+   * Maximum number of records to upload in each POST. Override this in
+   * subclasses whose records are unusually small or large.
+   */
+  protected int getUploadItemThreshold() {
+    return Server11Repository.DEFAULT_UPLOAD_ITEM_THRESHOLD;
+  }
+
+  /**
+   * Maximum size in bytes of each POST. Override this in subclasses.
+   */
+  protected long getUploadByteThreshold() {
+    return Server11Repository.DEFAULT_UPLOAD_BYTE_THRESHOLD;
+  }
+
+  /**
+   * Number of POSTs to have in flight at once. Override this in subclasses.
+   */
+  protected int getMaxConcurrentUploads() {
+    return MAX_CONCURRENT_UPLOADS;
+  }
+
   // Override this in subclasses.
   protected Repository getRemoteRepository() throws URISyntaxException {
     return new Server11Repository(session.config.getClusterURLString(),
@@ -171,8 +220,17 @@ public abstract class ServerSyncStage implements
   protected Repository wrappedServerRepo() throws NoCollectionKeysSetException, URISyntaxException {
     String collection = this.getCollection();
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
-    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
+    Repository remote = getRemoteRepository();
+    if (remote instanceof Server11Repository) {
+      Server11Repository serverRepo = (Server11Repository) remote;
+      serverRepo.uploadItemThreshold = getUploadItemThreshold();
+      serverRepo.uploadByteThreshold = getUploadByteThreshold();
+      serverRepo.maxConcurrentUploads = getMaxConcurrentUploads();
+    }
+    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    cryptoRepo.decryptThreads = getDecryptThreadCount();
+    cryptoRepo.decryptInOrder = shouldDecryptInOrder();
     return cryptoRepo;
   }
 
@@ -180,6 +238,14 @@ public abstract class ServerSyncStage implements
     return this.getCollection() + ".";
   }
 
+  /**
+   * Where a paged fetch from the server records its progress. Stored
+   * alongside our other configuration, and cleared when we reset.
+   */
+  protected HighWaterMarkStore getHighWaterMarkStore() {
+    return new SharedPreferencesHighWaterMarkStore(session.config.getBranch(bundlePrefix()));
+  }
+
   protected SynchronizerConfiguration getConfig() throws NonObjectJSONException, IOException, ParseException {
     return new SynchronizerConfiguration(session.config.getBranch(bundlePrefix()));
   }
@@ -194,6 +260,7 @@ public abstract class ServerSyncStage implements
     Synchronizer synchronizer = new ServerLocalSynchronizer();
     synchronizer.repositoryA = remote;
     synchronizer.repositoryB = this.getLocalRepository();
+    synchronizer.metrics = session.getMetrics().getCurrentStage();
     synchronizer.load(getConfig());
 
     return synchronizer;
@@ -228,6 +295,7 @@ public abstract class ServerSyncStage implements
     config.localBundle.setTimestamp(0L);
     config.remoteBundle.setTimestamp(0L);
     persistConfig(config);
+    getHighWaterMarkStore().clearHighWaterMark();
     Logger.info(LOG_TAG, "Reset timestamps for " + this);
   }
 
@@ -481,6 +549,46 @@ public abstract class ServerSyncStage implements
     Logger.info(LOG_TAG, "Wiping server complete.");
   }
 
+  /**
+   * Whether syncing this engine would transfer nothing. That is the case if
+   * info/collections shows no server change since our last fetch, and the
+   * local repository has no changes since our last local fetch.
+   * <p>
+   * An engine that has never synced, or whose timestamps have been reset, is
+   * never idle.
+   *
+   * @return true if this stage can be skipped.
+   */
+  protected boolean isIdle() {
+    final InfoCollections infoCollections = session.config.infoCollections;
+    if (infoCollections == null) {
+      return false;
+    }
+
+    final SynchronizerConfiguration config;
+    try {
+      config = this.getConfig();
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check whether " + this + " is idle: fetching config failed.", e);
+      return false;
+    }
+    final long remoteTimestamp = config.remoteBundle.getTimestamp();
+    final long localTimestamp = config.localBundle.getTimestamp();
+    if (remoteTimestamp <= 0 || localTimestamp <= 0) {
+      return false;
+    }
+
+    if (infoCollections.updateNeeded(getCollection(), remoteTimestamp)) {
+      Logger.debug(LOG_TAG, "Collection " + getCollection() + " changed on server since " + remoteTimestamp + ".");
+      return false;
+    }
+    if (getLocalRepository().hasChangesSince(localTimestamp, session.getContext())) {
+      Logger.debug(LOG_TAG, "Local " + getEngineName() + " changed since " + localTimestamp + ".");
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public void execute() throws NoSuchStageException {
     final String name = getEngineName();
@@ -549,6 +657,12 @@ public abstract class ServerSyncStage implements
       return;
     }
 
+    if (isIdle()) {
+      Logger.info(LOG_TAG, "Nothing to sync for stage " + name + ". Skipping.");
+      session.advance();
+      return;
+    }
+
     Synchronizer synchronizer;
     try {
       synchronizer = this.getConfiguredSynchronizer(session);
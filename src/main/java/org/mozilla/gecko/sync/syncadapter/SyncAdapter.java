@@ -277,6 +277,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
                             final ContentProviderClient provider,
                             final SyncResult syncResult) {
     Logger.setThreadLogTag(SyncConstants.GLOBAL_LOG_TAG);
+    // Keep writing to the Android log off the sync's network and database threads.
+    Logger.setLogAsynchronously(true);
     Logger.resetLogging();
     Utils.reseedSharedRandom(); // Make sure we don't work with the same random seed for too long.
 
@@ -506,6 +508,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
   public void handleStageCompleted(Stage currentState,
                                    GlobalSession globalSession) {
     Logger.trace(LOG_TAG, "Stage completed: " + currentState);
+    Logger.debug(LOG_TAG, "{}", globalSession.getMetrics().getStage(currentState.name()));
   }
 
   @Override
@@ -87,7 +87,7 @@ class ConcurrentRecordConsumer extends RecordConsumer {
           Logger.debug(LOG_TAG, "run() dropped monitor.");
         }
 
-        Logger.trace(LOG_TAG, "Storing record with guid " + record.guid + ".");
+        Logger.trace(LOG_TAG, "Storing record with guid {}.", record.guid);
         try {
           delegate.store(record);
         } catch (Exception e) {
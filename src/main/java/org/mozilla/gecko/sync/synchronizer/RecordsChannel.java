@@ -4,9 +4,12 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Queue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.ThreadPool;
@@ -57,6 +60,17 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  * RecordsChannel exists to enforce this ordering of operations.
  *
+ * The queue between fetch and store is bounded. When it is full, the fetching
+ * thread stalls until the consumer makes room; the consumer in turn stalls
+ * while the sink has too much store work backed up. A streaming source thus
+ * stops reading from the network rather than buffering an entire collection.
+ *
+ * If the source can resume an interrupted fetch, then every so often, once
+ * the sink has applied the stores issued so far, the source is told how many
+ * of its records are safely stored, so that it can record its progress. This
+ * stops at the first failed store: a source told to skip past a record that
+ * was never stored would never fetch it again.
+ *
  * @author rnewman
  *
  */
@@ -67,6 +81,28 @@ public class RecordsChannel implements
   RepositorySessionBeginDelegate {
 
   private static final String LOG_TAG = "RecordsChannel";
+
+  /**
+   * Default maximum number of fetched records waiting to be stored.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 500;
+
+  /**
+   * Pass as a queue capacity to never stall fetching.
+   */
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  // How often a stalled fetch re-checks whether the consumer has stopped.
+  private static final long FETCH_STALL_POLL_MILLIS = 100;
+
+  // A stalled consumer re-checks the sink's store backlog whenever the sink
+  // reports a store. Not every applied store is reported, so it also
+  // re-checks this often.
+  private static final long STORE_STALL_MAX_WAIT_MILLIS = 100;
+
+  // How many records to store between reports of progress to the source.
+  protected static final int CHECKPOINT_INTERVAL = 100;
+
   public RepositorySession source;
   public RepositorySession sink;
   private RecordsChannelDelegate delegate;
@@ -78,11 +114,30 @@ public class RecordsChannel implements
   protected final AtomicInteger numStored = new AtomicInteger();
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
+  protected final AtomicInteger maxQueueDepth = new AtomicInteger();
+  protected final AtomicInteger numFetchStalls = new AtomicInteger();
+  protected final AtomicLong fetchStallNanos = new AtomicLong();
+  protected final AtomicLong storeStallNanos = new AtomicLong();
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
+    this(source, sink, delegate, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param queueCapacity
+   *          maximum number of fetched records waiting to be stored, or
+   *          <code>UNBOUNDED</code>.
+   */
+  public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate, int queueCapacity) {
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Queue capacity must be positive.");
+    }
     this.source    = source;
     this.sink      = sink;
     this.delegate  = delegate;
     this.timestamp = source.lastSyncTimestamp;
+    this.queueCapacity = queueCapacity;
+    this.toProcess = new LinkedBlockingQueue<Record>(queueCapacity);
   }
 
   /*
@@ -96,10 +151,16 @@ public class RecordsChannel implements
    */
   private RecordConsumer consumer;
   private boolean waitingForQueueDone = false;
-  private ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
+  private volatile boolean consumerStopped = false;
+  private boolean checkpointing = false;
+
+  // Notified whenever the sink reports a store.
+  private final Object storeProgressMonitor = new Object();
+  private final int queueCapacity;
+  private final LinkedBlockingQueue<Record> toProcess;
 
   @Override
-  public ConcurrentLinkedQueue<Record> getQueue() {
+  public Queue<Record> getQueue() {
     return toProcess;
   }
 
@@ -143,6 +204,53 @@ public class RecordsChannel implements
     return numStoreFailed.get();
   }
 
+  /**
+   * Get the number of fetched records currently waiting to be stored.
+   *
+   * @return queue depth.
+   */
+  public int getQueueDepth() {
+    return toProcess.size();
+  }
+
+  /**
+   * Get the largest number of fetched records that have been waiting to be
+   * stored at once.
+   *
+   * @return maximum queue depth.
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * Get the number of times fetching stalled because the queue was full.
+   *
+   * @return number of fetch stalls.
+   */
+  public int getFetchStallCount() {
+    return numFetchStalls.get();
+  }
+
+  /**
+   * Get the total time fetching has spent stalled on a full queue.
+   *
+   * @return stall time in milliseconds.
+   */
+  public long getFetchStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(fetchStallNanos.get());
+  }
+
+  /**
+   * Get the total time storing has spent stalled waiting for the sink to work
+   * through its backlog.
+   *
+   * @return stall time in milliseconds.
+   */
+  public long getStoreStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(storeStallNanos.get());
+  }
+
   /**
    * Start records flowing through the channel.
    */
@@ -160,6 +268,12 @@ public class RecordsChannel implements
     numFetchFailed.set(0);
     numStored.set(0);
     numStoreFailed.set(0);
+    maxQueueDepth.set(0);
+    numFetchStalls.set(0);
+    fetchStallNanos.set(0);
+    storeStallNanos.set(0);
+    consumerStopped = false;
+    checkpointing = source.supportsResume();
     // Start a consumer thread.
     this.consumer = new ConcurrentRecordConsumer(this);
     ThreadPool.run(this.consumer);
@@ -178,27 +292,127 @@ public class RecordsChannel implements
 
   @Override
   public void store(Record record) {
-    numStored.incrementAndGet();
+    final int stored = numStored.incrementAndGet();
+    waitForSinkBacklog();
     try {
       sink.store(record);
     } catch (NoStoreDelegateException e) {
       Logger.error(LOG_TAG, "Got NoStoreDelegateException in RecordsChannel.store(). This should not occur. Aborting.", e);
       delegate.onFlowStoreFailed(this, e, record.guid);
+      return;
+    }
+    if (checkpointing && stored % CHECKPOINT_INTERVAL == 0) {
+      checkpoint(stored);
     }
   }
 
+  /**
+   * Once the sink has applied every store issued so far, tell the source that
+   * the first <code>count</code> records it fetched are stored.
+   */
+  protected void checkpoint(final long count) {
+    if (!canCheckpoint()) {
+      return;
+    }
+    sink.afterPendingStores(new Runnable() {
+      @Override
+      public void run() {
+        // Stores covered by this checkpoint might have failed since it was
+        // queued.
+        if (canCheckpoint()) {
+          source.fetchedRecordsStored(count);
+        }
+      }
+    });
+  }
+
+  /**
+   * After a fetch failure, our count no longer lines up with the records the
+   * source delivered; after a store failure, not every record it covers has
+   * been stored.
+   */
+  protected boolean canCheckpoint() {
+    return numFetchFailed.get() == 0 && numStoreFailed.get() == 0;
+  }
+
   @Override
   public void onFetchFailed(Exception ex, Record record) {
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     numFetchFailed.incrementAndGet();
-    this.consumer.halt();
+    // Tell our delegate before halting: halting can complete the flow.
     delegate.onFlowFetchFailed(this, ex);
+    this.consumer.halt();
+  }
+
+  /**
+   * Block the consumer while the sink has at least a queue's worth of store
+   * work pending, so that records back up here -- and stall the fetch --
+   * rather than in the sink.
+   */
+  protected void waitForSinkBacklog() {
+    if (queueCapacity == UNBOUNDED || sink.getStoreBacklog() < queueCapacity) {
+      return;
+    }
+    final long start = System.nanoTime();
+    try {
+      synchronized (storeProgressMonitor) {
+        while (sink.isActive() && sink.getStoreBacklog() >= queueCapacity) {
+          storeProgressMonitor.wait(STORE_STALL_MAX_WAIT_MILLIS);
+        }
+      }
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted waiting for sink backlog to drain.", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      storeStallNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Block the fetching thread until the consumer makes room for
+   * <code>record</code>.
+   *
+   * @return true if the record was queued; false if the consumer has stopped
+   *         or we were interrupted, and the record was not queued.
+   */
+  protected boolean stallUntilQueued(Record record) {
+    numFetchStalls.incrementAndGet();
+    final long start = System.nanoTime();
+    try {
+      while (!consumerStopped) {
+        this.consumer.doNotify();
+        if (toProcess.offer(record, FETCH_STALL_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      Logger.debug(LOG_TAG, "Consumer stopped while fetch was stalled. Dropping record {}.", record.guid);
+      return false;
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted while fetch was stalled.", e);
+      Thread.currentThread().interrupt();
+      onFetchFailed(e, record);
+      return false;
+    } finally {
+      fetchStallNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  protected void noteQueueDepth(int depth) {
+    int max;
+    while (depth > (max = maxQueueDepth.get())) {
+      if (maxQueueDepth.compareAndSet(max, depth)) {
+        return;
+      }
+    }
   }
 
   @Override
   public void onFetchedRecord(Record record) {
     numFetched.incrementAndGet();
-    this.toProcess.add(record);
+    if (!this.toProcess.offer(record) && !stallUntilQueued(record)) {
+      return;
+    }
+    noteQueueDepth(toProcess.size());
     this.consumer.doNotify();
   }
 
@@ -212,8 +426,9 @@ public class RecordsChannel implements
 
   @Override
   public void onRecordStoreFailed(Exception ex, String recordGuid) {
-    Logger.trace(LOG_TAG, "Failed to store record with guid " + recordGuid);
+    Logger.trace(LOG_TAG, "Failed to store record with guid {}", recordGuid);
     numStoreFailed.incrementAndGet();
+    notifyStoreProgress();
     this.consumer.stored();
     delegate.onFlowStoreFailed(this, ex, recordGuid);
     // TODO: abort?
@@ -221,14 +436,25 @@ public class RecordsChannel implements
 
   @Override
   public void onRecordStoreSucceeded(String guid) {
-    Logger.trace(LOG_TAG, "Stored record with guid " + guid);
+    Logger.trace(LOG_TAG, "Stored record with guid {}", guid);
+    notifyStoreProgress();
     this.consumer.stored();
   }
 
+  /**
+   * Wake the consumer if it's waiting for the sink's backlog to drain.
+   */
+  protected void notifyStoreProgress() {
+    synchronized (storeProgressMonitor) {
+      storeProgressMonitor.notifyAll();
+    }
+  }
+
 
   @Override
   public void consumerIsDone(boolean allRecordsQueued) {
     Logger.trace(LOG_TAG, "Consumer is done. Are we waiting for it? " + waitingForQueueDone);
+    consumerStopped = true;
     if (waitingForQueueDone) {
       waitingForQueueDone = false;
       this.sink.storeDone();                 // Now we'll be waiting for onStoreCompleted.
@@ -239,6 +465,9 @@ public class RecordsChannel implements
   public void onStoreCompleted(long storeEnd) {
     Logger.trace(LOG_TAG, "onStoreCompleted. Notifying delegate of onFlowCompleted. " +
                           "Fetch end is " + fetchEnd + ", store end is " + storeEnd);
+    Logger.debug(LOG_TAG, "Max queue depth " + getMaxQueueDepth() + "; fetch stalled " +
+                          getFetchStallCount() + " times for " + getFetchStallMillis() + "ms; " +
+                          "store stalled for " + getStoreStallMillis() + "ms.");
     // TODO: synchronize on consumer callback?
     delegate.onFlowCompleted(this, fetchEnd, storeEnd);
   }
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.synchronizer;
 
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.SynchronizerConfiguration;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 
@@ -70,6 +71,11 @@ public class Synchronizer implements SynchronizerSessionDelegate {
   public RepositorySessionBundle bundleA;
   public RepositorySessionBundle bundleB;
 
+  /**
+   * Where both repository sessions and both flows record their work.
+   */
+  public StageMetrics metrics = new StageMetrics(null);
+
   /**
    * Fetch a synchronizer session appropriate for this <code>Synchronizer</code>
    */
@@ -6,9 +6,13 @@ package org.mozilla.gecko.sync.synchronizer;
 
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -210,6 +214,7 @@ implements RecordsChannelDelegate,
     pendingATimestamp = fetchEnd;
     storeEndBTimestamp = storeEnd;
     numInboundRecords.set(recordsChannel.getFetchCount());
+    recordFlowMetrics(recordsChannel, Count.RECORDS_FETCHED);
     flowAToBCompleted = true;
     channelBToA.flow();
   }
@@ -229,6 +234,7 @@ implements RecordsChannelDelegate,
     pendingBTimestamp = fetchEnd;
     storeEndATimestamp = storeEnd;
     numOutboundRecords.set(recordsChannel.getFetchCount());
+    recordFlowMetrics(recordsChannel, Count.RECORDS_SENT);
     flowBToACompleted = true;
 
     // Finish the two sessions.
@@ -240,6 +246,19 @@ implements RecordsChannelDelegate,
     }
   }
 
+  /**
+   * Add a completed flow's counts and stalls to the synchronizer's metrics.
+   *
+   * @param fetched what to count the records the flow fetched as.
+   */
+  protected void recordFlowMetrics(RecordsChannel recordsChannel, Count fetched) {
+    final StageMetrics metrics = getSynchronizer().metrics;
+    metrics.add(fetched, recordsChannel.getFetchCount());
+    metrics.add(Count.RECORDS_FAILED, recordsChannel.getFetchFailureCount() + recordsChannel.getStoreFailureCount());
+    metrics.addNanos(Phase.QUEUE_WAIT, TimeUnit.MILLISECONDS.toNanos(recordsChannel.getFetchStallMillis() +
+                                                                    recordsChannel.getStoreStallMillis()));
+  }
+
   @Override
   public void onFlowCompleted(RecordsChannel recordsChannel, long fetchEnd, long storeEnd) {
     onSecondFlowCompleted(recordsChannel, fetchEnd, storeEnd);
@@ -311,6 +330,7 @@ implements RecordsChannelDelegate,
     }
     if (this.sessionA == null) {
       this.sessionA = session;
+      this.sessionA.setMetrics(getSynchronizer().metrics);
 
       // Unbundle.
       try {
@@ -325,6 +345,7 @@ implements RecordsChannelDelegate,
     }
     if (this.sessionB == null) {
       this.sessionB = session;
+      this.sessionB.setMetrics(getSynchronizer().metrics);
       // We no longer need a reference to our context.
       this.context = null;
 
@@ -44,6 +44,9 @@ import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.delegates.GlobalSessionCallback;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.repositories.domain.VersionConstants;
@@ -327,6 +330,56 @@ public class TestGlobalSession {
     return callback;
   }
 
+  /**
+   * Test that requests made during a stage are charged to it.
+   */
+  @Test
+  public void testMetricsChargedToStage() throws Exception {
+    final HashMap<Stage, GlobalSyncStage> stagesToRun = new HashMap<Stage, GlobalSyncStage>();
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback();
+    final GlobalSession session = new MockGlobalSession(TEST_CLUSTER_URL, TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), callback) {
+      @Override
+      protected void prepareStages() {
+        super.prepareStages();
+        stagesToRun.putAll(this.stages);
+        this.stages = stagesToRun;
+      }
+    };
+
+    stagesToRun.put(Stage.syncBookmarks, new MockServerSyncStage(session) {
+      @Override
+      public void execute() {
+        doRequest();
+        doRequest();
+        session.advance();
+      }
+    });
+
+    data.startHTTPServer(new MockServer());
+    WaitHelper.getTestWaiter().performWait(WaitHelper.onThreadRunnable(new Runnable() {
+      public void run() {
+        try {
+          session.start();
+        } catch (Exception e) {
+          final AssertionFailedError error = new AssertionFailedError();
+          error.initCause(e);
+          WaitHelper.getTestWaiter().performNotify(error);
+        }
+      }
+    }));
+    data.stopHTTPServer();
+
+    assertTrue(callback.calledSuccess);
+    final SyncMetrics metrics = session.getMetrics();
+    final StageMetrics bookmarks = metrics.getStage(Stage.syncBookmarks.name());
+    assertEquals(2, bookmarks.get(Count.REQUESTS));
+    assertEquals(0, metrics.getStage(Stage.syncHistory.name()).get(Count.REQUESTS));
+    assertEquals(0, metrics.getStage(SyncMetrics.UNATTRIBUTED).get(Count.REQUESTS));
+    assertEquals(2, metrics.getTotal(Count.REQUESTS));
+    assertTrue(metrics.summary().contains("syncBookmarks: "));
+  }
+
   @Test
   public void testOnSuccessBackoffAdvanced() throws SyncConfigurationException,
       IllegalArgumentException, NonObjectJSONException, IOException,
@@ -0,0 +1,275 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.GzipMockServer;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.RouteStatistics;
+import org.mozilla.gecko.sync.net.SyncResourceDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequestDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
+import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
+
+import ch.boye.httpclientandroidlib.HttpHost;
+
+public class TestGzipResponses {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+  private static final String STORAGE_URL = TEST_SERVER + "/1.1/c6o7dvmr2c4ud2fyv6woz2u4zi22bcyd/storage/";
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  // Set by delegates.
+  protected SyncStorageResponse success;
+  protected Exception error;
+  protected ArrayList<String> lines = new ArrayList<String>();
+  protected ArrayList<CryptoRecord> records = new ArrayList<CryptoRecord>();
+
+  protected abstract class RecordingDelegate {
+    public String credentials() {
+      return null;
+    }
+
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      success = response;
+    }
+
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      error = new Exception("Request failed: " + response.getStatusCode());
+    }
+
+    public void handleRequestError(Exception ex) {
+      error = ex;
+    }
+  }
+
+  protected class RecordRequestDelegate extends RecordingDelegate implements SyncStorageRequestDelegate {
+  }
+
+  protected class LinesDelegate extends SyncStorageCollectionRequestDelegate {
+    @Override
+    public String credentials() {
+      return null;
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public void handleRequestProgress(String progress) {
+      lines.add(progress);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      success = response;
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      error = new Exception("Request failed: " + response.getStatusCode());
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      error = ex;
+    }
+  }
+
+  protected class RecordsDelegate extends WBOCollectionRequestDelegate {
+    @Override
+    public String credentials() {
+      return null;
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public KeyBundle keyBundle() {
+      return null;
+    }
+
+    @Override
+    public void handleWBO(CryptoRecord record) {
+      records.add(record);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      success = response;
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      error = new Exception("Request failed: " + response.getStatusCode());
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      error = ex;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+    BaseResource.resetRouteStatistics();
+  }
+
+  @SuppressWarnings("static-method")
+  @After
+  public void tearDown() {
+    SyncResourceDelegate.acceptGzip = true;
+  }
+
+  protected static RouteStatistics statistics() {
+    return BaseResource.getRouteStatistics().get(new HttpHost("localhost", TEST_PORT, "http"));
+  }
+
+  // Base64 ciphertext compresses a little; repeated envelopes compress a lot.
+  protected static String wbo(int i) {
+    return "{\"id\":\"record" + i + "\",\"modified\":1.3319567131E9," +
+           "\"payload\":\"{\\\"ciphertext\\\":\\\"c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0\\\",\\\"IV\\\":\\\"aXZpdml2aXZpdml2aXZpdg==\\\",\\\"hmac\\\":\\\"0123456789abcdef\\\"}\"}";
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    final String body = wbo(0);
+    final GzipMockServer server = new GzipMockServer(200, body);
+    data.startHTTPServer(server);
+    try {
+      final SyncStorageRecordRequest r = new SyncStorageRecordRequest(new URI(STORAGE_URL + "meta/global"));
+      r.delegate = new RecordRequestDelegate();
+      r.get();
+      assertNull(error);
+      assertNotNull(success);
+      // Read the body before the server goes away.
+      final ExtendedJSONObject o = success.jsonObjectBody();
+      assertEquals("record0", o.getString("id"));
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertEquals("gzip", server.acceptEncoding);
+    assertTrue(server.gzipped);
+
+    final RouteStatistics stats = statistics();
+    assertEquals(1, stats.getGzippedBodiesRead());
+    assertEquals(body.length(), stats.getBodyBytesDecoded());
+    assertTrue(stats.getBodyBytesReceived() > 0);
+  }
+
+  @Test
+  public void testLineByLine() throws Exception {
+    final StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      body.append(wbo(i)).append("\n");
+    }
+    final GzipMockServer server = new GzipMockServer(200, body.toString());
+    server.contentType = "application/newlines";
+    data.startHTTPServer(server);
+    try {
+      final SyncStorageCollectionRequest r = new SyncStorageCollectionRequest(new URI(STORAGE_URL + "lines"));
+      r.delegate = new LinesDelegate();
+      r.get();
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertNull(error);
+    assertNotNull(success);
+    assertTrue(server.gzipped);
+    assertEquals(50, lines.size());
+    assertEquals(wbo(0), lines.get(0));
+    assertEquals(wbo(49), lines.get(49));
+
+    final RouteStatistics stats = statistics();
+    assertEquals(1, stats.getGzippedBodiesRead());
+    assertEquals(body.length(), stats.getBodyBytesDecoded());
+    assertTrue(stats.getBodyBytesSaved() > body.length() / 2);
+  }
+
+  @Test
+  public void testRecords() throws Exception {
+    final StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      body.append(wbo(i)).append("\n");
+    }
+    final GzipMockServer server = new GzipMockServer(200, body.toString());
+    server.contentType = "application/newlines";
+    data.startHTTPServer(server);
+    try {
+      final SyncStorageCollectionRequest r = new SyncStorageCollectionRequest(new URI(STORAGE_URL + "records"));
+      r.delegate = new RecordsDelegate();
+      r.get();
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertNull(error);
+    assertNotNull(success);
+    assertTrue(server.gzipped);
+    assertEquals(20, records.size());
+    assertEquals("record19", records.get(19).guid);
+  }
+
+  @Test
+  public void testUncompressed() throws Exception {
+    SyncResourceDelegate.acceptGzip = false;
+    final String body = wbo(0);
+    final GzipMockServer server = new GzipMockServer(200, body);
+    data.startHTTPServer(server);
+    try {
+      final SyncStorageRecordRequest r = new SyncStorageRecordRequest(new URI(STORAGE_URL + "meta/global"));
+      r.delegate = new RecordRequestDelegate();
+      r.get();
+      assertNull(error);
+      assertNotNull(success);
+      assertEquals(body, success.body());
+      BaseResource.consumeEntity(success);
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertNull(server.acceptEncoding);
+    assertFalse(server.gzipped);
+
+    final RouteStatistics stats = statistics();
+    assertEquals(1, stats.getBodiesRead());
+    assertEquals(0, stats.getGzippedBodiesRead());
+    assertEquals(stats.getBodyBytesReceived(), stats.getBodyBytesDecoded());
+    assertEquals(0, stats.getBodyBytesSaved());
+  }
+}
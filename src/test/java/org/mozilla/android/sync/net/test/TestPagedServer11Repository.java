@@ -0,0 +1,361 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionBeginDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFetchRecordsDelegate;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.android.sync.test.helpers.WaitHelper;
+import org.mozilla.gecko.sync.CredentialsSource;
+import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.repositories.HighWaterMarkStore;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.PagedServer11Repository;
+import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.simpleframework.http.Query;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class TestPagedServer11Repository implements CredentialsSource {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT + "/";
+  private static final String USERNAME    = "n6ec3u5bee3tixzp2asys7bs6fve4jfw";
+  private static final String COLLECTION  = "bookmarks";
+
+  private static final long BASE_TIMESTAMP = 1326254123000L;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  @Override
+  public String credentials() {
+    return null;
+  }
+
+  /**
+   * Serves a fixed collection, honouring newer, older, and limit, sorted
+   * oldest first.
+   */
+  public static class PagingMockServer extends MockServer {
+    public final ArrayList<String> guids = new ArrayList<String>();
+    public final ArrayList<Long> modifieds = new ArrayList<Long>();
+    public final ArrayList<Long> requestedNewer = new ArrayList<Long>();
+
+    public void add(String guid, long modified) {
+      guids.add(guid);
+      modifieds.add(modified);
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      Query query = request.getQuery();
+      long newer = query.containsKey("newer") ? Utils.decimalSecondsToMilliseconds(query.get("newer")) : -1;
+      long older = query.containsKey("older") ? Utils.decimalSecondsToMilliseconds(query.get("older")) : Long.MAX_VALUE;
+      int limit  = query.containsKey("limit") ? query.getInteger("limit") : Integer.MAX_VALUE;
+      assertEquals("oldest", query.get("sort"));
+      synchronized (this) {
+        requestedNewer.add(newer);
+      }
+
+      try {
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+        int count = 0;
+        for (int i = 0; i < guids.size() && count < limit; i++) {
+          long modified = modifieds.get(i);
+          if (modified <= newer || modified >= older) {
+            continue;
+          }
+          count++;
+          bodyStream.print("{\"id\":\"" + guids.get(i) + "\",\"modified\":" +
+                           Utils.millisecondsToDecimalSecondsString(modified) + ",\"payload\":\"{}\"}\n");
+        }
+        bodyStream.close();
+      } catch (IOException e) {
+        System.err.println("Oops.");
+      }
+    }
+  }
+
+  /**
+   * Serves a fixed collection in "index" order, honouring newer, limit, and
+   * offset, and X-If-Unmodified-Since against <code>lastModified</code>.
+   */
+  public static class IndexMockServer extends PagingMockServer {
+    public final ArrayList<Long> requestedOffsets = new ArrayList<Long>();
+    public final ArrayList<String> requestedUnmodifiedSince = new ArrayList<String>();
+    public volatile long lastModified = BASE_TIMESTAMP;
+    public volatile long changeAfterRequests = -1;
+
+    @Override
+    public void handle(Request request, Response response) {
+      Query query = request.getQuery();
+      long newer  = query.containsKey("newer") ? Utils.decimalSecondsToMilliseconds(query.get("newer")) : -1;
+      int limit   = query.containsKey("limit") ? query.getInteger("limit") : Integer.MAX_VALUE;
+      int offset  = query.containsKey("offset") ? query.getInteger("offset") : 0;
+      String unmodifiedSince = request.getValue("X-If-Unmodified-Since");
+      assertEquals("index", query.get("sort"));
+
+      final int requests;
+      synchronized (this) {
+        requestedOffsets.add((long) offset);
+        requestedUnmodifiedSince.add(unmodifiedSince);
+        requests = requestedOffsets.size();
+      }
+      final long now = BASE_TIMESTAMP + 1000 * requests;
+
+      try {
+        if (unmodifiedSince != null && lastModified > Utils.decimalSecondsToMilliseconds(unmodifiedSince)) {
+          this.handleBasicHeaders(request, response, 412, "application/json", now).close();
+          return;
+        }
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines", now);
+        int matched = 0;
+        int count = 0;
+        for (int i = 0; i < guids.size() && count < limit; i++) {
+          long modified = modifieds.get(i);
+          if (modified <= newer || matched++ < offset) {
+            continue;
+          }
+          count++;
+          bodyStream.print("{\"id\":\"" + guids.get(i) + "\",\"modified\":" +
+                           Utils.millisecondsToDecimalSecondsString(modified) + ",\"payload\":\"{}\"}\n");
+        }
+        bodyStream.close();
+        if (requests == changeAfterRequests) {
+          lastModified = now + 500;
+        }
+      } catch (IOException e) {
+        System.err.println("Oops.");
+      }
+    }
+  }
+
+  public static class MemoryHighWaterMarkStore implements HighWaterMarkStore {
+    public long since = -1;
+    public long mark = -1;
+
+    @Override
+    public synchronized long getHighWaterMark(long since) {
+      return this.since == since ? mark : -1;
+    }
+
+    @Override
+    public synchronized void setHighWaterMark(long since, long highWaterMark) {
+      this.since = since;
+      this.mark = highWaterMark;
+    }
+
+    @Override
+    public synchronized void clearHighWaterMark() {
+      since = -1;
+      mark = -1;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  protected Server11RepositorySession beginSession(long pageSize, HighWaterMarkStore store) throws Exception {
+    return beginSession(new PagedServer11Repository(TEST_SERVER, USERNAME, COLLECTION, this, pageSize, store));
+  }
+
+  protected Server11RepositorySession beginSession(PagedServer11Repository repository) throws Exception {
+    final Server11RepositorySession session = new Server11RepositorySession(repository);
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+        } catch (InvalidSessionTransitionException e) {
+          WaitHelper.getTestWaiter().performNotify(e);
+        }
+      }
+    });
+    return session;
+  }
+
+  protected ArrayList<Record> fetchSince(final Server11RepositorySession session, final long since) {
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(WaitHelper.getTestWaiter());
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchSince(since, delegate);
+      }
+    });
+    return delegate.fetchedRecords;
+  }
+
+  protected static void assertFetched(PagingMockServer server, ArrayList<Record> fetched, int from) {
+    assertEquals(server.guids.size() - from, fetched.size());
+    for (int i = 0; i < fetched.size(); i++) {
+      assertEquals(server.guids.get(from + i), fetched.get(i).guid);
+    }
+  }
+
+  @Test
+  public void testPagesStraddlingSharedTimestamps() throws Exception {
+    PagingMockServer server = new PagingMockServer();
+    // Pairs of records share a timestamp, so every page boundary splits a pair.
+    for (int i = 0; i < 25; i++) {
+      server.add("record" + i, BASE_TIMESTAMP + 10 * ((i + 1) / 2));
+    }
+    data.startHTTPServer(server);
+
+    Server11RepositorySession session = beginSession(4, null);
+    ArrayList<Record> fetched = fetchSince(session, -1);
+    assertFetched(server, fetched, 0);
+    assertTrue(server.requestedNewer.size() >= 7);
+    assertEquals(-1L, (long) server.requestedNewer.get(0));
+  }
+
+  @Test
+  public void testMoreThanAPageShareATimestamp() throws Exception {
+    PagingMockServer server = new PagingMockServer();
+    server.add("before", BASE_TIMESTAMP);
+    for (int i = 0; i < 12; i++) {
+      server.add("cluster" + i, BASE_TIMESTAMP + 10);
+    }
+    server.add("after0", BASE_TIMESTAMP + 20);
+    server.add("after1", BASE_TIMESTAMP + 30);
+    data.startHTTPServer(server);
+
+    Server11RepositorySession session = beginSession(5, null);
+    // Nowhere to persist progress.
+    assertFalse(session.supportsResume());
+    assertFetched(server, fetchSince(session, -1), 0);
+  }
+
+  @Test
+  public void testResumeFromHighWaterMark() throws Exception {
+    PagingMockServer server = new PagingMockServer();
+    for (int i = 0; i < 20; i++) {
+      server.add("record" + i, BASE_TIMESTAMP + 10 * i);
+    }
+    data.startHTTPServer(server);
+
+    final long since = BASE_TIMESTAMP - 10;
+    MemoryHighWaterMarkStore store = new MemoryHighWaterMarkStore();
+    Server11RepositorySession session = beginSession(5, store);
+    assertTrue(session.supportsResume());
+    assertFetched(server, fetchSince(session, since), 0);
+
+    // Nothing is persisted until the consumer reports records stored, and
+    // then only through the end of the last page they cover.
+    assertEquals(-1, store.getHighWaterMark(since));
+    session.fetchedRecordsStored(7);
+    assertEquals(BASE_TIMESTAMP + 10 * 4 - 1, store.getHighWaterMark(since));
+    session.fetchedRecordsStored(12);
+    assertEquals(BASE_TIMESTAMP + 10 * 8 - 1, store.getHighWaterMark(since));
+
+    // A fresh fetch from the same timestamp picks up where that left off...
+    server.requestedNewer.clear();
+    Server11RepositorySession resumed = beginSession(5, store);
+    assertFetched(server, fetchSince(resumed, since), 8);
+    assertEquals(BASE_TIMESTAMP + 10 * 8 - 1, (long) server.requestedNewer.get(0));
+
+    // ... but a fetch from elsewhere doesn't.
+    server.requestedNewer.clear();
+    Server11RepositorySession other = beginSession(5, store);
+    assertFetched(server, fetchSince(other, since + 10), 1);
+    assertEquals(since + 10, (long) server.requestedNewer.get(0));
+  }
+
+  @Test
+  public void testPagesByOffset() throws Exception {
+    IndexMockServer server = new IndexMockServer();
+    for (int i = 0; i < 23; i++) {
+      // Index order isn't timestamp order.
+      server.add("record" + i, BASE_TIMESTAMP - 10 * (i % 7));
+    }
+    data.startHTTPServer(server);
+
+    Server11RepositorySession session = beginSession(new PagedServer11Repository(TEST_SERVER, USERNAME, COLLECTION, this, 5, "index"));
+    // Offsets don't survive changes to the collection.
+    assertFalse(session.supportsResume());
+    assertFetched(server, fetchSince(session, -1), 0);
+
+    assertEquals(5, server.requestedOffsets.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(5L * i, (long) server.requestedOffsets.get(i));
+    }
+    // Later pages are conditional on nothing having changed since the first.
+    assertNull(server.requestedUnmodifiedSince.get(0));
+    for (int i = 1; i < 5; i++) {
+      assertEquals(Utils.millisecondsToDecimalSecondsString(BASE_TIMESTAMP + 1000),
+                   server.requestedUnmodifiedSince.get(i));
+    }
+  }
+
+  @Test
+  public void testCollectionChangesBetweenPages() throws Exception {
+    IndexMockServer server = new IndexMockServer();
+    for (int i = 0; i < 12; i++) {
+      server.add("record" + i, BASE_TIMESTAMP);
+    }
+    server.changeAfterRequests = 1;
+    data.startHTTPServer(server);
+
+    final Server11RepositorySession session = beginSession(new PagedServer11Repository(TEST_SERVER, USERNAME, COLLECTION, this, 5, "index"));
+    final ArrayList<Exception> failures = new ArrayList<Exception>();
+    final ArrayList<Record> fetched = new ArrayList<Record>();
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchSince(-1, new RepositorySessionFetchRecordsDelegate() {
+          @Override
+          public void onFetchedRecord(Record record) {
+            fetched.add(record);
+          }
+
+          @Override
+          public void onFetchFailed(Exception ex, Record record) {
+            failures.add(ex);
+            WaitHelper.getTestWaiter().performNotify();
+          }
+
+          @Override
+          public void onFetchCompleted(long fetchEnd) {
+            WaitHelper.getTestWaiter().performNotify(new AssertionError("Fetch should have failed."));
+          }
+
+          @Override
+          public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+            return this;
+          }
+        });
+      }
+    });
+
+    // The first page arrived, and then the fetch failed rather than carrying
+    // on with shifted offsets.
+    assertEquals(5, fetched.size());
+    assertEquals(1, failures.size());
+    assertTrue(failures.get(0) instanceof HTTPFailureException);
+    assertEquals(2, server.requestedOffsets.size());
+  }
+}
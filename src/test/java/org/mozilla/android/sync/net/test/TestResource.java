@@ -4,23 +4,37 @@
 package org.mozilla.android.sync.net.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.BaseResourceDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockResourceDelegate;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.android.sync.test.helpers.WaitHelper;
 import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpDispatcher;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
+import org.mozilla.gecko.sync.net.RouteStatistics;
 
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
 
 public class TestResource {
   private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
@@ -66,11 +80,19 @@ public class TestResource {
 
   public static class MockHttpResponseObserver implements HttpResponseObserver {
     public HttpResponse response = null;
+    public HttpResponse timedResponse = null;
+    public long elapsedNanos = -1;
 
     @Override
     public void observeHttpResponse(HttpResponse response) {
       this.response = response;
     }
+
+    @Override
+    public void observeHttpRequestTiming(HttpResponse response, long requestBytes, long elapsedNanos) {
+      this.timedResponse = response;
+      this.elapsedNanos = elapsedNanos;
+    }
   }
 
   @Test
@@ -88,6 +110,185 @@ public class TestResource {
     doGet(); // HTTP server stopped in callback.
     assertNotNull(observer.response);
     assertEquals(200, observer.response.getStatusLine().getStatusCode());
+    assertSame(observer.response, observer.timedResponse);
+    assertTrue(observer.elapsedNanos > 0);
     data.stopHTTPServer();
   }
+
+  @Test
+  public void testConnectionReuse() throws URISyntaxException {
+    data.startHTTPServer();
+    BaseResource.resetRouteStatistics();
+    try {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(doGet().handledHttpResponse);
+      }
+
+      final HttpHost target = new HttpHost("localhost", TEST_PORT, "http");
+      RouteStatistics stats = BaseResource.getRouteStatistics().get(target);
+      assertNotNull(stats);
+      assertEquals(3, stats.getRequests());
+      assertEquals(1, stats.getConnectionsOpened());
+      assertEquals(2, stats.getRequestsOnReusedConnections());
+      assertEquals(1, BaseResource.getConnectionsInPool(target));
+    } finally {
+      data.stopHTTPServer();
+    }
+    assertEquals(0, BaseResource.getConnectionsInPool(new HttpHost("localhost", TEST_PORT, "http")));
+  }
+
+  public static class RecordingResourceDelegate extends BaseResourceDelegate {
+    public final CountDownLatch done;
+    public volatile Thread callbackThread;
+    public volatile Exception error;
+    public volatile int statusCode = -1;
+
+    public RecordingResourceDelegate(CountDownLatch done) {
+      this.done = done;
+    }
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      callbackThread = Thread.currentThread();
+      statusCode = response.getStatusLine().getStatusCode();
+      BaseResource.consumeEntity(response);
+      done.countDown();
+    }
+
+    protected void handleException(Exception e) {
+      callbackThread = Thread.currentThread();
+      error = e;
+      done.countDown();
+    }
+
+    @Override
+    public void handleHttpProtocolException(ClientProtocolException e) {
+      handleException(e);
+    }
+
+    @Override
+    public void handleHttpIOException(IOException e) {
+      handleException(e);
+    }
+
+    @Override
+    public void handleTransportException(GeneralSecurityException e) {
+      handleException(e);
+    }
+  }
+
+  @Test
+  public void testAsynchronousRequests() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    data.startHTTPServer(new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // Respond anyway.
+        }
+        super.handle(request, response);
+      }
+    });
+
+    final int THREADS = 2;
+    final int REQUESTS = 5;
+    final HttpDispatcher dispatcher = new HttpDispatcher(THREADS);
+    final CountDownLatch done = new CountDownLatch(REQUESTS);
+    final RecordingResourceDelegate[] delegates = new RecordingResourceDelegate[REQUESTS];
+    try {
+      for (int i = 0; i < REQUESTS; i++) {
+        BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar");
+        delegates[i] = new RecordingResourceDelegate(done);
+        r.delegate = delegates[i];
+        r.setDispatcher(dispatcher);
+        assertTrue(r.isAsynchronous());
+        r.get();
+      }
+
+      // Every call returned while the server was still holding its responses.
+      assertEquals(REQUESTS, done.getCount());
+      for (int i = 0; i < 100 && dispatcher.getRequestsInFlight() < THREADS; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(THREADS, dispatcher.getRequestsInFlight());
+      assertEquals(REQUESTS - THREADS, dispatcher.getRequestsQueued());
+
+      release.countDown();
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      for (RecordingResourceDelegate delegate : delegates) {
+        assertNull(delegate.error);
+        assertEquals(200, delegate.statusCode);
+        assertNotNull(delegate.callbackThread);
+        assertNotSame(Thread.currentThread(), delegate.callbackThread);
+      }
+    } finally {
+      release.countDown();
+      dispatcher.shutdown();
+      data.stopHTTPServer();
+    }
+  }
+
+  @Test
+  public void testBlockingGetIgnoresDispatcher() throws Exception {
+    data.startHTTPServer();
+    final HttpDispatcher dispatcher = new HttpDispatcher(1);
+    try {
+      BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar");
+      RecordingResourceDelegate delegate = new RecordingResourceDelegate(new CountDownLatch(1));
+      r.delegate = delegate;
+      r.setDispatcher(dispatcher);
+      r.getBlocking();
+      assertEquals(200, delegate.statusCode);
+      assertSame(Thread.currentThread(), delegate.callbackThread);
+    } finally {
+      dispatcher.shutdown();
+      data.stopHTTPServer();
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testShutDownDispatcherFailsRequest() throws Exception {
+    final HttpDispatcher dispatcher = new HttpDispatcher(1);
+    dispatcher.shutdown();
+    BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar");
+    RecordingResourceDelegate delegate = new RecordingResourceDelegate(new CountDownLatch(1));
+    r.delegate = delegate;
+    r.setDispatcher(dispatcher);
+    r.get();
+    assertTrue(delegate.error instanceof IOException);
+    assertEquals(0, delegate.done.getCount());
+  }
+
+  /**
+   * Sets a cookie on every response, and remembers whether a request sent one.
+   */
+  public static class CookieMockServer extends MockServer {
+    public volatile boolean sawCookie = false;
+
+    @Override
+    public void handle(Request request, Response response) {
+      if (request.getValue("Cookie") != null) {
+        sawCookie = true;
+      }
+      response.set("Set-Cookie", "session=shared; Path=/");
+      super.handle(request, response);
+    }
+  }
+
+  @Test
+  public void testCookiesNotShared() throws URISyntaxException {
+    CookieMockServer server = new CookieMockServer();
+    data.startHTTPServer(server);
+    try {
+      // Both requests go through the same shared client.
+      assertTrue(doGet().handledHttpResponse);
+      assertTrue(doGet().handledHttpResponse);
+      assertFalse(server.sawCookie);
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
 }
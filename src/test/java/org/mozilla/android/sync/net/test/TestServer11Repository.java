@@ -27,5 +27,6 @@ public class TestServer11Repository {
     assertQueryEquals("newer=5000.000&limit=10",            r.collectionURI(false, 5000000L, 10,    null, null));
     assertQueryEquals("full=1&newer=5000.000&sort=index",   r.collectionURI(true,  5000000L,  0, "index", null));
     assertQueryEquals("full=1&ids=123,abc",                 r.collectionURI(true,       -1L, -1,    null, "123,abc"));
+    assertQueryEquals("full=1&newer=5000.000&older=5000.020&sort=oldest", r.collectionURI(true, 5000000L, 5000020L, -1, "oldest", null));
   }
 }
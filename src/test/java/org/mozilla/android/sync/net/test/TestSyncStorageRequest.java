@@ -16,6 +16,7 @@ import org.junit.Test;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.SyncConstants;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
@@ -88,6 +89,30 @@ public class TestSyncStorageRequest {
     // Server is stopped in the callback.
   }
 
+  public class UserAgentMockServer extends MockServer {
+    public String userAgent;
+
+    @Override
+    public void handle(Request request, Response response) {
+      userAgent = request.getValue("User-Agent");
+      super.handle(request, response);
+    }
+  }
+
+  @Test
+  public void testUserAgent() throws URISyntaxException {
+    BaseResource.rewriteLocalhost = false;
+    UserAgentMockServer server = new UserAgentMockServer();
+    data.startHTTPServer(server);
+    SyncStorageRecordRequest r = new SyncStorageRecordRequest(new URI(LOCAL_META_URL));
+    TestSyncStorageRequestDelegate delegate = new TestSyncStorageRequestDelegate();
+    delegate._credentials = USER_PASS;
+    r.delegate = delegate;
+    r.get();
+    // Server is stopped in the callback.
+    assertEquals(SyncConstants.SYNC_USER_AGENT, server.userAgent);
+  }
+
   public class ErrorMockServer extends MockServer {
     @Override
     public void handle(Request request, Response response) {
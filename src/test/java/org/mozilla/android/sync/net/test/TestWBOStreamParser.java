@@ -0,0 +1,173 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.MalformedWBOException;
+import org.mozilla.gecko.sync.net.WBOStreamParser;
+
+public class TestWBOStreamParser {
+  public static final String REAL_RECORD = "{\"sortindex\": 131, \"payload\": \"{\\\"ciphertext\\\":\\\"YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZVhxYQfTVNou6hVV67jfAvi5Cs+bqhhQsv7icZTiZhPTiTdVGt+uuMotxauVA5OryNGVEZgCCTvT3upzhDFdDbJzVd9O3/gU/b7r/CmAHykX8bTlthlbWeZ8oz6gwHJB5tPRU15nM/m/qW1vyKIw5pw/ZwtAy630AieRehGIGDk+33PWqsfyuT4EUFY9/Ly+8JlnqzxfiBCunIfuXGdLuqTjJOxgrK8mI4wccRFEdFEnmHvh5x7fjl1ID52qumFNQl8zkB75C8XK25alXqwvRR6/AQSP+BgQ==\\\",\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac\\\"}\", \"id\": \"0-P9fabp9vJD\", \"modified\": 1326254123.65}";
+  public static final String REAL_RECORD_ENCRYPTION_KEY = "0A7mU5SZ/tu7ZqwXW1og4qHVHN+zgEi4Xwfwjw+vEJw=";
+  public static final String REAL_RECORD_HMAC_KEY       = "11GN34O9QWXkjR06g8t0gWE1sGgQeWL0qxxWwl8Dmxs=";
+
+  protected static InputStream streamOf(String body) throws UnsupportedEncodingException {
+    return new ByteArrayInputStream(body.getBytes("UTF-8"));
+  }
+
+  protected static void assertSameRecord(CryptoRecord expected, CryptoRecord actual) {
+    assertEquals(expected.guid,         actual.guid);
+    assertEquals(expected.collection,   actual.collection);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex,    actual.sortIndex);
+    assertEquals(expected.ttl,          actual.ttl);
+    assertEquals(expected.payload.object, actual.payload.object);
+  }
+
+  protected static void assertParsesLikeSlowPath(String line) throws Exception {
+    WBOStreamParser parser = new WBOStreamParser(streamOf(line + "\n"));
+    CryptoRecord record = parser.nextRecord();
+    assertSameRecord(CryptoRecord.fromJSONRecord(line), record);
+    assertNull(parser.nextRecord());
+  }
+
+  @Test
+  public void testRealRecord() throws Exception {
+    WBOStreamParser parser = new WBOStreamParser(streamOf(REAL_RECORD + "\n"));
+    CryptoRecord record = parser.nextRecord();
+    assertNull(parser.nextRecord());
+    assertEquals(0, parser.getFallbackCount());
+
+    assertSameRecord(CryptoRecord.fromJSONRecord(REAL_RECORD), record);
+    assertEquals("0-P9fabp9vJD", record.guid);
+    assertEquals(1326254123650L, record.lastModified);
+    assertEquals(131, record.sortIndex);
+
+    record.keyBundle = KeyBundle.fromBase64EncodedKeys(REAL_RECORD_ENCRYPTION_KEY, REAL_RECORD_HMAC_KEY);
+    record.decrypt();
+    assertEquals("Customize Firefox", record.payload.get("title"));
+    assertTrue(record.payload.get("tags") instanceof JSONArray);
+  }
+
+  @Test
+  public void testEnvelopeFields() throws Exception {
+    assertParsesLikeSlowPath("{\"id\":\"abcdefghijkl\",\"collection\":\"bookmarks\",\"modified\":1326254123,\"sortindex\":-5,\"ttl\":60,\"payload\":\"{}\"}");
+    assertParsesLikeSlowPath("{ \"id\" : \"abcdefghijkl\" , \"modified\" : 1326254123.1 , \"payload\" : \"{ \\\"a\\\" : 1 , \\\"b\\\" : 2.5 , \\\"c\\\" : true , \\\"d\\\" : false , \\\"e\\\" : null }\" }");
+    assertParsesLikeSlowPath("{\"id\":\"abcdefghijkl\",\"unknown\":\"x\\\"y\",\"other\":12,\"payload\":\"{\\\"x\\\":\\\"y\\\"}\"}");
+  }
+
+  @Test
+  public void testTimestampsMatchSlowPath() throws Exception {
+    final String[] modifieds = new String[] { "0", "1", "1326254123.65", "1326254123.12", "1326254123.99", "1234567890.123", "-1.5" };
+    for (String modified : modifieds) {
+      assertParsesLikeSlowPath("{\"id\":\"abcdefghijkl\",\"modified\":" + modified + ",\"payload\":\"{}\"}");
+    }
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    // Escaped quotes, backslashes, control characters, BMP and astral
+    // characters, both escaped and raw.
+    assertParsesLikeSlowPath("{\"id\":\"ab\\\"c\\\\d\\/e\\u00e9\",\"payload\":\"{\\\"title\\\":\\\"tab\\\\there\\\\nquote\\\\\\\"\\\",\\\"e\\\":\\\"\\u00e9\\\\u00e9\\\",\\\"s\\\":\\\"\\ud83d\\ude00\\\\ud83d\\\\ude00\\\"}\"}");
+    assertParsesLikeSlowPath("{\"id\":\"café\",\"payload\":\"{\\\"t\\\":\\\"é中😀\\\"}\"}");
+  }
+
+  @Test
+  public void testFallback() throws Exception {
+    final String nested = "{\"id\":\"abcdefghijkl\",\"payload\":\"{\\\"visits\\\":[{\\\"date\\\":1}]}\"}";
+    final String exponent = "{\"id\":\"abcdefghijkl\",\"modified\":1e3,\"payload\":\"{}\"}";
+    WBOStreamParser parser = new WBOStreamParser(streamOf(nested + "\n" + exponent + "\n"));
+    assertSameRecord(CryptoRecord.fromJSONRecord(nested), parser.nextRecord());
+    assertSameRecord(CryptoRecord.fromJSONRecord(exponent), parser.nextRecord());
+    assertNull(parser.nextRecord());
+    assertEquals(2, parser.getRecordCount());
+    assertEquals(2, parser.getFallbackCount());
+  }
+
+  @Test
+  public void testLineTerminatorsAndBufferGrowth() throws Exception {
+    StringBuilder body = new StringBuilder();
+    final String[] terminators = new String[] { "\n", "\r\n", "\r" };
+    for (int i = 0; i < 30; i++) {
+      body.append("{\"id\":\"record").append(i).append("\",\"payload\":\"{\\\"n\\\":").append(i).append("}\"}");
+      body.append(terminators[i % terminators.length]);
+    }
+    body.append("{\"id\":\"unterminated\",\"payload\":\"{}\"}");
+
+    // Tiny buffer: forces lines to straddle reads, compaction, and growth.
+    WBOStreamParser parser = new WBOStreamParser(streamOf(body.toString()), 7);
+    for (int i = 0; i < 30; i++) {
+      CryptoRecord record = parser.nextRecord();
+      assertEquals("record" + i, record.guid);
+      assertEquals(Long.valueOf(i), record.payload.get("n"));
+    }
+    assertEquals("unterminated", parser.nextRecord().guid);
+    assertNull(parser.nextRecord());
+    assertEquals(0, parser.getFallbackCount());
+  }
+
+  @Test
+  public void testMalformedLineIsSkippable() throws IOException, ParseException, NonObjectJSONException, MalformedWBOException {
+    final String body = "{\"id\":\"first\",\"payload\":\"{}\"}\n" +
+                        "{\"id\":\"broken\",\"payload\":\n" +
+                        "{\"id\":\"third\",\"payload\":\"{}\"}\n";
+    WBOStreamParser parser = new WBOStreamParser(streamOf(body));
+    assertEquals("first", parser.nextRecord().guid);
+    try {
+      parser.nextRecord();
+      fail("Expected parse exception.");
+    } catch (ParseException e) {
+      // Good.
+    }
+    assertEquals("third", parser.nextRecord().guid);
+    assertNull(parser.nextRecord());
+  }
+
+  /**
+   * Lines that are JSON objects but not WBOs fail on their own, without
+   * stopping the stream.
+   */
+  @Test
+  public void testInvalidWBOIsSkippable() throws Exception {
+    final String body = "{\"id\":\"first\",\"payload\":\"{}\"}\n" +
+                        "{\"id\":\"numericpayload\",\"payload\":5}\n" +
+                        "{\"id\":\"second\",\"payload\":\"{}\"}\n" +
+                        "{\"id\":12,\"payload\":\"{}\"}\n" +
+                        "{\"id\":\"badmodified\",\"modified\":\"soon\",\"payload\":\"{}\"}\n" +
+                        "{\"id\":\"third\",\"payload\":\"{}\"}\n";
+    WBOStreamParser parser = new WBOStreamParser(streamOf(body));
+    assertEquals("first", parser.nextRecord().guid);
+    assertMalformed(parser);
+    assertEquals("second", parser.nextRecord().guid);
+    assertMalformed(parser);
+    assertMalformed(parser);
+    assertEquals("third", parser.nextRecord().guid);
+    assertNull(parser.nextRecord());
+    assertEquals(6, parser.getRecordCount());
+  }
+
+  protected static void assertMalformed(WBOStreamParser parser) throws Exception {
+    try {
+      parser.nextRecord();
+      fail("Expected malformed WBO exception.");
+    } catch (MalformedWBOException e) {
+      // Good.
+    }
+  }
+}
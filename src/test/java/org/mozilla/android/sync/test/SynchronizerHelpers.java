@@ -5,6 +5,7 @@ package org.mozilla.android.sync.test;
 
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.android.sync.test.helpers.WBORepository;
 import org.mozilla.gecko.sync.Logger;
@@ -178,6 +179,59 @@ public class SynchronizerHelpers {
     }
   }
 
+  /**
+   * Apply stores slowly on the store work queue, tracking the largest store
+   * backlog seen and how many stores have been applied.
+   */
+  public static class SlowStoreWBORepository extends WBORepository {
+    public final long storeDelayMillis;
+    public final AtomicInteger maxStoreBacklog = new AtomicInteger();
+    public final AtomicInteger numStoresApplied = new AtomicInteger();
+
+    public SlowStoreWBORepository(long storeDelayMillis) {
+      this.storeDelayMillis = storeDelayMillis;
+    }
+
+    public class SlowStoreWBORepositorySession extends WBORepositorySession {
+      public SlowStoreWBORepositorySession(WBORepository repository) {
+        super(repository);
+      }
+
+      protected void applyStore(final Record record) throws NoStoreDelegateException {
+        super.store(record);
+      }
+
+      @Override
+      public void store(final Record record) throws NoStoreDelegateException {
+        if (delegate == null) {
+          throw new NoStoreDelegateException();
+        }
+        final int backlog = getStoreBacklog();
+        if (backlog > maxStoreBacklog.get()) {
+          maxStoreBacklog.set(backlog);
+        }
+        storeWorkQueue.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Thread.sleep(storeDelayMillis);
+              applyStore(record);
+              numStoresApplied.incrementAndGet();
+            } catch (Exception e) {
+              delegate.onRecordStoreFailed(e, record.guid);
+            }
+          }
+        });
+      }
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate,
+                              Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new SlowStoreWBORepositorySession(this));
+    }
+  }
+
   public static class TrackingWBORepository extends WBORepository {
     @Override
     public synchronized boolean shouldTrack() {
@@ -0,0 +1,104 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.BookmarkTreeSnapshot;
+import org.mozilla.gecko.sync.repositories.android.BookmarkTreeSnapshot.Node;
+
+public class TestBookmarkTreeSnapshot {
+  protected static final long FOLDER = 5;
+  protected static final long OTHER = 6;
+
+  protected static List<String> guids(List<Node> nodes) {
+    final ArrayList<String> guids = new ArrayList<String>();
+    for (Node node : nodes) {
+      guids.add(node.guid);
+    }
+    return guids;
+  }
+
+  protected static BookmarkTreeSnapshot snapshot() {
+    final BookmarkTreeSnapshot snapshot = new BookmarkTreeSnapshot();
+    snapshot.add(new Node(FOLDER, "folderaaaaaa", 1, 0, 100, false, "Folder"));
+    snapshot.add(new Node(OTHER,  "folderbbbbbb", 1, 1, 100, false, "Other"));
+    // Added in scan order, but not in child array order.
+    snapshot.add(new Node(10, "childaaaaaaa", FOLDER, -5, 100, false, "a"));
+    snapshot.add(new Node(11, "childbbbbbbb", FOLDER, 1, 200, false, "b"));
+    snapshot.add(new Node(12, "childccccccc", FOLDER, 1, 100, false, "c"));
+    snapshot.add(new Node(13, "childddddddd", FOLDER, 3, 100, true, "d"));
+    snapshot.add(new Node(14, "childeeeeeee", FOLDER, 0, 100, false, "e"));
+    return snapshot;
+  }
+
+  /**
+   * Children are ordered by absolute position, then position, creation time
+   * and ID, as the session orders a <code>getChildren</code> cursor.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testChildOrder() {
+    final BookmarkTreeSnapshot snapshot = snapshot();
+    assertEquals(7, snapshot.size());
+    assertEquals(Arrays.asList("childeeeeeee", "childccccccc", "childbbbbbbb", "childaaaaaaa"),
+                 guids(snapshot.getChildren(FOLDER)));
+    assertEquals(Arrays.asList("folderaaaaaa", "folderbbbbbb"), guids(snapshot.getChildren(1)));
+    assertTrue(snapshot.getChildren(OTHER).isEmpty());
+    assertTrue(snapshot.getChildren(12345).isEmpty());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testGet() {
+    final BookmarkTreeSnapshot snapshot = snapshot();
+    assertEquals("Folder", snapshot.get("folderaaaaaa").title);
+    assertEquals(FOLDER, snapshot.get("folderaaaaaa").id);
+    // Deleted records are known, but aren't children.
+    assertTrue(snapshot.get("childddddddd").deleted);
+    assertNull(snapshot.get("missingaaaaa"));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testUpdatePositions() {
+    final BookmarkTreeSnapshot snapshot = snapshot();
+    final List<String> order = Arrays.asList("childaaaaaaa", "childbbbbbbb", "childccccccc", "childeeeeeee");
+    snapshot.updatePositions(order);
+    assertEquals(order, guids(snapshot.getChildren(FOLDER)));
+    for (int i = 0; i < order.size(); i++) {
+      assertEquals(i, snapshot.get(order.get(i)).getPosition());
+    }
+    // Unknown GUIDs are ignored.
+    snapshot.updatePositions(Arrays.asList("missingaaaaa"));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testMove() {
+    final BookmarkTreeSnapshot snapshot = snapshot();
+    snapshot.move("childccccccc", OTHER, 0);
+    assertEquals(Arrays.asList("childeeeeeee", "childbbbbbbb", "childaaaaaaa"), guids(snapshot.getChildren(FOLDER)));
+    assertEquals(Arrays.asList("childccccccc"), guids(snapshot.getChildren(OTHER)));
+    assertEquals(OTHER, snapshot.get("childccccccc").getParentID());
+    assertEquals(0, snapshot.get("childccccccc").getPosition());
+
+    // A negative position leaves the position alone.
+    snapshot.move("childbbbbbbb", OTHER, -1);
+    assertEquals(1, snapshot.get("childbbbbbbb").getPosition());
+    assertEquals(Arrays.asList("childccccccc", "childbbbbbbb"), guids(snapshot.getChildren(OTHER)));
+
+    // Deleted records move without becoming children.
+    snapshot.move("childddddddd", OTHER, 5);
+    assertEquals(OTHER, snapshot.get("childddddddd").getParentID());
+    assertEquals(2, snapshot.getChildren(OTHER).size());
+  }
+}
@@ -5,6 +5,7 @@ package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -14,6 +15,7 @@ import java.util.Arrays;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
@@ -28,6 +30,8 @@ import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import ch.boye.httpclientandroidlib.util.ByteArrayBuffer;
+
 public class TestCryptoRecord {
   String base64EncryptionKey = "9K/wLdXdw+nrTtXo4ZpECyHFNr4d7aYHqeg3KW9+m6Q=";
   String base64HmacKey = "MMntEfutgLTc8FlTLQFms8/xMPmCldqPlq/QQXEjx70=";
@@ -294,4 +298,68 @@ public class TestCryptoRecord {
     o = cryptoRecord.toJSONObject();
     assertNull(o.get("ttl"));
   }
+
+  /**
+   * Parse a serialized record, and its payload, so that serializations that
+   * differ only in field order or escaping compare equal.
+   */
+  public static JSONObject parseRecord(String json) throws Exception {
+    JSONObject o = (JSONObject) new JSONParser().parse(json);
+    o.put("payload", new JSONParser().parse((String) o.get("payload")));
+    return o;
+  }
+
+  protected static JSONObject parseAppended(CryptoRecord record) throws Exception {
+    ByteArrayBuffer out = new ByteArrayBuffer(16);
+    out.append(new byte[] { 'x' }, 0, 1);
+    assertTrue(record.appendJSONBytes(out));
+    assertEquals('x', out.byteAt(0));
+    return parseRecord(new String(out.buffer(), 1, out.length() - 1, "UTF-8"));
+  }
+
+  @Test
+  public void testAppendJSONBytes() throws Exception {
+    CryptoRecord record = new CryptoRecord();
+    record.payload = ExtendedJSONObject.parseJSONObject("{\"id\":\"5qRsgXWRJZXr\",\"title\":\"T\u00eftle \\\"quoted\\\"\"}");
+    record.guid = "5qRsgXWRJZXr";
+    record.keyBundle = KeyBundle.fromBase64EncodedKeys(base64EncryptionKey, base64HmacKey);
+    record.encrypt();
+    assertEquals(parseRecord(record.toJSONString()), parseAppended(record));
+
+    record.ttl = 3600;
+    assertEquals(parseRecord(record.toJSONString()), parseAppended(record));
+
+    // The written record round-trips.
+    ByteArrayBuffer out = new ByteArrayBuffer(16);
+    record.appendJSONBytes(out);
+    CryptoRecord parsed = CryptoRecord.fromJSONRecord(new String(out.buffer(), 0, out.length(), "UTF-8"));
+    parsed.keyBundle = record.keyBundle;
+    parsed.decrypt();
+    assertEquals("T\u00eftle \"quoted\"", parsed.payload.get("title"));
+    assertEquals(3600, parsed.ttl);
+  }
+
+  @Test
+  public void testAppendJSONBytesDeclinesRecordsNeedingEscapes() throws Exception {
+    ByteArrayBuffer out = new ByteArrayBuffer(16);
+
+    // Cleartext payload.
+    CryptoRecord record = new CryptoRecord();
+    record.payload = ExtendedJSONObject.parseJSONObject("{\"title\":\"x\"}");
+    record.guid = "abcdefghijkl";
+    assertFalse(record.appendJSONBytes(out));
+
+    record.payload = ExtendedJSONObject.parseJSONObject("{\"ciphertext\":\"a\",\"IV\":\"b\",\"hmac\":\"c\"}");
+    assertTrue(record.appendJSONBytes(out));
+    out.clear();
+
+    record.guid = "abc\"def";
+    assertFalse(record.appendJSONBytes(out));
+    record.guid = "abc\u00e9";
+    assertFalse(record.appendJSONBytes(out));
+    record.guid = "abcdefghijkl";
+    record.payload.put("IV", "b\\");
+    assertFalse(record.appendJSONBytes(out));
+    assertEquals(0, out.length());
+  }
 }
@@ -0,0 +1,106 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.PackedGuidStoreTracker;
+import org.mozilla.gecko.sync.repositories.RecordFilter;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+
+public class TestPackedGuidStoreTracker {
+  protected static HashSet<String> tracked(PackedGuidStoreTracker tracker) {
+    final HashSet<String> guids = new HashSet<String>();
+    final Iterator<String> it = tracker.recordsTrackedForExclusion();
+    while (it.hasNext()) {
+      guids.add(it.next());
+    }
+    return guids;
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testTrackAndUntrack() {
+    final PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    assertNull(tracker.getFilter());
+    assertFalse(tracker.trackRecordForExclusion(null));
+
+    assertTrue(tracker.trackRecordForExclusion("abcdefghijkl"));
+    assertFalse(tracker.trackRecordForExclusion("abcdefghijkl"));
+    assertTrue(tracker.isTrackedForExclusion("abcdefghijkl"));
+    // Differs only in the last character.
+    assertFalse(tracker.isTrackedForExclusion("abcdefghijkm"));
+    assertFalse(tracker.isTrackedForExclusion(null));
+
+    final RecordFilter filter = tracker.getFilter();
+    assertNotNull(filter);
+    assertTrue(filter.excludeRecord(new BookmarkRecord("abcdefghijkl")));
+    assertFalse(filter.excludeRecord(new BookmarkRecord("abcdefghijkm")));
+
+    assertTrue(tracker.untrackStoredForExclusion("abcdefghijkl"));
+    assertFalse(tracker.untrackStoredForExclusion("abcdefghijkl"));
+    assertFalse(tracker.isTrackedForExclusion("abcdefghijkl"));
+    assertEquals(0, tracker.size());
+  }
+
+  /**
+   * GUIDs that aren't twelve base64url characters are tracked too.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testNonStandardGuids() {
+    final PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    final String[] guids = new String[] { "menu", "abcdefghijk+", "abcdefghijklm", "", "AAAAAAAAAAAA", "____________" };
+    for (String guid : guids) {
+      assertTrue(tracker.trackRecordForExclusion(guid));
+    }
+    assertEquals(guids.length, tracker.size());
+    for (String guid : guids) {
+      assertTrue(tracker.isTrackedForExclusion(guid));
+    }
+    assertFalse(tracker.isTrackedForExclusion("toolbar"));
+
+    final HashSet<String> expected = new HashSet<String>();
+    for (String guid : guids) {
+      expected.add(guid);
+    }
+    assertEquals(expected, tracked(tracker));
+
+    assertTrue(tracker.untrackStoredForExclusion("menu"));
+    assertFalse(tracker.isTrackedForExclusion("menu"));
+    assertEquals(guids.length - 1, tracker.size());
+  }
+
+  /**
+   * Grow well past the initial capacity, with removals leaving tombstones.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testManyGuids() {
+    final PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    final HashSet<String> expected = new HashSet<String>();
+    for (int i = 0; i < 5000; i++) {
+      final String guid = Utils.generateGuid();
+      assertEquals(expected.add(guid), tracker.trackRecordForExclusion(guid));
+      if (i % 3 == 0) {
+        assertTrue(tracker.untrackStoredForExclusion(guid));
+        expected.remove(guid);
+      }
+    }
+    assertEquals(expected.size(), tracker.size());
+    for (String guid : expected) {
+      assertTrue(tracker.isTrackedForExclusion(guid));
+    }
+    assertEquals(expected, tracked(tracker));
+  }
+}
@@ -0,0 +1,89 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.PasswordMatchIndex;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+
+public class TestPasswordMatchIndex {
+  protected static PasswordRecord login(String guid, String hostname, String encryptedUsername) {
+    final PasswordRecord record = new PasswordRecord(guid, "passwords");
+    record.hostname = hostname;
+    record.httpRealm = "";
+    record.formSubmitURL = hostname + "/login";
+    record.usernameField = "user";
+    record.passwordField = "pass";
+    record.encryptedUsername = encryptedUsername;
+    return record;
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testCandidates() {
+    final PasswordMatchIndex index = new PasswordMatchIndex();
+    index.add(login("loginaaaaaaa", "http://example.com", "alice"));
+    index.add(login("loginbbbbbbb", "http://example.com", "bob"));
+    index.add(login("loginccccccc", "http://example.com", "alice"));
+    index.add(login("loginddddddd", "http://example.org", "alice"));
+    assertEquals(4, index.size());
+
+    final PasswordRecord incoming = login("incomingaaaa", "http://example.com", "alice");
+    assertEquals(Arrays.asList("loginaaaaaaa", "loginccccccc"), index.candidates(incoming));
+    assertTrue(index.candidates(login("incomingbbbb", "http://example.net", "alice")).isEmpty());
+
+    // Usernames are compared exactly, including null.
+    assertTrue(index.candidates(login("incomingcccc", "http://example.com", null)).isEmpty());
+    index.add(login("logineeeeeee", "http://example.com", null));
+    assertEquals(Arrays.asList("logineeeeeee"), index.candidates(login("incomingcccc", "http://example.com", null)));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testRemoveAndReplace() {
+    final PasswordMatchIndex index = new PasswordMatchIndex();
+    index.add(login("loginaaaaaaa", "http://example.com", "alice"));
+    index.add(login("loginbbbbbbb", "http://example.com", "alice"));
+
+    index.remove("loginaaaaaaa");
+    index.remove("missingaaaaa");
+    assertEquals(1, index.size());
+    assertEquals(Arrays.asList("loginbbbbbbb"), index.candidates(login("incomingaaaa", "http://example.com", "alice")));
+
+    // Adding a GUID again replaces its entry.
+    index.add(login("loginbbbbbbb", "http://example.com", "bob"));
+    assertEquals(1, index.size());
+    assertTrue(index.candidates(login("incomingaaaa", "http://example.com", "alice")).isEmpty());
+    assertEquals(Arrays.asList("loginbbbbbbb"), index.candidates(login("incomingbbbb", "http://example.com", "bob")));
+
+    index.remove("loginbbbbbbb");
+    assertEquals(0, index.size());
+  }
+
+  /**
+   * As with an SQL equality test, null identifying fields match nothing.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testNullFields() {
+    final PasswordMatchIndex index = new PasswordMatchIndex();
+    final PasswordRecord noRealm = login("loginaaaaaaa", "http://example.com", "alice");
+    noRealm.httpRealm = null;
+    index.add(noRealm);
+    assertEquals(0, index.size());
+    assertTrue(index.candidates(noRealm).isEmpty());
+    assertFalse(PasswordMatchIndex.matches(noRealm, noRealm));
+
+    final PasswordRecord a = login("loginbbbbbbb", "http://example.com", "alice");
+    assertTrue(PasswordMatchIndex.matches(a, login("loginccccccc", "http://example.com", "alice")));
+    assertFalse(PasswordMatchIndex.matches(a, login("loginccccccc", "http://example.com", "bob")));
+    assertFalse(PasswordMatchIndex.matches(a, noRealm));
+  }
+}
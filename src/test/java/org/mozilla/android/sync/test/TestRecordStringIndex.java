@@ -0,0 +1,179 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
+
+public class TestRecordStringIndex {
+
+  protected static void assertMatches(HashMap<Long, String> expected, RecordStringIndex index) {
+    assertEquals(expected.size(), index.size());
+    for (Entry<Long, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), index.get(entry.getKey()));
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testHash() {
+    assertEquals(RecordStringIndex.hash("http://example.com/"), RecordStringIndex.hash("http://example.com/"));
+    assertFalse(RecordStringIndex.hash("http://example.com/") == RecordStringIndex.hash("http://example.com"));
+    // These collide with String.hashCode.
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    assertFalse(RecordStringIndex.hash("Aa") == RecordStringIndex.hash("BB"));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testPutGetRemove() {
+    final RecordStringIndex index = new RecordStringIndex(0);
+    final long a = RecordStringIndex.hash("a");
+    final long b = RecordStringIndex.hash("b");
+    assertNull(index.get(a));
+
+    index.put(a, "abcdefghijkl");
+    index.put(b, "mnopqrstuvwx");
+    assertEquals(2, index.size());
+    assertEquals("abcdefghijkl", index.get(a));
+    assertEquals("mnopqrstuvwx", index.get(b));
+
+    // Replace.
+    index.put(a, "ABCDEFGHIJKL");
+    assertEquals(2, index.size());
+    assertEquals("ABCDEFGHIJKL", index.get(a));
+
+    index.remove(a);
+    assertEquals(1, index.size());
+    assertNull(index.get(a));
+    assertEquals("mnopqrstuvwx", index.get(b));
+
+    // Removing something absent does nothing.
+    index.remove(a);
+    assertEquals(1, index.size());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testIrregularGuids() {
+    final RecordStringIndex index = new RecordStringIndex(0);
+    final String[] guids = new String[] { "short", "much-longer-than-twelve", "ünicodeéabc", "" };
+    for (int i = 0; i < guids.length; i++) {
+      index.put(i, guids[i]);
+    }
+    for (int i = 0; i < guids.length; i++) {
+      assertEquals(guids[i], index.get(i));
+    }
+
+    // Replacing an irregular GUID with a regular one, and back.
+    index.put(0, "abcdefghijkl");
+    assertEquals("abcdefghijkl", index.get(0));
+    index.put(0, "short");
+    assertEquals("short", index.get(0));
+  }
+
+  /**
+   * Drive many puts and removes, including colliding slots, against a
+   * <code>HashMap</code>.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testAgainstHashMap() {
+    final Random random = new Random(12345);
+    final RecordStringIndex index = new RecordStringIndex(0);
+    final HashMap<Long, String> expected = new HashMap<Long, String>();
+    for (int i = 0; i < 20000; i++) {
+      // A small key space forces long probe runs and plenty of removals.
+      final long hash = random.nextInt(5000) * 0x100000000L;
+      if (random.nextInt(3) == 0) {
+        index.remove(hash);
+        expected.remove(hash);
+      } else {
+        final String guid = (i % 7 == 0) ? "irregular-" + i : Utils.generateGuid();
+        index.put(hash, guid);
+        expected.put(hash, guid);
+      }
+    }
+    assertMatches(expected, index);
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testPersistence() throws IOException {
+    final File file = File.createTempFile("recordstrings", ".idx");
+    try {
+      final RecordStringIndex index = new RecordStringIndex(1234L);
+      final HashMap<Long, String> expected = new HashMap<Long, String>();
+      for (int i = 0; i < 1000; i++) {
+        final String guid = (i % 10 == 0) ? "guid" + i : Utils.generateGuid();
+        final long hash = RecordStringIndex.hash("http://example.com/" + i);
+        index.put(hash, guid);
+        expected.put(hash, guid);
+      }
+      index.noteModified(5000L);
+      index.noteModified(4000L);
+      index.writeTo(file);
+
+      final RecordStringIndex read = RecordStringIndex.readFrom(file);
+      assertEquals(1234L, read.getCreated());
+      assertEquals(5000L, read.getLastModified());
+      assertMatches(expected, read);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testReadMissingOrCorrupt() throws IOException {
+    final File file = File.createTempFile("recordstrings", ".idx");
+    try {
+      file.delete();
+      assertNull(RecordStringIndex.readFrom(file));
+
+      final FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[] { 0, 0, 0, 99, 1, 2, 3 });
+      out.close();
+      try {
+        RecordStringIndex.readFrom(file);
+        fail("Expected IOException.");
+      } catch (IOException e) {
+        // Good.
+      }
+
+      // Truncated.
+      final RecordStringIndex index = new RecordStringIndex(0);
+      index.put(1L, "abcdefghijkl");
+      index.writeTo(file);
+      final long length = file.length();
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.setLength(length - 4);
+      raf.close();
+      try {
+        RecordStringIndex.readFrom(file);
+        fail("Expected IOException.");
+      } catch (IOException e) {
+        // Good.
+      }
+      assertTrue(file.delete());
+    } finally {
+      file.delete();
+    }
+  }
+}
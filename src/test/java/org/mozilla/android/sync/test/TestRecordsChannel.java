@@ -4,9 +4,11 @@
 package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -15,16 +17,23 @@ import org.mozilla.android.sync.test.SynchronizerHelpers.FailFetchWBORepository;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionCreationDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
 import org.mozilla.android.sync.test.helpers.WBORepository;
+import org.mozilla.android.sync.test.helpers.WBORepository.WBORepositorySession;
 import org.mozilla.android.sync.test.helpers.WaitHelper;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.StoreFailedException;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
 
+import android.content.Context;
+
 public class TestRecordsChannel {
 
   protected WBORepository remote;
@@ -40,6 +49,9 @@ public class TestRecordsChannel {
   protected AtomicBoolean flowBeginFailed;
   protected AtomicBoolean flowFinishFailed;
 
+  protected int queueCapacity = RecordsChannel.DEFAULT_QUEUE_CAPACITY;
+  protected RecordsChannel rc;
+
   public void doFlow(final Repository remote, final Repository local) throws Exception {
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
@@ -117,7 +129,7 @@ public class TestRecordsChannel {
       }
     };
 
-    final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate);
+    rc = new RecordsChannel(source,  sink, rcDelegate, queueCapacity);
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -223,4 +235,165 @@ public class TestRecordsChannel {
     assertEquals(6, numFlowStoreFailed.get()); // One (big) batch fails.
     assertEquals(0, sink.wbos.size()); // No batches succeed.
   }
+
+  @Test
+  public void testBoundedQueueStallsFetch() throws Exception {
+    WBORepository source = new SynchronizerHelpers.TrackingWBORepository();
+    for (int i = 0; i < 200; i++) {
+      BookmarkRecord record = new BookmarkRecord("bounded" + i, "bookmarks", 1, false);
+      source.wbos.put(record.guid, record);
+    }
+    SynchronizerHelpers.SlowStoreWBORepository sink = new SynchronizerHelpers.SlowStoreWBORepository(1);
+    queueCapacity = 5;
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(source.wbos.size(), sink.wbos.size());
+
+    assertEquals(200, rc.getFetchCount());
+    assertEquals(200, rc.getStoreCount());
+    assertTrue(rc.getMaxQueueDepth() <= queueCapacity);
+    assertTrue(rc.getFetchStallCount() > 0);
+    assertTrue(sink.maxStoreBacklog.get() <= queueCapacity);
+    assertEquals(0, rc.getQueueDepth());
+  }
+
+  /**
+   * A source that records how many of its records it's told are stored.
+   */
+  public static class ReportingWBORepository extends WBORepository {
+    public final boolean resumes;
+    public final ArrayList<Long> reported = new ArrayList<Long>();
+
+    public ReportingWBORepository(boolean resumes) {
+      this.resumes = resumes;
+    }
+
+    protected void onReported(long count) {
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public boolean supportsResume() {
+          return resumes;
+        }
+
+        @Override
+        public void fetchedRecordsStored(long count) {
+          synchronized (reported) {
+            reported.add(count);
+          }
+          onReported(count);
+        }
+      });
+    }
+
+    public void addRecords(String prefix, int count) {
+      for (int i = 0; i < count; i++) {
+        BookmarkRecord record = new BookmarkRecord(prefix + i, "bookmarks", 1, false);
+        wbos.put(record.guid, record);
+      }
+    }
+  }
+
+  @Test
+  public void testReportsStoredRecordsToSource() throws Exception {
+    final SynchronizerHelpers.SlowStoreWBORepository sink = new SynchronizerHelpers.SlowStoreWBORepository(1);
+    final AtomicBoolean reportedEarly = new AtomicBoolean(false);
+    final ReportingWBORepository source = new ReportingWBORepository(true) {
+      @Override
+      protected void onReported(long count) {
+        if (sink.numStoresApplied.get() < count) {
+          reportedEarly.set(true);
+        }
+      }
+    };
+    source.addRecords("checkpoint", 250);
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(250, rc.getStoreCount());
+
+    // The flow can complete before the sink has applied every store, but
+    // reports queue behind the stores they cover.
+    for (int i = 0; i < 500 && sink.numStoresApplied.get() < 250; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(250, sink.numStoresApplied.get());
+
+    assertEquals(2, source.reported.size());
+    assertEquals(100L, (long) source.reported.get(0));
+    assertEquals(200L, (long) source.reported.get(1));
+    assertFalse(reportedEarly.get());
+  }
+
+  @Test
+  public void testNoReportsUnlessSourceResumes() throws Exception {
+    final AtomicInteger checkpoints = new AtomicInteger();
+    final WBORepository sink = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void afterPendingStores(Runnable command) {
+            checkpoints.incrementAndGet();
+            super.afterPendingStores(command);
+          }
+        });
+      }
+    };
+    final ReportingWBORepository source = new ReportingWBORepository(false);
+    source.addRecords("checkpoint", 250);
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(250, rc.getStoreCount());
+
+    // Nothing waits on the sink for a source that can't use the report.
+    assertEquals(0, checkpoints.get());
+    assertEquals(0, source.reported.size());
+  }
+
+  @Test
+  public void testNoReportsPastFailedStore() throws Exception {
+    final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+    final WBORepository sink = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          // Only called from the channel's consumer thread.
+          protected int numStores = 0;
+
+          @Override
+          public void store(final Record record) throws NoStoreDelegateException {
+            numStores += 1;
+            if (record.guid.contains(SynchronizerHelpers.FAIL_SENTINEL)) {
+              firstFailure.compareAndSet(Integer.MAX_VALUE, numStores);
+              delegate.onRecordStoreFailed(new StoreFailedException(), record.guid);
+              return;
+            }
+            super.store(record);
+          }
+        });
+      }
+    };
+    final ReportingWBORepository source = new ReportingWBORepository(true);
+    source.addRecords("checkpoint", 250);
+    source.addRecords(SynchronizerHelpers.FAIL_SENTINEL, 3);
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(3, numFlowStoreFailed.get());
+    assertEquals(253, rc.getStoreCount());
+
+    // Fetch order is arbitrary, so we can't say where the failures fall, only
+    // that nothing from there on was reported.
+    assertTrue(firstFailure.get() <= 253);
+    synchronized (source.reported) {
+      for (long count : source.reported) {
+        assertTrue(count < firstFailure.get());
+      }
+    }
+  }
 }
@@ -7,17 +7,35 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionBeginDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockRecord;
 import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.android.sync.test.helpers.WaitHelper;
 import org.mozilla.gecko.sync.CredentialsSource;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.Server11PreviousPostFailedException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
@@ -25,10 +43,13 @@ import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.repositories.FetchFailedException;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
 import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
 import org.mozilla.gecko.sync.repositories.StoreFailedException;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -80,7 +101,11 @@ public class TestServer11RepositorySession implements CredentialsSource {
 
     public RecordUploadRunnable getRecordUploadRunnable() {
       // TODO: implement upload delegate in the class, too!
-      return new RecordUploadRunnable(null, recordsBuffer, recordGuidsBuffer, byteCount);
+      return takeBufferedRecords();
+    }
+
+    public int getByteCount() {
+      return byteCount;
     }
 
     public void enqueueRecord(Record r) {
@@ -122,6 +147,48 @@ public class TestServer11RepositorySession implements CredentialsSource {
     r.post(session.getEntity());
   }
 
+  @Test
+  public void testBodyMatchesByteCount() throws Exception {
+    KeyBundle keyBundle = KeyBundle.withRandomKeys();
+    MockServer11RepositorySession session = new MockServer11RepositorySession(null);
+    CryptoRecord plain = new CryptoRecord(new ExtendedJSONObject());
+    plain.guid = "abcdefghijkl";
+    plain.payload.put("ciphertext", "some ciphertext");
+    plain.payload.put("IV", "some IV");
+    plain.payload.put("hmac", "some hmac");
+    session.enqueueRecord(plain);
+
+    // A record that doesn't take the fast path.
+    CryptoRecord escaped = new CryptoRecord(plain.payload);
+    escaped.guid = "caf\u00e9\"quoted\"";
+    session.enqueueRecord(escaped);
+
+    BookmarkRecord bookmark = new BookmarkRecord(Utils.generateGuid(), "bookmarks", 0, false);
+    bookmark.title = "Title";
+    bookmark.bookmarkURI = "http://example.com/";
+    CryptoRecord encrypted = bookmark.getEnvelope();
+    encrypted.keyBundle = keyBundle;
+    encrypted.encrypt();
+    encrypted.ttl = 300;
+    session.enqueueRecord(encrypted);
+
+    final int expectedBytes = session.getByteCount();
+    HttpEntity entity = session.getEntity();
+    assertEquals(expectedBytes, entity.getContentLength());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals(expectedBytes, out.size());
+    JSONArray body = (JSONArray) new JSONParser().parse(new String(out.toByteArray(), "UTF-8"));
+    assertEquals(3, body.size());
+    assertEquals(TestCryptoRecord.parseRecord(plain.toJSONString()),     TestCryptoRecord.parseRecord(((JSONObject) body.get(0)).toJSONString()));
+    assertEquals(TestCryptoRecord.parseRecord(escaped.toJSONString()),   TestCryptoRecord.parseRecord(((JSONObject) body.get(1)).toJSONString()));
+    assertEquals(TestCryptoRecord.parseRecord(encrypted.toJSONString()), TestCryptoRecord.parseRecord(((JSONObject) body.get(2)).toJSONString()));
+
+    // Nothing left to upload.
+    assertEquals(null, session.getRecordUploadRunnable());
+  }
+
   protected TrackingWBORepository getLocal(int numRecords) {
     final TrackingWBORepository local = new TrackingWBORepository();
     for (int i = 0; i < numRecords; i++) {
@@ -187,4 +254,157 @@ public class TestServer11RepositorySession implements CredentialsSource {
     assertNotNull(e);
     assertEquals(StoreFailedException.class, e.getClass());
   }
+
+  /**
+   * Accept POSTs slowly, reporting every record as stored, and track how many
+   * are in flight at once. A POST containing <code>failGuid</code> fails
+   * immediately.
+   */
+  public class ConcurrentPOSTMockServer extends MockServer {
+    public final long delayMillis;
+    public final String failGuid;
+    public final AtomicInteger inFlight = new AtomicInteger();
+    public final AtomicInteger maxInFlight = new AtomicInteger();
+    public final AtomicInteger posts = new AtomicInteger();
+    public volatile long maxTimestamp = -1;
+
+    public ConcurrentPOSTMockServer(long delayMillis, String failGuid) {
+      this.delayMillis = delayMillis;
+      this.failGuid = failGuid;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      final int post = posts.incrementAndGet();
+      final int current = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        if (current > maxInFlight.get()) {
+          maxInFlight.set(current);
+        }
+      }
+      try {
+        JSONArray records = (JSONArray) new JSONParser().parse(request.getContent());
+        JSONArray guids = new JSONArray();
+        for (Object record : records) {
+          guids.add(((JSONObject) record).get("id"));
+        }
+        if (guids.contains(failGuid)) {
+          this.handle(request, response, 500, "error");
+          return;
+        }
+        Thread.sleep(delayMillis);
+
+        // Later POSTs don't necessarily respond last.
+        final long timestamp = 1000000L + 1000L * ((post * 7) % 11);
+        synchronized (this) {
+          maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/json", timestamp);
+        bodyStream.println("{\"modified\": " + Utils.millisecondsToDecimalSecondsString(timestamp) + ", " +
+                           "\"success\": " + guids.toJSONString() + ", \"failed\": {}}");
+        bodyStream.close();
+      } catch (Exception e) {
+        this.handle(request, response, 400, "bad request");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  public class RecordingStoreDelegate implements RepositorySessionStoreDelegate {
+    public final Set<String> succeeded = Collections.synchronizedSet(new HashSet<String>());
+    public final Map<String, Exception> failed = Collections.synchronizedMap(new HashMap<String, Exception>());
+    public volatile long storeEnd = -1;
+
+    @Override
+    public void onRecordStoreFailed(Exception ex, String recordGuid) {
+      failed.put(recordGuid, ex);
+    }
+
+    @Override
+    public void onRecordStoreSucceeded(String guid) {
+      succeeded.add(guid);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+      this.storeEnd = storeEnd;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected RecordingStoreDelegate doUpload(MockServer server, int concurrency, int batchSize, final int numRecords) throws Exception {
+    final Server11Repository remote = new Server11Repository(TEST_SERVER, USERNAME, "test", this);
+    remote.maxConcurrentUploads = concurrency;
+    remote.uploadItemThreshold = batchSize;
+    final Server11RepositorySession session = new Server11RepositorySession(remote);
+    final RecordingStoreDelegate storeDelegate = new RecordingStoreDelegate();
+
+    BaseResource.rewriteLocalhost = false;
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+          } catch (InvalidSessionTransitionException e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+      session.setStoreDelegate(storeDelegate);
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < numRecords; i++) {
+              session.store(new MockRecord("record" + i, "test", 0, false));
+            }
+            session.storeDone();
+          } catch (NoStoreDelegateException e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+    } finally {
+      session.abort();
+      data.stopHTTPServer();
+    }
+    return storeDelegate;
+  }
+
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    ConcurrentPOSTMockServer server = new ConcurrentPOSTMockServer(100, null);
+    RecordingStoreDelegate result = doUpload(server, 3, 10, 95);
+
+    assertEquals(10, server.posts.get());
+    assertEquals(95, result.succeeded.size());
+    assertTrue(result.failed.isEmpty());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 3);
+    // storeDone waited for every POST, and reports the latest timestamp.
+    assertEquals(0, server.inFlight.get());
+    assertEquals(server.maxTimestamp, result.storeEnd);
+  }
+
+  @Test
+  public void testConcurrentUploadFailureFailsLaterBatches() throws Exception {
+    ConcurrentPOSTMockServer server = new ConcurrentPOSTMockServer(200, "record0");
+    RecordingStoreDelegate result = doUpload(server, 2, 10, 60);
+
+    // The first batch fails; the second was already in flight and succeeds;
+    // the rest are never sent.
+    assertEquals(2, server.posts.get());
+    assertEquals(10, result.succeeded.size());
+    assertEquals(50, result.failed.size());
+    assertEquals(HTTPFailureException.class, result.failed.get("record0").getClass());
+    assertEquals(Server11PreviousPostFailedException.class, result.failed.get("record59").getClass());
+  }
 }
@@ -0,0 +1,125 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.VisitsCodec;
+
+public class TestVisitsCodec {
+
+  @SuppressWarnings("unchecked")
+  protected static JSONObject visit(long date, long type) {
+    JSONObject visit = new JSONObject();
+    visit.put("date", date);
+    visit.put("type", type);
+    return visit;
+  }
+
+  /**
+   * Twenty visits, most recent first, as the server sends them.
+   */
+  @SuppressWarnings("unchecked")
+  public static JSONArray typicalVisits() {
+    JSONArray visits = new JSONArray();
+    long date = 1340000000000000L;
+    for (int i = 0; i < 20; i++) {
+      visits.add(visit(date, 1 + (i % 9)));
+      date -= 3600L * 1000000L + i * 7919L;
+    }
+    return visits;
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testRoundTrip() throws Exception {
+    JSONArray visits = typicalVisits();
+    byte[] encoded = VisitsCodec.encode(visits);
+    assertEquals(VisitsCodec.FORMAT_COMPACT, encoded[0]);
+    assertEquals(visits, VisitsCodec.decode(encoded));
+
+    // Much smaller than JSON text.
+    byte[] json = visits.toJSONString().getBytes("UTF-8");
+    assertTrue(encoded.length * 4 < json.length);
+  }
+
+  @SuppressWarnings({ "unchecked", "static-method" })
+  @Test
+  public void testExtremes() {
+    JSONArray visits = new JSONArray();
+    visits.add(visit(0, 0));
+    visits.add(visit(Long.MAX_VALUE, 255));
+    visits.add(visit(Long.MIN_VALUE, 1));
+    visits.add(visit(-1, 2));
+    visits.add(visit(-1, 2));
+    assertEquals(visits, VisitsCodec.decode(VisitsCodec.encode(visits)));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testEmpty() {
+    assertEquals(new JSONArray(), VisitsCodec.decode(VisitsCodec.encode(null)));
+    assertEquals(new JSONArray(), VisitsCodec.decode(VisitsCodec.encode(new JSONArray())));
+    assertEquals(new JSONArray(), VisitsCodec.decode(null));
+    assertEquals(new JSONArray(), VisitsCodec.decode(new byte[0]));
+  }
+
+  @SuppressWarnings({ "unchecked", "static-method" })
+  @Test
+  public void testIrregularVisitsFallBackToJSON() throws Exception {
+    JSONObject odd = new JSONObject();
+    odd.put("key", "value");
+    JSONArray visits = new JSONArray();
+    visits.add(odd);
+    byte[] encoded = VisitsCodec.encode(visits);
+    assertArrayEquals(visits.toJSONString().getBytes("UTF-8"), encoded);
+    assertEquals(visits, VisitsCodec.decode(encoded));
+
+    // Types that don't fit in a byte.
+    visits = new JSONArray();
+    visits.add(visit(1000, 256));
+    encoded = VisitsCodec.encode(visits);
+    assertEquals('[', encoded[0]);
+    assertEquals(visits, VisitsCodec.decode(encoded));
+
+    // Extra keys.
+    JSONObject extra = visit(1000, 1);
+    extra.put("foo", "bar");
+    visits = new JSONArray();
+    visits.add(extra);
+    assertEquals('[', VisitsCodec.encode(visits)[0]);
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testDecodesLegacyJSON() throws Exception {
+    JSONArray visits = typicalVisits();
+    assertEquals(visits, VisitsCodec.decode(visits.toJSONString().getBytes("UTF-8")));
+    assertEquals(visits, VisitsCodec.decodeJSON(visits.toJSONString()));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testMalformed() throws Exception {
+    byte[] encoded = VisitsCodec.encode(typicalVisits());
+
+    byte[] truncated = new byte[encoded.length - 1];
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    assertNull(VisitsCodec.decode(truncated));
+
+    byte[] trailing = new byte[encoded.length + 1];
+    System.arraycopy(encoded, 0, trailing, 0, encoded.length);
+    assertNull(VisitsCodec.decode(trailing));
+
+    assertNull(VisitsCodec.decode(new byte[] { VisitsCodec.FORMAT_COMPACT, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }));
+    assertNull(VisitsCodec.decode("[{".getBytes("UTF-8")));
+    assertNull(VisitsCodec.decode("{}".getBytes("UTF-8")));
+  }
+}
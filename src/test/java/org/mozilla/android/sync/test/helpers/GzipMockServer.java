@@ -0,0 +1,51 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mozilla.gecko.sync.Logger;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * A <code>MockServer</code> that gzips its body if the request accepts gzip,
+ * as a production Sync server does.
+ */
+public class GzipMockServer extends MockServer {
+  public String contentType = "application/json";
+
+  // Set by each request.
+  public String acceptEncoding;
+  public boolean gzipped;
+
+  public GzipMockServer() {
+  }
+
+  public GzipMockServer(int statusCode, String body) {
+    super(statusCode, body);
+  }
+
+  @Override
+  protected void handle(Request request, Response response, int code, String body) {
+    acceptEncoding = request.getValue("Accept-Encoding");
+    gzipped = acceptEncoding != null && acceptEncoding.contains("gzip");
+    try {
+      this.handleBasicHeaders(request, response, code, contentType);
+      final OutputStream out;
+      if (gzipped) {
+        response.set("Content-Encoding", "gzip");
+        out = new GZIPOutputStream(response.getOutputStream());
+      } else {
+        out = response.getOutputStream();
+      }
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    } catch (IOException e) {
+      Logger.error(LOG_TAG, "Oops.", e);
+    }
+  }
+}
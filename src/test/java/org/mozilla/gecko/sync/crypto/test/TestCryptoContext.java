@@ -0,0 +1,153 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoContext.EncryptedPayload;
+import org.mozilla.gecko.sync.crypto.CryptoException;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestCryptoContext {
+
+  @Test
+  public void testContextIsCachedPerThreadAndBundle() throws Exception {
+    final KeyBundle kb = KeyBundle.withRandomKeys();
+    final CryptoContext context = CryptoContext.forKeys(kb);
+    assertSame(context, CryptoContext.forKeys(kb));
+
+    // A different bundle, even with equal keys, gets its own context.
+    KeyBundle copy = new KeyBundle(kb.getEncryptionKey(), kb.getHMACKey());
+    assertNotSame(context, CryptoContext.forKeys(copy));
+
+    // Another thread gets its own context.
+    final AtomicReference<CryptoContext> other = new AtomicReference<CryptoContext>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          other.set(CryptoContext.forKeys(kb));
+        } catch (CryptoException e) {
+          // Leave it null.
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+    assertNotSame(context, other.get());
+    assertSame(kb, other.get().getKeys());
+  }
+
+  @Test
+  public void testContextIsReplacedWhenKeysChange() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoContext context = CryptoContext.forKeys(kb);
+    byte[] plaintext = "plaintext".getBytes("UTF-8");
+    CryptoInfo before = CryptoInfo.encrypt(plaintext, kb);
+
+    kb.setHMACKey(KeyBundle.withRandomKeys().getHMACKey());
+    assertNotSame(context, CryptoContext.forKeys(kb));
+
+    // The old HMAC no longer verifies with the new key.
+    assertEquals(false, Arrays.equals(before.getHMAC(), CryptoInfo.generatedHMACFor(before.getMessage(), kb)));
+  }
+
+  @Test
+  public void testBufferAPIMatchesCryptoInfo() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] plaintext = "The quick brown fox jumps over the lazy dog.".getBytes("UTF-8");
+    CryptoInfo info = CryptoInfo.encrypt(plaintext, kb);
+
+    CryptoContext context = CryptoContext.forKeys(kb);
+    final int offset = 3;
+    byte[] ciphertext = new byte[offset + CryptoContext.getEncryptedLength(plaintext.length)];
+    int written = context.encrypt(plaintext, 0, plaintext.length, info.getIV(), ciphertext, offset);
+    assertEquals(info.getMessage().length, written);
+    assertArrayEquals(info.getMessage(), Arrays.copyOfRange(ciphertext, offset, offset + written));
+
+    byte[] base64 = Base64.encodeBase64(info.getMessage());
+    byte[] hmac = new byte[offset + CryptoContext.HMAC_LENGTH];
+    context.hmac(base64, 0, base64.length, hmac, offset);
+    assertArrayEquals(info.getHMAC(), Arrays.copyOfRange(hmac, offset, hmac.length));
+
+    byte[] decrypted = new byte[written];
+    int decryptedLength = context.decrypt(ciphertext, offset, written, info.getIV(), decrypted, 0);
+    assertArrayEquals(plaintext, Arrays.copyOfRange(decrypted, 0, decryptedLength));
+  }
+
+  @Test
+  public void testBase64BufferHelpersMatchAllocatingMethods() throws Exception {
+    Random random = new Random(42);
+    for (int length = 0; length < 70; length++) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+
+      byte[] expected = Base64.encodeBase64(data);
+      byte[] encoded = new byte[2 + Base64.getEncodedLength(length)];
+      int encodedLength = Base64.encodeBase64(data, 0, length, encoded, 2);
+      assertEquals(expected.length, encodedLength);
+      assertArrayEquals(expected, Arrays.copyOfRange(encoded, 2, 2 + encodedLength));
+
+      byte[] decoded = new byte[Base64.getDecodedLengthBound(encodedLength)];
+      int decodedLength = Base64.decodeBase64(encoded, 2, encodedLength, decoded, 0);
+      assertArrayEquals(data, Arrays.copyOf(decoded, decodedLength));
+    }
+  }
+
+  @Test
+  public void testPayloadRoundTrip() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoContext context = CryptoContext.forKeys(kb);
+    byte[] plaintext = "{\"title\":\"caf\u00e9\"}".getBytes("UTF-8");
+    EncryptedPayload fields = context.encryptPayload(plaintext, 0, plaintext.length);
+
+    // Interoperates with the allocating path.
+    CryptoInfo info = CryptoInfo.decrypt(Base64.decodeBase64(fields.base64Ciphertext), Base64.decodeBase64(fields.base64IV),
+                                         Utils.hex2Byte(fields.hexHMAC), kb);
+    assertArrayEquals(plaintext, info.getMessage());
+
+    int length = context.decryptPayload(fields.base64Ciphertext, fields.base64IV, fields.hexHMAC);
+    assertArrayEquals(plaintext, Arrays.copyOf(context.getOutputBuffer(), length));
+  }
+
+  @Test
+  public void testPayloadHMACMismatch() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoContext context = CryptoContext.forKeys(kb);
+    byte[] plaintext = "{}".getBytes("UTF-8");
+    EncryptedPayload fields = context.encryptPayload(plaintext, 0, plaintext.length);
+
+    final String hmac = fields.hexHMAC;
+    char last = hmac.charAt(hmac.length() - 1);
+    String[] badHMACs = new String[] {
+      hmac.substring(0, hmac.length() - 1) + (last == '0' ? '1' : '0'),
+      hmac.substring(2),
+      hmac.substring(0, hmac.length() - 1) + 'x',
+    };
+    for (String badHMAC : badHMACs) {
+      try {
+        context.decryptPayload(fields.base64Ciphertext, fields.base64IV, badHMAC);
+        fail("Expected HMAC verification failure for " + badHMAC);
+      } catch (HMACVerificationException e) {
+        // Good.
+      }
+    }
+    assertTrue(CryptoContext.constantTimeEquals(Utils.hex2Byte(hmac), Utils.hex2Byte(hmac)));
+  }
+}
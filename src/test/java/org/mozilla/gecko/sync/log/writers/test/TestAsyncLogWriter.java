@@ -0,0 +1,223 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.log.writers.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.log.writers.AsyncLogWriter;
+import org.mozilla.gecko.sync.log.writers.AsyncLogWriter.OverflowPolicy;
+import org.mozilla.gecko.sync.log.writers.StringLogWriter;
+
+public class TestAsyncLogWriter {
+  public static final String TEST_LOG_TAG = "TestAsyncLogWriter";
+
+  /**
+   * Holds every write until released.
+   */
+  public static class GatedLogWriter extends StringLogWriter {
+    public final CountDownLatch gate = new CountDownLatch(1);
+    public final CountDownLatch firstWrite = new CountDownLatch(1);
+
+    @Override
+    public void info(String tag, String message, Throwable error) {
+      firstWrite.countDown();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.info(tag, message, error);
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Before
+  public void setUp() {
+    Logger.stopLoggingToAll();
+  }
+
+  @SuppressWarnings("static-method")
+  @After
+  public void tearDown() {
+    Logger.stopLoggingToAll();
+  }
+
+  /**
+   * Events are written in order, and stopping logging writes out any that
+   * are still buffered.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testFlushOnStop() {
+    final StringLogWriter lw = new StringLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(lw, 256, OverflowPolicy.BLOCK);
+    Logger.startLoggingTo(async);
+    for (int i = 0; i < 1000; i++) {
+      Logger.info(TEST_LOG_TAG, "message {}", Integer.valueOf(i));
+    }
+    Logger.stopLoggingToAll();
+
+    final String[] lines = lw.toString().split("\n");
+    assertEquals(1000, lines.length);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(lines[i].endsWith("message " + i));
+    }
+    assertEquals(1000, async.getWrittenCount());
+    assertEquals(0, async.getDroppedCount());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testDrop() throws Exception {
+    final GatedLogWriter lw = new GatedLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(lw, 4, OverflowPolicy.DROP);
+
+    // The first event occupies the drain thread; four more fill the buffer.
+    async.info(TEST_LOG_TAG, "first", null);
+    assertTrue(lw.firstWrite.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 20; i++) {
+      async.info(TEST_LOG_TAG, "message " + i, null);
+    }
+    assertEquals(4, async.getPendingCount());
+    assertEquals(16, async.getDroppedCount());
+
+    lw.gate.countDown();
+    assertTrue(async.flush(5000));
+    assertEquals(5, async.getWrittenCount());
+    async.close();
+
+    final String s = lw.toString();
+    assertTrue(s.contains("message 3"));
+    assertTrue(s.contains("Dropped 16 log events"));
+
+    // Closed writers drop everything.
+    async.info(TEST_LOG_TAG, "late", null);
+    assertEquals(17, async.getDroppedCount());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testBlock() throws Exception {
+    final GatedLogWriter lw = new GatedLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(lw, 4, OverflowPolicy.BLOCK);
+
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 20; i++) {
+          async.info(TEST_LOG_TAG, "message " + i, null);
+        }
+        done.countDown();
+      }
+    }).start();
+
+    // The logging thread can't finish while the buffer is full.
+    assertTrue(lw.firstWrite.await(5, TimeUnit.SECONDS));
+    assertEquals(false, done.await(100, TimeUnit.MILLISECONDS));
+
+    lw.gate.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    async.close();
+    assertEquals(20, async.getWrittenCount());
+    assertEquals(0, async.getDroppedCount());
+  }
+
+  /**
+   * Several threads log at once without losing or duplicating events.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final StringLogWriter lw = new StringLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(lw, 64, OverflowPolicy.BLOCK);
+    final int threads = 4;
+    final int perThread = 500;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            async.info(TEST_LOG_TAG, thread + ":" + i, null);
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    async.close();
+
+    assertEquals(threads * perThread, async.getWrittenCount());
+    final String[] lines = lw.toString().split("\n");
+    assertEquals(threads * perThread, lines.length);
+
+    // Each thread's events are in the order it logged them.
+    final int[] next = new int[threads];
+    for (String line : lines) {
+      final String[] parts = line.substring(line.lastIndexOf(' ') + 1).split(":");
+      final int thread = Integer.parseInt(parts[0]);
+      assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  protected static int liveDrainThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("AsyncLogWriter".equals(thread.getName()) && thread.isAlive()) {
+        count += 1;
+      }
+    }
+    return count;
+  }
+
+  protected static void awaitLiveDrainThreads(int expected) throws InterruptedException {
+    for (int i = 0; i < 100 && liveDrainThreads() != expected; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, liveDrainThreads());
+  }
+
+  /**
+   * Switching to asynchronous logging replaces the default writers, and only
+   * those.
+   */
+  @SuppressWarnings("static-method")
+  @Test
+  public void testSetLogAsynchronously() throws InterruptedException {
+    final int before = liveDrainThreads();
+    final StringLogWriter lw = new StringLogWriter();
+    try {
+      Logger.resetLogging();
+      Logger.startLoggingTo(lw);
+
+      Logger.setLogAsynchronously(true);
+      awaitLiveDrainThreads(before + 1);
+      // Already asynchronous: nothing to replace.
+      Logger.setLogAsynchronously(true);
+      awaitLiveDrainThreads(before + 1);
+      Logger.info(TEST_LOG_TAG, "still here");
+      assertTrue(lw.toString().contains("still here"));
+
+      Logger.setLogAsynchronously(false);
+      awaitLiveDrainThreads(before);
+
+      // Not logging to the default writers, so none are added.
+      Logger.stopLoggingToAll();
+      Logger.setLogAsynchronously(true);
+      awaitLiveDrainThreads(before);
+    } finally {
+      Logger.setLogAsynchronously(false);
+    }
+  }
+}
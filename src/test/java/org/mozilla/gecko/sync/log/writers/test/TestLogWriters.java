@@ -156,4 +156,50 @@ public class TestLogWriters {
       Logger.stopLoggingTo(logWriter);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testParameterized() {
+    StringLogWriter lw = new StringLogWriter();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.DEBUG, lw));
+
+    Logger.info(TEST_LOG_TAG_1, "one {} two", "1");
+    Logger.debug(TEST_LOG_TAG_1, "{} and {}", "a", Integer.valueOf(2));
+    Logger.debug(TEST_LOG_TAG_1, "{}{}{} {}", "x", "y", "z");
+    Logger.debug(TEST_LOG_TAG_1, "no placeholders", "ignored");
+    Logger.trace(TEST_LOG_TAG_1, "filtered {}", "out");
+
+    String[] lines = lw.toString().split("\n");
+    assertEquals(4, lines.length);
+    assertTrue(lines[0].endsWith("one 1 two"));
+    assertTrue(lines[1].endsWith("a and 2"));
+    assertTrue(lines[2].endsWith("xyz {}"));
+    assertTrue(lines[3].endsWith("no placeholders"));
+  }
+
+  /**
+   * Cached levels must follow changes to the set of writers.
+   */
+  @Test
+  public void testShouldLog() {
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.ERROR));
+
+    StringLogWriter lw = new StringLogWriter();
+    LogWriter warn = new LevelFilteringLogWriter(Log.WARN, lw);
+    Logger.startLoggingTo(warn);
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.ERROR));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.WARN));
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.INFO));
+    assertFalse(Logger.shouldLogVerbose(TEST_LOG_TAG_1));
+
+    LogWriter verbose = new LevelFilteringLogWriter(Log.VERBOSE, lw);
+    Logger.startLoggingTo(verbose);
+    assertTrue(Logger.shouldLogVerbose(TEST_LOG_TAG_1));
+
+    Logger.stopLoggingTo(verbose);
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.DEBUG));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.WARN));
+
+    Logger.stopLoggingTo(warn);
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.ERROR));
+  }
+}
@@ -0,0 +1,109 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.metrics.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.metrics.StageMetrics;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Count;
+import org.mozilla.gecko.sync.metrics.StageMetrics.Phase;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
+
+public class TestSyncMetrics {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testRequests() {
+    final StageMetrics stage = new StageMetrics("bookmarks");
+    assertTrue(stage.isEmpty());
+    assertEquals(0, stage.getMeanRequestMillis());
+
+    stage.recordRequest(100, 10 * MILLIS);
+    stage.recordRequest(0, 30 * MILLIS);
+    stage.recordRequest(-1, 20 * MILLIS);
+    assertFalse(stage.isEmpty());
+    assertEquals(3, stage.get(Count.REQUESTS));
+    assertEquals(100, stage.get(Count.BYTES_SENT));
+    assertEquals(20, stage.getMeanRequestMillis());
+    assertEquals(30, stage.getMaxRequestMillis());
+    assertEquals(60, stage.getMillis(Phase.NETWORK));
+
+    // Body read time counts as network time, but not towards request latency.
+    stage.addNanos(Phase.NETWORK, 40 * MILLIS);
+    assertEquals(100, stage.getMillis(Phase.NETWORK));
+    assertEquals(20, stage.getMeanRequestMillis());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testToString() {
+    final StageMetrics stage = new StageMetrics("history");
+    stage.recordRequest(2048, 80 * MILLIS);
+    stage.add(Count.BYTES_RECEIVED, 51200);
+    stage.add(Count.RECORDS_FETCHED, 40);
+    stage.add(Count.RECORDS_INSERTED, 37);
+    stage.increment(Count.RECORDS_RECONCILED);
+    stage.addNanos(Phase.DECRYPT, 45 * MILLIS);
+
+    final String s = stage.toString();
+    assertTrue(s.startsWith("history: 0ms; 1 req (mean 80ms, max 80ms), 2048 B out, 51200 B in; "));
+    assertTrue(s.contains("; fetched 40, reconciled 1, inserted 37; "));
+    assertTrue(s.endsWith("; network 80ms, decrypt 45ms"));
+    assertFalse(s.contains("updated"));
+    assertFalse(s.contains("db_write"));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testStages() {
+    final SyncMetrics metrics = new SyncMetrics();
+    final StageMetrics unattributed = metrics.getCurrentStage();
+    assertEquals(SyncMetrics.UNATTRIBUTED, unattributed.name);
+
+    final StageMetrics first = metrics.beginStage("first");
+    assertSame(first, metrics.getCurrentStage());
+    first.increment(Count.RECORDS_FETCHED);
+
+    // Beginning a stage ends the previous one.
+    final StageMetrics second = metrics.beginStage("second");
+    assertSame(second, metrics.getCurrentStage());
+    second.increment(Count.RECORDS_FETCHED);
+    second.increment(Count.RECORDS_FAILED);
+
+    metrics.endStage();
+    assertSame(unattributed, metrics.getCurrentStage());
+    metrics.getCurrentStage().recordRequest(0, MILLIS);
+
+    // Running a stage again accumulates.
+    assertSame(first, metrics.beginStage("first"));
+    first.increment(Count.RECORDS_FETCHED);
+    metrics.end();
+    assertSame(unattributed, metrics.getCurrentStage());
+
+    assertEquals(2, first.get(Count.RECORDS_FETCHED));
+    assertEquals(3, metrics.getTotal(Count.RECORDS_FETCHED));
+    assertEquals(1, metrics.getTotal(Count.RECORDS_FAILED));
+    assertEquals(1, unattributed.get(Count.REQUESTS));
+
+    final List<StageMetrics> stages = metrics.getStages();
+    assertEquals(3, stages.size());
+    assertSame(unattributed, stages.get(0));
+    assertSame(first, stages.get(1));
+    assertSame(second, stages.get(2));
+
+    final String[] lines = metrics.summary().split("\n");
+    assertEquals(4, lines.length);
+    assertTrue(lines[0].startsWith("Sync took "));
+    assertTrue(lines[2].startsWith("  first: "));
+    assertTrue(lines[3].startsWith("  second: "));
+  }
+}
@@ -10,6 +10,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import junit.framework.AssertionFailedError;
 
@@ -287,4 +290,132 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertTrue(record1.title.equals(decryptedRecord1.title) || record1.title.equals(decryptedRecord2.title));
     assertTrue(record2.title.equals(decryptedRecord1.title) || record2.title.equals(decryptedRecord2.title));
   }
+
+  protected String[] putEncryptedBookmarks(int count) throws UnsupportedEncodingException, CryptoException {
+    final String[] guids = new String[count];
+    for (int i = 0; i < count; i++) {
+      final BookmarkRecord record = new BookmarkRecord(String.format("guid%08d", i), "coll", System.currentTimeMillis(), false);
+      record.title = "title " + i;
+      CryptoRecord encrypted = record.getEnvelope();
+      encrypted.keyBundle = keyBundle;
+      encrypted = encrypted.encrypt();
+      wboRepo.wbos.put(record.guid, encrypted);
+      // Reverse order, so that fetch order differs from insertion order.
+      guids[count - 1 - i] = record.guid;
+    }
+    return guids;
+  }
+
+  protected ExpectSuccessRepositorySessionFetchRecordsDelegate fetchAndFinish(final String[] guids) {
+    return fetchAndFinish(guids, new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter()));
+  }
+
+  protected ExpectSuccessRepositorySessionFetchRecordsDelegate fetchAndFinish(final String[] guids,
+      final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate) {
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.fetch(guids, delegate);
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+    return delegate;
+  }
+
+  @Test
+  /**
+   * Verify that decrypting on several threads passes every record on, in fetch
+   * order, before completing.
+   */
+  public void testParallelFetchPreservesOrder() throws UnsupportedEncodingException, CryptoException {
+    final int count = 300;
+    final String[] guids = putEncryptedBookmarks(count);
+    cmwRepo.decryptThreads = 4;
+    cmwRepo.decryptInOrder = true;
+
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate = fetchAndFinish(guids);
+    assertEquals(count, delegate.fetchedRecords.size());
+    for (int i = 0; i < count; i++) {
+      CryptoRecord fetched = (CryptoRecord) delegate.fetchedRecords.get(i);
+      assertEquals(guids[i], fetched.guid);
+      BookmarkRecord decrypted = new BookmarkRecord();
+      decrypted.initFromEnvelope(fetched);
+      assertEquals("title " + Integer.parseInt(guids[i].substring(4)), decrypted.title);
+    }
+  }
+
+  @Test
+  /**
+   * Verify that unordered parallel decryption still passes every record on
+   * before completing.
+   */
+  public void testParallelFetchUnordered() throws UnsupportedEncodingException, CryptoException {
+    final int count = 300;
+    final String[] guids = putEncryptedBookmarks(count);
+    cmwRepo.decryptThreads = 4;
+    cmwRepo.decryptInOrder = false;
+
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate = fetchAndFinish(guids);
+    assertEquals(count, delegate.fetchedRecords.size());
+    final HashSet<String> seen = new HashSet<String>();
+    for (Record record : delegate.fetchedRecords) {
+      seen.add(record.guid);
+    }
+    assertEquals(new HashSet<String>(Arrays.asList(guids)), seen);
+  }
+
+  @Test
+  /**
+   * Verify that a consumer throwing while being handed records neither strands
+   * the records after them nor prevents completion, and that each exception is
+   * passed on as a fetch failure, in order.
+   */
+  public void testParallelFetchConsumerThrows() throws UnsupportedEncodingException, CryptoException {
+    final int count = 300;
+    final String[] guids = putEncryptedBookmarks(count);
+    cmwRepo.decryptThreads = 4;
+    cmwRepo.decryptInOrder = true;
+
+    // The consumer is never called concurrently.
+    final ArrayList<String> failed = new ArrayList<String>();
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter()) {
+      @Override
+      public void onFetchedRecord(Record record) {
+        if (record.guid.endsWith("7")) {
+          throw new IllegalStateException("Consumer failed on " + record.guid + ".");
+        }
+        super.onFetchedRecord(record);
+      }
+
+      @Override
+      public void onFetchFailed(Exception ex, Record record) {
+        assertTrue(ex instanceof IllegalStateException);
+        failed.add(record.guid);
+      }
+    };
+    fetchAndFinish(guids, delegate);
+
+    assertEquals(count / 10, failed.size());
+    assertEquals(count - count / 10, delegate.fetchedRecords.size());
+    int nextFailed = 0;
+    int nextFetched = 0;
+    for (String guid : guids) {
+      if (guid.endsWith("7")) {
+        assertEquals(guid, failed.get(nextFailed++));
+      } else {
+        assertEquals(guid, delegate.fetchedRecords.get(nextFetched++).guid);
+      }
+    }
+  }
 }
@@ -0,0 +1,133 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.stage.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.BaseMockServerSyncStage;
+import org.mozilla.android.sync.test.helpers.MockGlobalSession;
+import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.SynchronizerConfiguration;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.Repository;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+
+import android.content.Context;
+
+public class TestServerSyncStageIdle {
+  private static final String TEST_CLUSTER_URL = "http://localhost:8080";
+  private static final String TEST_USERNAME    = "johndoe";
+  private static final String TEST_PASSWORD    = "password";
+  private static final String TEST_SYNC_KEY    = "abcdeabcdeabcdeabcdeabcdea";
+
+  // history was last modified on the server at 1331956713100.
+  private static final String TEST_JSON = "{\"history\":1.3319567131E9}";
+
+  /**
+   * A local repository that reports changes as it's told to, and remembers
+   * the timestamp it was asked about.
+   */
+  public static class ChangesRepository extends Repository {
+    public boolean changed = false;
+    public long askedSince = -1;
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasChangesSince(long timestamp, Context context) {
+      askedSince = timestamp;
+      return changed;
+    }
+  }
+
+  public static class IdleTestStage extends BaseMockServerSyncStage {
+    public IdleTestStage(GlobalSession session) {
+      super(session);
+    }
+
+    public boolean leakIsIdle() {
+      return isIdle();
+    }
+  }
+
+  private GlobalSession session;
+  private ChangesRepository local;
+  private IdleTestStage stage;
+
+  @Before
+  public void setUp() throws Exception {
+    session = new MockGlobalSession(TEST_CLUSTER_URL, TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), new MockGlobalSessionCallback());
+
+    final InfoCollections infoCollections = new InfoCollections(null, null);
+    infoCollections.setFromRecord(ExtendedJSONObject.parseJSONObject(TEST_JSON));
+    session.config.infoCollections = infoCollections;
+
+    local = new ChangesRepository();
+    stage = new IdleTestStage(session);
+    stage.name = "history";
+    stage.collection = "history";
+    stage.local = local;
+  }
+
+  protected void setTimestamps(long remote, long local) {
+    final SynchronizerConfiguration config = new SynchronizerConfiguration("syncID",
+        new RepositorySessionBundle(remote), new RepositorySessionBundle(local));
+    config.persist(session.config.getBranch(stage.collection + "."));
+  }
+
+  @Test
+  public void testIdle() {
+    setTimestamps(1331956713100L, 1331956700000L);
+    assertTrue(stage.leakIsIdle());
+    assertEquals(1331956700000L, local.askedSince);
+  }
+
+  @Test
+  public void testLocalChanges() {
+    setTimestamps(1331956713100L, 1331956700000L);
+    local.changed = true;
+    assertFalse(stage.leakIsIdle());
+  }
+
+  @Test
+  public void testRemoteChanges() {
+    setTimestamps(1331956000000L, 1331956700000L);
+    assertFalse(stage.leakIsIdle());
+    // No need to ask the local repository.
+    assertEquals(-1, local.askedSince);
+  }
+
+  @Test
+  public void testNeverSynced() {
+    assertFalse(stage.leakIsIdle());
+    setTimestamps(1331956713100L, 0);
+    assertFalse(stage.leakIsIdle());
+  }
+
+  @Test
+  public void testMissingCollection() {
+    stage.collection = "bookmarks";
+    stage.name = "bookmarks";
+    setTimestamps(1331956713100L, 1331956700000L);
+    assertFalse(stage.leakIsIdle());
+
+    stage.collection = "history";
+    stage.name = "history";
+    setTimestamps(1331956713100L, 1331956700000L);
+    session.config.infoCollections = null;
+    assertFalse(stage.leakIsIdle());
+  }
+}
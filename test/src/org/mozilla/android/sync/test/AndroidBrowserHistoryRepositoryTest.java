@@ -6,6 +6,8 @@ package org.mozilla.android.sync.test;
 import java.util.ArrayList;
 
 import org.json.simple.JSONObject;
+import org.mozilla.android.sync.test.helpers.CountingHistoryDataAccessor;
+import org.mozilla.android.sync.test.helpers.ExpectBeginDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFinishDelegate;
 import org.mozilla.android.sync.test.helpers.HistoryHelpers;
@@ -495,4 +497,90 @@ public class AndroidBrowserHistoryRepositoryTest extends AndroidBrowserRepositor
     session.abort();
     assertTrue(db.getHistoryDataExtender().isClosed());
   }
+
+  /**
+   * A history session that stores in small batches and counts its queries.
+   */
+  protected class CountingHistorySession extends AndroidBrowserHistoryRepositorySession {
+    public static final int BATCH_SIZE = 10;
+    public final CountingHistoryDataAccessor counter;
+
+    public CountingHistorySession(Repository repository, Context context) {
+      super(repository, context);
+      counter = new CountingHistoryDataAccessor(context);
+      dbHelper = counter;
+    }
+
+    @Override
+    protected int getStoreBatchSize() {
+      return BATCH_SIZE;
+    }
+
+    @Override
+    protected synchronized void trackGUID(String guid) {
+      System.out.println("Ignoring trackGUID call: this is a test!");
+    }
+  }
+
+  protected CountingHistorySession createAndBeginCountingSession() {
+    final CountingHistorySession session = new CountingHistorySession(new AndroidBrowserHistoryRepository(), getApplicationContext());
+    performWait(beginRunnable(session, new ExpectBeginDelegate()));
+    session.counter.reset();
+    return session;
+  }
+
+  protected static HistoryRecord[] makeHistoryRecords(int count, long lastModified, String titlePrefix) {
+    final HistoryRecord[] records = new HistoryRecord[count];
+    for (int i = 0; i < count; i++) {
+      final HistoryRecord record = HistoryHelpers.createHistory2();
+      record.guid = "batchedguid" + (char) ('a' + i);
+      record.lastModified = lastModified;
+      record.histURI = "http://example.com/batched/" + i;
+      record.title = titlePrefix + " " + i;
+      records[i] = record;
+    }
+    return records;
+  }
+
+  /**
+   * Storing records in batches should look up incoming GUIDs once per batch,
+   * not once per record, both for new records and for records that replace
+   * existing ones. Replacements should be written with one applyBatch call
+   * per batch of records, and each still reported as stored.
+   */
+  public void testBatchedStoreQueriesOncePerBatch() {
+    final int count = 25;
+    final int batches = (count + CountingHistorySession.BATCH_SIZE - 1) / CountingHistorySession.BATCH_SIZE;
+    final long now = System.currentTimeMillis();
+
+    // New records: one GUID query per batch. Finding duplicates by record
+    // string builds its map with a single fetch of everything.
+    CountingHistorySession session = createAndBeginCountingSession();
+    final HistoryRecord[] inserted = makeHistoryRecords(count, now, "Inserted");
+    performWait(storeManyRunnable(session, inserted));
+    assertEquals(batches, session.counter.guidFetches.get());
+    assertEquals(1, session.counter.allFetches.get());
+    performWait(finishRunnable(session, new ExpectFinishDelegate()));
+
+    // Newer versions of the same records replace them, still with one GUID
+    // query per batch.
+    session = createAndBeginCountingSession();
+    final HistoryRecord[] replacements = makeHistoryRecords(count, now + 1000, "Replaced");
+    performWait(storeManyRunnable(session, replacements));
+    assertEquals(batches, session.counter.guidFetches.get());
+    assertEquals(0, session.counter.allFetches.get());
+    assertEquals(0, session.counter.directUpdates.get());
+    assertEquals(batches, session.counter.batchApplies.get());
+
+    final String[] guids = new String[count];
+    for (int i = 0; i < count; i++) {
+      guids[i] = replacements[i].guid;
+    }
+    final ExpectFetchDelegate delegate = new ExpectFetchDelegate(replacements);
+    performWait(fetchRunnable(session, guids, delegate));
+    for (Record fetched : delegate.records) {
+      assertTrue(((HistoryRecord) fetched).title.startsWith("Replaced"));
+    }
+    performWait(finishRunnable(session, new ExpectFinishDelegate()));
+  }
 }
@@ -0,0 +1,134 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mozilla.gecko.sync.repositories.android.ContentProviderBatch;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+
+public class TestContentProviderBatch extends AndroidSyncTestCase {
+  protected static final String AUTHORITY = "org.mozilla.android.sync.test.batch";
+  protected static final Uri TEST_URI = Uri.parse("content://" + AUTHORITY + "/rows");
+
+  /**
+   * Records the size of each batch rather than applying it, and fails the
+   * batches it's told to.
+   */
+  public static class RecordingBatch extends ContentProviderBatch {
+    public final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+    public final ArrayList<Integer> failingBatches = new ArrayList<Integer>();
+
+    public RecordingBatch(int maxOperations) {
+      super((ContentResolver) null, AUTHORITY, maxOperations);
+    }
+
+    @Override
+    protected ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws Exception {
+      final int index = batchSizes.size();
+      batchSizes.add(operations.size());
+      if (failingBatches.contains(index)) {
+        throw new OperationApplicationException("Failing batch " + index + ".");
+      }
+      final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = new ContentProviderResult(1);
+      }
+      return results;
+    }
+  }
+
+  public static class RecordingDelegate implements ContentProviderBatch.Delegate {
+    public final ArrayList<String> applied = new ArrayList<String>();
+    public final ArrayList<String> failed = new ArrayList<String>();
+
+    @Override
+    public void onApplied(String guid, int count) {
+      applied.add(guid);
+    }
+
+    @Override
+    public void onFailed(Exception e, String guid) {
+      failed.add(guid);
+    }
+  }
+
+  /**
+   * Adds <code>count</code> updates, named guid0 onwards, whose fallbacks
+   * record that they ran. Those for <code>failingGuids</code> fail.
+   */
+  protected static void addUpdates(ContentProviderBatch batch, int count, final List<String> retried, final List<String> failingGuids) {
+    for (int i = 0; i < count; i++) {
+      final String guid = "guid" + i;
+      final ContentProviderOperation op = ContentProviderOperation.newUpdate(TEST_URI).withValue("title", guid).build();
+      batch.add(guid, op, 1, new ContentProviderBatch.Fallback() {
+        @Override
+        public int apply() throws Exception {
+          retried.add(guid);
+          if (failingGuids.contains(guid)) {
+            throw new IllegalStateException("Failing " + guid + ".");
+          }
+          return 1;
+        }
+      });
+    }
+  }
+
+  protected static List<String> guids(int start, int end) {
+    final ArrayList<String> guids = new ArrayList<String>();
+    for (int i = start; i < end; i++) {
+      guids.add("guid" + i);
+    }
+    return guids;
+  }
+
+  public void testChunking() {
+    final RecordingBatch batch = new RecordingBatch(ContentProviderBatch.DEFAULT_MAX_OPERATIONS);
+    final ArrayList<String> retried = new ArrayList<String>();
+    addUpdates(batch, 250, retried, new ArrayList<String>());
+    assertEquals(250, batch.size());
+
+    final RecordingDelegate delegate = new RecordingDelegate();
+    batch.apply(delegate);
+    assertEquals(Arrays.asList(100, 100, 50), batch.batchSizes);
+    assertEquals(guids(0, 250), delegate.applied);
+    assertTrue(delegate.failed.isEmpty());
+    assertTrue(retried.isEmpty());
+    assertTrue(batch.isEmpty());
+    assertFalse(batch.touches("guid0"));
+
+    // Nothing left to apply.
+    batch.apply(delegate);
+    assertEquals(3, batch.batchSizes.size());
+  }
+
+  /**
+   * A chunk that fails as a batch is retried an operation at a time, and
+   * only the operations that fail again are reported as failed. Other chunks
+   * are unaffected.
+   */
+  public void testFallbackAfterFailedBatch() {
+    final RecordingBatch batch = new RecordingBatch(ContentProviderBatch.DEFAULT_MAX_OPERATIONS);
+    batch.failingBatches.add(1);
+    final ArrayList<String> retried = new ArrayList<String>();
+    addUpdates(batch, 250, retried, Arrays.asList("guid150", "guid199"));
+
+    final RecordingDelegate delegate = new RecordingDelegate();
+    batch.apply(delegate);
+    assertEquals(Arrays.asList(100, 100, 50), batch.batchSizes);
+    assertEquals(guids(100, 200), retried);
+    assertEquals(Arrays.asList("guid150", "guid199"), delegate.failed);
+
+    final List<String> expectedApplied = guids(0, 250);
+    expectedApplied.removeAll(delegate.failed);
+    assertEquals(expectedApplied, delegate.applied);
+  }
+}
@@ -5,9 +5,11 @@ package org.mozilla.android.sync.test;
 
 import java.util.concurrent.ExecutorService;
 
+import org.mozilla.android.sync.test.helpers.DefaultStoreDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchSinceDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectGuidsSinceDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectManyStoredDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectStoreCompletedDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectStoredDelegate;
 import org.mozilla.android.sync.test.helpers.SessionTestHelper;
@@ -444,4 +446,106 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
 
     session.abort();
   }
+
+  /**
+   * Records reconciled in the same batch see each other's effects.
+   */
+  public void testStoreBatch() throws NoContentProviderException, RemoteException {
+    final FormHistoryRepositorySession session = createAndBeginSession();
+
+    insertFourRecords(session);
+    long newTimestamp = System.currentTimeMillis();
+
+    // Takes over regular1 by payload...
+    final FormHistoryRecord first = (FormHistoryRecord) regular1.copyWithIDs("distinct1", 999);
+    // ... and so does this, from first.
+    final FormHistoryRecord second = (FormHistoryRecord) regular1.copyWithIDs("distinct2", 998);
+    final FormHistoryRecord deleted = new FormHistoryRecord(regular2.guid, regular2.collection, newTimestamp, true);
+    final FormHistoryRecord added = new FormHistoryRecord("new1", "forms", newTimestamp, false);
+    added.fieldName  = "fieldName1";
+    added.fieldValue = "fieldValue1";
+    final Record[] records = new Record[] { first, second, deleted, added };
+
+    performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new ExpectManyStoredDelegate(records));
+        try {
+          for (Record record : records) {
+            session.store(record);
+          }
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          performNotify("NoStoreDelegateException should not occur.", e);
+        }
+      }
+    });
+    performWait(fetchAllRunnable(session, new Record[] { second, added, deleted1, deleted2 }));
+
+    session.abort();
+  }
+
+  /**
+   * Records still batched or buffered when a checkpoint is requested are
+   * written before it runs, so aborting afterwards loses none of them.
+   */
+  public void testAfterPendingStoresThenAbort() throws NoContentProviderException, RemoteException {
+    final FormHistoryRepositorySession session = createAndBeginSession();
+    final long now = System.currentTimeMillis();
+    final FormHistoryRecord[] before = new FormHistoryRecord[3];
+    for (int i = 0; i < before.length; i++) {
+      before[i] = new FormHistoryRecord("before" + i, "forms", now, false);
+      before[i].fieldName  = "fieldName" + i;
+      before[i].fieldValue = "fieldValue" + i;
+    }
+    final FormHistoryRecord after = new FormHistoryRecord("after", "forms", now, false);
+    after.fieldName  = "fieldNameAfter";
+    after.fieldValue = "fieldValueAfter";
+
+    final int[] storedAtCheckpoint = new int[] { -1 };
+    performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new DefaultStoreDelegate() {
+          @Override
+          public void onRecordStoreSucceeded(String guid) {
+          }
+
+          @Override
+          public void onRecordStoreFailed(Exception ex, String guid) {
+            // Storing after may race with the abort.
+            if (!after.guid.equals(guid)) {
+              super.onRecordStoreFailed(ex, guid);
+            }
+          }
+        });
+        try {
+          for (Record record : before) {
+            session.store(record);
+          }
+          session.afterPendingStores(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                storedAtCheckpoint[0] = numRecords(session, BrowserContractHelpers.FORM_HISTORY_CONTENT_URI);
+                performNotify();
+              } catch (RemoteException e) {
+                performNotify("RemoteException should not occur.", e);
+              }
+            }
+          });
+          // Never written: we abort before the next checkpoint or storeDone.
+          session.store(after);
+        } catch (NoStoreDelegateException e) {
+          performNotify("NoStoreDelegateException should not occur.", e);
+        }
+      }
+    });
+    assertEquals(before.length, storedAtCheckpoint[0]);
+    session.abort();
+
+    final FormHistoryRepositorySession resumed = createAndBeginSession();
+    performWait(fetchAllRunnable(resumed, before));
+    resumed.abort();
+  }
 }
@@ -0,0 +1,67 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test.helpers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataAccessor;
+import org.mozilla.gecko.sync.repositories.android.ContentProviderBatch;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * A history data accessor that counts the queries made through it, and its
+ * writes.
+ */
+public class CountingHistoryDataAccessor extends AndroidBrowserHistoryDataAccessor {
+  public final AtomicInteger guidFetches = new AtomicInteger();
+  public final AtomicInteger allFetches = new AtomicInteger();
+  public final AtomicInteger directUpdates = new AtomicInteger();
+  public final AtomicInteger batchApplies = new AtomicInteger();
+
+  public CountingHistoryDataAccessor(Context context) {
+    super(context);
+  }
+
+  @Override
+  public Cursor fetch(String[] guids) throws NullCursorException {
+    guidFetches.incrementAndGet();
+    return super.fetch(guids);
+  }
+
+  @Override
+  public Cursor fetchAll() throws NullCursorException {
+    allFetches.incrementAndGet();
+    return super.fetchAll();
+  }
+
+  @Override
+  public void update(String oldGUID, Record newRecord) {
+    directUpdates.incrementAndGet();
+    super.update(oldGUID, newRecord);
+  }
+
+  @Override
+  public ContentProviderBatch createBatch() {
+    return new ContentProviderBatch(context.getContentResolver(), getUri().getAuthority()) {
+      @Override
+      public void apply(Delegate delegate) {
+        if (!isEmpty()) {
+          batchApplies.incrementAndGet();
+        }
+        super.apply(delegate);
+      }
+    };
+  }
+
+  public void reset() {
+    guidFetches.set(0);
+    allFetches.set(0);
+    directUpdates.set(0);
+    batchApplies.set(0);
+  }
+}
@@ -5,6 +5,7 @@ package org.mozilla.gecko.sync.repositories.android.test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -18,9 +19,12 @@ import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataExtender;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
+import org.mozilla.gecko.sync.repositories.android.VisitsCodec;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 public class AndroidBrowserHistoryDataExtenderTest extends AndroidSyncTestCase {
 
@@ -68,6 +72,29 @@ public class AndroidBrowserHistoryDataExtenderTest extends AndroidSyncTestCase {
     assertEquals("value", ((JSONObject)fetchedVisits.get(0)).get("key"));
   }
 
+  public void testVisitsForGUIDs() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
+    String guid1 = Utils.generateGuid();
+    String guid2 = Utils.generateGuid();
+    String missing = Utils.generateGuid();
+    String evilGUID = "' or '1'='1";
+    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"key\" : \"value\" } ] }").getArray("visits");
+
+    extender.store(Utils.generateGuid(), visits);
+    extender.store(guid1, visits);
+    extender.store(guid2, null);
+    extender.store(evilGUID, visits);
+
+    HashMap<String, JSONArray> fetched = extender.visitsForGUIDs(new String[] { guid1, guid2, missing, evilGUID });
+    assertEquals(3, fetched.size());
+    assertEquals(1, fetched.get(guid1).size());
+    assertEquals("value", ((JSONObject) fetched.get(guid1).get(0)).get("key"));
+    assertEquals(0, fetched.get(guid2).size());
+    assertFalse(fetched.containsKey(missing));
+    assertEquals(1, fetched.get(evilGUID).size());
+
+    assertTrue(extender.visitsForGUIDs(new String[] {}).isEmpty());
+  }
+
   public void testDeleteHandlesBadGUIDs() {
     String evilGUID = "' or '1'='1";
     extender.store(Utils.generateGuid(), null);
@@ -146,4 +173,52 @@ public class AndroidBrowserHistoryDataExtenderTest extends AndroidSyncTestCase {
       assertTrue(record.equals(toCompare));
     }
   }
+
+  /**
+   * Visits stored as JSON text by schema version 1 are re-encoded on upgrade.
+   */
+  public void testUpgradeFromJSONVisits() throws NullCursorException {
+    final HistoryRecord record = HistoryHelpers.createHistory1();
+    final String goodGUID = record.guid;
+    final String emptyGUID = Utils.generateGuid();
+    final String badGUID = Utils.generateGuid();
+
+    SQLiteDatabase db = extender.getWritableDatabase();
+    db.execSQL("DROP TABLE " + AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT);
+    db.execSQL("CREATE TABLE " + AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT + " (" +
+               AndroidBrowserHistoryDataExtender.COL_GUID + " TEXT PRIMARY KEY, " +
+               AndroidBrowserHistoryDataExtender.COL_VISITS + " TEXT)");
+    final String[][] rows = new String[][] {
+      { goodGUID, record.visits.toJSONString() },
+      { emptyGUID, "[]" },
+      { badGUID, "[{" },
+    };
+    for (String[] row : rows) {
+      ContentValues cv = new ContentValues();
+      cv.put(AndroidBrowserHistoryDataExtender.COL_GUID, row[0]);
+      cv.put(AndroidBrowserHistoryDataExtender.COL_VISITS, row[1]);
+      db.insert(AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT, null, cv);
+    }
+
+    extender.onUpgrade(db, 1, 2);
+
+    assertEquals(record.visits, extender.visitsForGUID(goodGUID));
+    assertEquals(0, extender.visitsForGUID(emptyGUID).size());
+    assertEquals(0, extender.visitsForGUID(badGUID).size());
+
+    Cursor cur = extender.fetch(goodGUID);
+    try {
+      assertTrue(cur.moveToFirst());
+      byte[] stored = cur.getBlob(cur.getColumnIndexOrThrow(AndroidBrowserHistoryDataExtender.COL_VISITS));
+      assertEquals(VisitsCodec.FORMAT_COMPACT, stored[0]);
+    } finally {
+      cur.close();
+    }
+    cur = extender.fetch(badGUID);
+    try {
+      assertEquals(0, cur.getCount());
+    } finally {
+      cur.close();
+    }
+  }
 }
@@ -0,0 +1,92 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.android.sync.test.AndroidSyncTestCase;
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataExtender;
+import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryRepositorySession;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+
+/**
+ * Compare loading visits for 10,000 history records one query per record, as
+ * history fetches used to, with loading them a batch at a time through
+ * <code>visitsForGUIDs</code>.
+ * <p>
+ * Timings are written to the log; the test only checks that both approaches
+ * agree.
+ */
+public class AndroidBrowserHistoryVisitsBenchmark extends AndroidSyncTestCase {
+  protected static final String LOG_TAG = "HistoryVisitsBenchmark";
+
+  protected static final int RECORDS = 10000;
+  protected static final int VISITS_PER_RECORD = 5;
+
+  protected AndroidBrowserHistoryDataExtender extender;
+  protected String[] guids;
+
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    extender = new AndroidBrowserHistoryDataExtender(getApplicationContext());
+    extender.wipe();
+
+    final long now = System.currentTimeMillis();
+    final ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>(RECORDS);
+    guids = new String[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      final HistoryRecord record = new HistoryRecord(Utils.generateGuid(), "history", now, false);
+      record.visits = new JSONArray();
+      for (int j = 0; j < VISITS_PER_RECORD; j++) {
+        final JSONObject visit = new JSONObject();
+        visit.put("date", (now - i * 1000 - j) * 1000);
+        visit.put("type", 1L);
+        record.visits.add(visit);
+      }
+      records.add(record);
+      guids[i] = record.guid;
+    }
+    extender.bulkInsert(records);
+  }
+
+  public void tearDown() {
+    extender.wipe();
+    extender.close();
+  }
+
+  public void testVisitLoading() throws NullCursorException {
+    long start = System.nanoTime();
+    final HashMap<String, JSONArray> individually = new HashMap<String, JSONArray>();
+    for (String guid : guids) {
+      individually.put(guid, extender.visitsForGUID(guid));
+    }
+    final long individualTime = System.nanoTime() - start;
+
+    final int batchSize = AndroidBrowserHistoryRepositorySession.FETCH_BATCH_SIZE;
+    start = System.nanoTime();
+    final HashMap<String, JSONArray> batched = new HashMap<String, JSONArray>();
+    for (int i = 0; i < guids.length; i += batchSize) {
+      final String[] batch = new String[Math.min(batchSize, guids.length - i)];
+      System.arraycopy(guids, i, batch, 0, batch.length);
+      batched.putAll(extender.visitsForGUIDs(batch));
+    }
+    final long batchedTime = System.nanoTime() - start;
+
+    Logger.info(LOG_TAG, "Loaded visits for " + RECORDS + " records: " +
+                         "individually " + (individualTime / RECORDS / 1000) + " us/record, " +
+                         "in batches of " + batchSize + " " + (batchedTime / RECORDS / 1000) + " us/record.");
+
+    assertEquals(RECORDS, batched.size());
+    for (String guid : guids) {
+      assertEquals(VISITS_PER_RECORD, batched.get(guid).size());
+      assertEquals(individually.get(guid), batched.get(guid));
+    }
+  }
+}